@@ -22,45 +22,37 @@
 package org.getobjects.appserver.associations;
 
 import org.getobjects.appserver.core.WOAssociation;
-import org.getobjects.foundation.NSKeyValueCoding;
+import org.getobjects.foundation.NSKeyPath;
 
 /**
  * WOKeyPathAssociation
  * <p>
  * Evaluates a KVC keypath against the current component.
  * <p>
- * Note: this directly implements the path traversal for speed and reduced
- *       clutter in stack traces. That is, it does NOT call valueForKeyPath
- *       on the component.
+ * Note: this directly walks the keys of the (cached) NSKeyPath for speed and
+ *       reduced clutter in stack traces. That is, it does NOT call
+ *       valueForKeyPath on the component.
  *       (let me know if you have a problem with this ...)
  */
 public class WOKeyPathAssociation extends WOAssociation {
   
-  protected String[] keyPath;
+  protected NSKeyPath keyPath;
   
   public WOKeyPathAssociation(String _keyPath) {
     if (_keyPath == null || _keyPath.length() == 0) {
       log.error("invalid (empty) keypath passed to WOKeyPathAssociation");
     }
     else
-      this.keyPath = _keyPath.split(KeyPathSeparatorRegEx);
+      this.keyPath = NSKeyPath.keyPathWithString(_keyPath);
   }
 
   /* accessors */
   
   @Override
   public String keyPath() {
-    if (this.keyPath == null || this.keyPath.length == 0)
+    if (this.keyPath == null || this.keyPath.count() == 0)
       return null;
-    if (this.keyPath.length == 1)
-      return this.keyPath[0];
-    
-    StringBuilder sb = new StringBuilder(64);
-    for (int i = 0; i < this.keyPath.length; i++) {
-      if (i != 0) sb.append(KeyPathSeparator);
-      sb.append(this.keyPath[i]);
-    }
-    return sb.toString();
+    return this.keyPath.keyPath();
   }
   
   /* reflection */
@@ -89,33 +81,10 @@ public class WOKeyPathAssociation extends WOAssociation {
   
   @Override
   public void setValue(Object _value, Object _cursor) {
-    if (_cursor == null)
+    if (_cursor == null || this.keyPath == null)
       return;
     
-    int      len     = this.keyPath.length;
-    Object   current = _cursor;
-
-    if (len > 1) {
-        for (int i = 0; i < (len - 1) && current != null; i++) {
-          if (current instanceof NSKeyValueCoding)
-            current = ((NSKeyValueCoding)current).valueForKey(this.keyPath[i]);
-          else {
-            current = NSKeyValueCoding.Utility
-              .valueForKey(current, this.keyPath[i]);
-          }
-        }
-    }
-    if (current == null)
-      return;
-      
-    if (current instanceof NSKeyValueCoding) {
-      ((NSKeyValueCoding)current)
-        .takeValueForKey(_value, this.keyPath[len - 1]);
-    }
-    else {
-      NSKeyValueCoding.Utility
-        .takeValueForKey(current, _value, this.keyPath[len-1]);
-    }
+    this.keyPath.takeValueForKeysInObject(_value, _cursor);
   }
   
   @Override
@@ -123,18 +92,7 @@ public class WOKeyPathAssociation extends WOAssociation {
     if (_cursor == null || this.keyPath == null)
       return null;
     
-    int    len     = this.keyPath.length;
-    Object current = _cursor;
-
-    for (int i = 0; i < len && current != null; i++) {
-      if (current instanceof NSKeyValueCoding)
-        current = ((NSKeyValueCoding)current).valueForKey(this.keyPath[i]);
-      else {
-        current = NSKeyValueCoding.Utility
-          .valueForKey(current, this.keyPath[i]);
-      }
-    }
-    return current;
+    return this.keyPath.valueForKeysInObject(_cursor);
   }
   
   /* description */
@@ -143,9 +101,7 @@ public class WOKeyPathAssociation extends WOAssociation {
   public void appendAttributesToDescription(StringBuilder _d) {
     super.appendAttributesToDescription(_d);
     _d.append(" keypath=");
-    for (int i = 0; i < this.keyPath.length; i++) {
-      if (i > 0) _d.append(".");
-      _d.append(this.keyPath[i]);
-    }
+    if (this.keyPath != null)
+      _d.append(this.keyPath.keyPath());
   }
 }
@@ -59,6 +59,7 @@ import org.getobjects.foundation.NSJavaRuntime;
 import org.getobjects.foundation.NSObject;
 import org.getobjects.foundation.NSSelector;
 import org.getobjects.foundation.UObject;
+import org.getobjects.foundation.UString;
 
 /**
  * This is the main entry class for Go web applications. You usually
@@ -124,6 +125,8 @@ public class WOApplication extends NSObject
   protected Properties        properties;
   protected WOSessionStore    sessionStore;
   protected WOStatisticsStore statisticsStore;
+  protected WOResponseCompressor responseCompressor;
+  protected WORequestContentPolicy requestContentPolicy;
   protected GoClassRegistry   goClassRegistry;
   protected GoProductManager  goProductManager;
   protected Class             contextClass;
@@ -132,6 +135,7 @@ public class WOApplication extends NSObject
 
   protected int pageCacheSize;
   protected int permanentPageCacheSize;
+  protected int pageCacheMaxComponentCount;
 
   protected String name;
 
@@ -158,6 +162,8 @@ public class WOApplication extends NSObject
         this.properties.getProperty("WOPageCacheSize", "5"));
     this.permanentPageCacheSize = UObject.intValue(
         this.properties.getProperty("WOPermanentPageCacheSize", "5"));
+    this.pageCacheMaxComponentCount = UObject.intValue(
+        this.properties.getProperty("WOPageCacheMaxComponentCount", "0"));
 
     /* global objects */
 
@@ -173,7 +179,16 @@ public class WOApplication extends NSObject
     setupDefaultClasses();
 
     this.sessionStore      = WOSessionStore.serverSessionStore();
-    this.statisticsStore   = new WOStatisticsStore();
+    if (this.sessionStore instanceof WOServerSessionStore) {
+      ((WOServerSessionStore)this.sessionStore)
+        .loadConfigurationFromProperties(this.properties);
+    }
+    this.statisticsStore   = new WOStatisticsStore(this);
+
+    this.responseCompressor = new WOResponseCompressor(this.properties);
+    this.requestContentPolicy = new WORequestContentPolicy(this.properties);
+
+    this.setupTemplateCache();
   }
 
   /* Note: this is called by WOPackageLinker.linkApplication() */
@@ -383,6 +398,7 @@ public class WOApplication extends NSObject
    */
   public WOResponse dispatchRequest(final WORequest _rq) {
     WOResponse r = null;
+    final long startNanos = System.nanoTime();
     final int rqId = this.requestCounter.incrementAndGet();
     this.activeDispatchCount.incrementAndGet();
 
@@ -419,9 +435,10 @@ public class WOApplication extends NSObject
 
     /* and here comes the regular processing */
 
+    WORequestHandler rh = null;
+    boolean didFail = false;
     if (r == null) {
       /* select WORequestHandler to process the request */
-      final WORequestHandler rh;
 
       if (useHandlerRequestDispatch()) {
         /*
@@ -450,6 +467,7 @@ public class WOApplication extends NSObject
         catch (final Exception e) {
           log.error("WOApplication caught exception", e);
           r = null;
+          didFail = true;
         }
       }
     }
@@ -474,11 +492,34 @@ public class WOApplication extends NSObject
 
     this.activeDispatchCount.decrementAndGet();
 
+    if (this.statisticsStore != null) {
+      this.statisticsStore.recordRequest(statisticsKeyForRequest(_rq, rh),
+        _rq, r, System.nanoTime() - startNanos, didFail);
+    }
+
     if (profile.isInfoEnabled())
       logRequestEnd(_rq, rqId, r);
     return r;
   }
 
+  /**
+   * Returns the key the request is tracked under in the WOStatisticsStore.
+   * This is the request handler key if it refers to a registered handler (eg
+   * 'wa' or 'wr'), otherwise the name of the handler class.
+   *
+   * @param _rq - the WORequest
+   * @param _rh - the WORequestHandler which processed the request, or null
+   * @return the statistics key of the request handler
+   */
+  protected String statisticsKeyForRequest
+    (final WORequest _rq, final WORequestHandler _rh)
+  {
+    final String rhKey = _rq != null ? _rq.requestHandlerKey() : null;
+    if (rhKey != null && this.requestHandlerRegistry.containsKey(rhKey))
+      return rhKey;
+    return _rh != null ? _rh.getClass().getSimpleName() : null;
+  }
+
   /* CORS */
 
   public WOResponse optionsForObjectInContext
@@ -799,7 +840,7 @@ public class WOApplication extends NSObject
         sb.append(s);
       }
       else if (!_r.isStreaming()) {
-        final int len = _r.content().length;
+        final int len = _r.contentLength();
         sb.append(" len=");
         sb.append(len);
       }
@@ -1058,7 +1099,8 @@ public class WOApplication extends NSObject
       return null;
     }
 
-    WOSession sn = st.checkOutSessionForID(_sid, rq);
+    final boolean readOnly = this.checksOutSessionReadOnly(_ctx);
+    WOSession sn = st.checkOutSessionForID(_sid, rq, readOnly);
     if (sn == null && rq != null) {
       /* check all cookies */
       final Collection<String> vals = rq.cookieValuesForKey(WORequest.SessionIDKey);
@@ -1070,7 +1112,7 @@ public class WOApplication extends NSObject
           if (sid == null) continue;
           if (sid.equals(_sid)) continue; // already checked that
 
-          sn = st.checkOutSessionForID(_sid, rq);
+          sn = st.checkOutSessionForID(_sid, rq, readOnly);
           if (sn != null) break;
         }
       }
@@ -1079,8 +1121,12 @@ public class WOApplication extends NSObject
       if (log.isDebugEnabled())
         log.debug("checked out session: " + sn.sessionID());
 
-      _ctx.setSession(sn);
-      sn._awakeWithContext(_ctx);
+      if (readOnly)
+        _ctx.setReadOnlySession(sn); /* no awake, the session is shared */
+      else {
+        _ctx.setSession(sn);
+        sn._awakeWithContext(_ctx);
+      }
     }
     else if (log.isInfoEnabled())
       log.info("could not checkout session: " + _sid);
@@ -1088,6 +1134,27 @@ public class WOApplication extends NSObject
     return sn;
   }
 
+  /**
+   * Can be overridden by subclasses to checkout the session in read-only mode
+   * for requests which do not modify the session (eg AJAX requests which just
+   * render some data). Read-only checkouts do not block each other, but the
+   * session is shared by the concurrent requests and not saved on checkin.
+   * <p>
+   * Since the session object is shared, it is not awakened or put to sleep
+   * (awake()/sleep() are not called) and no pages are saved in its page
+   * cache. Pages restored from the cache are shared as well, so read-only
+   * requests should not invoke component actions.
+   * A pending exclusive checkout blocks new read-only checkouts, so writers
+   * are not starved by a stream of readers.
+   * The method always returns false in the default implementation.
+   *
+   * @param _ctx - the context of the request
+   * @return true if the session can be shared with other readers
+   */
+  public boolean checksOutSessionReadOnly(final WOContext _ctx) {
+    return false;
+  }
+
   /**
    * Save the session to a store and check it in.
    *
@@ -1226,6 +1293,53 @@ public class WOApplication extends NSObject
     return this.resourceManager;
   }
 
+  /**
+   * Configures the template cache of the resource manager and preloads the
+   * templates of all components in the linked packages. This is called at
+   * the end of init().
+   * <p>
+   * Defaults:
+   * <ul>
+   *   <li>WOTemplateRevalidationInterval - ms between checks for modified
+   *       templates (per default 0 if caching is enabled, 2s otherwise)
+   *   <li>WOPreloadTemplates - whether to build all templates on startup
+   *   <li>WOPreloadTemplateThreads - threads used for that (default: #cpus)
+   *   <li>WOPreloadTemplateLanguages - the language sequence the definitions
+   *       are preloaded for, eg 'de, en' (default: none, this matches
+   *       requests w/o languages, other requests reuse the parsed templates)
+   * </ul>
+   */
+  protected void setupTemplateCache() {
+    final WOResourceManager rm = this.resourceManager;
+    if (rm == null)
+      return;
+
+    final String interval =
+      this.properties.getProperty("WOTemplateRevalidationInterval");
+    if (UObject.isNotEmpty(interval))
+      rm.setTemplateRevalidationInterval(UObject.longValue(interval));
+
+    if (!UObject.boolValue(this.properties.getProperty("WOPreloadTemplates")))
+      return;
+
+    int threads = UObject.intValue
+      (this.properties.getProperty("WOPreloadTemplateThreads", "0"));
+    if (threads <= 0)
+      threads = Runtime.getRuntime().availableProcessors();
+
+    final List<String> langs = UString.componentsListSeparatedByString
+      (this.properties.getProperty("WOPreloadTemplateLanguages"), ",",
+       true /* trim */, true /* remove empty */);
+
+    final long startTime = System.currentTimeMillis();
+    final int  count     = rm.preloadComponentDefinitions
+      (threads, langs != null && !langs.isEmpty() ? langs : null);
+    if (log.isInfoEnabled()) {
+      log.info("preloaded " + count + " templates in " +
+               (System.currentTimeMillis() - startTime) + "ms");
+    }
+  }
+
   /* error handling */
 
   public WOActionResults handleException(final Throwable _e, final WOContext _ctx) {
@@ -1301,6 +1415,31 @@ public class WOApplication extends NSObject
   }
 
 
+  /* compression */
+
+  /**
+   * Returns the object which compresses responses (using gzip or deflate) if
+   * the client supports that. Configured using the WOCompressResponses,
+   * WOCompressionMinLength and WOCompressionLevel defaults.
+   *
+   * @return the WOResponseCompressor, or null if compression is not available
+   */
+  public WOResponseCompressor responseCompressor() {
+    return this.responseCompressor;
+  }
+
+  /**
+   * Returns the object which controls how adaptors load request bodies, that
+   * is, which bodies are loaded into memory, which are left in the connection
+   * for streaming, and how large they may be.
+   *
+   * @return the WORequestContentPolicy
+   */
+  public WORequestContentPolicy requestContentPolicy() {
+    return this.requestContentPolicy;
+  }
+
+
   /* responder */
 
   /**
@@ -1549,6 +1688,19 @@ public class WOApplication extends NSObject
     return this.pageCacheSize;
   }
 
+  /**
+   * Limits the estimated memory held by the page cache of a session, that is
+   * the total number of components in the cached page trees.
+   *
+   * @param _count - the max number of components, 0 for no limit
+   */
+  public void setPageCacheMaxComponentCount(final int _count) {
+    this.pageCacheMaxComponentCount = _count;
+  }
+  public int pageCacheMaxComponentCount() {
+    return this.pageCacheMaxComponentCount;
+  }
+
 
   /* KVC */
 
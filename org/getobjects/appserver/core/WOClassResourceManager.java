@@ -21,10 +21,22 @@
 
 package org.getobjects.appserver.core;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 import org.getobjects.foundation.NSJavaRuntime;
 
@@ -223,6 +235,102 @@ public class WOClassResourceManager extends WOResourceManager {
     return this.baseClass.getResourceAsStream(_name);
   }
   
+  /* preloading */
+
+  /**
+   * Scans the package of the base class for component templates. This works
+   * for packages stored in a directory and for packages stored in a JAR.
+   */
+  @Override
+  public Collection<String> componentNamesWithTemplates() {
+    return this.componentNamesInResourcePaths(this.resourcePathsInPackage());
+  }
+
+  /**
+   * Returns the paths of the resources stored in the package of the base
+   * class, relative to the package, eg 'Main.html' or 'Frame/Component.wox'.
+   * Only the package itself and its direct subdirectories are scanned.
+   *
+   * @return the paths, or null if the location of the package is unknown
+   */
+  protected Set<String> resourcePathsInPackage() {
+    final CodeSource src;
+    try {
+      src = this.baseClass.getProtectionDomain().getCodeSource();
+    }
+    catch (final SecurityException e) {
+      return null;
+    }
+    if (src == null || src.getLocation() == null)
+      return null;
+
+    final File location;
+    try {
+      location = new File(src.getLocation().toURI());
+    }
+    catch (final URISyntaxException | IllegalArgumentException e) {
+      return null; /* not a file: URL */
+    }
+
+    final String pkgPath = this.pkgName.replace('.', '/');
+    if (location.isDirectory())
+      return resourcePathsInDirectory(new File(location, pkgPath));
+
+    final String prefix = pkgPath + "/";
+    final Set<String> paths = new HashSet<>(64);
+    try (final JarFile jar = new JarFile(location)) {
+      final Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        final JarEntry entry = entries.nextElement();
+        final String   name  = entry.getName();
+        if (entry.isDirectory() || !name.startsWith(prefix))
+          continue;
+
+        final String path = name.substring(prefix.length());
+        final int    slashIdx = path.indexOf('/');
+        if (slashIdx < 0 || path.indexOf('/', slashIdx + 1) < 0)
+          paths.add(path);
+      }
+    }
+    catch (final IOException e) {
+      log.warn("could not scan JAR for templates: " + location, e);
+      return null;
+    }
+    return paths;
+  }
+
+  /**
+   * Returns the paths of the files in the given directory and its direct
+   * subdirectories, eg 'Main.html' or 'Frame/Component.wox'.
+   *
+   * @param _dir - the directory to scan
+   * @return the paths relative to the directory
+   */
+  protected static Set<String> resourcePathsInDirectory(final File _dir) {
+    final File[] files = _dir.listFiles();
+    if (files == null)
+      return null;
+
+    final Set<String> paths = new HashSet<>(files.length);
+    final List<File> subdirs = new ArrayList<>(4);
+    for (final File file: files) {
+      if (file.isDirectory())
+        subdirs.add(file);
+      else
+        paths.add(file.getName());
+    }
+    for (final File subdir: subdirs) {
+      final File[] subfiles = subdir.listFiles();
+      if (subfiles == null)
+        continue;
+      for (final File file: subfiles) {
+        if (file.isFile())
+          paths.add(subdir.getName() + "/" + file.getName());
+      }
+    }
+    return paths;
+  }
+
   /* equality (used during RM hierarchy construction) */
 
   @Override
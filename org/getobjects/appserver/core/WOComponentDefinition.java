@@ -21,6 +21,8 @@
 
 package org.getobjects.appserver.core;
 
+import java.io.File;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
@@ -38,6 +40,10 @@ import org.getobjects.foundation.NSObject;
  * <p>
  * The component definition contains the information required to construct
  * a WOComponent object. That is, the component class and its template.
+ * <p>
+ * The definition also records the URLs the template was loaded from and their
+ * modification dates. The WOResourceManager uses this to drop definitions
+ * from its cache when the sources change (see isSourceModified()).
  */
 public class WOComponentDefinition extends NSObject
   implements IWOComponentDefinition
@@ -49,6 +55,14 @@ public class WOComponentDefinition extends NSObject
   protected Class      componentClass;
   protected WOTemplate template;
   
+  /* sources of the template, used for revalidation */
+  protected URL  templateURL;
+  protected URL  wodURL;
+  protected long templateLastModified;
+  protected long wodLastModified;
+  
+  protected volatile long lastAccess;
+  
   public WOComponentDefinition(String _name, Class _compClass) {
     this.name = _name;
     this.componentClass = _compClass;
@@ -183,10 +197,70 @@ public class WOComponentDefinition extends NSObject
   }
   
   
+  public URL templateURL() {
+    return this.templateURL;
+  }
+  public URL wodURL() {
+    return this.wodURL;
+  }
+  
+  
   /* cache */
   
+  /**
+   * Called by the WOResourceManager when the definition is retrieved from its
+   * cache. Records the time of the access.
+   */
   public void touch() {
-    // TODO: add a timestamp
+    this.lastAccess = System.currentTimeMillis();
+  }
+  
+  /**
+   * Returns the time the definition was last retrieved from the cache.
+   * 
+   * @return the time in milliseconds since 1970, or 0 if it never was
+   */
+  public long lastAccess() {
+    return this.lastAccess;
+  }
+  
+  /**
+   * Checks whether the template or wod file the definition was loaded from
+   * changed since it got loaded. Only file: URLs are checked, resources
+   * stored in JAR archives are considered immutable.
+   * 
+   * @return true if a source file changed or got deleted, false otherwise
+   */
+  public boolean isSourceModified() {
+    if (this.templateURL != null) {
+      final long date = lastModifiedOfFileURL(this.templateURL);
+      if (date != -1 && date != this.templateLastModified)
+        return true;
+    }
+    if (this.wodURL != null) {
+      final long date = lastModifiedOfFileURL(this.wodURL);
+      if (date != -1 && date != this.wodLastModified)
+        return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Returns the modification date of the file a file: URL points to.
+   * 
+   * @param _url - the URL to check
+   * @return the date in ms (0 if the file does not exist), or -1 if the URL is
+   *         not a file: URL
+   */
+  public static long lastModifiedOfFileURL(final URL _url) {
+    if (_url == null || !"file".equals(_url.getProtocol()))
+      return -1;
+    try {
+      return new File(_url.toURI()).lastModified();
+    }
+    catch (URISyntaxException | IllegalArgumentException e) {
+      return -1;
+    }
   }
   
   
@@ -200,6 +274,10 @@ public class WOComponentDefinition extends NSObject
    * definitionForComponent() of WOResourceManager.
    * <p>
    * The arguments are URLs so that we can load resources from JAR archives.
+   * <p>
+   * If the resource manager already has a template built from the same URLs
+   * in its cache, that template is reused (eg if the definition is requested
+   * with a different set of languages).
    * 
    * @param _type - select the TemplateBuilder, either 'Wrapper' or 'WOx'
    * @param _templateURL - URL pointing to the template
@@ -215,6 +293,21 @@ public class WOComponentDefinition extends NSObject
     if (_templateURL == null)
       return false;
     
+    /* record the sources, before loading them */
+    
+    this.templateURL          = _templateURL;
+    this.wodURL               = _wodURL;
+    this.templateLastModified = lastModifiedOfFileURL(_templateURL);
+    this.wodLastModified      = lastModifiedOfFileURL(_wodURL);
+    
+    /* check whether the RM already built the template */
+    
+    if (_rm != null) {
+      this.template = _rm.cachedTemplateForURLs(_templateURL, _wodURL);
+      if (this.template != null)
+        return true;
+    }
+    
     if (log.isDebugEnabled())
       log.debug("load template: " + _templateURL);
     
@@ -240,7 +333,12 @@ public class WOComponentDefinition extends NSObject
     /* ... build the template */
     
     this.template = builder.buildTemplate(_templateURL, _wodURL, _rm);
-    return this.template != null ? true : false;
+    if (this.template == null)
+      return false;
+    
+    if (_rm != null)
+      _rm.cacheTemplateOfDefinition(this);
+    return true;
   }
   
   public WOTemplateBuilder templateBuilderForURL(URL _url) {
@@ -261,5 +359,7 @@ public class WOComponentDefinition extends NSObject
       _d.append(" class=" + this.componentClass.getSimpleName());
     if (this.template != null)
       _d.append(" template=" + this.template);
+    if (this.templateURL != null)
+      _d.append(" url=" + this.templateURL);
   }
 }
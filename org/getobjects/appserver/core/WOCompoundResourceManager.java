@@ -23,7 +23,9 @@ package org.getobjects.appserver.core;
 
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
@@ -81,6 +83,17 @@ public class WOCompoundResourceManager extends WOResourceManager {
     return null;
   }
   
+  @Override
+  public Collection<String> componentNamesWithTemplates() {
+    final Collection<String> names = new LinkedHashSet<String>(64);
+    for (WOResourceManager rm: this.resourceManagers) {
+      final Collection<String> rmNames = rm.componentNamesWithTemplates();
+      if (rmNames != null)
+        names.addAll(rmNames);
+    }
+    return names;
+  }
+  
   /* resources */
   
   @Override
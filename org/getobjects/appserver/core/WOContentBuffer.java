@@ -0,0 +1,318 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.appserver.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * WOContentBuffer
+ * <p>
+ * The OutputStream used by WOMessage to collect the content of a message which
+ * is not streamed. Unlike a ByteArrayOutputStream the buffer never copies the
+ * data it already has when it grows. The bytes are kept in a list of fixed
+ * size segments, which are taken from (and returned to) a shared pool.
+ * <p>
+ * Strings can be encoded straight into the segments using appendChars(), this
+ * avoids the temporary String and byte[] objects of String.getBytes().
+ * <p>
+ * The segments are returned to the pool when the buffer is reset, the
+ * content must not be accessed afterwards.
+ * <p>
+ * THREAD: a buffer is not synchronized, the segment pool is thread safe.
+ */
+public class WOContentBuffer extends OutputStream {
+
+  public static final int segmentSize = 8192;
+
+  /* up to 4MB of segments are kept for reuse */
+  protected static final ArrayBlockingQueue<byte[]> segmentPool =
+    new ArrayBlockingQueue<>(512);
+
+  protected final List<byte[]> segments;
+  protected int[]  segmentLengths; /* fill level of the completed segments */
+  protected byte[] current;
+  protected int    currentPos;
+  protected int    size;
+
+  public WOContentBuffer() {
+    this.segments       = new ArrayList<>(8);
+    this.segmentLengths = new int[8];
+  }
+
+  /* segment pool */
+
+  protected static byte[] checkOutSegment() {
+    final byte[] segment = segmentPool.poll();
+    return segment != null ? segment : new byte[segmentSize];
+  }
+
+  protected static void checkInSegment(final byte[] _segment) {
+    if (_segment != null && _segment.length == segmentSize)
+      segmentPool.offer(_segment); /* drops the segment if the pool is full */
+  }
+
+  protected final void nextSegment() {
+    final int count = this.segments.size();
+    if (count > 0) {
+      /* record the fill level of the segment we leave, it might have unused
+       * space at the end (see appendChars()) */
+      if (count > this.segmentLengths.length) {
+        this.segmentLengths =
+          Arrays.copyOf(this.segmentLengths, count * 2);
+      }
+      this.segmentLengths[count - 1] = this.currentPos;
+    }
+
+    this.current    = checkOutSegment();
+    this.currentPos = 0;
+    this.segments.add(this.current);
+  }
+
+  /* accessors */
+
+  /**
+   * Returns the number of bytes stored in the buffer.
+   *
+   * @return the number of bytes
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /* OutputStream */
+
+  @Override
+  public void write(final int _b) {
+    if (this.current == null || this.currentPos == this.current.length)
+      this.nextSegment();
+
+    this.current[this.currentPos] = (byte)_b;
+    this.currentPos++;
+    this.size++;
+  }
+
+  @Override
+  public void write(final byte[] _data, int _off, int _len) {
+    if (_data == null || _len <= 0)
+      return;
+
+    while (_len > 0) {
+      if (this.current == null || this.currentPos == this.current.length)
+        this.nextSegment();
+
+      final int count = Math.min(_len, this.current.length - this.currentPos);
+      System.arraycopy(_data, _off, this.current, this.currentPos, count);
+      this.currentPos += count;
+      this.size       += count;
+      _off += count;
+      _len -= count;
+    }
+  }
+
+  /**
+   * Returns the segments to the pool. The buffer is empty afterwards.
+   */
+  public void reset() {
+    for (final byte[] segment: this.segments)
+      checkInSegment(segment);
+    this.segments.clear();
+    this.current    = null;
+    this.currentPos = 0;
+    this.size       = 0;
+  }
+
+  /**
+   * Closing a WOContentBuffer has no effect (like for a ByteArrayOutputStream),
+   * the content is still available afterwards. Call reset() to release the
+   * segments.
+   */
+  @Override
+  public void close() {
+  }
+
+  /* encoding */
+
+  /**
+   * Encodes the given characters and appends the result to the buffer. UTF-8
+   * is encoded inline, other charsets are processed using a CharsetEncoder
+   * which writes directly into the segments.
+   * <p>
+   * Like String.getBytes(), characters which cannot be encoded are replaced.
+   *
+   * @param _s       - the characters to be added
+   * @param _charset - the Charset to encode the characters in
+   * @throws CharacterCodingException if the encoding failed
+   */
+  public void appendChars(final CharSequence _s, final Charset _charset)
+    throws CharacterCodingException
+  {
+    if (_s == null || _s.length() == 0)
+      return;
+
+    if (StandardCharsets.UTF_8.equals(_charset)) {
+      this.appendUTF8Chars(_s);
+      return;
+    }
+
+    final CharsetEncoder encoder = _charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final CharBuffer in = CharBuffer.wrap(_s);
+
+    boolean flushing = false;
+    while (true) {
+      if (this.current == null || this.currentPos == this.current.length)
+        this.nextSegment();
+
+      final ByteBuffer out = ByteBuffer.wrap
+        (this.current, this.currentPos, this.current.length - this.currentPos);
+
+      final CoderResult cr = flushing
+        ? encoder.flush(out)
+        : encoder.encode(in, out, true /* endOfInput */);
+
+      this.size      += out.position() - this.currentPos;
+      this.currentPos = out.position();
+
+      if (cr.isOverflow()) {
+        /* Segment full. Note: the encoder may leave a few bytes unused if the
+         * next sequence does not fit, so we force a new segment. */
+        this.nextSegment();
+        continue;
+      }
+      if (cr.isError())
+        cr.throwException();
+
+      if (flushing)
+        break;
+      flushing = true;
+    }
+  }
+
+  protected void appendUTF8Chars(final CharSequence _s) {
+    final int len = _s.length();
+    for (int i = 0; i < len; i++) {
+      /* ensure space for the largest sequence (4 bytes) */
+      if (this.current == null || this.current.length - this.currentPos < 4)
+        this.nextSegment();
+
+      final byte[] buf = this.current;
+      int pos = this.currentPos;
+
+      /* fast path: ASCII run, leaving space for one 4 byte sequence */
+      final int limit = Math.min(len, i + (buf.length - pos - 4));
+      char c;
+      while (i < limit && (c = _s.charAt(i)) < 0x80) {
+        buf[pos++] = (byte)c;
+        i++;
+      }
+
+      if (i < len) {
+        c = _s.charAt(i);
+        if (c < 0x80)
+          buf[pos++] = (byte)c;
+        else if (c < 0x800) {
+          buf[pos++] = (byte)(0xC0 | (c >> 6));
+          buf[pos++] = (byte)(0x80 | (c & 0x3F));
+        }
+        else if (Character.isSurrogate(c)) {
+          final char low = (i + 1 < len) ? _s.charAt(i + 1) : 0;
+          if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+            final int cp = Character.toCodePoint(c, low);
+            buf[pos++] = (byte)(0xF0 | (cp >> 18));
+            buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+            buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte)(0x80 | (cp & 0x3F));
+            i++;
+          }
+          else
+            buf[pos++] = '?'; /* malformed, same like String.getBytes() */
+        }
+        else {
+          buf[pos++] = (byte)(0xE0 | (c >> 12));
+          buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+          buf[pos++] = (byte)(0x80 | (c & 0x3F));
+        }
+      }
+      else
+        i--; /* the outer loop increments */
+
+      this.size      += pos - this.currentPos;
+      this.currentPos = pos;
+    }
+  }
+
+  /* retrieving the content */
+
+  /**
+   * Writes the content of the buffer to the given stream, segment by segment.
+   *
+   * @param _os - the OutputStream to write to
+   * @throws IOException if the write failed
+   */
+  public void writeTo(final OutputStream _os) throws IOException {
+    for (int i = 0, count = this.segments.size(); i < count; i++) {
+      final int len = this.lengthOfSegment(i, count);
+      if (len > 0)
+        _os.write(this.segments.get(i), 0, len);
+    }
+  }
+
+  /**
+   * Returns a copy of the content as a byte[] array.
+   *
+   * @return the bytes stored in the buffer
+   */
+  public byte[] toByteArray() {
+    final byte[] data = new byte[this.size];
+    int pos = 0;
+    for (int i = 0, count = this.segments.size(); i < count; i++) {
+      final int len = this.lengthOfSegment(i, count);
+      System.arraycopy(this.segments.get(i), 0, data, pos, len);
+      pos += len;
+    }
+    return data;
+  }
+
+  protected int lengthOfSegment(final int _idx, final int _count) {
+    return _idx == _count - 1 ? this.currentPos : this.segmentLengths[_idx];
+  }
+
+  @Override
+  public String toString() {
+    return this.getClass().getSimpleName() + "[size=" + this.size +
+      " segments=" + this.segments.size() + "]";
+  }
+}
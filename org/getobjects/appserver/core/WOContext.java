@@ -62,6 +62,7 @@ public class WOContext extends WOCoreContext
   protected Locale          locale;
   protected TimeZone        timezone;
   protected boolean         hasNewSession;
+  protected boolean         hasReadOnlySession;
   protected boolean         savePageRequired;
   protected boolean         isRenderingDisabled;
 
@@ -112,6 +113,8 @@ public class WOContext extends WOCoreContext
     this.stackPos            = -1;
 
     if (_rq != null) {
+      _rq._setContext(this);
+
       if ((this.fragmentID = _rq.fragmentID()) != null) {
         /* for fragments, we initially disable rendering of elements */
         disableRendering();
@@ -350,6 +353,21 @@ public class WOContext extends WOCoreContext
     this.hasNewSession = true;
   }
 
+  /**
+   * Sets a session which got checked out read-only, that is, which is shared
+   * with other concurrent requests. Such a session is not awakened or put to
+   * sleep and pages are not saved in it.
+   *
+   * @param _sn - the shared session
+   */
+  public void setReadOnlySession(final WOSession _sn) {
+    setSession(_sn);
+    this.hasReadOnlySession = _sn != null;
+  }
+  public boolean hasReadOnlySession() {
+    return this.hasReadOnlySession;
+  }
+
   public WOSession session() {
     // TODO: create session on-demand
     if (this.session == null) {
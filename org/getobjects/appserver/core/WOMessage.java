@@ -21,11 +21,20 @@
 
 package org.getobjects.appserver.core;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -85,6 +94,8 @@ public abstract class WOMessage extends NSObject
   protected StringBuilder stringBuffer;
 
   protected String        contentEncoding;
+  protected Charset       contentCharset;     /* cached, see contentCharset() */
+  protected String        contentCharsetName;
   protected NSTextCoder   contentCoder;
   protected NSTextCoder   attributeCoder;
 
@@ -127,7 +138,11 @@ public abstract class WOMessage extends NSObject
     this.userInfo      = null;
     this.lastException = null;
 
-    if (this.outputStream != null) {
+    if (this.outputStream instanceof WOContentBuffer) {
+      ((WOContentBuffer)this.outputStream).reset(); /* release segments */
+      this.outputStream = null;
+    }
+    else if (this.outputStream != null) {
       try {
         this.outputStream.close();
       }
@@ -426,12 +441,12 @@ public abstract class WOMessage extends NSObject
   /**
    * Returns whether the message is streaming its append messages (instead of
    * collecting the data in a byte[] array). This is done by checking whether
-   * the outputstream is a ByteArrayOutputStream.
+   * the outputstream is a WOContentBuffer.
    *
    * @return whether the message directly streams its output
    */
   public boolean isStreaming() {
-    return !(this.outputStream instanceof ByteArrayOutputStream);
+    return !(this.outputStream instanceof WOContentBuffer);
   }
 
   /**
@@ -448,7 +463,7 @@ public abstract class WOMessage extends NSObject
 
   public void setContent(final byte[] _contents) {
     if ((this.outputStream != null) &&
-        !(this.outputStream instanceof ByteArrayOutputStream))
+        !(this.outputStream instanceof WOContentBuffer))
     {
       /* was a real stream */
       throw new NSException("Cannot set content of streamed WOMessage!");
@@ -458,36 +473,87 @@ public abstract class WOMessage extends NSObject
     if (this.stringBuffer != null)
       this.stringBuffer.setLength(0);
 
-    this.outputStream = new ByteArrayOutputStream
-      (this.contents != null ? this.contents.length : 1024);
+    if (this.outputStream != null)
+      ((WOContentBuffer)this.outputStream).reset();
+    else
+      this.outputStream = new WOContentBuffer();
     if (this.contents != null && this.contents.length > 0)
       this.appendContentData(this.contents, this.contents.length);
   }
 
+  /**
+   * Returns the Charset for the contentEncoding(), or null if the encoding is
+   * not supported.
+   *
+   * @return the Charset used to encode String content
+   */
+  public Charset contentCharset() {
+    final String enc = this.contentEncoding();
+    if (this.contentCharset != null && enc.equals(this.contentCharsetName))
+      return this.contentCharset;
+
+    try {
+      this.contentCharset     = Charset.forName(enc);
+      this.contentCharsetName = enc;
+      return this.contentCharset;
+    }
+    catch (IllegalCharsetNameException e) {
+      log.error("invalid content encoding: " + enc, e);
+    }
+    catch (UnsupportedCharsetException e) {
+      log.error("unsupported content encoding: " + enc, e);
+    }
+    return null;
+  }
+
+  /**
+   * Encodes the String buffer and writes it to the output stream. If the
+   * message is not streaming, the chars are directly encoded into the
+   * segments of the WOContentBuffer (no intermediate String/byte[]).
+   *
+   * @return null if everything went fine, the Exception otherwise
+   */
   protected Exception flushStringBuffer() {
-    if (this.stringBuffer != null && this.stringBuffer.length() > 0) {
-      try {
-        final byte[] a = this.stringBuffer.toString()
-          .getBytes(this.contentEncoding());
+    if (this.stringBuffer == null || this.stringBuffer.length() == 0)
+      return null;
 
-        try {
-          if (this.outputStream == null) {
-            this.outputStream = new ByteArrayOutputStream
-              (this.contents != null ? this.contents.length : 1024);
-          }
-          this.outputStream.write(a, 0 /* start-idx */, a.length);
-          this.stringBuffer.setLength(0);
-          return null; /* means: no error */
-        }
-        catch (IOException ioe) {
-          return (this.lastException = ioe);
-        }
+    final Charset charset = this.contentCharset();
+    if (charset == null)
+      return null; /* keep the buffer, like before */
+
+    if (this.outputStream == null)
+      this.outputStream = new WOContentBuffer();
+
+    try {
+      if (this.outputStream instanceof WOContentBuffer) {
+        ((WOContentBuffer)this.outputStream)
+          .appendChars(this.stringBuffer, charset);
       }
-      catch (UnsupportedEncodingException e) {
-        log.error("could not convert String to byte array", e);
+      else {
+        final byte[] a = this.stringBuffer.toString().getBytes(charset);
+        this.outputStream.write(a, 0 /* start-idx */, a.length);
       }
+      this.stringBuffer.setLength(0);
+      return null; /* means: no error */
     }
-    return null;
+    catch (CharacterCodingException e) {
+      log.error("could not encode String buffer", e);
+      return (this.lastException = e);
+    }
+    catch (IOException ioe) {
+      return (this.lastException = ioe);
+    }
+  }
+
+  /**
+   * The String buffer gets encoded once it reaches this size, so that it
+   * doesn't grow to the size of the whole page.
+   */
+  protected static final int stringBufferFlushSize = 8192;
+
+  protected final void flushStringBufferIfFull() {
+    if (this.stringBuffer.length() >= stringBufferFlushSize)
+      this.flushStringBuffer();
   }
 
   /**
@@ -505,10 +571,79 @@ public abstract class WOMessage extends NSObject
 
     this.flush();
 
-    if (!(this.outputStream instanceof ByteArrayOutputStream))
+    if (!(this.outputStream instanceof WOContentBuffer))
       return null; /* was a real stream */
 
-    return ((ByteArrayOutputStream)this.outputStream).toByteArray();
+    return ((WOContentBuffer)this.outputStream).toByteArray();
+  }
+
+  /**
+   * Writes the entity of the message to the given stream. Unlike content()
+   * this does not copy the buffered data into a single byte[] array, the
+   * segments of the WOContentBuffer are written one after another.
+   *
+   * @param _os - the OutputStream to write the content to
+   * @throws IOException if the write failed
+   */
+  public void writeContentTo(final OutputStream _os) throws IOException {
+    if (this.stringBuffer != null)
+      this.flushStringBuffer();
+
+    if (this.contents != null) {
+      _os.write(this.contents);
+      return;
+    }
+
+    if (this.outputStream instanceof WOContentBuffer)
+      ((WOContentBuffer)this.outputStream).writeTo(_os);
+  }
+
+  /**
+   * Returns the length of the entity of the message, without copying the
+   * contents like content() does.
+   *
+   * @return the length of the contents, or -1 if the message is streaming
+   */
+  public int contentLength() {
+    if (this.stringBuffer != null)
+      this.flushStringBuffer();
+
+    if (this.contents != null)
+      return this.contents.length;
+
+    if (this.outputStream == null)
+      return 0;
+    if (!(this.outputStream instanceof WOContentBuffer))
+      return -1; /* was a real stream */
+
+    return ((WOContentBuffer)this.outputStream).size();
+  }
+
+  /**
+   * Replaces the content of a non-streaming message with the given buffer.
+   * This is used by the WOResponseCompressor.
+   *
+   * @param _buffer - the new content
+   */
+  public void _setContentBuffer(final WOContentBuffer _buffer) {
+    if (this.isStreaming())
+      throw new NSException("Cannot set content of streamed WOMessage!");
+
+    this.releaseContentBuffer();
+    this.contents     = null;
+    this.outputStream = _buffer;
+  }
+
+  /**
+   * Returns the buffer segments of a non-streaming message to the shared
+   * pool. This is called by the adaptor after the content got delivered, the
+   * content of the message is empty afterwards.
+   */
+  public void releaseContentBuffer() {
+    if (this.outputStream instanceof WOContentBuffer)
+      ((WOContentBuffer)this.outputStream).reset();
+    if (this.stringBuffer != null)
+      this.stringBuffer.setLength(0);
   }
 
   /**
@@ -548,10 +683,8 @@ public abstract class WOMessage extends NSObject
     if (this.stringBuffer != null) this.flushStringBuffer();
 
     try {
-      if (this.outputStream == null) {
-        this.outputStream = new ByteArrayOutputStream
-          (this.contents != null ? this.contents.length : 1024);
-      }
+      if (this.outputStream == null)
+        this.outputStream = new WOContentBuffer();
       this.outputStream.write
         (_data, 0 /* start-idx */, _len < 0 ? _data.length : _len);
       return null; /* means: no error */
@@ -561,9 +694,82 @@ public abstract class WOMessage extends NSObject
     }
   }
 
+  /**
+   * Writes a section of the given file to the output stream.
+   * <p>
+   * If the message is streaming, this uses FileChannel.transferTo(). If the
+   * OutputStream of the servlet container is a WritableByteChannel, the data
+   * is transferred w/o copying it through the JVM (zero-copy).
+   *
+   * @param _file   - the file to add
+   * @param _offset - the position of the first byte to add
+   * @param _length - the number of bytes to add
+   * @return null if everything went fine, the Exception otherwise
+   */
+  public Exception appendContentFile
+    (final File _file, final long _offset, final long _length)
+  {
+    if (_file == null || _length <= 0)
+      return null;
+
+    if (this.stringBuffer != null) this.flushStringBuffer();
+    if (this.outputStream == null)
+      this.outputStream = new WOContentBuffer();
+
+    try (FileChannel ch = FileChannel.open(_file.toPath(),
+                                           StandardOpenOption.READ))
+    {
+      long pos       = _offset;
+      long remaining = _length;
+
+      if (this.isStreaming()) {
+        this.outputStream.flush();
+
+        /* Note: we must not close the channel, this would close the stream */
+        final WritableByteChannel out =
+          (this.outputStream instanceof WritableByteChannel)
+          ? (WritableByteChannel)this.outputStream
+          : Channels.newChannel(this.outputStream);
+
+        while (remaining > 0) {
+          final long len = ch.transferTo(pos, remaining, out);
+          if (len <= 0)
+            break; /* file got shorter */
+          pos       += len;
+          remaining -= len;
+        }
+      }
+      else {
+        final byte[]     buffer = new byte[8192];
+        final ByteBuffer bb     = ByteBuffer.wrap(buffer);
+        while (remaining > 0) {
+          bb.clear();
+          if (remaining < buffer.length)
+            bb.limit((int)remaining);
+
+          final int len = ch.read(bb, pos);
+          if (len <= 0)
+            break; /* file got shorter */
+          this.outputStream.write(buffer, 0, len);
+          pos       += len;
+          remaining -= len;
+        }
+      }
+
+      if (remaining > 0) {
+        return (this.lastException =
+          new IOException("file got shorter while reading: " + _file));
+      }
+      return null; /* means: no error */
+    }
+    catch (IOException ioe) {
+      return (this.lastException = ioe);
+    }
+  }
+
   protected void _ensureStringBuffer() {
     if (this.stringBuffer == null)
-      this.stringBuffer = new StringBuilder(32000);
+      this.stringBuffer = new StringBuilder(stringBufferFlushSize + 1024);
   }
 
   /**
@@ -578,8 +784,28 @@ public abstract class WOMessage extends NSObject
       return null;
 
     if (this.stringBuffer == null) this._ensureStringBuffer();
+
+    if (_s.length() >= stringBufferFlushSize &&
+        this.outputStream instanceof WOContentBuffer)
+    {
+      /* large chunk, encode it directly w/o copying it to the buffer */
+      final Charset charset = this.contentCharset();
+      if (charset != null) {
+        final Exception error = this.flushStringBuffer();
+        if (error != null)
+          return error;
+        try {
+          ((WOContentBuffer)this.outputStream).appendChars(_s, charset);
+          return null;
+        }
+        catch (CharacterCodingException e) {
+          return (this.lastException = e);
+        }
+      }
+    }
+
     this.stringBuffer.append(_s);
-    // TBD: flush at a certain size?
+    this.flushStringBufferIfFull();
     return null;
   }
 
@@ -608,9 +834,10 @@ public abstract class WOMessage extends NSObject
     if (_s == null || _s.length() == 0)
       return null;
 
-    // TBD: flush at a certain size?
     if (this.stringBuffer == null) this._ensureStringBuffer();
-    return this.contentCoder.encodeString(this.stringBuffer, _s);
+    final Exception error = this.contentCoder.encodeString(this.stringBuffer,_s);
+    this.flushStringBufferIfFull();
+    return error;
   }
 
   /**
@@ -910,7 +1137,7 @@ public abstract class WOMessage extends NSObject
     "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"
   };
   public static final String[] httpMonthNames = {
-    "Jan", "Tue", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
+    "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
     "Nov", "Dec"
   };
 
@@ -20,8 +20,9 @@
 */
 package org.getobjects.appserver.core;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.getobjects.foundation.NSObject;
 
@@ -29,16 +30,32 @@ import org.getobjects.foundation.NSObject;
  * WOPageSessionCache
  * <p>
  * LRU cache for saved page instances.
+ * <p>
+ * The pages are kept in an access ordered LinkedHashMap keyed by context-id,
+ * so lookups and saves do not need to scan the cache. Besides the number of
+ * pages, the cache can be limited by the estimated size of the pages (the
+ * number of components in the page trees, see estimatedSizeOfPage()).
+ * <p>
+ * THREAD: the operations are synchronized. Usually the cache is protected
+ *         by the session checkout, but read-only checkouts restore pages
+ *         concurrently (and a lookup modifies the LRU order).
  */
 public class WOPageSessionCache extends NSObject {
   
-  protected Queue<WOPageSessionCachePair> cache;
+  protected LinkedHashMap<String, Entry> cache;
   protected int cacheSize;
+  protected int maxEstimatedSize; /* 0 = unlimited */
+  protected int estimatedSize;
+  
+  /* statistics */
+  protected long hitCount;
+  protected long missCount;
+  protected long evictionCount;
   
   public WOPageSessionCache(int _size) {
     this.setCacheSize(_size);
     
-    this.cache = new LinkedList<WOPageSessionCachePair>();
+    this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true /* LRU */);
   }
   
   /* accessors */
@@ -56,37 +73,68 @@ public class WOPageSessionCache extends NSObject {
     return this.cacheSize;
   }
   
+  /**
+   * Sets the maximum estimated size of all pages in the cache, that is the
+   * total number of components in the cached page trees. If the limit is
+   * exceeded, the least recently used pages are dropped (the most recent
+   * page is always kept).
+   * 
+   * @param _size - the max number of components, 0 for no limit
+   */
+  public void setMaxEstimatedSize(int _size) {
+    this.maxEstimatedSize = _size;
+  }
+  public int maxEstimatedSize() {
+    return this.maxEstimatedSize;
+  }
+  public synchronized int estimatedSize() {
+    return this.estimatedSize;
+  }
+  
+  /**
+   * Returns the number of pages currently stored in the cache.
+   *
+   * @return the number of cached pages
+   */
+  public synchronized int pageCount() {
+    return this.cache != null ? this.cache.size() : 0;
+  }
+  
+  public synchronized long hitCount() {
+    return this.hitCount;
+  }
+  public synchronized long missCount() {
+    return this.missCount;
+  }
+  public synchronized long evictionCount() {
+    return this.evictionCount;
+  }
+  
   /* operation */
   
-  public boolean containsContextID(String _ctxId) {
+  public synchronized boolean containsContextID(String _ctxId) {
     if (_ctxId == null)
       return false;
     if (this.cache == null) /* no space */
       return false;
     
-    for (WOPageSessionCachePair pair: this.cache) {
-      if (pair.contextId.equals(_ctxId))
-        return true;
-    }
-    return false;
+    return this.cache.containsKey(_ctxId); /* does not touch the LRU order */
   }
 
-  public WOComponent restorePageForContextID(String _ctxId) {
+  public synchronized WOComponent restorePageForContextID(String _ctxId) {
     if (_ctxId == null || this.cache == null)
       return null;
-
-    for (WOPageSessionCachePair pair: this.cache) {
-      if (pair.contextId.equals(_ctxId)) {
-        /* move pair to end of queue */
-        this.cache.remove(pair);
-        this.cache.add(pair);
-        
-        /* ensure that the page does not refer to a context */
-        pair.page.context = null;
-        return pair.page;
-      }
+    
+    final Entry entry = this.cache.get(_ctxId); /* moves entry to the end */
+    if (entry == null) {
+      this.missCount++;
+      return null;
     }
-    return null;
+    this.hitCount++;
+    
+    /* ensure that the page does not refer to a context */
+    entry.page.context = null;
+    return entry.page;
   }
   
   /**
@@ -98,49 +146,64 @@ public class WOPageSessionCache extends NSObject {
    * @param _page  - the page to save
    * @param _ctxId - the context-id to save the page for
    */
-  public void savePageForContextID(WOComponent _page, String _ctxId) {
+  public synchronized void savePageForContextID
+    (WOComponent _page, String _ctxId)
+  {
     if (_ctxId == null || this.cache == null)
       return;
     
     /* ensure that the page doesn't refer to the context anymore */
     _page.context = null;
-
-    for (WOPageSessionCachePair pair: this.cache) {
-      if (pair.contextId.equals(_ctxId)) {
-        /* already in cache, move pair to end of queue */
-        this.cache.remove(pair);
-        this.cache.add(pair);
-        pair.page = _page; /* might have changed or nulled */
-        return;
-      }
-    }
     
-    /* not in the cache yet, add it */
-    if (this.cache.size() > this.cacheSize)
-      this.cache.poll(); /* remove the head (oldest element) */
+    /* add or replace, this moves the entry to the end of the LRU */
+    final Entry entry = new Entry(_page, this.estimatedSizeOfPage(_page));
+    final Entry old   = this.cache.put(_ctxId, entry);
+    if (old != null)
+      this.estimatedSize -= old.estimatedSize;
+    this.estimatedSize += entry.estimatedSize;
     
-    this.cache.add(new WOPageSessionCachePair(_ctxId, _page));
+    /* evict least recently used pages */
+    final Iterator<Entry> it = this.cache.values().iterator();
+    while (this.cache.size() > 1 && it.hasNext()) {
+      if (this.cache.size() <= this.cacheSize &&
+          (this.maxEstimatedSize <= 0 ||
+           this.estimatedSize <= this.maxEstimatedSize))
+        break;
+      
+      this.estimatedSize -= it.next().estimatedSize;
+      it.remove();
+      this.evictionCount++;
+    }
   }
   
-  
-  protected static final class WOPageSessionCachePair extends NSObject {
-    public String      contextId;
-    public WOComponent page;
+  /**
+   * Returns an estimate of the memory used by the given page. The default
+   * implementation counts the components in the page tree.
+   * 
+   * @param _page - the page
+   * @return the estimated size of the page
+   */
+  protected int estimatedSizeOfPage(final WOComponent _page) {
+    if (_page == null)
+      return 0;
     
-    public WOPageSessionCachePair(String _ctxId, WOComponent _page) {
-      this.contextId = _ctxId;
-      this.page      = _page;
+    int size = 1;
+    final Map<String, WOComponent> subs = _page.subcomponents;
+    if (subs != null) {
+      for (final WOComponent child: subs.values())
+        size += this.estimatedSizeOfPage(child);
     }
+    return size;
+  }
+  
+  
+  protected static final class Entry {
+    public final WOComponent page;
+    public final int         estimatedSize;
     
-    @Override
-    public boolean equals(Object _other) {
-      if (_other == this)
-        return true;
-      
-      if (!(_other instanceof WOPageSessionCachePair))
-        return false;
-      
-      return ((WOPageSessionCachePair)_other).contextId.equals(this.contextId);
+    public Entry(final WOComponent _page, final int _estimatedSize) {
+      this.page          = _page;
+      this.estimatedSize = _estimatedSize;
     }
   }
 
@@ -148,8 +211,24 @@ public class WOPageSessionCache extends NSObject {
   /* description */
   
   @Override
-  public void appendAttributesToDescription(StringBuilder d) {
+  public synchronized void appendAttributesToDescription(StringBuilder d) {
     super.appendAttributesToDescription(d);
-    // TODO: add some info
+    
+    d.append(" pages=");
+    d.append(this.pageCount());
+    d.append("/");
+    d.append(this.cacheSize);
+    if (this.maxEstimatedSize > 0) {
+      d.append(" size=");
+      d.append(this.estimatedSize);
+      d.append("/");
+      d.append(this.maxEstimatedSize);
+    }
+    d.append(" hits=");
+    d.append(this.hitCount);
+    d.append(" misses=");
+    d.append(this.missCount);
+    d.append(" evictions=");
+    d.append(this.evictionCount);
   }
 }
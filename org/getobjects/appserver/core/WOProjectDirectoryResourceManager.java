@@ -6,6 +6,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -105,6 +106,14 @@ public class WOProjectDirectoryResourceManager extends WOClassResourceManager {
     return null;
   }
 
+  /* preloading */
+
+  @Override
+  public Collection<String> componentNamesWithTemplates() {
+    return this.componentNamesInResourcePaths
+      (resourcePathsInDirectory(this.base));
+  }
+
   /* description */
 
   @Override
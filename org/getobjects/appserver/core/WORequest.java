@@ -21,7 +21,12 @@
 
 package org.getobjects.appserver.core;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -59,6 +64,7 @@ public class WORequest extends WOMessage {
 
   protected long startTimeStampInMS;
   protected Map<String, List<String>> corsHeaders;
+  protected WOContext context;
 
   /* construction */
 
@@ -100,6 +106,21 @@ public class WORequest extends WOMessage {
     return duration / 1000.0;
   }
   
+  /* context */
+  
+  public void _setContext(final WOContext _ctx) {
+    this.context = _ctx;
+  }
+  /**
+   * Returns the WOContext which got created to process the request. This is
+   * set by the WOContext constructor.
+   *
+   * @return the WOContext of the request, or null if none got created yet
+   */
+  public WOContext context() {
+    return this.context;
+  }
+  
   /* CORS */
   
   public void _setCORSHeaders(final Map<String, List<String>> _cors) {
@@ -346,6 +367,58 @@ public class WORequest extends WOMessage {
     return null;
   }
 
+  /* streamed content */
+
+  /**
+   * Returns the content of the request as an InputStream. Use this instead of
+   * content() to process large request bodies (eg WebDAV PUTs) w/o loading
+   * them into memory.
+   * <p>
+   * The default implementation wraps the content() array, adaptors override
+   * this to return the stream of the connection (see WORequestContentPolicy).
+   * Note that a connection stream can only be consumed once, afterwards the
+   * content is not available anymore (unless bufferContent() was called).
+   *
+   * @return an InputStream for the content, or null if there is none
+   * @throws IOException if the content could not be accessed
+   */
+  public InputStream contentStream() throws IOException {
+    final byte[] data = this.content();
+    return data != null ? new ByteArrayInputStream(data) : null;
+  }
+
+  /**
+   * Returns the content of the request as a ReadableByteChannel, see
+   * contentStream().
+   *
+   * @return a channel for the content, or null if there is none
+   * @throws IOException if the content could not be accessed
+   */
+  public ReadableByteChannel contentChannel() throws IOException {
+    final InputStream in = this.contentStream();
+    return in != null ? Channels.newChannel(in) : null;
+  }
+
+  /**
+   * Makes sure the content can be read multiple times, eg using content()
+   * and contentStream(). Adaptors which defer the loading of large bodies
+   * override this to copy the body to memory or to a temporary file.
+   *
+   * @throws IOException if the content could not be read
+   */
+  public void bufferContent() throws IOException {
+  }
+
+  /**
+   * Returns true if the request content exceeds the size allowed for the
+   * request. The adaptor does not load the content in this case.
+   *
+   * @return true if the content is too large, false otherwise
+   */
+  public boolean isContentTooLarge() {
+    return false;
+  }
+
   /* URL */
 
   /**
@@ -0,0 +1,266 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.appserver.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+import org.getobjects.foundation.UObject;
+
+/**
+ * WORequestContentPolicy
+ * <p>
+ * Controls how adaptors load the content (the body) of requests. Small bodies
+ * are loaded into memory when the WORequest is created, like before. Larger
+ * bodies (and bodies w/o a content-length, eg chunked ones) are left in the
+ * connection until they are requested. Handlers which want to process them
+ * as a stream call WORequest.contentStream() or contentChannel(), handlers
+ * which call content() still get a byte[] array.
+ * <p>
+ * The policy also limits the size of request bodies, per URL path if
+ * necessary (eg to allow large WebDAV PUTs only below /dav).
+ *
+ * <h3>Defaults</h3>
+ * <ul>
+ *   <li>WORequestContentMemoryThreshold (262144 bytes)<br>
+ *       bodies up to this size are loaded into memory upfront, larger ones
+ *       are deferred and spilled to a temporary file if they get buffered
+ *   <li>WOMaxRequestContentSize (67108864 bytes)<br>
+ *       requests with larger bodies are rejected with a 413
+ *   <li>WOMaxRequestContentSizes<br>
+ *       per path limits, eg <code>/dav=1073741824, /api/import=268435456</code>
+ *       (the longest matching path prefix wins, prefixes match whole path
+ *       segments of the normalized path, that is, /dav matches /dav/a but
+ *       not /davinci or /dav/../api)
+ *   <li>WOStreamingRequestPaths<br>
+ *       path prefixes for which multipart bodies are not parsed upfront.
+ *       The handler processes the parts as streams, eg using
+ *       WOServletRequest.contentParts().
+ * </ul>
+ * <p>
+ * THREAD: this object is immutable and thread safe.
+ */
+public class WORequestContentPolicy extends NSObject {
+  protected static final Log log = LogFactory.getLog("WOApplication");
+
+  protected final int      memoryThreshold;
+  protected final long     maxContentSize;
+  protected final String[] limitPathes; /* sorted, longest first */
+  protected final long[]   limitSizes;
+  protected final String[] streamingPathes;
+
+  public WORequestContentPolicy(final Properties _defaults) {
+    final Properties d = _defaults != null ? _defaults : new Properties();
+
+    this.memoryThreshold = UObject.intValue
+      (d.getProperty("WORequestContentMemoryThreshold", "262144"));
+    this.maxContentSize = parseSize
+      (d.getProperty("WOMaxRequestContentSize", "67108864"), 64 * 1024 * 1024);
+
+    /* per path limits */
+
+    final List<String> pathes = new ArrayList<>(4);
+    final List<Long>   sizes  = new ArrayList<>(4);
+    for (final String entry: splitList(d.getProperty("WOMaxRequestContentSizes"))) {
+      final int idx = entry.indexOf('=');
+      if (idx < 1) {
+        log.warn("invalid WOMaxRequestContentSizes entry: " + entry);
+        continue;
+      }
+      pathes.add(normalizePrefix(entry.substring(0, idx)));
+      sizes.add(parseSize(entry.substring(idx + 1), this.maxContentSize));
+    }
+
+    /* sort by length, so that the first match is the longest prefix */
+    for (int i = 1; i < pathes.size(); i++) {
+      for (int j = i; j > 0 &&
+           pathes.get(j).length() > pathes.get(j - 1).length(); j--)
+      {
+        pathes.set(j - 1, pathes.set(j, pathes.get(j - 1)));
+        sizes.set(j - 1, sizes.set(j, sizes.get(j - 1)));
+      }
+    }
+
+    this.limitPathes = pathes.toArray(new String[pathes.size()]);
+    this.limitSizes  = new long[sizes.size()];
+    for (int i = 0; i < this.limitSizes.length; i++)
+      this.limitSizes[i] = sizes.get(i);
+
+    final List<String> streaming =
+      splitList(d.getProperty("WOStreamingRequestPaths"));
+    this.streamingPathes = new String[streaming.size()];
+    for (int i = 0; i < this.streamingPathes.length; i++)
+      this.streamingPathes[i] = normalizePrefix(streaming.get(i));
+  }
+
+  protected static String normalizePrefix(final String _prefix) {
+    final String p = normalizePath(_prefix.trim());
+    return p != null ? p : "/";
+  }
+
+  /**
+   * Normalizes the path of a request URI: empty and '.' segments are dropped,
+   * '..' segments remove the previous segment and path parameters (eg
+   * ;jsessionid=abc) are stripped. Encoded dots (%2e) are treated like dots.
+   *
+   * @param _path - the path, eg /dav/./a/../b
+   * @return the normalized path, eg /dav/b, or null if the path leaves the
+   *   root
+   */
+  public static String normalizePath(final String _path) {
+    if (_path == null)
+      return null;
+
+    final List<String> segments = new ArrayList<>(8);
+    for (String segment: _path.split("/")) {
+      final int idx = segment.indexOf(';');
+      if (idx >= 0)
+        segment = segment.substring(0, idx);
+
+      final String plain = segment.replace("%2e", ".").replace("%2E", ".");
+      if (plain.length() == 0 || plain.equals("."))
+        continue;
+      if (plain.equals("..")) {
+        if (segments.isEmpty())
+          return null; /* above the root */
+        segments.remove(segments.size() - 1);
+        continue;
+      }
+      segments.add(segment);
+    }
+
+    final StringBuilder sb = new StringBuilder(_path.length() + 1);
+    for (final String segment: segments) {
+      sb.append('/');
+      sb.append(segment);
+    }
+    return sb.length() > 0 ? sb.toString() : "/";
+  }
+
+  /**
+   * Checks whether the normalized path is the prefix or below it.
+   */
+  protected static boolean isPathBelowPrefix(String _path, String _prefix) {
+    if (_prefix.equals("/"))
+      return true;
+    if (!_path.startsWith(_prefix))
+      return false;
+    return _path.length() == _prefix.length() ||
+           _path.charAt(_prefix.length()) == '/';
+  }
+
+  protected static List<String> splitList(final String _s) {
+    final List<String> values = new ArrayList<>(4);
+    if (_s == null)
+      return values;
+
+    for (String v: _s.split(",")) {
+      v = v.trim();
+      if (v.length() > 0)
+        values.add(v);
+    }
+    return values;
+  }
+
+  protected static long parseSize(final String _s, final long _default) {
+    if (_s == null)
+      return _default;
+    try {
+      return Long.parseLong(_s.trim());
+    }
+    catch (final NumberFormatException e) {
+      log.warn("invalid request content size: " + _s);
+      return _default;
+    }
+  }
+
+  /* accessors */
+
+  /**
+   * Returns the size up to which request bodies are loaded into memory. Larger
+   * bodies are deferred, and spilled to disk if they need to be buffered.
+   *
+   * @return the size in bytes
+   */
+  public int memoryThreshold() {
+    return this.memoryThreshold;
+  }
+
+  /**
+   * Returns the maximum size of a request body for the given path.
+   *
+   * @param _path - the URI of the request, eg /dav/files/abc.pdf
+   * @return the maximum size in bytes, a negative value means unlimited
+   */
+  public long maxContentSizeForPath(final String _path) {
+    final String path = normalizePath(_path);
+    if (path != null) {
+      for (int i = 0; i < this.limitPathes.length; i++) {
+        if (isPathBelowPrefix(path, this.limitPathes[i]))
+          return this.limitSizes[i];
+      }
+    }
+    return this.maxContentSize;
+  }
+
+  /**
+   * Returns whether multipart bodies sent to the given path should be exposed
+   * as streams, instead of being parsed into form values upfront.
+   *
+   * @param _path - the URI of the request
+   * @return true if the handler processes the parts itself
+   */
+  public boolean isStreamingPath(final String _path) {
+    final String path = normalizePath(_path);
+    if (path == null)
+      return false;
+    for (final String prefix: this.streamingPathes) {
+      if (isPathBelowPrefix(path, prefix))
+        return true;
+    }
+    return false;
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" mem=");
+    _d.append(this.memoryThreshold);
+    _d.append(" max=");
+    _d.append(this.maxContentSize);
+    if (this.limitPathes.length > 0) {
+      _d.append(" limits=");
+      for (int i = 0; i < this.limitPathes.length; i++) {
+        if (i > 0) _d.append(",");
+        _d.append(this.limitPathes[i]);
+        _d.append("=");
+        _d.append(this.limitSizes[i]);
+      }
+    }
+  }
+}
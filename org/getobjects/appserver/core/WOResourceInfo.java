@@ -0,0 +1,235 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.appserver.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+import org.getobjects.foundation.UString;
+
+/**
+ * WOResourceInfo
+ * <p>
+ * Metadata of a resource returned by a WOResourceManager: the URL (and the
+ * File for file: URLs), the length, the modification date and an ETag.
+ * <p>
+ * The ETag is the MD5 hash of the content. To avoid hashing the resource on
+ * each request, the info objects are cached per URL and reused as long as
+ * the length and modification date of the resource did not change.
+ * <p>
+ * THREAD: the objects are immutable and the cache is thread safe.
+ *
+ * @see WOResourceManager#resourceInfoForResourceNamed(String, String[])
+ */
+public class WOResourceInfo extends NSObject {
+  protected static final Log log = LogFactory.getLog("WOResourceManager");
+
+  /* resources larger than this get an ETag based on length and date */
+  protected static final long maxHashedLength = 16 * 1024 * 1024;
+  protected static final int  maxCacheSize    = 4096;
+
+  protected static final ConcurrentHashMap<String, WOResourceInfo> cache =
+    new ConcurrentHashMap<>(64);
+
+  protected final URL    url;
+  protected final File   file;
+  protected final long   length;
+  protected final long   lastModified;
+  protected final String etag;
+
+  protected WOResourceInfo
+    (final URL _url, final File _file, final long _length,
+     final long _lastModified, final String _etag)
+  {
+    this.url          = _url;
+    this.file         = _file;
+    this.length       = _length;
+    this.lastModified = _lastModified;
+    this.etag         = _etag;
+  }
+
+  /**
+   * Returns the info for the resource with the given URL. The info is taken
+   * from the cache if the resource did not change.
+   *
+   * @param _url - the URL of the resource, eg a file: or jar: URL
+   * @return the info for the resource, or null if it could not be accessed
+   */
+  public static WOResourceInfo resourceInfoForURL(final URL _url) {
+    if (_url == null)
+      return null;
+
+    /* determine length and date (cheap) */
+
+    File file = null;
+    long length, lastModified;
+    if ("file".equals(_url.getProtocol())) {
+      try {
+        file = new File(_url.toURI());
+      }
+      catch (final URISyntaxException | IllegalArgumentException e) {
+        file = null;
+      }
+    }
+    if (file != null) {
+      if (!file.isFile())
+        return null;
+      length       = file.length();
+      lastModified = file.lastModified();
+    }
+    else {
+      try {
+        final URLConnection con = _url.openConnection();
+        length       = con.getContentLengthLong();
+        lastModified = con.getLastModified();
+      }
+      catch (final IOException e) {
+        log.info("could not access resource: " + _url);
+        return null;
+      }
+    }
+
+    final String key = _url.toExternalForm();
+    WOResourceInfo info = cache.get(key);
+    if (info != null && info.length == length &&
+        info.lastModified == lastModified && lastModified > 0)
+      return info;
+
+    /* calculate ETag (expensive) */
+
+    final String etag = etagForResource(_url, length, lastModified);
+    info = new WOResourceInfo(_url, file, length, lastModified, etag);
+
+    if (lastModified > 0) {
+      if (cache.size() >= maxCacheSize)
+        cache.clear(); /* simple, but rarely happens */
+      cache.put(key, info);
+    }
+    return info;
+  }
+
+  protected static String etagForResource
+    (final URL _url, final long _length, final long _lastModified)
+  {
+    if (_length < 0 || _length > maxHashedLength) {
+      if (_lastModified <= 0)
+        return null;
+      return "\"" + Long.toHexString(_length) + "-" +
+        Long.toHexString(_lastModified) + "\"";
+    }
+
+    InputStream in = null;
+    try {
+      final MessageDigest md5 = MessageDigest.getInstance("MD5");
+      final byte[] buffer = new byte[8192];
+      in = _url.openStream();
+      int len;
+      while ((len = in.read(buffer)) != -1)
+        md5.update(buffer, 0, len);
+
+      return "\"" + UString.hexStringFromData(md5.digest()) + "\"";
+    }
+    catch (final NoSuchAlgorithmException e) {
+      log.error("MD5 is not available?!", e);
+      return null;
+    }
+    catch (final IOException e) {
+      log.warn("could not read resource to calculate ETag: " + _url, e);
+      return null;
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch (final IOException e) {}
+      }
+    }
+  }
+
+  /* accessors */
+
+  public URL url() {
+    return this.url;
+  }
+
+  /**
+   * Returns the File of the resource, if it is stored in the filesystem.
+   *
+   * @return the File, or null if the resource is not a file (eg in a jar)
+   */
+  public File file() {
+    return this.file;
+  }
+
+  /**
+   * Returns the length of the resource.
+   *
+   * @return the length in bytes, or -1 if the length is unknown
+   */
+  public long length() {
+    return this.length;
+  }
+
+  /**
+   * Returns the modification date of the resource.
+   *
+   * @return the date in milliseconds since 1970, or 0 if unknown
+   */
+  public long lastModified() {
+    return this.lastModified;
+  }
+
+  /**
+   * Returns the ETag of the resource, including the quotes (eg "abc").
+   *
+   * @return the ETag, or null if none could be determined
+   */
+  public String etag() {
+    return this.etag;
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" url=");
+    _d.append(this.url);
+    _d.append(" len=");
+    _d.append(this.length);
+    if (this.etag != null) {
+      _d.append(" etag=");
+      _d.append(this.etag);
+    }
+  }
+}
@@ -23,18 +23,32 @@ package org.getobjects.appserver.core;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.getobjects.appserver.elements.WOHTMLDynamicElement;
+import org.getobjects.appserver.templates.WOTemplate;
 import org.getobjects.foundation.NSClassLookupContext;
 import org.getobjects.foundation.NSJavaRuntime;
 import org.getobjects.foundation.NSObject;
@@ -73,6 +87,24 @@ import org.getobjects.foundation.UData;
  *   languages:(NSArray *)_languages</pre>
  * </pre>
  *
+ * <h4>Definition Cache</h4>
+ * <p>
+ *    Component definitions are cached by name and languages. In addition the
+ *    parsed templates are cached by the URLs of their sources, so that the
+ *    definitions for different languages share the same template.
+ * <p>
+ *    If caching is disabled (development mode), the definitions are still
+ *    cached, but a background thread checks the modification dates of the
+ *    template files every templateRevalidationInterval() ms and drops the
+ *    definitions of modified templates. If caching is enabled, templates are
+ *    never reloaded (unless an interval is set explicitly).
+ * <p>
+ *    preloadComponentDefinitions() builds the definitions of all components
+ *    found in the managed packages, this is called by WOApplication on
+ *    startup. Note that definitions are cached per language sequence, the
+ *    preload only fills the entries of the configured languages (but the
+ *    parsed templates are shared by all languages).
+ *
  * <p>
  * THREAD: TODO
  */
@@ -81,17 +113,23 @@ public abstract class WOResourceManager extends NSObject
 {
   protected static final Log log = LogFactory.getLog("WOResourceManager");
 
+  /* used if caching is disabled */
+  protected static final long defaultRevalidationInterval = 2000; /* ms */
+
   /* keep this at null if you do not want to cache ... */
   protected Map<Object,IWOComponentDefinition> componentDefinitions;
+  protected ConcurrentHashMap<String,WOComponentDefinition> templateDefinitions;
   protected boolean isCachingEnabled;
+  protected long    templateRevalidationInterval;
+  protected volatile RevalidationTask revalidationTask;
 
   public WOResourceManager(final boolean _enableCaching) {
     this.isCachingEnabled = _enableCaching;
 
-    if (this.isCachingEnabled) {
-      this.componentDefinitions =
-        new ConcurrentHashMap<>(32);
-    }
+    this.componentDefinitions = new ConcurrentHashMap<>(32);
+    this.templateDefinitions  = new ConcurrentHashMap<>(32);
+    this.templateRevalidationInterval =
+      this.isCachingEnabled ? 0 : defaultRevalidationInterval;
   }
 
 
@@ -359,13 +397,21 @@ public abstract class WOResourceManager extends NSObject
   protected IWOComponentDefinition _cacheDefinitionForComponent
     (final String _name, final String[] _langs, final IWOComponentDefinition _cdef)
   {
-    if (this.componentDefinitions == null) { /* caching disabled */
+    if (this.componentDefinitions == null) /* caching disabled */
+      return _cdef;
+
+    if (!this.isCachingEnabled) {
       if (!didWarnOnCaching) {
-        log.warn("component caching is disabled!");
+        log.warn("component caching is disabled, templates are revalidated " +
+                 "every " + this.templateRevalidationInterval + "ms");
         didWarnOnCaching = true;
       }
-      return _cdef;
+
+      /* we can only detect changes of templates we know the sources of */
+      if (_cdef != null && !isRevalidatable(_cdef))
+        return _cdef;
     }
+    this.ensureRevalidation();
 
     final boolean isDebugOn = log.isDebugEnabled();
     String  cacheKey;
@@ -386,6 +432,347 @@ public abstract class WOResourceManager extends NSObject
   }
 
 
+  /**
+   * Returns whether changes to the sources of the given definition can be
+   * detected, that is, whether its a WOComponentDefinition with a template.
+   */
+  protected static boolean isRevalidatable(final IWOComponentDefinition _cdef) {
+    return _cdef instanceof WOComponentDefinition &&
+      ((WOComponentDefinition)_cdef).templateURL() != null;
+  }
+
+  /* template cache */
+
+  protected static String templateCacheKey(final URL _templateURL, final URL _wodURL) {
+    final String key = _templateURL.toExternalForm();
+    return _wodURL != null ? (key + "|" + _wodURL.toExternalForm()) : key;
+  }
+
+  /**
+   * Returns a template which got built from the given sources before. This is
+   * called by WOComponentDefinition.load() on the resource manager which is
+   * used to lookup the classes of the template.
+   *
+   * @param _templateURL - the URL of the .html or .wox template
+   * @param _wodURL      - the URL of the .wod file, or null
+   * @return the cached WOTemplate, or null if there is none or it is outdated
+   */
+  public WOTemplate cachedTemplateForURLs(final URL _templateURL, final URL _wodURL) {
+    if (_templateURL == null || this.templateDefinitions == null)
+      return null;
+
+    final String key = templateCacheKey(_templateURL, _wodURL);
+    final WOComponentDefinition cdef = this.templateDefinitions.get(key);
+    if (cdef == null)
+      return null;
+
+    if (cdef.isSourceModified()) {
+      this.templateDefinitions.remove(key, cdef);
+      return null;
+    }
+    return cdef.template();
+  }
+
+  /**
+   * Caches the template of the given definition, so that other definitions
+   * using the same sources can reuse it.
+   * Called by WOComponentDefinition.load() after building the template.
+   *
+   * @param _cdef - a definition with a loaded template
+   */
+  public void cacheTemplateOfDefinition(final WOComponentDefinition _cdef) {
+    if (_cdef == null || this.templateDefinitions == null)
+      return;
+    if (_cdef.templateURL() == null || _cdef.template() == null)
+      return;
+
+    this.templateDefinitions.put
+      (templateCacheKey(_cdef.templateURL(), _cdef.wodURL()), _cdef);
+  }
+
+  /* revalidation */
+
+  /**
+   * Sets the interval in which the sources of cached templates are checked
+   * for modifications. Modified definitions are dropped from the cache and
+   * get reloaded on the next access.
+   * <p>
+   * WOApplication sets the value of the WOTemplateRevalidationInterval
+   * default. Per default templates are only revalidated if caching is
+   * disabled.
+   *
+   * @param _ms - the interval in milliseconds, 0 to disable revalidation
+   */
+  public void setTemplateRevalidationInterval(final long _ms) {
+    synchronized (this) {
+      this.templateRevalidationInterval = _ms > 0 ? _ms : 0;
+
+      if (this.revalidationTask != null) {
+        this.revalidationTask.cancel();
+        this.revalidationTask = null;
+      }
+    }
+    this.ensureRevalidation();
+  }
+  public long templateRevalidationInterval() {
+    return this.templateRevalidationInterval;
+  }
+
+  /**
+   * Checks the sources of all cached definitions and templates and drops the
+   * ones which got modified. This is called regularly by a background thread
+   * if a templateRevalidationInterval() is set.
+   *
+   * @return the number of cache entries which got dropped
+   */
+  public int revalidateComponentDefinitions() {
+    int count = 0;
+
+    if (this.templateDefinitions != null) {
+      for (final Map.Entry<String, WOComponentDefinition> entry:
+           this.templateDefinitions.entrySet())
+      {
+        if (entry.getValue().isSourceModified()) {
+          if (this.templateDefinitions.remove(entry.getKey(), entry.getValue()))
+            count++;
+        }
+      }
+    }
+
+    if (this.componentDefinitions != null) {
+      for (final Map.Entry<Object, IWOComponentDefinition> entry:
+           this.componentDefinitions.entrySet())
+      {
+        final IWOComponentDefinition cdef = entry.getValue();
+        if (!(cdef instanceof WOComponentDefinition))
+          continue;
+        if (((WOComponentDefinition)cdef).isSourceModified()) {
+          if (this.componentDefinitions.remove(entry.getKey(), cdef))
+            count++;
+        }
+      }
+    }
+
+    if (count > 0 && log.isInfoEnabled())
+      log.info("dropped " + count + " modified templates from cache: " + this);
+    return count;
+  }
+
+  protected void ensureRevalidation() {
+    if (this.templateRevalidationInterval <= 0 || this.revalidationTask != null)
+      return;
+
+    synchronized (this) {
+      if (this.revalidationTask != null || this.templateRevalidationInterval <= 0)
+        return;
+
+      this.revalidationTask = new RevalidationTask(this);
+      this.revalidationTask.schedule(this.templateRevalidationInterval);
+    }
+  }
+
+  private static ScheduledExecutorService revalidationExecutor;
+
+  protected static synchronized ScheduledExecutorService revalidationExecutor() {
+    if (revalidationExecutor == null) {
+      revalidationExecutor = Executors.newSingleThreadScheduledExecutor
+        (new DaemonThreadFactory("WOTemplateRevalidator"));
+    }
+    return revalidationExecutor;
+  }
+
+  /**
+   * Runs revalidateComponentDefinitions() in the background. The task only
+   * keeps a weak reference to the resource manager and cancels itself when
+   * the manager is gone.
+   */
+  protected static class RevalidationTask implements Runnable {
+
+    protected final WeakReference<WOResourceManager> rm;
+    protected ScheduledFuture<?> future;
+    protected boolean isCancelled;
+
+    public RevalidationTask(final WOResourceManager _rm) {
+      this.rm = new WeakReference<>(_rm);
+    }
+
+    public synchronized void schedule(final long _interval) {
+      if (this.isCancelled)
+        return;
+      this.future = revalidationExecutor().scheduleWithFixedDelay
+        (this, _interval, _interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void cancel() {
+      this.isCancelled = true;
+      if (this.future != null) {
+        this.future.cancel(false);
+        this.future = null;
+      }
+    }
+
+    public void run() {
+      final WOResourceManager lrm = this.rm.get();
+      if (lrm == null) {
+        this.cancel();
+        return;
+      }
+
+      try {
+        lrm.revalidateComponentDefinitions();
+      }
+      catch (final Exception e) {
+        /* an exception would stop the scheduled execution */
+        log.error("could not revalidate templates of: " + lrm, e);
+      }
+    }
+  }
+
+  protected static class DaemonThreadFactory implements ThreadFactory {
+
+    protected final String name;
+
+    public DaemonThreadFactory(final String _name) {
+      this.name = _name;
+    }
+
+    public Thread newThread(final Runnable _r) {
+      final Thread thread = new Thread(_r, this.name);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /* preloading */
+
+  /**
+   * Returns the names of the components which have a template in the
+   * resources managed by this object. This is used to preload templates, the
+   * default implementation returns an empty collection.
+   *
+   * @return the names of the components, eg [ 'Main', 'Frame' ]
+   */
+  public Collection<String> componentNamesWithTemplates() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Extracts the names of components from a set of resource paths, which are
+   * relative to the package (eg 'Main.html' or 'Frame/Component.wox').
+   * <ul>
+   *   <li>.wox templates are always considered components
+   *   <li>.html templates if there is a .wod or a component class
+   *   <li>templates in subdirectories if the directory is a component package
+   * </ul>
+   *
+   * @param _paths - the paths of the resources
+   * @return the names of the components
+   */
+  protected Collection<String> componentNamesInResourcePaths
+    (final Collection<String> _paths)
+  {
+    if (_paths == null || _paths.isEmpty())
+      return Collections.emptyList();
+
+    final Set<String> names = new LinkedHashSet<>(16);
+    for (final String path: _paths) {
+      final boolean isWOx = path.endsWith(".wox");
+      if (!isWOx && !path.endsWith(".html"))
+        continue;
+
+      final String base = path.substring(0, path.lastIndexOf('.'));
+      final int    slashIdx = base.indexOf('/');
+
+      if (slashIdx < 0) { /* eg Main.html */
+        if (isWOx || _paths.contains(base + ".wod") || isComponent(base))
+          names.add(base);
+        continue;
+      }
+
+      /* eg Frame/Component.html or Frame/Frame.html */
+      final String pkg  = base.substring(0, slashIdx);
+      final String file = base.substring(slashIdx + 1);
+      if (!"Component".equals(file) && !pkg.equals(file))
+        continue;
+      if (isComponent(pkg))
+        names.add(pkg);
+    }
+    return names;
+  }
+
+  protected boolean isComponent(final String _name) {
+    final Class<?> cls = this.lookupComponentClass(_name);
+    return cls != null && WOComponent.class.isAssignableFrom(cls);
+  }
+
+  /**
+   * Loads the definitions of all components returned by
+   * componentNamesWithTemplates(), in parallel, for requests w/o languages.
+   *
+   * @param _threadCount - the number of threads used to build the templates
+   * @return the number of definitions which got loaded
+   */
+  public int preloadComponentDefinitions(final int _threadCount) {
+    return this.preloadComponentDefinitions(_threadCount, null);
+  }
+
+  /**
+   * Loads the definitions of all components returned by
+   * componentNamesWithTemplates(), in parallel.
+   * This is called by WOApplication.init() if WOPreloadTemplates is set.
+   * <p>
+   * The definitions are cached under the given language sequence, eg
+   * ['de', 'en']. Requests with exactly that sequence get the preloaded
+   * definitions. Requests with other languages still need to build a
+   * definition, but they reuse the parsed template from the template cache,
+   * which is warmed regardless of the languages (unless the language lookup
+   * resolves to a different, localized template file).
+   *
+   * @param _threadCount - the number of threads used to build the templates
+   * @param _langs       - the languages to preload for, or null
+   * @return the number of definitions which got loaded
+   */
+  public int preloadComponentDefinitions
+    (final int _threadCount, final List<String> _langs)
+  {
+    final Collection<String> names = this.componentNamesWithTemplates();
+    if (names == null || names.isEmpty())
+      return 0;
+
+    final ExecutorService executor = Executors.newFixedThreadPool
+      (Math.max(1, Math.min(_threadCount, names.size())),
+       new DaemonThreadFactory("WOTemplatePreloader"));
+
+    final List<String> loadNames = new ArrayList<>(names);
+    final List<Future<IWOComponentDefinition>> results =
+      new ArrayList<>(loadNames.size());
+    for (final String name: loadNames) {
+      results.add(executor.submit
+        (() -> this._definitionForComponent(name, _langs, this)));
+    }
+
+    int count = 0;
+    try {
+      for (int i = 0; i < results.size(); i++) {
+        try {
+          if (results.get(i).get() != null)
+            count++;
+        }
+        catch (final ExecutionException e) {
+          log.warn("could not preload component: " + loadNames.get(i),
+                   e.getCause());
+        }
+      }
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    return count;
+  }
+
   /* resources */
 
   /**
@@ -421,6 +808,22 @@ public abstract class WOResourceManager extends NSObject
     }
   }
 
+  /**
+   * Returns the metadata (length, modification date, ETag) of the given
+   * resource. The default implementation determines the URL of the resource
+   * using urlForResourceNamed() and retrieves the info for that.
+   *
+   * @param _name  - name of the resource
+   * @param _langs - array of language codes (eg [ 'de', 'en' ])
+   * @return the WOResourceInfo, or null if the resource could not be found
+   */
+  public WOResourceInfo resourceInfoForResourceNamed
+    (final String _name, final String[] _langs)
+  {
+    return WOResourceInfo.resourceInfoForURL
+      (this.urlForResourceNamed(_name, _langs));
+  }
+
   /**
    * Opens a stream to the given resource and loads the content into a byte
    * array.
@@ -37,6 +37,10 @@ import org.getobjects.appserver.publisher.GoResource;
  * This class is used for delivering static resource files, like images or
  * stylesheet. Usually you would want to deliver resource files using Apache
  * or some other frontend Apache server. 
+ * <p>
+ * Text resources (eg stylesheets or scripts) are delivered compressed if the
+ * client supports that. The compressed data is cached by the
+ * WOResponseCompressor of the application.
  */
 public class WOResourceRequestHandler extends WORequestHandler {
   // TBD: document
@@ -90,8 +94,8 @@ public class WOResourceRequestHandler extends WORequestHandler {
     if (log.isDebugEnabled())
       log.debug("lookup resource using manager: " + rm);
     
-    InputStream is = rm.inputStreamForResourceNamed(resourceName, langs);
-    if (is == null) {
+    WOResourceInfo info = rm.resourceInfoForResourceNamed(resourceName, langs);
+    if (info == null) {
       log.error("did not find resource: " + resourceName);
       r.setStatus(WOMessage.HTTP_STATUS_NOT_FOUND);
       return r;
@@ -109,8 +113,12 @@ public class WOResourceRequestHandler extends WORequestHandler {
     Date              now = new Date();
     GregorianCalendar cal = new GregorianCalendar();
     
-    //cal.setTime(new Date(con.getLastModified()));
-    //_r.setHeaderForKey(WOMessage.httpFormatDate(cal), "last-modified");
+    if (info.lastModified() > 0) {
+      cal.setTime(new Date(info.lastModified()));
+      r.setHeaderForKey(WOMessage.httpFormatDate(cal), "last-modified");
+    }
+    if (info.etag() != null)
+      r.setHeaderForKey(info.etag(), "etag");
     
     cal.setTime(now);
     r.setHeaderForKey(WOMessage.httpFormatDate(cal), "date");
@@ -118,15 +126,72 @@ public class WOResourceRequestHandler extends WORequestHandler {
     cal.add(Calendar.SECOND, this.expirationIntervalForMimeType(mimeType));
     r.setHeaderForKey(WOMessage.httpFormatDate(cal), "expires");
     
+    /* conditional GET */
+    
+    if (this.isResourceNotModified(_rq, info)) {
+      r.setStatus(WOMessage.HTTP_STATUS_NOT_MODIFIED);
+      return r;
+    }
+    
+    /* determine the section to deliver */
+    
+    final boolean isHead = "HEAD".equals(_rq.method());
+    final long    length = info.length();
+    long start = 0, count = length;
+    
+    final long[] range = this.rangeForRequest(_rq, info);
+    if (range != null && range.length == 0) {
+      r.setStatus(416 /* Range Not Satisfiable */);
+      r.setHeaderForKey("bytes */" + length, "content-range");
+      return r;
+    }
+    if (range != null) {
+      start = range[0];
+      count = range[1] - range[0] + 1;
+      r.setStatus(206 /* Partial Content */);
+      r.setHeaderForKey
+        ("bytes " + range[0] + "-" + range[1] + "/" + length, "content-range");
+    }
+    else if (!isHead && this.appendCompressedResource(r, _rq, info))
+      return r;
+    
+    if (length >= 0) {
+      r.setHeaderForKey("bytes", "accept-ranges");
+      r.setHeaderForKey(String.valueOf(count), "content-length");
+    }
+    if (isHead)
+      return r;
+    
+    /* deliver content */
+    
+    r.enableStreaming();
     
-    // TODO: retrieve resource metadata (content-type, length)
+    if (info.file() != null) {
+      /* zero-copy if the container supports it */
+      final Exception error = r.appendContentFile(info.file(), start, count);
+      if (error != null)
+        log.error("failed to write resource data", error);
+      return r;
+    }
     
+    InputStream is = null;
     try {
-      r.enableStreaming();
-      byte[] buffer = new byte[4096]; // TODO: adjust buffer size?
+      is = info.url().openStream();
+      
+      if (start > 0) {
+        long toSkip = start;
+        while (toSkip > 0) {
+          final long len = is.skip(toSkip);
+          if (len <= 0)
+            break;
+          toSkip -= len;
+        }
+      }
       
-      while (true) {
-        int len = is.read(buffer);
+      byte[] buffer = new byte[8192];
+      long remaining = count >= 0 ? count : Long.MAX_VALUE;
+      while (remaining > 0) {
+        int len = is.read(buffer, 0, (int)Math.min(buffer.length, remaining));
         if (len == -1)
           break;
         
@@ -134,6 +199,7 @@ public class WOResourceRequestHandler extends WORequestHandler {
           log.error("failed to write resource data", r.lastException());
           break;
         }
+        remaining -= len;
       }
     }
     catch (IOException e) {
@@ -153,5 +219,181 @@ public class WOResourceRequestHandler extends WORequestHandler {
     
     return r;
   }
-
+  
+  
+  /* conditional GET */
+  
+  /**
+   * Checks the If-None-Match and If-Modified-Since headers of the request.
+   * If-Modified-Since is ignored if If-None-Match is present.
+   * <p>
+   * Note: the ETags are compared weakly (W/ and the content-coding suffix
+   * added by the WOResponseCompressor are ignored), this is OK for GET.
+   * 
+   * @param _rq   - the WORequest
+   * @param _info - the metadata of the resource
+   * @return true if the client has the current version of the resource
+   */
+  protected boolean isResourceNotModified
+    (final WORequest _rq, final WOResourceInfo _info)
+  {
+    final String m = _rq.method();
+    if (m != null && !m.equals("GET") && !m.equals("HEAD"))
+      return false;
+    
+    final List<String> inm = _rq.headersForKey("if-none-match");
+    if (inm != null && inm.size() > 0) {
+      final String etag = _info.etag();
+      if (etag == null)
+        return false;
+      
+      for (final String value: inm) {
+        for (String tag: value.split(",")) {
+          tag = tag.trim();
+          if (tag.equals("*"))
+            return true;
+          if (etag.equals(stripETag(tag)))
+            return true;
+        }
+      }
+      return false;
+    }
+    
+    final String ims = _rq.headerForKey("if-modified-since");
+    if (ims != null && _info.lastModified() > 0) {
+      final Date since = parseHttpDate(ims);
+      if (since != null &&
+          _info.lastModified() / 1000 <= since.getTime() / 1000)
+        return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Removes the weak marker and the content-coding suffix from an ETag, eg
+   * W/"abc-gzip" is returned as "abc".
+   */
+  protected static String stripETag(String _tag) {
+    if (_tag.startsWith("W/"))
+      _tag = _tag.substring(2);
+    if (_tag.endsWith("-gzip\""))
+      _tag = _tag.substring(0, _tag.length() - 6) + "\"";
+    else if (_tag.endsWith("-deflate\""))
+      _tag = _tag.substring(0, _tag.length() - 9) + "\"";
+    return _tag;
+  }
+  
+  protected static Date parseHttpDate(final String _s) {
+    try {
+      return WOMessage.dateFromHttpFormattedString(_s.trim());
+    }
+    catch (RuntimeException e) { /* eg NumberFormatException */
+      return null;
+    }
+  }
+  
+  
+  /* ranges */
+  
+  /**
+   * Parses the Range header of the request. Only a single byte range is
+   * supported, requests for multiple ranges get the full resource (which is
+   * allowed by HTTP).
+   * <p>
+   * If an If-Range header is present, the range is only returned if it
+   * matches the ETag (or modification date) of the resource.
+   * 
+   * @param _rq   - the WORequest
+   * @param _info - the metadata of the resource
+   * @return null for the full resource, [ first, last ] for a range, an
+   *   empty array if the range is not satisfiable
+   */
+  protected long[] rangeForRequest
+    (final WORequest _rq, final WOResourceInfo _info)
+  {
+    final long length = _info.length();
+    final String h = _rq.headerForKey("range");
+    if (h == null || length < 0 || !h.startsWith("bytes="))
+      return null;
+    
+    final String ifRange = _rq.headerForKey("if-range");
+    if (ifRange != null) {
+      if (ifRange.startsWith("\"")) {
+        if (!ifRange.equals(_info.etag()))
+          return null;
+      }
+      else if (ifRange.startsWith("W/"))
+        return null; /* weak tags are not allowed */
+      else {
+        final Date d = parseHttpDate(ifRange);
+        if (d == null || d.getTime() / 1000 != _info.lastModified() / 1000)
+          return null;
+      }
+    }
+    
+    final String spec = h.substring(6).trim();
+    final int    dash = spec.indexOf('-');
+    if (dash < 0 || spec.indexOf(',') >= 0)
+      return null;
+    
+    try {
+      long first, last;
+      if (dash == 0) { /* suffix: last N bytes */
+        final long n = Long.parseLong(spec.substring(1).trim());
+        if (n <= 0 || length == 0)
+          return new long[0];
+        first = Math.max(0, length - n);
+        last  = length - 1;
+      }
+      else {
+        first = Long.parseLong(spec.substring(0, dash).trim());
+        last  = dash == spec.length() - 1
+          ? length - 1
+          : Long.parseLong(spec.substring(dash + 1).trim());
+        if (last < first && dash != spec.length() - 1)
+          return null; /* invalid, ignore */
+        if (first >= length)
+          return new long[0];
+        if (last >= length)
+          last = length - 1;
+      }
+      return new long[] { first, last };
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+  }
+  
+  
+  /* compression */
+  
+  /**
+   * Delivers the compressed representation of the resource from the cache of
+   * the WOResponseCompressor, if the resource is compressible and the client
+   * accepts a compressed response.
+   * 
+   * @return true if the compressed content got added to the response
+   */
+  protected boolean appendCompressedResource
+    (final WOResponse _r, final WORequest _rq, final WOResourceInfo _info)
+  {
+    final WOResponseCompressor compressor =
+      this.application.responseCompressor();
+    if (compressor == null)
+      return false;
+    if (!compressor.isCompressibleContentType(_r.headerForKey("content-type")))
+      return false;
+    
+    final String coding = compressor.contentCodingForRequest(_rq);
+    if (coding == null)
+      return false;
+    
+    final byte[] data = compressor.compressedResource(_info.url(), coding);
+    if (data == null)
+      return false;
+    
+    compressor.applyCodingToHeaders(_r, coding);
+    _r.setContent(data);
+    return true;
+  }
 }
@@ -21,9 +21,11 @@
 
 package org.getobjects.appserver.core;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * WOResponse
@@ -41,6 +43,9 @@ public class WOResponse extends WOMessage implements WOActionResults {
   protected WORequest request = null;
   protected int       status  = WOMessage.HTTP_STATUS_OK;
   
+  /* set if a streaming response is compressed */
+  protected DeflaterOutputStream compressingStream;
+  
   public WOResponse() {
     super();
     this.init(null /* WORequest */);
@@ -58,7 +63,7 @@ public class WOResponse extends WOMessage implements WOActionResults {
   
     this.request = _rq; // TODO: do we need to know that?
   
-    this.outputStream = new ByteArrayOutputStream(initialBufferSize);
+    this.outputStream = new WOContentBuffer();
     
     /* preconfigure for HTML */
     if (this.headers == null || !this.headers.containsKey("content-type"))
@@ -133,6 +138,12 @@ public class WOResponse extends WOMessage implements WOActionResults {
    * <p>
    * The method works by acquiring the Servlet OutputStream of the WORequest
    * associated with this response.
+   * <p>
+   * If the application has a WOResponseCompressor and the client supports it,
+   * the stream is compressed on the fly (the Content-Encoding header is added
+   * and the Content-Length is removed, both are restored if streaming cannot
+   * be enabled). The adaptor calls finishStreaming()
+   * when the response is done.
    * 
    * @return true if streaming could be enabled, false otherwise
    */
@@ -147,11 +158,31 @@ public class WOResponse extends WOMessage implements WOActionResults {
       return false;
     }
     
+    /* check whether we should compress the stream */
+    
+    final WOContext     ctx = this.request.context();
+    final WOApplication app = ctx != null ? ctx.application() : null;
+    final WOResponseCompressor compressor =
+      app != null ? app.responseCompressor() : null;
+    final String coding = compressor != null
+      ? compressor.contentCodingForStreaming(this) : null;
+    
+    /* the coding headers need to be set before the servlet headers are
+     * prepared, remember the old ones in case streaming fails */
+    List<List<String>> savedHeaders = null;
+    if (coding != null) {
+      savedHeaders = new ArrayList<List<String>>(4);
+      for (final String k: WOResponseCompressor.codingHeaders)
+        savedHeaders.add(new ArrayList<String>(this.headersForKey(k)));
+      compressor.applyCodingToHeaders(this, coding);
+    }
+    
     /* setup HTTP headers/status on ServletResponse prior writing! */
     
     if (!this.request.prepareForStreaming(this)) {
       if (log.isInfoEnabled())
         log.info("could not prepare request for streaming: " + this.request);
+      this.restoreHeaders(savedHeaders);
       return false;
     }
     
@@ -161,27 +192,81 @@ public class WOResponse extends WOMessage implements WOActionResults {
     if (os == null) {
       log.info("cannot enable streaming because the WORequest " +
                "has no output stream: " + this.request);
+      this.restoreHeaders(savedHeaders);
       return false;
     }
     
-    /* write existing content to stream */
-    
-    byte[] lContent = this.content();
-    this.outputStream = null;
-    
-    if (lContent != null && lContent.length > 0) {
+    if (coding != null) {
       try {
-        os.write(lContent);
+        os = this.compressingStream = compressor.compressingStream(os, coding);
       }
       catch (IOException e) {
         this.lastException = e;
+        this.restoreHeaders(savedHeaders);
         return false;
       }
     }
     
+    /* write existing content to stream */
+    
+    try {
+      this.writeContentTo(os);
+    }
+    catch (IOException e) {
+      this.lastException = e;
+      this.compressingStream = null;
+      this.restoreHeaders(savedHeaders);
+      return false;
+    }
+    
     /* configure new stream */
     
+    if (this.outputStream instanceof WOContentBuffer)
+      ((WOContentBuffer)this.outputStream).reset(); /* release segments */
+    this.contents     = null;
     this.outputStream = os;
     return true;
   }
+  
+  /**
+   * Resets the headers modified for a compressed stream to the values saved
+   * by enableStreaming().
+   * 
+   * @param _saved - the values of WOResponseCompressor.codingHeaders, or null
+   */
+  protected void restoreHeaders(final List<List<String>> _saved) {
+    if (_saved == null)
+      return;
+    
+    for (int i = 0; i < WOResponseCompressor.codingHeaders.length; i++) {
+      final List<String> v = _saved.get(i);
+      this.setHeadersForKey(v.isEmpty() ? null : v,
+                            WOResponseCompressor.codingHeaders[i]);
+    }
+  }
+  
+  /**
+   * Called by the adaptor after a streaming response got delivered. If the
+   * stream is compressed, this writes the remaining data and the trailer.
+   * 
+   * @return null if everything went fine, the Exception otherwise
+   */
+  public Exception finishStreaming() {
+    final Exception error = this.flush();
+    if (error != null)
+      return error;
+    
+    if (this.compressingStream != null) {
+      try {
+        this.compressingStream.close(); /* writes the trailer */
+      }
+      catch (IOException e) {
+        return (this.lastException = e);
+      }
+      finally {
+        this.compressingStream = null;
+      }
+    }
+    return null;
+  }
 }
@@ -0,0 +1,550 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.appserver.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+import org.getobjects.foundation.UData;
+import org.getobjects.foundation.UObject;
+import org.getobjects.foundation.UString;
+
+/**
+ * WOResponseCompressor
+ * <p>
+ * Compresses the content of WOResponse objects using gzip or deflate, if the
+ * client supports that (as announced in the Accept-Encoding header).
+ * <p>
+ * Buffered responses are compressed by the WOServletAdaptor right before they
+ * are delivered, streaming responses are compressed on the fly (the stream
+ * gets wrapped in WOResponse.enableStreaming()).
+ * <p>
+ * Responses are not compressed if:
+ * <ul>
+ *   <li>the content-type is not a text type (images, archives etc are
+ *       usually compressed already)
+ *   <li>the response has a content-encoding already
+ *   <li>the content is smaller than WOCompressionMinLength
+ *   <li>the status has no content (eg 204 or 304) or is a partial response
+ * </ul>
+ *
+ * The compressor also keeps a cache of compressed static resources, keyed by
+ * the URL and modification date of the resource. This is used by the
+ * WOResourceRequestHandler.
+ *
+ * <h3>Defaults</h3>
+ * <ul>
+ *   <li>WOCompressResponses (true)
+ *   <li>WOCompressionMinLength (1024 bytes)
+ *   <li>WOCompressionLevel (6)
+ *   <li>WOCompressedResourceCacheSize (8388608 bytes, 0 disables the cache)
+ *   <li>WOCompressedResourceMaxSize (1/8 of the cache size, resources which
+ *       are larger are delivered w/o compression and are not cached)
+ * </ul>
+ * <p>
+ * THREAD: this object is thread safe.
+ */
+public class WOResponseCompressor extends NSObject {
+  protected static final Log log = LogFactory.getLog("WOApplication");
+
+  protected boolean isEnabled;
+  protected int     minLength;
+  protected int     level;
+  protected long    maxCacheSize;
+  protected long    maxResourceSize;
+
+  protected final LinkedHashMap<String, CompressedResource> resourceCache;
+  protected long cacheSize;
+
+  public WOResponseCompressor(final Properties _defaults) {
+    this.isEnabled = UObject.boolValue
+      (_defaults.getProperty("WOCompressResponses", "true"));
+    this.minLength = UObject.intValue
+      (_defaults.getProperty("WOCompressionMinLength", "1024"));
+    this.level = UObject.intValue
+      (_defaults.getProperty("WOCompressionLevel", "6"));
+    this.maxCacheSize = UObject.intValue
+      (_defaults.getProperty("WOCompressedResourceCacheSize", "8388608"));
+    this.maxResourceSize = UObject.intValue
+      (_defaults.getProperty("WOCompressedResourceMaxSize",
+                             String.valueOf(this.maxCacheSize / 8)));
+    if (this.maxResourceSize <= 0 || this.maxResourceSize > this.maxCacheSize)
+      this.maxResourceSize = this.maxCacheSize;
+
+    if (this.level < Deflater.BEST_SPEED || this.level > Deflater.BEST_COMPRESSION)
+      this.level = Deflater.DEFAULT_COMPRESSION;
+
+    this.resourceCache =
+      new LinkedHashMap<String, CompressedResource>(64, 0.75f, true /* LRU */);
+  }
+
+  /* accessors */
+
+  public boolean isEnabled() {
+    return this.isEnabled;
+  }
+  public int minLength() {
+    return this.minLength;
+  }
+
+  /* negotiation */
+
+  /**
+   * Selects the content-coding to use for the response to the given request,
+   * based on the Accept-Encoding header. gzip is preferred over deflate if
+   * the client has no preference.
+   *
+   * @param _rq - the WORequest
+   * @return "gzip", "deflate" or null if the response should not be compressed
+   */
+  public String contentCodingForRequest(final WORequest _rq) {
+    if (!this.isEnabled || _rq == null)
+      return null;
+
+    final List<String> values = _rq.headersForKey("accept-encoding");
+    if (values == null || values.size() == 0)
+      return null;
+
+    double gzipQ = -1.0, deflateQ = -1.0, anyQ = -1.0;
+    for (final String value: values) {
+      final String[] codings =
+        UString.componentsSeparatedByString(value, ",", true, true);
+      if (codings == null)
+        continue;
+
+      for (final String coding: codings) {
+        final int    idx  = coding.indexOf(';');
+        final String name = (idx < 0 ? coding : coding.substring(0, idx))
+          .trim().toLowerCase();
+        final double q = idx < 0 ? 1.0 : qualityOfParameters(coding, idx + 1);
+
+        if (name.equals("gzip") || name.equals("x-gzip"))
+          gzipQ = Math.max(gzipQ, q);
+        else if (name.equals("deflate"))
+          deflateQ = q;
+        else if (name.equals("*"))
+          anyQ = q;
+      }
+    }
+
+    if (gzipQ   < 0) gzipQ   = anyQ;
+    if (deflateQ < 0) deflateQ = anyQ;
+
+    if (gzipQ > 0 && gzipQ >= deflateQ)
+      return "gzip";
+    if (deflateQ > 0)
+      return "deflate";
+    return null;
+  }
+
+  protected static double qualityOfParameters(final String _s, final int _pos) {
+    for (final String p: _s.substring(_pos).split(";")) {
+      final String param = p.trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2).trim());
+        }
+        catch (final NumberFormatException e) {
+          return 0.0;
+        }
+      }
+    }
+    return 1.0;
+  }
+
+  /**
+   * Checks whether the given content-type benefits from compression. This
+   * returns true for text, JSON, XML and JavaScript types.
+   *
+   * @param _contentType - the content-type, eg "text/html; charset=utf-8"
+   * @return true if the content should be compressed
+   */
+  public boolean isCompressibleContentType(String _contentType) {
+    if (_contentType == null)
+      return false;
+
+    final int idx = _contentType.indexOf(';');
+    if (idx >= 0) _contentType = _contentType.substring(0, idx);
+    _contentType = _contentType.trim().toLowerCase();
+
+    if (_contentType.startsWith("text/"))
+      return true;
+    if (!_contentType.startsWith("application/") &&
+        !_contentType.startsWith("image/svg"))
+      return false;
+
+    return _contentType.endsWith("json")   ||
+           _contentType.endsWith("xml")    ||
+           _contentType.endsWith("javascript") ||
+           _contentType.endsWith("ecmascript") ||
+           _contentType.equals("application/x-www-form-urlencoded") ||
+           _contentType.equals("application/x-plist");
+  }
+
+  /**
+   * Checks the headers and status of the response and returns the coding to
+   * use for it (or null, if the response should not be compressed).
+   */
+  protected String contentCodingForResponse
+    (final WOResponse _r, final WORequest _rq)
+  {
+    if (!this.isEnabled || _r == null)
+      return null;
+
+    final int status = _r.status();
+    if (status < 200 || status == WOMessage.HTTP_STATUS_NO_CONTENT ||
+        status == 206 /* partial content */ ||
+        status == WOMessage.HTTP_STATUS_NOT_MODIFIED)
+      return null;
+
+    if (_r.headerForKey("content-encoding") != null)
+      return null;
+    if (_r.headerForKey("content-range") != null)
+      return null;
+    if (!this.isCompressibleContentType(_r.headerForKey("content-type")))
+      return null;
+
+    final String cl = _r.headerForKey("content-length");
+    if (cl != null && UObject.intValue(cl) < this.minLength)
+      return null;
+
+    if (_rq != null && "HEAD".equals(_rq.method()))
+      return null;
+
+    return this.contentCodingForRequest(_rq);
+  }
+
+  /* the headers modified by applyCodingToHeaders() */
+  static final String[] codingHeaders =
+    { "content-encoding", "content-length", "vary", "etag" };
+
+  /**
+   * Sets the headers of a compressed response. This adds the
+   * Content-Encoding, extends the Vary header and marks an existing ETag with
+   * the coding (the ETag must be different from the one of the uncompressed
+   * representation).
+   */
+  protected void applyCodingToHeaders
+    (final WOResponse _r, final String _coding)
+  {
+    _r.setHeaderForKey(_coding, "content-encoding");
+    _r.removeHeadersForKey("content-length");
+
+    final String vary = _r.headerForKey("vary");
+    if (vary == null)
+      _r.setHeaderForKey("Accept-Encoding", "vary");
+    else if (!vary.toLowerCase().contains("accept-encoding"))
+      _r.setHeaderForKey(vary + ", Accept-Encoding", "vary");
+
+    final String etag = _r.headerForKey("etag");
+    if (etag != null && etag.endsWith("\"") && etag.length() > 1) {
+      _r.setHeaderForKey
+        (etag.substring(0, etag.length() - 1) + "-" + _coding + "\"", "etag");
+    }
+  }
+
+  /* buffered responses */
+
+  /**
+   * Compresses the content of a buffered response, if the request allows
+   * that. The compressed content replaces the buffer of the response. The
+   * response is left unchanged if the compressed data is not smaller.
+   *
+   * @param _r  - the WOResponse to compress
+   * @param _rq - the WORequest the response is for
+   * @return true if the response got compressed, false otherwise
+   */
+  public boolean compressResponse(final WOResponse _r, final WORequest _rq) {
+    if (_r == null || _r.isStreaming())
+      return false;
+
+    final String coding = this.contentCodingForResponse(_r, _rq);
+    if (coding == null)
+      return false;
+
+    final int len = _r.contentLength();
+    if (len < this.minLength)
+      return false;
+
+    final WOContentBuffer buffer = new WOContentBuffer();
+    try {
+      final DeflaterOutputStream zos = this.compressingStream(buffer, coding);
+      _r.writeContentTo(zos);
+      zos.close();
+    }
+    catch (final IOException e) {
+      log.warn("could not compress response: " + _r, e);
+      buffer.reset();
+      return false;
+    }
+
+    if (buffer.size() >= len) {
+      buffer.reset(); /* did not help */
+      return false;
+    }
+
+    this.applyCodingToHeaders(_r, coding);
+    _r._setContentBuffer(buffer);
+    return true;
+  }
+
+  /* streaming responses */
+
+  /**
+   * Called by WOResponse.enableStreaming() before the HTTP headers are sent.
+   * Returns the coding to use for the stream, or null if the response should
+   * not be compressed. The response is not modified, the caller applies the
+   * headers using applyCodingToHeaders() and restores the ones listed in
+   * codingHeaders if streaming cannot be enabled.
+   *
+   * @param _r - the WOResponse which is going to stream
+   * @return the content-coding to use, or null
+   */
+  public String contentCodingForStreaming(final WOResponse _r) {
+    return _r != null ? this.contentCodingForResponse(_r, _r.request()) : null;
+  }
+
+  /**
+   * Wraps the given stream in a compressing stream. The stream flushes all
+   * pending data when flush() is called (SYNC_FLUSH), so that the client
+   * receives streamed content in time.
+   * <p>
+   * Note: the caller must call finish() (or close()) to write the trailer.
+   *
+   * @param _os     - the stream to write the compressed data to
+   * @param _coding - "gzip" or "deflate"
+   * @return a compressing stream
+   */
+  public DeflaterOutputStream compressingStream
+    (final OutputStream _os, final String _coding) throws IOException
+  {
+    final int lvl = this.level;
+    if ("deflate".equals(_coding)) {
+      /* Note: HTTP deflate is the zlib format, not raw deflate */
+      return new DeflaterOutputStream(_os, new Deflater(lvl), 8192, true) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          }
+          finally {
+            this.def.end(); /* not done for a custom Deflater */
+          }
+        }
+      };
+    }
+
+    return new GZIPOutputStream(_os, 8192, true /* syncFlush */) {
+      {
+        this.def.setLevel(lvl);
+      }
+    };
+  }
+
+  /* resource cache */
+
+  /**
+   * Returns the compressed content of the resource with the given URL. The
+   * result is cached until the modification date of the resource changes.
+   *
+   * @param _url    - the URL of the resource (usually a file: or jar: URL)
+   * @param _coding - the content-coding, eg "gzip"
+   * @return the compressed data, or null if the resource should be delivered
+   *   w/o compression (eg if it exceeds WOCompressedResourceMaxSize)
+   */
+  public byte[] compressedResource(final URL _url, final String _coding) {
+    if (_url == null || _coding == null || this.maxCacheSize <= 0)
+      return null;
+
+    final long lastModified = lastModifiedOfURL(_url);
+    if (lastModified <= 0)
+      return null; /* we can't validate the cache */
+
+    final String cacheKey = _coding + ":" + _url.toExternalForm();
+    CompressedResource entry;
+    synchronized (this.resourceCache) {
+      entry = this.resourceCache.get(cacheKey);
+    }
+    if (entry != null && entry.lastModified == lastModified)
+      return entry.data;
+
+    /* Check the size before loading the resource. Entries larger than the
+     * cache would evict everything else, including themselves. */
+    if (sizeOfURL(_url) > this.maxResourceSize)
+      return null;
+
+    /* compress resource */
+
+    byte[] data = null;
+    InputStream in = null;
+    try {
+      in = _url.openStream();
+      final byte[] raw = UData.loadContentFromStream(in);
+      in = null; /* closed by loadContentFromStream */
+
+      if (raw != null && raw.length > this.maxResourceSize)
+        return null; /* size was unknown upfront */
+
+      if (raw != null && raw.length >= this.minLength) {
+        final WOContentBuffer buffer = new WOContentBuffer();
+        final DeflaterOutputStream zos = this.compressingStream(buffer, _coding);
+        zos.write(raw);
+        zos.close();
+
+        if (buffer.size() < raw.length)
+          data = buffer.toByteArray();
+        buffer.reset();
+      }
+    }
+    catch (final IOException e) {
+      log.warn("could not compress resource: " + _url, e);
+      return null;
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch (final IOException e) {}
+      }
+    }
+
+    /* Note: we also cache the decision to not compress the resource */
+    entry = new CompressedResource(lastModified, data);
+    if (entry.size() > this.maxCacheSize)
+      return data; /* would just flush the cache, including itself */
+
+    synchronized (this.resourceCache) {
+      final CompressedResource old = this.resourceCache.put(cacheKey, entry);
+      if (old != null) this.cacheSize -= old.size();
+      this.cacheSize += entry.size();
+
+      while (this.cacheSize > this.maxCacheSize && !this.resourceCache.isEmpty())
+      {
+        final Map.Entry<String, CompressedResource> eldest =
+          this.resourceCache.entrySet().iterator().next();
+        this.cacheSize -= eldest.getValue().size();
+        this.resourceCache.remove(eldest.getKey());
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Returns the size of the resource if it can be determined cheaply, that
+   * is, w/o loading the content.
+   *
+   * @param _url - the URL of the resource
+   * @return the size in bytes, or -1 if it is unknown
+   */
+  protected static long sizeOfURL(final URL _url) {
+    if (!"file".equals(_url.getProtocol()))
+      return -1; /* opening a connection is not cheap */
+
+    try {
+      final File file = new File(_url.toURI());
+      return file.isFile() ? file.length() : -1;
+    }
+    catch (final URISyntaxException | IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  protected static long lastModifiedOfURL(final URL _url) {
+    if ("file".equals(_url.getProtocol())) {
+      try {
+        return new File(_url.toURI()).lastModified();
+      }
+      catch (final URISyntaxException e) {
+        return 0;
+      }
+    }
+
+    try {
+      final URLConnection con = _url.openConnection();
+      con.setUseCaches(true);
+      return con.getLastModified();
+    }
+    catch (final IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Drops all cached resources.
+   */
+  public void clearResourceCache() {
+    synchronized (this.resourceCache) {
+      this.resourceCache.clear();
+      this.cacheSize = 0;
+    }
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    if (!this.isEnabled)
+      _d.append(" disabled");
+    _d.append(" min=");
+    _d.append(this.minLength);
+    _d.append(" level=");
+    _d.append(this.level);
+    synchronized (this.resourceCache) {
+      _d.append(" #cached=");
+      _d.append(this.resourceCache.size());
+    }
+  }
+
+
+  /* cache entry */
+
+  protected static class CompressedResource {
+    protected final long   lastModified;
+    protected final byte[] data; /* null if the resource is not compressed */
+
+    protected CompressedResource(final long _lastModified, final byte[] _data) {
+      this.lastModified = _lastModified;
+      this.data         = _data;
+    }
+
+    protected long size() {
+      return (this.data != null ? this.data.length : 0) + 64;
+    }
+  }
+}
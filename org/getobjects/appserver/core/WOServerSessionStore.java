@@ -21,7 +21,29 @@
 
 package org.getobjects.appserver.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.getobjects.foundation.UObject;
 
 /**
  * WOServerSessionStore
@@ -32,83 +54,655 @@ import java.util.concurrent.ConcurrentHashMap;
  *       loweres memory requirements (because only persistent values are saved)
  *       and improves persistent store interoperability.
  * <p>
+ * Sessions which have not been accessed for longer than their timeOut() are
+ * removed by a background reaper. The store can be limited to a maximum
+ * number of sessions, if the limit is hit, the least recently used sessions
+ * are evicted.
+ * <p>
+ * If a passivation directory is configured, idle (and evicted) sessions are
+ * serialized to disk and restored on the next request. Note that the page
+ * caches of a session are not serialized, so component action URLs of a
+ * passivated session will expire. Sessions which cannot be serialized are
+ * kept in memory.
+ * <p>
+ * Configuration (loadConfigurationFromProperties()):
+ * <ul>
+ *   <li>WOMaxSessionCount         (0 = unlimited)
+ *   <li>WOSessionReaperInterval   (seconds, default: 60)
+ *   <li>WOSessionPassivationDirectory
+ *   <li>WOSessionPassivationIdleTime (seconds, default: 300)
+ * </ul>
+ * <p>
  * THREAD: the overridden operations are not threadsafe, but thread safety
  *         is accomplished by the checkout/checkin mechanism implemented in
  *         the superclass.
  */
 public class WOServerSessionStore extends WOSessionStore {
-  
+
   /* Threading: our session is checked out, so we do not need to deal with
-   * concurrent requests, BUT our hashmap might be accessed from concurrent
-   * sessions! Hence it must be a proper concurrent HashMap. 
+   * concurrent requests, BUT our map might be accessed from concurrent
+   * sessions! Hence all access to it is synchronized on the map.
    */
-  protected ConcurrentHashMap<String, WOSession> store;
-  
+  protected final LinkedHashMap<String, Entry> store;
+
+  /* Maps the IDs of passivated sessions to their expiration timestamp */
+  protected final ConcurrentHashMap<String, Long> passivatedSessions;
+
+  /* Activations in progress, shared by concurrent read-only checkouts */
+  protected final ConcurrentHashMap<String, FutureTask<Entry>> activations;
+
+  protected int  maxSessionCount;
+  protected long reaperInterval;       /* ms */
+  protected File passivationDirectory;
+  protected long passivationIdleTime;  /* ms */
+
+  protected ScheduledExecutorService reaper;
+
+  /* statistics */
+  protected final AtomicLong expiredCount     = new AtomicLong();
+  protected final AtomicLong evictedCount     = new AtomicLong();
+  protected final AtomicLong passivationCount = new AtomicLong();
+  protected final AtomicLong activationCount  = new AtomicLong();
+
+  /* page cache statistics of sessions which left the store */
+  protected final AtomicLong retiredPageCacheHits      = new AtomicLong();
+  protected final AtomicLong retiredPageCacheMisses    = new AtomicLong();
+  protected final AtomicLong retiredPageCacheEvictions = new AtomicLong();
+
   public WOServerSessionStore() {
     super();
-    this.store = new ConcurrentHashMap<String, WOSession>(128);
+    this.store = new LinkedHashMap<>(128, 0.75f, true /* LRU */);
+    this.passivatedSessions  = new ConcurrentHashMap<>(16);
+    this.activations         = new ConcurrentHashMap<>(4);
+    this.maxSessionCount     = 0;
+    this.reaperInterval      = 60 * 1000;
+    this.passivationIdleTime = 300 * 1000;
+  }
+
+  /* configuration */
+
+  public void loadConfigurationFromProperties(final Properties _p) {
+    if (_p == null)
+      return;
+
+    Object v;
+    if ((v = _p.getProperty("WOMaxSessionCount")) != null)
+      this.setMaxSessionCount(UObject.intValue(v));
+    if ((v = _p.getProperty("WOSessionReaperInterval")) != null)
+      this.setReaperInterval(UObject.intValue(v) * 1000L);
+    if ((v = _p.getProperty("WOSessionPassivationIdleTime")) != null)
+      this.setPassivationIdleTime(UObject.intValue(v) * 1000L);
+
+    final String dir = _p.getProperty("WOSessionPassivationDirectory");
+    if (dir != null && dir.length() > 0)
+      this.setPassivationDirectory(new File(dir));
+  }
+
+  /**
+   * Sets the maximum number of sessions kept in memory. If the limit is
+   * exceeded, the least recently used sessions are passivated (if a
+   * passivation directory is set) or dropped.
+   *
+   * @param _count - the max number of sessions, 0 for no limit
+   */
+  public void setMaxSessionCount(final int _count) {
+    this.maxSessionCount = _count;
+  }
+  public int maxSessionCount() {
+    return this.maxSessionCount;
+  }
+
+  /**
+   * Sets the interval in which the reaper checks for expired sessions. This
+   * must be set before the first session is saved.
+   *
+   * @param _ms - the interval in milliseconds
+   */
+  public void setReaperInterval(final long _ms) {
+    this.reaperInterval = _ms;
+  }
+  public long reaperInterval() {
+    return this.reaperInterval;
+  }
+
+  /**
+   * Sets the directory idle sessions are written to. Pass null to disable
+   * passivation.
+   *
+   * @param _dir - the directory for passivated sessions
+   */
+  public void setPassivationDirectory(final File _dir) {
+    if (_dir != null && !_dir.exists() && !_dir.mkdirs())
+      log.error("could not create session passivation directory: " + _dir);
+    this.passivationDirectory = _dir;
+  }
+  public File passivationDirectory() {
+    return this.passivationDirectory;
   }
 
+  /**
+   * Sets the time after which an unused session is passivated.
+   *
+   * @param _ms - the idle time in milliseconds, 0 to only passivate on evict
+   */
+  public void setPassivationIdleTime(final long _ms) {
+    this.passivationIdleTime = _ms;
+  }
+  public long passivationIdleTime() {
+    return this.passivationIdleTime;
+  }
+
+  /* store */
+
   @Override
-  public void saveSessionForContext(WOContext _ctx) {
-    WOSession sn = _ctx.session();
+  public void saveSessionForContext(final WOContext _ctx) {
+    final WOSession sn = _ctx.session();
     if (sn == null) {
       log.warn("got no session to save ...");
       return;
     }
-    
-    String sid = sn.sessionID();
+
+    final String sid = sn.sessionID();
     if (sid == null) {
       log.warn("session has no ID?: " + sid);
       return;
     }
-    
+
+    if (sn.isTerminating()) {
+      this.removeSessionWithID(sid);
+      return;
+    }
+
     if (log.isInfoEnabled())
       log.info("saving session: " + sid);
-    this.store.put(sid, sn);
+
+    /* Evicted sessions are locked like a checkout would do (w/o waiting,
+     * sessions in use by a request are skipped). The lock is held until the
+     * session is passivated, so that a concurrent checkout waits for the
+     * passivation instead of finding the session neither in the store nor
+     * in the passivated sessions.
+     */
+    List<Entry> evicted = null;
+    synchronized (this.store) {
+      this.store.put(sid, new Entry(sn, System.currentTimeMillis()));
+
+      if (this.maxSessionCount > 0 && this.store.size() >this.maxSessionCount){
+        evicted = new ArrayList<>(4);
+        final Iterator<Entry> it = this.store.values().iterator();
+        while (it.hasNext() && this.store.size() > this.maxSessionCount) {
+          final Entry entry = it.next();
+          if (entry.session == sn)
+            continue;
+          if (!this.lockSessionID(entry.session.sessionID(),
+                                  false /* exclusive */, 0 /* no wait */))
+            continue; /* in use by a request */
+          it.remove();
+          evicted.add(entry);
+        }
+      }
+    }
+    this.startReaperIfNecessary();
+
+    if (evicted != null) {
+      for (final Entry entry: evicted) {
+        final String evictedID = entry.session.sessionID();
+        try {
+          this.evictedCount.incrementAndGet();
+          this.retireSession(entry.session);
+          if (!this.passivateSession(entry.session, entry.lastAccess)) {
+            log.info("evicted session: " + evictedID);
+            entry.session.terminate();
+          }
+        }
+        finally {
+          this.unlockSessionID(evictedID);
+        }
+      }
+    }
   }
 
   @Override
-  public WOSession removeSessionWithID(String _sid) {
+  public WOSession removeSessionWithID(final String _sid) {
     if (_sid == null) {
       log.info("got no session-id to remove ...");
       return null;
     }
-    
+
     if (log.isInfoEnabled())
       log.info("removing session: " + _sid);
-    return this.store.remove(_sid);
+
+    if (this.passivatedSessions.remove(_sid) != null)
+      this.passivationFileForID(_sid).delete();
+
+    final Entry entry;
+    synchronized (this.store) {
+      entry = this.store.remove(_sid);
+    }
+    if (entry == null)
+      return null;
+
+    this.retireSession(entry.session);
+    return entry.session;
   }
-  
+
   @Override
-  public WOSession restoreSessionForID(String _sid, WORequest _rq) {
-    boolean debugOn = log.isDebugEnabled();
-    
+  public WOSession restoreSessionForID(final String _sid, final WORequest _rq) {
+    final boolean debugOn = log.isDebugEnabled();
+
     if (_sid == null) {
       if (debugOn) log.debug("got no session-id to restore ...");
       return null;
     }
-    
+
     if (debugOn) log.debug("restore session: " + _sid);
-    WOSession sn = this.store.get(_sid);
-    if (sn == null)
+
+    final long now = System.currentTimeMillis();
+    Entry entry;
+    synchronized (this.store) {
+      entry = this.store.get(_sid);
+    }
+
+    if (entry == null)
+      entry = this.activateSessionOnce(_sid);
+
+    if (entry == null) {
       log.info("failed to restore session: " + _sid);
-    
-    if (debugOn) log.debug("  restored: " + sn);
-    return sn;
+      return null;
+    }
+
+    if (entry.isExpired(now)) {
+      log.info("session expired: " + _sid);
+      this.removeExpiredSession(_sid, entry);
+      return null;
+    }
+    entry.lastAccess = now;
+
+    if (debugOn) log.debug("  restored: " + entry.session);
+    return entry.session;
+  }
+
+  /**
+   * Activates a passivated session and adds it to the store. Read-only
+   * checkouts can restore the same session concurrently, the first thread
+   * activates the session and the others wait for it (the activation removes
+   * the session from the disk).
+   *
+   * @param _sid - the ID of the session
+   * @return the store entry of the session, or null if it is not available
+   */
+  protected Entry activateSessionOnce(final String _sid) {
+    FutureTask<Entry> activation = this.activations.get(_sid);
+    if (activation == null) {
+      if (!this.passivatedSessions.containsKey(_sid)) {
+        /* not passivated, or activated by a concurrent reader */
+        synchronized (this.store) {
+          return this.store.get(_sid);
+        }
+      }
+
+      final FutureTask<Entry> task = new FutureTask<>(() -> {
+        /* keeps the lastAccess of the passivated session */
+        final Entry entry = this.activateSession(_sid);
+        if (entry != null) {
+          synchronized (this.store) {
+            this.store.put(_sid, entry);
+          }
+        }
+        return entry;
+      });
+      if ((activation = this.activations.putIfAbsent(_sid, task)) == null) {
+        try {
+          task.run();
+        }
+        finally { /* the entry is in the store at this point */
+          this.activations.remove(_sid, task);
+        }
+        activation = task;
+      }
+    }
+
+    Entry entry = null;
+    try {
+      entry = activation.get();
+    }
+    catch (final ExecutionException e) {
+      log.error("could not activate session " + _sid, e.getCause());
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (entry != null)
+      return entry;
+
+    /* the session might have been activated by a concurrent reader */
+    synchronized (this.store) {
+      return this.store.get(_sid);
+    }
+  }
+
+  /* expiration */
+
+  protected void startReaperIfNecessary() {
+    if (this.reaper != null || this.reaperInterval <= 0)
+      return;
+
+    synchronized (this) {
+      if (this.reaper != null)
+        return;
+
+      this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "WOSessionReaper");
+        t.setDaemon(true);
+        return t;
+      });
+      this.reaper.scheduleWithFixedDelay(this::reapSessions,
+        this.reaperInterval, this.reaperInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops the background reaper. Sessions are still expired when they get
+   * restored.
+   */
+  public void stopReaper() {
+    synchronized (this) {
+      if (this.reaper != null) {
+        this.reaper.shutdownNow();
+        this.reaper = null;
+      }
+    }
+  }
+
+  /**
+   * Called periodically by the reaper thread. Removes expired sessions and
+   * passivates idle ones. Sessions which are checked out are skipped.
+   */
+  public void reapSessions() {
+    final long now = System.currentTimeMillis();
+
+    final List<Map.Entry<String, Entry>> entries;
+    synchronized (this.store) {
+      entries = new ArrayList<>(this.store.entrySet());
+    }
+
+    try {
+      for (final Map.Entry<String, Entry> e: entries) {
+        final String sid   = e.getKey();
+        final Entry  entry = e.getValue();
+
+        final boolean expired   = entry.isExpired(now);
+        final boolean passivate = !expired &&
+          this.passivationDirectory != null && this.passivationIdleTime > 0 &&
+          (now - entry.lastAccess) > this.passivationIdleTime;
+        if (!expired && !passivate)
+          continue;
+
+        /* lock the session like a request would */
+        if (!this.lockSessionID(sid, false /* exclusive */, 0 /* no wait */))
+          continue;
+        try {
+          if (expired) {
+            if (log.isInfoEnabled()) log.info("session expired: " + sid);
+            this.removeExpiredSession(sid, entry);
+          }
+          else if (this.passivateSession(entry.session, entry.lastAccess)) {
+            synchronized (this.store) {
+              if (this.store.get(sid) == entry)
+                this.store.remove(sid);
+            }
+            this.retireSession(entry.session);
+          }
+        }
+        finally {
+          this.unlockSessionID(sid);
+        }
+      }
+
+      /* expire passivated sessions */
+      for (final Map.Entry<String, Long> e: this.passivatedSessions.entrySet()){
+        if (e.getValue() > now)
+          continue;
+        if (this.passivatedSessions.remove(e.getKey(), e.getValue())) {
+          this.passivationFileForID(e.getKey()).delete();
+          this.expiredCount.incrementAndGet();
+        }
+      }
+    }
+    catch (final Exception ex) { /* do not kill the reaper thread */
+      log.error("failed to reap sessions", ex);
+    }
+  }
+
+  protected void removeExpiredSession(final String _sid, final Entry _entry) {
+    synchronized (this.store) {
+      if (this.store.get(_sid) == _entry)
+        this.store.remove(_sid);
+    }
+    this.expiredCount.incrementAndGet();
+    this.retireSession(_entry.session);
+    _entry.session.terminate();
+  }
+
+  /**
+   * Called when a session leaves the in-memory store, keeps the page cache
+   * statistics of the session.
+   */
+  protected void retireSession(final WOSession _sn) {
+    this.retiredPageCacheHits.addAndGet(_sn.pageCacheHitCount());
+    this.retiredPageCacheMisses.addAndGet(_sn.pageCacheMissCount());
+    this.retiredPageCacheEvictions.addAndGet(_sn.pageCacheEvictionCount());
+  }
+
+  /* passivation */
+
+  protected File passivationFileForID(final String _sid) {
+    return new File(this.passivationDirectory, _sid + ".wosession");
+  }
+
+  /**
+   * Writes the given session to the passivation directory. The session must
+   * be removed from the in-memory store by the caller.
+   * <p>
+   * The session expires on disk at the same time it would have expired in
+   * memory, that is, its timeout is counted from the last access.
+   *
+   * @param _sn         - the session to passivate
+   * @param _lastAccess - the time the session was last used
+   * @return true if the session got written, false otherwise
+   */
+  protected boolean passivateSession
+    (final WOSession _sn, final long _lastAccess)
+  {
+    if (this.passivationDirectory == null || _sn == null)
+      return false;
+
+    final String sid = _sn.sessionID();
+    final File   f   = this.passivationFileForID(sid);
+    try (ObjectOutputStream out = new ObjectOutputStream(
+           new BufferedOutputStream(new FileOutputStream(f))))
+    {
+      out.writeObject(_sn);
+    }
+    catch (final IOException e) {
+      log.info("could not passivate session " + sid + ": " + e);
+      f.delete();
+      return false;
+    }
+
+    final long timeout = _sn.timeOutMillis();
+    this.passivatedSessions.put(sid,
+      timeout > 0 ? _lastAccess + timeout : Long.MAX_VALUE);
+    this.passivationCount.incrementAndGet();
+    if (log.isDebugEnabled())
+      log.debug("passivated session: " + sid);
+    return true;
+  }
+
+  /**
+   * Restores a session from the passivation directory. The file is deleted
+   * afterwards. Sessions whose timeout passed while they were on disk are
+   * not restored.
+   *
+   * @param _sid - the ID of the passivated session
+   * @return the store entry of the session (with its original last access
+   *   time), or null if it could not be restored
+   */
+  protected Entry activateSession(final String _sid) {
+    final Long deadline = this.passivationDirectory != null
+      ? this.passivatedSessions.remove(_sid) : null;
+    if (deadline == null)
+      return null;
+
+    final File f = this.passivationFileForID(_sid);
+    final long now = System.currentTimeMillis();
+    if (deadline.longValue() <= now) {
+      log.info("passivated session expired: " + _sid);
+      this.expiredCount.incrementAndGet();
+      f.delete();
+      return null;
+    }
+
+    try (ObjectInputStream in = new ObjectInputStream(
+           new BufferedInputStream(new FileInputStream(f))))
+    {
+      final WOSession sn = (WOSession)in.readObject();
+      this.activationCount.incrementAndGet();
+      if (log.isDebugEnabled())
+        log.debug("activated session: " + _sid);
+
+      final long timeout = sn.timeOutMillis();
+      return new Entry(sn, timeout > 0 && deadline.longValue() != Long.MAX_VALUE
+        ? deadline.longValue() - timeout : now);
+    }
+    catch (final IOException | ClassNotFoundException e) {
+      log.error("could not activate session " + _sid, e);
+      return null;
+    }
+    finally {
+      f.delete();
+    }
+  }
+
+  /* statistics */
+
+  /**
+   * Returns the number of sessions kept in memory.
+   *
+   * @return the number of in-memory sessions
+   */
+  public int sessionCount() {
+    synchronized (this.store) {
+      return this.store.size();
+    }
+  }
+  /**
+   * Returns the number of sessions which are passivated to disk.
+   *
+   * @return the number of passivated sessions
+   */
+  public int passivatedSessionCount() {
+    return this.passivatedSessions.size();
+  }
+
+  /**
+   * Returns the number of pages held in the page caches of the in-memory
+   * sessions. Those (component trees) make up most of the memory used by
+   * sessions.
+   *
+   * @return the number of cached pages
+   */
+  public int cachedPageCount() {
+    final List<Entry> entries;
+    synchronized (this.store) {
+      entries = new ArrayList<>(this.store.values());
+    }
+
+    int count = 0;
+    for (final Entry entry: entries)
+      count += entry.session.cachedPageCount();
+    return count;
+  }
+
+  /**
+   * Returns the page cache statistics aggregated over all sessions, including
+   * the ones which are not in memory anymore. The result contains the number
+   * of hits, misses and evictions (in that order).
+   *
+   * @return an array with hits, misses and evictions
+   */
+  public long[] pageCacheStatistics() {
+    final List<Entry> entries;
+    synchronized (this.store) {
+      entries = new ArrayList<>(this.store.values());
+    }
+
+    final long[] stats = new long[] {
+      this.retiredPageCacheHits.get(),
+      this.retiredPageCacheMisses.get(),
+      this.retiredPageCacheEvictions.get()
+    };
+    for (final Entry entry: entries) {
+      stats[0] += entry.session.pageCacheHitCount();
+      stats[1] += entry.session.pageCacheMissCount();
+      stats[2] += entry.session.pageCacheEvictionCount();
+    }
+    return stats;
+  }
+
+  public long expiredSessionCount() {
+    return this.expiredCount.get();
+  }
+  public long evictedSessionCount() {
+    return this.evictedCount.get();
+  }
+  public long passivationCount() {
+    return this.passivationCount.get();
   }
+  public long activationCount() {
+    return this.activationCount.get();
+  }
+
 
-  
   /* description */
-  
+
   @Override
-  public void appendAttributesToDescription(StringBuilder _d) {
+  public void appendAttributesToDescription(final StringBuilder _d) {
     super.appendAttributesToDescription(_d);
     if (this.store == null)
       _d.append(" no-store");
     else {
       _d.append(" store=#");
-      _d.append(this.store.size());
+      _d.append(this.sessionCount());
+      if (this.maxSessionCount > 0) {
+        _d.append("/");
+        _d.append(this.maxSessionCount);
+      }
+    }
+    if (this.passivationDirectory != null) {
+      _d.append(" passivated=#");
+      _d.append(this.passivatedSessions.size());
+    }
+    _d.append(" expired=");
+    _d.append(this.expiredCount.get());
+    _d.append(" evicted=");
+    _d.append(this.evictedCount.get());
+  }
+
+
+  /* entry */
+
+  protected static class Entry {
+    protected final WOSession session;
+    protected volatile long   lastAccess;
+
+    protected Entry(final WOSession _session, final long _lastAccess) {
+      this.session    = _session;
+      this.lastAccess = _lastAccess;
+    }
+
+    protected boolean isExpired(final long _now) {
+      final long timeout = this.session.timeOutMillis();
+      return timeout > 0 && (_now - this.lastAccess) > timeout;
     }
   }
 }
@@ -21,6 +21,7 @@
 
 package org.getobjects.appserver.core;
 
+import java.io.Serializable;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -44,7 +45,11 @@ import org.getobjects.foundation.UString;
  *         Locking should be ensured by the WOSessionStore checkout/in
  *         mechanism.
  */
-public class WOSession extends NSObject implements INSExtraVariables {
+public class WOSession extends NSObject
+  implements INSExtraVariables, Serializable
+{
+  private static final long serialVersionUID = 1L;
+
   // TODO: document
   // TODO: properly generate sessionID
   // TODO: note that the WOSession has no "backlink" to the WOApp or WOContext!
@@ -57,8 +62,10 @@ public class WOSession extends NSObject implements INSExtraVariables {
   protected boolean      isTerminating      = false;
   protected List<String> languages          = null;
   
-  protected WOPageSessionCache pageCache;
-  protected WOPageSessionCache permanentPageCache;
+  /* pages are not serializable, they are dropped on passivation */
+  protected transient WOPageSessionCache pageCache;
+  protected transient WOPageSessionCache permanentPageCache;
+  protected transient long               pageCacheMissCount;
 
   private static AtomicInteger snIdCounter = new AtomicInteger(0); 
   
@@ -192,6 +199,9 @@ public class WOSession extends NSObject implements INSExtraVariables {
    * @param _ctx - the WOContext the session is active in
    */
   public void _awakeWithContext(final WOContext _ctx) {
+    if (_ctx != null && _ctx.hasReadOnlySession())
+      return; /* shared with other requests */
+
     // in SOPE we also setup context/application
     if (!this.isAwake) {
       this.awake();
@@ -206,6 +216,9 @@ public class WOSession extends NSObject implements INSExtraVariables {
    * @param _ctx - the WOContext representing the current transaction
    */
   public void _sleepWithContext(final WOContext _ctx) {
+    if (_ctx != null && _ctx.hasReadOnlySession())
+      return; /* shared with other requests, never awakened */
+
     if (this.isAwake) {
       this.sleep();
       this.isAwake = false;
@@ -264,6 +277,9 @@ public class WOSession extends NSObject implements INSExtraVariables {
         return page;
     }
     
+    synchronized (this) { /* concurrent read-only checkouts */
+      this.pageCacheMissCount++;
+    }
     return null;
   }
   
@@ -297,10 +313,16 @@ public class WOSession extends NSObject implements INSExtraVariables {
    * <p>
    * Note: this method is related to WO component actions which need to preserve
    * the component (/context) which generated a component action link.
+   * <p>
+   * Pages are not saved if the session got checked out read-only, it is
+   * shared with other requests in this case.
    * 
    * @param _page - the page which shall be preserved
    */
   public void savePage(final WOComponent _page) {
+    if (this.isReadOnlyInContextOfPage(_page))
+      return;
+
     String ctxId = this.contextIDForPage(_page);
     if (ctxId == null) return;
     
@@ -316,8 +338,11 @@ public class WOSession extends NSObject implements INSExtraVariables {
     /* then we save it in ours */
     
     if (this.pageCache == null) {
-      int size = _page.application().pageCacheSize();
+      final WOApplication app = _page.application();
+      final int size = app.pageCacheSize();
       this.pageCache = size > 0 ? new WOPageSessionCache(size) : null;
+      if (this.pageCache != null)
+        this.pageCache.setMaxEstimatedSize(app.pageCacheMaxComponentCount());
     }
     if (this.pageCache == null)
       return;
@@ -336,6 +361,9 @@ public class WOSession extends NSObject implements INSExtraVariables {
    * @param _page - the save to be stored in the permanent cache
    */
   public void savePageInPermanentCache(final WOComponent _page) {
+    if (this.isReadOnlyInContextOfPage(_page))
+      return;
+
     String ctxId = this.contextIDForPage(_page);
     if (ctxId == null) return;
     
@@ -348,6 +376,67 @@ public class WOSession extends NSObject implements INSExtraVariables {
     
     this.permanentPageCache.savePageForContextID(_page, ctxId);
   }
+
+  protected boolean isReadOnlyInContextOfPage(final WOComponent _page) {
+    final WOContext ctx = _page != null ? _page.context() : null;
+    if (ctx == null || !ctx.hasReadOnlySession())
+      return false;
+
+    if (log.isDebugEnabled())
+      log.debug("not saving page in read-only session: " + _page);
+    return true;
+  }
+
+  /**
+   * Returns the number of pages kept in the page caches of the session. This
+   * is used by session stores to estimate the memory held by sessions.
+   * 
+   * @return the number of cached pages
+   */
+  public int cachedPageCount() {
+    int count = 0;
+    if (this.pageCache != null)
+      count += this.pageCache.pageCount();
+    if (this.permanentPageCache != null)
+      count += this.permanentPageCache.pageCount();
+    return count;
+  }
+  
+  /**
+   * Returns the number of pages which got restored from the page caches.
+   * 
+   * @return the number of page cache hits
+   */
+  public long pageCacheHitCount() {
+    long count = 0;
+    if (this.pageCache != null)
+      count += this.pageCache.hitCount();
+    if (this.permanentPageCache != null)
+      count += this.permanentPageCache.hitCount();
+    return count;
+  }
+  /**
+   * Returns the number of pages which could not be found in the page caches
+   * (eg because the user backtracked too far).
+   * 
+   * @return the number of page cache misses
+   */
+  public synchronized long pageCacheMissCount() {
+    return this.pageCacheMissCount;
+  }
+  /**
+   * Returns the number of pages which got dropped from the page caches.
+   * 
+   * @return the number of page cache evictions
+   */
+  public long pageCacheEvictionCount() {
+    long count = 0;
+    if (this.pageCache != null)
+      count += this.pageCache.evictionCount();
+    if (this.permanentPageCache != null)
+      count += this.permanentPageCache.evictionCount();
+    return count;
+  }
   
   
   /* responder */
@@ -21,9 +21,7 @@
 
 package org.getobjects.appserver.core;
 
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -57,7 +55,12 @@ public abstract class WOSessionStore extends NSObject implements IGoObject {
   
   /* checkin / checkout */
   
-  protected Set<String> workingSet = new HashSet<String>(128);
+  /* Maps the IDs of checked out sessions (and of sessions threads are waiting
+   * for) to their lock. The locks are reference counted and removed when the
+   * last thread releases them.
+   */
+  protected final ConcurrentHashMap<String, SessionLock> sessionLocks =
+    new ConcurrentHashMap<String, SessionLock>(128);
   
   public void setSessionCheckOutTimeout(long _timeout) {
     this.sessionCheckOutTimeout = _timeout;
@@ -78,11 +81,32 @@ public abstract class WOSessionStore extends NSObject implements IGoObject {
    * @return the checked out session
    */
   public WOSession checkOutSessionForID(String _sid, WORequest _rq) {
+    return this.checkOutSessionForID(_sid, _rq, false /* exclusive */);
+  }
+  
+  /**
+   * Lock the given session ID for other threads. Its criticial that the session
+   * is checked in again.
+   * <p>
+   * If another request has the session checked out, the thread blocks until
+   * that request checks the session in again (or the sessionCheckOutTimeout
+   * passes).
+   * <p>
+   * Read-only checkouts can share the session with other read-only checkouts
+   * (eg parallel AJAX requests which just render something). Such requests
+   * must not modify the session, its also not saved again on checkin.
+   * 
+   * @param _sid      - the session ID to checkout
+   * @param _rq       - the request
+   * @param _readOnly - whether the session is shared with other readers
+   * @return the checked out session
+   */
+  public WOSession checkOutSessionForID
+    (final String _sid, final WORequest _rq, final boolean _readOnly)
+  {
     // TBD: Do we need to ensure somehow that a session is checked in again?
     //      Eg using some timestamp. Somewhat dangerous, but a checked out
     //      session which crashed is dead ...
-    // TBD: actually serializing the session has the advantage that we can
-    //      do multiple *readonly* checkouts. Which is quite nice.
     
     if (_sid == null) {
       log.error("got no session-id for session checkout!");
@@ -91,48 +115,9 @@ public abstract class WOSessionStore extends NSObject implements IGoObject {
     
     /* checkout session */
     
-    long startMS = new Date().getTime();
-    long timeout = this.sessionCheckOutTimeout();
-    long now     = startMS;
-    
-    boolean didCheckOut = false;
-    for (int tryCount = 0; !didCheckOut && (now-startMS < timeout);tryCount++) {
-      synchronized (this.workingSet) {
-        if (!this.workingSet.contains(_sid)) {
-          this.workingSet.add(_sid);
-          didCheckOut = true;
-        }
-      }
-      
-      /* wait a bit prior next attempt to allow other threads to complete */
-      if (!didCheckOut) {
-        try {
-          // TBD: find good values
-          int waittime;
-          if (tryCount < 5)
-            waittime = 20; /* ms */
-          else if (tryCount < 10)
-            waittime = 50; /* ms */
-          else if (tryCount < 20)
-            waittime = 100; /* ms */
-          else
-            waittime = 500; /* ms */
-          
-          if (waittime > 30)
-            log.warn("waiting in session checkout: " + waittime + "ms");
-          Thread.sleep(waittime /* ms */);
-        }
-        catch (InterruptedException e) {
-          // could be spurious wakeup?
-        }
-        now = new Date().getTime();
-      }
-    }
-    
-    if (!didCheckOut) {
-      // TODO: maybe we should just block the thread?
+    if (!this.lockSessionID(_sid, _readOnly, this.sessionCheckOutTimeout())) {
       log.warn("failed to wait for checked out session (" +
-          (now - startMS) + "ms): " + _sid);
+          this.sessionCheckOutTimeout() + "ms): " + _sid);
       return null;
     }
     
@@ -144,11 +129,8 @@ public abstract class WOSessionStore extends NSObject implements IGoObject {
     }
     finally {
       /* checkin session if restoration failed */
-      if (sn == null && _sid != null) {
-        synchronized (this.workingSet) {
-          this.workingSet.remove(_sid);
-        }
-      }
+      if (sn == null)
+        this.unlockSessionID(_sid);
     }
     
     return sn;
@@ -158,6 +140,8 @@ public abstract class WOSessionStore extends NSObject implements IGoObject {
    * This is called by WOApplication.saveSessionForContext() to allow other 
    * threads to access the session. Remember that session access is
    * synchronized.
+   * <p>
+   * Sessions which got checked out read-only are not saved.
    * 
    * @param _ctx - the context which contains the session.
    */
@@ -167,17 +151,159 @@ public abstract class WOSessionStore extends NSObject implements IGoObject {
       return;
     }
     
+    final String sid = _ctx.hasSession() ? _ctx.session().sessionID() : null;
     try {
-      this.saveSessionForContext(_ctx);
+      if (sid == null || !this.isSessionIDLockedReadOnly(sid))
+        this.saveSessionForContext(_ctx);
     }
     finally {
       /* we checkin in any case */
-      String sid = _ctx.hasSession() ? _ctx.session().sessionID() : null;
-      if (sid != null) {
-        synchronized (this.workingSet) {
-          this.workingSet.remove(sid);
+      if (sid != null)
+        this.unlockSessionID(sid);
+    }
+  }
+  
+  /* session locks */
+  
+  /**
+   * Locks the given session-id, waiting for other threads to release it. A
+   * successful lock must be balanced by an unlockSessionID() call.
+   * 
+   * @param _sid      - the session-id to lock
+   * @param _readOnly - whether the lock can be shared with other readers
+   * @param _timeout  - the max time to wait in ms, 0 to fail immediately
+   * @return true if the lock got acquired, false on timeout
+   */
+  protected boolean lockSessionID
+    (final String _sid, final boolean _readOnly, final long _timeout)
+  {
+    final SessionLock lock = this.retainLock(_sid);
+    boolean didLock = false;
+    try {
+      didLock = lock.lock(_readOnly, _timeout);
+      if (!didLock && log.isDebugEnabled())
+        log.debug("session is checked out by another request: " + _sid);
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      if (!didLock) this.releaseLock(_sid);
+    }
+    return didLock;
+  }
+  
+  /**
+   * Releases a lock acquired using lockSessionID() and wakes up the threads
+   * waiting for the session.
+   * 
+   * @param _sid - the session-id to unlock
+   */
+  protected void unlockSessionID(final String _sid) {
+    final SessionLock lock = this.sessionLocks.get(_sid);
+    if (lock == null) {
+      log.warn("attempt to checkin a session which is not checked out: "+_sid);
+      return;
+    }
+    lock.unlock();
+    this.releaseLock(_sid);
+  }
+  
+  /**
+   * Returns whether the session with the given id is currently checked out.
+   * 
+   * @param _sid - the session-id
+   * @return true if a request has the session checked out
+   */
+  public boolean isSessionIDLocked(final String _sid) {
+    final SessionLock lock = _sid != null ? this.sessionLocks.get(_sid) : null;
+    return lock != null && lock.isLocked();
+  }
+  protected boolean isSessionIDLockedReadOnly(final String _sid) {
+    final SessionLock lock = _sid != null ? this.sessionLocks.get(_sid) : null;
+    return lock != null && lock.isLockedReadOnly();
+  }
+  
+  protected SessionLock retainLock(final String _sid) {
+    return this.sessionLocks.compute(_sid, (sid, lock) -> {
+      if (lock == null) lock = new SessionLock();
+      lock.retainCount++;
+      return lock;
+    });
+  }
+  protected void releaseLock(final String _sid) {
+    this.sessionLocks.computeIfPresent(_sid, (sid, lock) -> {
+      lock.retainCount--;
+      return lock.retainCount > 0 ? lock : null;
+    });
+  }
+  
+  /**
+   * The lock of a single session-id. Its either held by one exclusive owner,
+   * or by a set of readers.
+   * <p>
+   * The lock prefers writers: while an exclusive lock is requested, no new
+   * readers are admitted. Otherwise a steady stream of (overlapping)
+   * read-only requests could block exclusive checkouts forever.
+   * <p>
+   * THREAD: retainCount is only modified inside ConcurrentHashMap.compute(),
+   *         the lock state is protected by the object monitor.
+   */
+  protected static class SessionLock {
+    protected int     retainCount;
+    protected boolean isExclusive;
+    protected int     readers;
+    protected int     waitingWriters;
+    
+    protected synchronized boolean lock(boolean _readOnly, long _timeout)
+      throws InterruptedException
+    {
+      final long deadline = System.currentTimeMillis() + _timeout;
+      if (_readOnly) {
+        while (this.isExclusive || this.waitingWriters > 0) {
+          final long waitTime = deadline - System.currentTimeMillis();
+          if (waitTime <= 0)
+            return false;
+          this.wait(waitTime);
         }
+        this.readers++;
+        return true;
       }
+      
+      this.waitingWriters++;
+      boolean didLock = false;
+      try {
+        while (this.isExclusive || this.readers > 0) {
+          final long waitTime = deadline - System.currentTimeMillis();
+          if (waitTime <= 0)
+            return false;
+          this.wait(waitTime);
+        }
+        this.isExclusive = didLock = true;
+        return true;
+      }
+      finally {
+        this.waitingWriters--;
+        if (!didLock && this.waitingWriters == 0)
+          this.notifyAll(); /* readers blocked by us can proceed */
+      }
+    }
+    
+    protected synchronized void unlock() {
+      if (this.isExclusive)
+        this.isExclusive = false;
+      else if (this.readers > 0)
+        this.readers--;
+      
+      if (!this.isExclusive && this.readers == 0)
+        this.notifyAll();
+    }
+    
+    protected synchronized boolean isLocked() {
+      return this.isExclusive || this.readers > 0;
+    }
+    protected synchronized boolean isLockedReadOnly() {
+      return this.readers > 0;
     }
   }
   
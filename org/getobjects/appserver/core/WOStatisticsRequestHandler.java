@@ -0,0 +1,65 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.appserver.core;
+
+/**
+ * WOStatisticsRequestHandler
+ * <p>
+ * Delivers the metrics collected by the WOStatisticsStore of the application
+ * as text/plain (see WOStatisticsStore.metricsText()).
+ * <p>
+ * The handler is not registered by default (the metrics should not be
+ * public), mount it in the init() method of your application, eg:
+ * <pre>
+ *   registerRequestHandler(new WOStatisticsRequestHandler(this), "metrics");
+ * </pre>
+ */
+public class WOStatisticsRequestHandler extends WORequestHandler {
+
+  public WOStatisticsRequestHandler(final WOApplication _app) {
+    super(_app);
+  }
+
+  @Override
+  public boolean restoreSessionsUsingIDs() {
+    return false;
+  }
+
+  @Override
+  public WOResponse handleRequest
+    (final WORequest _rq, final WOContext _ctx, final WOSession _s)
+  {
+    final WOResponse r = new WOResponse(_rq);
+    final WOStatisticsStore stats = this.application.statisticsStore();
+    if (stats == null) {
+      r.setStatus(404);
+      r.appendContentString("statistics are not available");
+      return r;
+    }
+
+    r.setStatus(200);
+    r.setHeaderForKey("text/plain; charset=utf-8", "content-type");
+    r.disableClientCaching();
+    r.appendContentString(stats.metricsText());
+    return r;
+  }
+}
@@ -21,16 +21,509 @@
 
 package org.getobjects.appserver.core;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.getobjects.appserver.publisher.GoTraversalPath;
 import org.getobjects.foundation.NSObject;
 
-/*
+/**
  * WOStatisticsStore
- * 
- * TODO: document me
+ * <p>
+ * Collects request statistics of a WOApplication. The statistics are recorded
+ * by WOApplication.dispatchRequest() and kept per request handler and per
+ * page/action:
+ * <ul>
+ *   <li>request, error (5xx or exception) and client error (4xx) counts
+ *   <li>latency histograms (p50/p95/p99/max)
+ *   <li>the distribution of response sizes
+ * </ul>
+ * Plus gauges for the active requests, sessions and session page caches.
+ * <p>
+ * The statistics can be retrieved as a Map using snapshot() (KVC, eg
+ * 'stats.snapshot.handlers.wa.latency.p95'), or as text/plain metrics using
+ * metricsText(). The latter is delivered by the WOStatisticsRequestHandler.
+ * <p>
+ * THREAD: this object is thread safe, recording is lock-free.
  */
 public class WOStatisticsStore extends NSObject {
 
+  protected final WOApplication application;
+  protected final long          startTimeInMS;
+
+  protected int maxKeyCount;
+
+  protected final Stats totals;
+  protected final ConcurrentHashMap<String, Stats> handlerStats;
+  protected final ConcurrentHashMap<String, Stats> actionStats;
+  protected final Histogram responseSizes;
+
+  public WOStatisticsStore(final WOApplication _app) {
+    this.application   = _app;
+    this.startTimeInMS = System.currentTimeMillis();
+    this.maxKeyCount   = 512;
+    this.totals        = new Stats();
+    this.handlerStats  = new ConcurrentHashMap<>(8);
+    this.actionStats   = new ConcurrentHashMap<>(64);
+    this.responseSizes = new Histogram();
+  }
+  public WOStatisticsStore() {
+    this(null);
+  }
+
+  /* accessors */
+
+  /**
+   * Sets the maximum number of request handler and page/action keys which are
+   * tracked. Requests for additional keys are recorded under 'other'.
+   *
+   * @param _count - the max number of keys
+   */
+  public void setMaxKeyCount(final int _count) {
+    this.maxKeyCount = _count;
+  }
+  public int maxKeyCount() {
+    return this.maxKeyCount;
+  }
+
+  /* recording */
+
+  /**
+   * Called by WOSession after a page got rendered into a response. The
+   * request itself is recorded by recordRequest(), this is a hook for
+   * subclasses which want to track session specific data.
+   *
+   * @param _r   - the response the page got rendered to
+   * @param _ctx - the context of the request
+   */
   public void recordStatisticsForResponse(WOResponse _r, WOContext _ctx) {
-    // TODO: implement me
+  }
+
+  /**
+   * Records a request. This is called by WOApplication.dispatchRequest().
+   *
+   * @param _handlerKey - the request handler which processed the request
+   * @param _rq         - the request
+   * @param _r          - the response, or null if none was generated
+   * @param _nanos      - the processing time in nanoseconds
+   * @param _failed     - whether the request handler failed with an exception
+   */
+  public void recordRequest
+    (final String _handlerKey, final WORequest _rq, final WOResponse _r,
+     final long _nanos, final boolean _failed)
+  {
+    final int     status = _r != null ? _r.status() : 500;
+    final boolean failed = _failed || _r == null || status >= 500;
+    final boolean clientError = !failed && status >= 400;
+    final long    micros = _nanos / 1000;
+
+    long size = -1;
+    if (_r != null) {
+      final String cl = _r.headerForKey("content-length");
+      if (cl != null) {
+        try {
+          size = Long.parseLong(cl.trim());
+        }
+        catch (final NumberFormatException e) {
+          size = -1;
+        }
+      }
+      else if (!_r.isStreaming())
+        size = _r.contentLength();
+    }
+    if (size >= 0)
+      this.responseSizes.record(size);
+
+    this.totals.record(micros, size, failed, clientError);
+
+    this.statsForKey(this.handlerStats, _handlerKey != null ? _handlerKey : "-")
+      .record(micros, size, failed, clientError);
+
+    final String actionKey =
+      this.statisticsKeyForContext(_rq != null ? _rq.context() : null);
+    if (actionKey != null) {
+      this.statsForKey(this.actionStats, actionKey)
+        .record(micros, size, failed, clientError);
+    }
+  }
+
+  /**
+   * Returns the key used to track the page or action of a request. This is
+   * the name of the page (if one got set in the context) or the name of the
+   * invoked Go method (with the class of the client object).
+   *
+   * @param _ctx - the context of the request
+   * @return the key for the request, or null if it should not be tracked
+   */
+  protected String statisticsKeyForContext(final WOContext _ctx) {
+    if (_ctx == null)
+      return null;
+
+    final WOComponent page = _ctx.page();
+    if (page != null)
+      return page.name();
+
+    final GoTraversalPath tpath = _ctx.goTraversalPath();
+    final String method = tpath != null ? tpath.methodName() : null;
+    if (method == null)
+      return null;
+
+    final Object client = tpath.clientObject();
+    return client != null
+      ? client.getClass().getSimpleName() + "." + method
+      : method;
+  }
+
+  protected Stats statsForKey
+    (final ConcurrentHashMap<String, Stats> _map, String _key)
+  {
+    Stats stats = _map.get(_key);
+    if (stats != null)
+      return stats;
+
+    if (_map.size() >= this.maxKeyCount)
+      _key = "other";
+    return _map.computeIfAbsent(_key, k -> new Stats());
+  }
+
+  /**
+   * Drops all collected statistics.
+   */
+  public void reset() {
+    this.totals.reset();
+    this.handlerStats.clear();
+    this.actionStats.clear();
+    this.responseSizes.reset();
+  }
+
+  /* snapshot */
+
+  /**
+   * Returns a snapshot of the statistics as a Map which can be accessed using
+   * KVC. Latencies are in milliseconds, sizes in bytes.
+   *
+   * @return a Map containing the statistics
+   */
+  public Map<String, Object> snapshot() {
+    final Map<String, Object> snapshot = new HashMap<>(16);
+
+    snapshot.put("uptime",
+      (System.currentTimeMillis() - this.startTimeInMS) / 1000);
+    snapshot.put("requests", this.totals.snapshot());
+
+    final Map<String, Object> handlers = new TreeMap<>();
+    for (final Map.Entry<String, Stats> e: this.handlerStats.entrySet())
+      handlers.put(e.getKey(), e.getValue().snapshot());
+    snapshot.put("handlers", handlers);
+
+    final Map<String, Object> actions = new TreeMap<>();
+    for (final Map.Entry<String, Stats> e: this.actionStats.entrySet())
+      actions.put(e.getKey(), e.getValue().snapshot());
+    snapshot.put("actions", actions);
+
+    snapshot.put("responseSizes", this.responseSizes.snapshot(1.0));
+    snapshot.put("gauges", this.gauges());
+    return snapshot;
+  }
+
+  /**
+   * Returns the current values of the gauges: active requests and the session
+   * store metrics (if the WOServerSessionStore is used).
+   *
+   * @return a Map containing the gauges
+   */
+  public Map<String, Object> gauges() {
+    final Map<String, Object> gauges = new TreeMap<>();
+    if (this.application == null)
+      return gauges;
+
+    gauges.put("activeRequests", this.application.activeDispatchCount.get());
+
+    final WOSessionStore st = this.application.sessionStore();
+    if (st instanceof WOServerSessionStore) {
+      final WOServerSessionStore sst = (WOServerSessionStore)st;
+      gauges.put("sessions",            sst.sessionCount());
+      gauges.put("passivatedSessions",  sst.passivatedSessionCount());
+      gauges.put("expiredSessions",     sst.expiredSessionCount());
+      gauges.put("evictedSessions",     sst.evictedSessionCount());
+      gauges.put("cachedPages",         sst.cachedPageCount());
+
+      final long[] pcStats = sst.pageCacheStatistics();
+      gauges.put("pageCacheHits",      pcStats[0]);
+      gauges.put("pageCacheMisses",    pcStats[1]);
+      gauges.put("pageCacheEvictions", pcStats[2]);
+    }
+    return gauges;
+  }
+
+  /* text metrics */
+
+  /**
+   * Renders the statistics as plain text, one metric per line, in the
+   * Prometheus text format. Eg:
+   * <pre>
+   *   wo_requests_total{handler="wa"} 42
+   *   wo_request_latency_ms{handler="wa",quantile="0.95"} 12.5</pre>
+   *
+   * @return the statistics as text
+   */
+  public String metricsText() {
+    final StringBuilder sb = new StringBuilder(4096);
+
+    sb.append("wo_uptime_seconds ");
+    sb.append((System.currentTimeMillis() - this.startTimeInMS) / 1000);
+    sb.append('\n');
+
+    this.totals.appendMetrics(sb, null, null);
+    for (final Map.Entry<String, Stats> e:
+         new TreeMap<>(this.handlerStats).entrySet())
+      e.getValue().appendMetrics(sb, "handler", e.getKey());
+    for (final Map.Entry<String, Stats> e:
+         new TreeMap<>(this.actionStats).entrySet())
+      e.getValue().appendMetrics(sb, "action", e.getKey());
+
+    appendQuantiles(sb, "wo_response_size_bytes", null,
+                    this.responseSizes, 1.0);
+
+    for (final Map.Entry<String, Object> e: this.gauges().entrySet()) {
+      sb.append("wo_");
+      sb.append(e.getKey());
+      sb.append(' ');
+      sb.append(e.getValue());
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  protected static void appendLabels
+    (final StringBuilder _sb, final String _labels, final String _extra)
+  {
+    if (_labels == null && _extra == null)
+      return;
+
+    _sb.append('{');
+    if (_labels != null)
+      _sb.append(_labels);
+    if (_extra != null) {
+      if (_labels != null) _sb.append(',');
+      _sb.append(_extra);
+    }
+    _sb.append('}');
+  }
+
+  protected static void appendQuantiles
+    (final StringBuilder _sb, final String _name, final String _labels,
+     final Histogram _h, final double _scale)
+  {
+    for (final double q: QUANTILES) {
+      _sb.append(_name);
+      appendLabels(_sb, _labels, "quantile=\"" + q + "\"");
+      _sb.append(' ');
+      _sb.append(formatValue(_h.percentile(q) * _scale));
+      _sb.append('\n');
+    }
+    _sb.append(_name);
+    _sb.append("_max");
+    appendLabels(_sb, _labels, null);
+    _sb.append(' ');
+    _sb.append(formatValue(_h.max() * _scale));
+    _sb.append('\n');
+  }
+
+  protected static String formatValue(final double _v) {
+    return _v == Math.rint(_v)
+      ? Long.toString((long)_v)
+      : String.format(Locale.US, "%.3f", _v);
+  }
+
+  protected static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" requests=");
+    _d.append(this.totals.count.sum());
+    _d.append(" errors=");
+    _d.append(this.totals.errors.sum());
+    _d.append(" p95=");
+    _d.append(formatValue(this.totals.latency.percentile(0.95) / 1000.0));
+    _d.append("ms");
+  }
+
+
+  /* statistics of a set of requests */
+
+  public static class Stats {
+    protected final LongAdder count        = new LongAdder();
+    protected final LongAdder errors       = new LongAdder();
+    protected final LongAdder clientErrors = new LongAdder();
+    protected final LongAdder bytes        = new LongAdder();
+    protected final Histogram latency      = new Histogram(); /* in micros */
+
+    public void record
+      (final long _micros, final long _size,
+       final boolean _failed, final boolean _clientError)
+    {
+      this.count.increment();
+      if (_failed)      this.errors.increment();
+      if (_clientError) this.clientErrors.increment();
+      if (_size > 0)    this.bytes.add(_size);
+      this.latency.record(_micros);
+    }
+
+    public void reset() {
+      this.count.reset();
+      this.errors.reset();
+      this.clientErrors.reset();
+      this.bytes.reset();
+      this.latency.reset();
+    }
+
+    public Map<String, Object> snapshot() {
+      final Map<String, Object> snapshot = new HashMap<>(8);
+      snapshot.put("count",        this.count.sum());
+      snapshot.put("errors",       this.errors.sum());
+      snapshot.put("clientErrors", this.clientErrors.sum());
+      snapshot.put("bytes",        this.bytes.sum());
+      snapshot.put("latency",      this.latency.snapshot(0.001 /* ms */));
+      return snapshot;
+    }
+
+    protected void appendMetrics
+      (final StringBuilder _sb, final String _label, final String _value)
+    {
+      final String labels = _label != null
+        ? _label + "=\"" + _value.replace("\\", "\\\\").replace("\"", "\\\"")
+          + "\""
+        : null;
+
+      final String prefix = "action".equals(_label) ? "wo_action_" : "wo_";
+      _sb.append(prefix); _sb.append("requests_total");
+      appendLabels(_sb, labels, null);
+      _sb.append(' '); _sb.append(this.count.sum()); _sb.append('\n');
+
+      _sb.append(prefix); _sb.append("request_errors_total");
+      appendLabels(_sb, labels, null);
+      _sb.append(' '); _sb.append(this.errors.sum()); _sb.append('\n');
+
+      _sb.append(prefix); _sb.append("request_client_errors_total");
+      appendLabels(_sb, labels, null);
+      _sb.append(' '); _sb.append(this.clientErrors.sum()); _sb.append('\n');
+
+      _sb.append(prefix); _sb.append("response_bytes_total");
+      appendLabels(_sb, labels, null);
+      _sb.append(' '); _sb.append(this.bytes.sum()); _sb.append('\n');
+
+      appendQuantiles(_sb, prefix + "request_latency_ms", labels,
+                      this.latency, 0.001);
+    }
+  }
+
+
+  /**
+   * A lock-free histogram for positive long values. The values are sorted
+   * into log-linear buckets (8 buckets per power of two), so percentiles are
+   * accurate to about 12%.
+   */
+  public static class Histogram {
+    protected static final int BUCKET_COUNT = 16 + 59 * 8;
+
+    protected final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    protected final LongAdder       count   = new LongAdder();
+    protected final LongAdder       sum     = new LongAdder();
+    protected final AtomicLong      max     = new AtomicLong();
+
+    public void record(long _value) {
+      if (_value < 0) _value = 0;
+      this.buckets.incrementAndGet(bucketIndex(_value));
+      this.count.increment();
+      this.sum.add(_value);
+
+      long oldMax;
+      while ((oldMax = this.max.get()) < _value) {
+        if (this.max.compareAndSet(oldMax, _value))
+          break;
+      }
+    }
+
+    protected static int bucketIndex(final long _value) {
+      if (_value < 16)
+        return (int)_value;
+
+      final int exp = 63 - Long.numberOfLeadingZeros(_value); /* >= 4 */
+      final int sub = (int)((_value >>> (exp - 3)) & 7);
+      return 16 + (exp - 4) * 8 + sub;
+    }
+
+    protected static long bucketUpperBound(final int _idx) {
+      if (_idx < 16)
+        return _idx;
+
+      final int exp = (_idx - 16) / 8 + 4;
+      final int sub = (_idx - 16) % 8;
+      return ((8L + sub + 1) << (exp - 3)) - 1;
+    }
+
+    /**
+     * Returns the (estimated) value below which the given fraction of the
+     * recorded values fall.
+     *
+     * @param _q - the quantile, eg 0.95
+     * @return the estimated percentile value, 0 if nothing was recorded
+     */
+    public long percentile(final double _q) {
+      final long total = this.count.sum();
+      if (total == 0)
+        return 0;
+
+      final long target = Math.max(1, (long)Math.ceil(_q * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += this.buckets.get(i);
+        if (seen >= target)
+          return Math.min(bucketUpperBound(i), this.max.get());
+      }
+      return this.max.get();
+    }
+
+    public long count() {
+      return this.count.sum();
+    }
+    public long max() {
+      return this.max.get();
+    }
+    public double mean() {
+      final long c = this.count.sum();
+      return c > 0 ? (double)this.sum.sum() / c : 0.0;
+    }
+
+    public void reset() {
+      for (int i = 0; i < BUCKET_COUNT; i++)
+        this.buckets.set(i, 0);
+      this.count.reset();
+      this.sum.reset();
+      this.max.set(0);
+    }
+
+    public Map<String, Object> snapshot(final double _scale) {
+      final Map<String, Object> snapshot = new HashMap<>(8);
+      snapshot.put("count", this.count());
+      snapshot.put("mean",  this.mean() * _scale);
+      snapshot.put("p50",   this.percentile(0.50) * _scale);
+      snapshot.put("p95",   this.percentile(0.95) * _scale);
+      snapshot.put("p99",   this.percentile(0.99) * _scale);
+      snapshot.put("max",   this.max() * _scale);
+      return snapshot;
+    }
   }
 }
@@ -21,6 +21,8 @@
 
 package org.getobjects.appserver.elements;
 
+import java.nio.charset.Charset;
+
 import org.getobjects.appserver.core.WOContext;
 import org.getobjects.appserver.core.WOElement;
 import org.getobjects.appserver.core.WOResponse;
@@ -32,10 +34,23 @@ import org.getobjects.appserver.core.WOResponse;
  * escapeHTML=NO.
  * <p>
  * This object is used by the WOHTMLParser for raw template content.
+ * <p>
+ * Larger chunks are encoded only once (per content encoding) and then added
+ * to the response as bytes. Since the elements are part of the cached
+ * WOTemplate, this happens once per template and not for each response.
  */
 public class WOStaticHTMLElement extends WOElement {
   
+  /**
+   * Strings shorter than this are just added to the String buffer of the
+   * response.
+   */
+  protected static final int minEncodedLength = 64;
+  
   protected String string;
+  
+  /* the string encoded in the last used charset (templates are shared) */
+  protected volatile EncodedString encodedString;
 
   public WOStaticHTMLElement(String _s) {
     this.string = _s;
@@ -45,8 +60,26 @@ public class WOStaticHTMLElement extends WOElement {
 
   @Override
   public void appendToResponse(final WOResponse _r, final WOContext _ctx) {
-    if (this.string != null && !_ctx.isRenderingDisabled())
+    if (this.string == null || _ctx.isRenderingDisabled())
+      return;
+    
+    if (this.string.length() < minEncodedLength) {
       _r.appendContentString(this.string);
+      return;
+    }
+    
+    final Charset charset = _r.contentCharset();
+    if (charset == null) {
+      _r.appendContentString(this.string);
+      return;
+    }
+    
+    EncodedString encoded = this.encodedString;
+    if (encoded == null || !charset.equals(encoded.charset)) {
+      encoded = new EncodedString(charset, this.string.getBytes(charset));
+      this.encodedString = encoded;
+    }
+    _r.appendContentData(encoded.data, encoded.data.length);
   }
   
   /* description */
@@ -68,4 +101,17 @@ public class WOStaticHTMLElement extends WOElement {
       _d.append('"');
     }
   }
+  
+  
+  /* pre-encoded string */
+  
+  protected static class EncodedString {
+    protected final Charset charset;
+    protected final byte[]  data;
+    
+    protected EncodedString(final Charset _charset, final byte[] _data) {
+      this.charset = _charset;
+      this.data    = _data;
+    }
+  }
 }
@@ -20,6 +20,7 @@
 */
 package org.getobjects.eoaccess;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
@@ -282,6 +283,10 @@ public class EOActiveDataSource extends EOAccessDataSource
     else
       adaptor.releaseChannel(adChannel);
     
+    final EOSnapshotCache cache = this.database.snapshotCache();
+    if (cache != null) /* also on errors, some ops might have been done */
+      cache.invalidateEntitiesOfOperations(Arrays.asList(_ops));
+    
     return error;
   }
   
@@ -33,6 +33,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -81,10 +82,22 @@ import org.getobjects.foundation.UString;
  * Connection Properties processed by EOAdaptor:
  * <ul>
  *   <li>EOAdaptorMaxPoolSize         (default: 64)
+ *   <li>EOAdaptorStatementCacheSize  (default: 32, 0 disables the cache)
+ *   <li>EOAdaptorSQLTemplateCacheSize (default: 256, 0 disables the cache)
  *   <li>EOAdaptorMaxChannelWaitTime  (default: 3000ms)
  *   <li>EOAdaptorMaxChannelAge       (default: 120s)
  *   <li>EOAdaptorMaintenanceInterval (default: 180s)
+ *   <li>EOAdaptorPoolType            (default: monitor)
+ *   <li>EOAdaptorMaxBatchSize        (default: 500, 0 disables batches)
+ *   <li>EOAdaptorPrefetchChunkSize   (default: 1000)
+ *   <li>EOAdaptorPrefetchConcurrency (default: 1, only applies to fetches
+ *       outside of transactions, prefetches within a transaction always run
+ *       sequentially on the transaction channel)
  * </ul>
+ * The 'EOAdaptorPoolType' selects the pool implementation. 'monitor' is the
+ * builtin pool which synchronizes on the adaptor, 'concurrent' uses an
+ * EOConcurrentAdaptorChannelPool (fair, lock-free checkout). A custom
+ * EOAdaptorChannelPool can be set using setChannelPool().
  * <p>
  * THREAD: this class, especially the connection pool, is thread safe. You
  *         should usually use one adaptor per login-configuration.
@@ -101,9 +114,19 @@ public class EOAdaptor extends NSObject implements NSDisposable {
   protected int     maxConnections;
   protected long    maxChannelWaitTimeInMS;
   protected long    maxChannelAgeInSeconds;
+  protected int     maxBatchSize;
+  protected int     prefetchChunkSize;
+  protected int     prefetchConcurrency;
+  protected int     statementCacheSize;
+  protected EOSQLExpressionCache expressionCache;
+
+  /* statement cache statistics of all channels */
+  protected final LongAdder statementCacheHits   = new LongAdder();
+  protected final LongAdder statementCacheMisses = new LongAdder();
 
   protected List<EOAdaptorChannel> availableChannels;
   protected List<EOAdaptorChannel> checkedOutChannels;
+  protected EOAdaptorChannelPool   channelPool; /* null: use builtin pool */
 
   protected Timer   maintenanceTimer = null;
   protected int     openCountSinceLastMaintenance    = 0;
@@ -166,6 +189,9 @@ public class EOAdaptor extends NSObject implements NSDisposable {
     this.availableChannels  = new ArrayList<>(16);
     this.checkedOutChannels = new ArrayList<>(16);
 
+    if (_p != null && "concurrent".equals(_p.getProperty("EOAdaptorPoolType")))
+      this.channelPool = new EOConcurrentAdaptorChannelPool(this);
+
     if (_model != null) {
       if (_model.isPatternModel())
         this.modelPattern = _model;
@@ -179,6 +205,11 @@ public class EOAdaptor extends NSObject implements NSDisposable {
     this.maxChannelWaitTimeInMS = 3 * 1000;
     this.maxChannelAgeInSeconds = 2 * 60;
     this.maintenanceTimeOutInSeconds = 3 * 60;
+    this.maxBatchSize = 500;
+    this.prefetchChunkSize   = 1000;
+    this.prefetchConcurrency = 1;
+    this.statementCacheSize  = 32;
+    this.expressionCache     = new EOSQLExpressionCache(256);
 
     if (_p == null)
       return;
@@ -188,6 +219,16 @@ public class EOAdaptor extends NSObject implements NSDisposable {
     if (v != null)
       this.maxConnections = UObject.intValue(v);
 
+    /* how many PreparedStatements will each channel keep open? */
+    if ((v = _p.getProperty("EOAdaptorStatementCacheSize")) != null)
+      this.statementCacheSize = UObject.intValue(v);
+
+    /* how many compiled SQL templates will we keep? */
+    if ((v = _p.getProperty("EOAdaptorSQLTemplateCacheSize")) != null) {
+      final int size = UObject.intValue(v);
+      this.expressionCache = size > 0 ? new EOSQLExpressionCache(size) : null;
+    }
+
     /* How long will we wait for a channel to become available (prior returning
      * an error).
      */
@@ -203,6 +244,18 @@ public class EOAdaptor extends NSObject implements NSDisposable {
     /* How often will we check whether we should retire channels, etc */
     if ((v = _p.getProperty("EOAdaptorMaintenanceInterval")) != null)
       this.maintenanceTimeOutInSeconds = UObject.intValue(v);
+
+    /* How many adaptor operations are grouped into one JDBC batch */
+    if ((v = _p.getProperty("EOAdaptorMaxBatchSize")) != null)
+      this.maxBatchSize = UObject.intValue(v);
+
+    /* How many values go into one IN query when prefetching relationships,
+     * and how many channels may be used to fetch those chunks in parallel.
+     */
+    if ((v = _p.getProperty("EOAdaptorPrefetchChunkSize")) != null)
+      this.prefetchChunkSize = UObject.intValue(v);
+    if ((v = _p.getProperty("EOAdaptorPrefetchConcurrency")) != null)
+      this.prefetchConcurrency = UObject.intValue(v);
   }
 
   /* accessors */
@@ -211,6 +264,81 @@ public class EOAdaptor extends NSObject implements NSDisposable {
     return this.url;
   }
 
+  /**
+   * Returns the maximum number of adaptor operations which are grouped into
+   * a single JDBC batch by EOAdaptorChannel.performAdaptorOperations().
+   * Values smaller than 2 disable batching.
+   */
+  public int maxBatchSize() {
+    return this.maxBatchSize;
+  }
+
+  /**
+   * Returns the number of PreparedStatements each channel of the adaptor
+   * caches (per SQL string). 0 disables the cache.
+   */
+  public int statementCacheSize() {
+    return this.statementCacheSize;
+  }
+  /**
+   * Returns how often channels of this adaptor could reuse a cached
+   * PreparedStatement.
+   */
+  public long statementCacheHits() {
+    return this.statementCacheHits.sum();
+  }
+  /**
+   * Returns how often channels of this adaptor had to prepare a statement
+   * while the statement cache was enabled.
+   */
+  public long statementCacheMisses() {
+    return this.statementCacheMisses.sum();
+  }
+
+  /**
+   * Returns the cache of compiled SQL templates used by the
+   * EOSQLExpressionFactory, or null if the cache is disabled.
+   */
+  public EOSQLExpressionCache expressionCache() {
+    return this.expressionCache;
+  }
+
+  /**
+   * Returns the maximum number of values used in a single IN qualifier when
+   * EODatabaseChannel prefetches relationships.
+   */
+  public int prefetchChunkSize() {
+    return this.prefetchChunkSize > 0 ? this.prefetchChunkSize : 1000;
+  }
+  /**
+   * Returns the number of pooled channels EODatabaseChannel may use to fetch
+   * the chunks of a relationship prefetch in parallel.
+   */
+  public int prefetchConcurrency() {
+    return this.prefetchConcurrency;
+  }
+
+  /**
+   * Sets a custom connection pool implementation. If set to null, the builtin
+   * monitor based pool is used.
+   * Note: this should be done prior using the adaptor, channels checked out
+   * from a previous pool are not transferred.
+   *
+   * @param _pool - the EOAdaptorChannelPool, or null
+   */
+  public void setChannelPool(final EOAdaptorChannelPool _pool) {
+    final EOAdaptorChannelPool oldPool;
+    synchronized (this) {
+      oldPool = this.channelPool;
+      this.channelPool = _pool;
+    }
+    if (oldPool != null && oldPool != _pool)
+      oldPool.closeAllPooledChannels();
+  }
+  public EOAdaptorChannelPool channelPool() {
+    return this.channelPool;
+  }
+
   /* loading a JDBC driver */
 
   protected boolean loadDriver() {
@@ -252,6 +380,9 @@ public class EOAdaptor extends NSObject implements NSDisposable {
 
   public boolean hasOpenChannels() {
     /* Note: this only tracks pooled connections */
+    if (this.channelPool != null)
+      return this.channelPool.hasOpenChannels();
+
     final int coCount, availCount;
     synchronized (this) {
       coCount    = this.checkedOutChannels.size();
@@ -422,6 +553,10 @@ public class EOAdaptor extends NSObject implements NSDisposable {
    *   opening failed or the timeout expired.
    */
   public EOAdaptorChannel openChannelFromPool() {
+    final EOAdaptorChannelPool pool = this.channelPool;
+    if (pool != null)
+      return pool.checkoutChannel();
+
     return this.openChannelFromPool(1);
   }
 
@@ -443,6 +578,12 @@ public class EOAdaptor extends NSObject implements NSDisposable {
       }
     }
 
+    final EOAdaptorChannelPool pool = this.channelPool;
+    if (pool != null) {
+      pool.releaseChannel(_channel, _keepConnect);
+      return;
+    }
+
     boolean didKeepEntry = _keepConnect;
 
     synchronized (this) {
@@ -554,6 +695,10 @@ public class EOAdaptor extends NSObject implements NSDisposable {
    * @return The fresh EOAdaptorChannel or null if something went wrong.
    */
   public EOAdaptorChannel openChannelAndRegisterInPool() {
+    final EOAdaptorChannelPool pool = this.channelPool;
+    if (pool != null) /* custom pools decide themselves on reuse */
+      return pool.checkoutChannel();
+
     final EOAdaptorChannel channel = openChannel();
     if (channel == null)
       return null;
@@ -593,6 +738,11 @@ public class EOAdaptor extends NSObject implements NSDisposable {
 
   public void closeAllPooledChannels() {
     /* Can be used to close all unused channels. */
+    if (this.channelPool != null) {
+      this.channelPool.closeAllPooledChannels();
+      return;
+    }
+
     final List<EOAdaptorChannel> toBeClosed = new ArrayList<>(4);
 
     /* collect expired connections */
@@ -611,6 +761,11 @@ public class EOAdaptor extends NSObject implements NSDisposable {
   public void maintainPool() {
     final boolean debugOn = log.isDebugEnabled();
 
+    if (this.channelPool != null) {
+      this.channelPool.maintainPool();
+      return;
+    }
+
     /* scan pool for connections which should be closed */
     if (debugOn) log.debug("running maintenance ...");
 
@@ -1175,6 +1330,9 @@ public class EOAdaptor extends NSObject implements NSDisposable {
   }
 
   public void setModelPattern(final EOModel _pattern) {
+    if (this.expressionCache != null) /* templates refer to old entities */
+      this.expressionCache.clear();
+
     synchronized(this) {
       if (_pattern == null) {
         this.modelPattern = null;
@@ -1342,9 +1500,12 @@ public class EOAdaptor extends NSObject implements NSDisposable {
   public void dispose() {
     /* Note: we also dispose channels which are checked out! */
     List<EOAdaptorChannel> channels1 = null, channels2 = null;
+    EOAdaptorChannelPool pool = null;
     Timer timer = null;
 
     synchronized (this) {
+      pool      = this.channelPool;
+      this.channelPool = null;
       channels1 = this.availableChannels;
       channels2 = this.checkedOutChannels;
       timer     = this.maintenanceTimer;
@@ -1362,6 +1523,9 @@ public class EOAdaptor extends NSObject implements NSDisposable {
         channel.dispose();
     }
 
+    if (pool != null)
+      pool.dispose();
+
     if (timer != null) {
       timer.cancel();
       timer = null;
@@ -1393,6 +1557,24 @@ public class EOAdaptor extends NSObject implements NSDisposable {
   public void appendAttributesToDescription(final StringBuilder _d) {
     super.appendAttributesToDescription(_d);
 
+    if (this.statementCacheSize > 0) {
+      _d.append(" stmt-cache={hits=");
+      _d.append(this.statementCacheHits.sum());
+      _d.append(", misses=");
+      _d.append(this.statementCacheMisses.sum());
+      _d.append("}");
+    }
+    if (this.expressionCache != null) {
+      _d.append(" sql-templates=");
+      _d.append(this.expressionCache);
+    }
+
+    if (this.channelPool != null) {
+      _d.append(" pool=");
+      _d.append(this.channelPool);
+      return;
+    }
+
     int coCount, availCount, mOpCount, mRelCount;
     synchronized (this) {
       coCount    = this.checkedOutChannels.size();
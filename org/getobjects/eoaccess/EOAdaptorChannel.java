@@ -23,6 +23,7 @@ package org.getobjects.eoaccess;
 
 import java.math.BigDecimal;
 import java.sql.Array;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.JDBCType;
@@ -35,13 +36,19 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.getobjects.eocontrol.EOAndQualifier;
 import org.getobjects.eocontrol.EOFetchSpecification;
+import org.getobjects.eocontrol.EOKeyValueQualifier;
 import org.getobjects.eocontrol.EOQualifier;
 import org.getobjects.eocontrol.EOQualifierVariable;
 import org.getobjects.eocontrol.EORecordMap;
@@ -59,9 +66,9 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
   /* TODO: in EOF the channel is the JDBC statement and the context is the
    *       connection. Maybe we want to do this as well, don't know.
    */
-  /* TODO: implement caching of prepared statements. we use a lot of identical
-   *       queries when EODatabaseChannel is being used. Possibly this gives a
-   *       major performance boost.
+  /* Note: PreparedStatements are cached per channel (keyed by the SQL), we
+   *       use a lot of identical queries when EODatabaseChannel is being used.
+   *       See _createPreparedStatement() and _releaseResources().
    */
   // TODO: document more
   protected static final Log log    = LogFactory.getLog("EOAdaptorChannel");
@@ -72,11 +79,21 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
   protected long       startTimeInSeconds;
   protected Exception  lastException;
   protected long       txStartTimestamp;
+  protected Boolean    supportsBatchUpdates; /* cached driver capability */
+
+  /* statement cache */
+  protected int statementCacheSize;
+  protected LinkedHashMap<String, PreparedStatement> statementCache;
+  protected IdentityHashMap<Statement, CachedStatementInfo> cachedStatementsInUse;
+  protected long statementCacheHits;
+  protected long statementCacheMisses;
 
   public EOAdaptorChannel(final EOAdaptor _adaptor, final Connection _c) {
     this.adaptor    = _adaptor;
     this.connection = _c;
     this.startTimeInSeconds  = new Date().getTime() / 1000;
+    this.statementCacheSize  =
+      _adaptor != null ? _adaptor.statementCacheSize() : 0;
   }
 
 
@@ -120,6 +137,40 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
     return (new Date().getTime() / 1000) - this.startTimeInSeconds;
   }
 
+  /**
+   * Sets the maximum number of PreparedStatements kept open by the channel.
+   * The default is taken from the EOAdaptorStatementCacheSize property of the
+   * adaptor. 0 disables the cache.
+   *
+   * @param _size - the maximum number of cached statements
+   */
+  public void setStatementCacheSize(final int _size) {
+    this.statementCacheSize = _size;
+    if (_size < 1)
+      this.flushStatementCache();
+    else if (this.statementCache != null) {
+      while (this.statementCache.size() > _size)
+        this._evictEldestCachedStatement();
+    }
+  }
+  public int statementCacheSize() {
+    return this.statementCacheSize;
+  }
+
+  /**
+   * Returns how often a PreparedStatement could be reused from the cache.
+   */
+  public long statementCacheHits() {
+    return this.statementCacheHits;
+  }
+  /**
+   * Returns how often a PreparedStatement had to be prepared while the
+   * statement cache was enabled.
+   */
+  public long statementCacheMisses() {
+    return this.statementCacheMisses;
+  }
+
 
   /* EOSQLStatements */
 
@@ -355,100 +406,9 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
       log.debug("prepare binds: " + _binds);
 
     try {
-      /* Fill statement with bindg values */
-      for (int i = 0; i < _binds.size(); i++) {
-        /* a dictionary with such keys:
-         *   BindVariableAttributeKey - the EOAttribute of the value
-         *   BindVariableValueKey     - the actual value
-         */
-        final Map<String, Object> bind = _binds.get(i);
-
-        final EOAttribute attribute =
-          (EOAttribute)bind.get(EOSQLExpression.BindVariableAttributeKey);
-
-        final Object value = bind.get(EOSQLExpression.BindVariableValueKey);
-
-        final int sqlType = this.sqlTypeForValue(value, attribute);
-
-        if (isDebugOn) {
-          log.debug("  bind attribute: " + attribute);
-          log.debug("           value: " + value + " / " +
-                         (value != null ? value.getClass() : "[NULL]"));
-          log.debug("            type: " + sqlType);
-        }
-
-        if (value == null)
-          stmt.setNull(i + 1, sqlType);
-        else {
-          switch (sqlType) {
-            case java.sql.Types.NULL:
-              stmt.setNull(i + 1, java.sql.Types.VARCHAR); // CRAP
-              break;
-
-            // TODO: customize value processing for types
-            case java.sql.Types.VARCHAR:
-            case java.sql.Types.TIMESTAMP:
-            case java.sql.Types.DATE:
-            case java.sql.Types.INTEGER:
-            case java.sql.Types.BIGINT:
-            case java.sql.Types.BOOLEAN:
-            default:
-              if (value instanceof String)
-                stmt.setString(i + 1, (String)value);
-              else if (value instanceof Boolean)
-                stmt.setBoolean(i + 1, (Boolean)value);
-              else if (value instanceof Integer)
-                stmt.setInt(i + 1, (Integer)value);
-              else if (value instanceof Double)
-                stmt.setDouble(i + 1, (Double)value);
-              else if (value instanceof BigDecimal)
-                stmt.setBigDecimal(i + 1, (BigDecimal)value);
-              else if (value instanceof Long)
-                stmt.setLong(i + 1, (Long)value);
-              else if (value instanceof java.util.Date) {
-                // TBD: shouldn't we use setDate with a proper Calendar?
-                stmt.setTimestamp(i + 1,
-                  new java.sql.Timestamp(((Date)value).getTime()));
-              }
-              else if (value instanceof java.util.Calendar) {
-                // TBD: shouldn't we use setDate with a proper Calendar?
-                final Date vd = ((Calendar)value).getTime();
-                stmt.setTimestamp(i + 1, new java.sql.Timestamp(vd.getTime()));
-              }
-              else if (value instanceof java.sql.Date) {
-                /* Note: this is just the DATE component, no TIME */
-                stmt.setDate(i + 1, (java.sql.Date)value);
-              }
-              else if (value instanceof byte[]) {
-                stmt.setBytes(i + 1, (byte[])value);
-              }
-              else if (value instanceof List) {
-                final List l = (List)value;
-
-                // due to Java's type erasure we have to make educated guesses
-                int valuesSqlType;
-                if (l.size() > 0)
-                  valuesSqlType = this.sqlTypeForValue(l.get(0), null);
-                else
-                  valuesSqlType = java.sql.Types.INTEGER;
-
-                final String valuesTypeName =
-                  JDBCType.valueOf(valuesSqlType).getName();
-                final Array a =
-                  this.connection().createArrayOf(valuesTypeName, l.toArray());
-                stmt.setArray(i + 1, a);
-              }
-              else if (value instanceof EOQualifierVariable) {
-                log.error("detected unresolved qualifier variable: " + value);
-                this._releaseResources(stmt, null);
-                return null;
-              }
-              else {
-                log.warn("using String column for value: " + value +
-                              " (" + value.getClass() + ")");
-              }
-          }
-        }
+      if (!this._applyBindsToStatement(stmt, _binds)) {
+        this._releaseResources(stmt, null);
+        return null;
       }
     }
     catch (final NullPointerException e) {
@@ -468,6 +428,119 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
     return stmt;
   }
 
+  /**
+   * Fills the parameters of the PreparedStatement with the values of the
+   * given bind dictionaries (as created by EOSQLExpression).
+   *
+   * @param stmt   - the PreparedStatement
+   * @param _binds - the bind variable dictionaries
+   * @return false if a bind could not be applied (eg an unresolved variable)
+   * @throws SQLException
+   */
+  protected boolean _applyBindsToStatement
+    (final PreparedStatement stmt, final List<Map<String, Object>> _binds)
+    throws SQLException
+  {
+    final boolean isDebugOn = log.isDebugEnabled();
+
+    /* Fill statement with bindg values */
+    for (int i = 0; i < _binds.size(); i++) {
+      /* a dictionary with such keys:
+       *   BindVariableAttributeKey - the EOAttribute of the value
+       *   BindVariableValueKey     - the actual value
+       */
+      final Map<String, Object> bind = _binds.get(i);
+
+      final EOAttribute attribute =
+        (EOAttribute)bind.get(EOSQLExpression.BindVariableAttributeKey);
+
+      final Object value = bind.get(EOSQLExpression.BindVariableValueKey);
+
+      final int sqlType = this.sqlTypeForValue(value, attribute);
+
+      if (isDebugOn) {
+        log.debug("  bind attribute: " + attribute);
+        log.debug("           value: " + value + " / " +
+                       (value != null ? value.getClass() : "[NULL]"));
+        log.debug("            type: " + sqlType);
+      }
+
+      if (value == null)
+        stmt.setNull(i + 1, sqlType);
+      else {
+        switch (sqlType) {
+          case java.sql.Types.NULL:
+            stmt.setNull(i + 1, java.sql.Types.VARCHAR); // CRAP
+            break;
+
+          // TODO: customize value processing for types
+          case java.sql.Types.VARCHAR:
+          case java.sql.Types.TIMESTAMP:
+          case java.sql.Types.DATE:
+          case java.sql.Types.INTEGER:
+          case java.sql.Types.BIGINT:
+          case java.sql.Types.BOOLEAN:
+          default:
+            if (value instanceof String)
+              stmt.setString(i + 1, (String)value);
+            else if (value instanceof Boolean)
+              stmt.setBoolean(i + 1, (Boolean)value);
+            else if (value instanceof Integer)
+              stmt.setInt(i + 1, (Integer)value);
+            else if (value instanceof Double)
+              stmt.setDouble(i + 1, (Double)value);
+            else if (value instanceof BigDecimal)
+              stmt.setBigDecimal(i + 1, (BigDecimal)value);
+            else if (value instanceof Long)
+              stmt.setLong(i + 1, (Long)value);
+            else if (value instanceof java.util.Date) {
+              // TBD: shouldn't we use setDate with a proper Calendar?
+              stmt.setTimestamp(i + 1,
+                new java.sql.Timestamp(((Date)value).getTime()));
+            }
+            else if (value instanceof java.util.Calendar) {
+              // TBD: shouldn't we use setDate with a proper Calendar?
+              final Date vd = ((Calendar)value).getTime();
+              stmt.setTimestamp(i + 1, new java.sql.Timestamp(vd.getTime()));
+            }
+            else if (value instanceof java.sql.Date) {
+              /* Note: this is just the DATE component, no TIME */
+              stmt.setDate(i + 1, (java.sql.Date)value);
+            }
+            else if (value instanceof byte[]) {
+              stmt.setBytes(i + 1, (byte[])value);
+            }
+            else if (value instanceof List) {
+              final List l = (List)value;
+
+              // due to Java's type erasure we have to make educated guesses
+              int valuesSqlType;
+              if (l.size() > 0)
+                valuesSqlType = this.sqlTypeForValue(l.get(0), null);
+              else
+                valuesSqlType = java.sql.Types.INTEGER;
+
+              final String valuesTypeName =
+                JDBCType.valueOf(valuesSqlType).getName();
+              final Array a =
+                this.connection().createArrayOf(valuesTypeName, l.toArray());
+              stmt.setArray(i + 1, a);
+            }
+            else if (value instanceof EOQualifierVariable) {
+              log.error("detected unresolved qualifier variable: " + value);
+              return false;
+            }
+            else {
+              log.warn("using String column for value: " + value +
+                            " (" + value.getClass() + ")");
+            }
+        }
+      }
+    }
+
+    return true;
+  }
+
   protected int sqlTypeForValue(final Object _o, final EOAttribute _attr) {
     if (_attr != null) {
       int type = _attr.sqlType();
@@ -930,6 +1003,8 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
    * @return true if the close was successful, false if an error occurred
    */
   public boolean close() {
+    this.flushStatementCache();
+
     if (this.connection == null)
       return true; /* consider closing a closed connection OK ... */
 
@@ -1021,6 +1096,7 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
       return null;
 
     final int affectedRows = this.performAdaptorOperationN(_op);
+    _op.setAffectedRowCount(affectedRows);
     if (affectedRows == 1)
       return null; /* everything OK */
 
@@ -1032,11 +1108,21 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
   }
 
   /**
-   * Currently this just calls performAdaptorOperation() on each of the given
-   * operations. It stops on the first error.
+   * Performs the given operations in sequence. It stops on the first error.
    * <p>
-   * Later we might want to group similiar operations to speed up database
-   * operations (useful for bigger inserts/deletes/updated).
+   * Consecutive operations which are compatible are grouped to reduce the
+   * number of database roundtrips:
+   * <ul>
+   *   <li>INSERTs/UPDATEs on the same entity with the same set of changed
+   *       keys are run as a single JDBC batch (addBatch/executeBatch)
+   *   <li>DELETEs on the same entity which qualify a single key are collapsed
+   *       into one DELETE with an IN qualifier
+   * </ul>
+   * Only consecutive operations are grouped, so that the order given by the
+   * caller (eg required by foreign key constraints) is preserved. The batch
+   * size is limited by the EOAdaptorMaxBatchSize property of the adaptor.
+   * The number of rows affected by each operation is reported using
+   * setAffectedRowCount().
    *
    * @param _ops - the array of EOAdaptorOperation's to be performed
    * @return an Exception of the first operation which failed, null otherwise
@@ -1048,23 +1134,292 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
     // TBD: we should probably open a transaction if count > 1? Or is this the
     //      responsibility of the user?
 
-    // If the JDBC adaptor supports it, we could create update-batches for
-    // changes which are the same.
-    // TBD: we could group operations writing to the same table and possibly
-    //      use a single prepared statement
-    // This requires that the database checks constraints at the end of the
-    // transaction, which AFAIK is an issue with M$SQL, possibly with Sybase.
-
-    // TBD: deletes on the same table can be collapsed?! (join qualifier by
-    //      OR)
+    // Note: grouping requires that the database checks constraints at the end
+    // of the statement, which AFAIK is an issue with M$SQL, possibly with
+    // Sybase. Reduce EOAdaptorMaxBatchSize in such setups.
+
+    final int maxBatchSize = this.maxBatchSize();
+    int i = 0;
+    while (i < _ops.length) {
+      final EOAdaptorOperation op = _ops[i];
+
+      if (maxBatchSize > 1 && op != null) {
+        /* determine the run of compatible operations */
+        int j = i + 1;
+        while (j < _ops.length && (j - i) < maxBatchSize &&
+               this.canBatchAdaptorOperations(op, _ops[j]))
+          j++;
+
+        if (j - i > 1) {
+          final Exception e =
+            op.adaptorOperator() == EOAdaptorOperation.AdaptorDeleteOperator
+            ? this.performBatchedDeleteOperations(_ops, i, j)
+            : this.performBatchedUpdateOperations(_ops, i, j);
+          if (e != null) return e;
+          i = j;
+          continue;
+        }
+      }
 
-    for (final EOAdaptorOperation op: _ops) {
       final Exception e = this.performAdaptorOperation(op);
       if (e != null) return e;
+      i++;
     }
 
     return null;
   }
+
+  /**
+   * Returns the maximum number of operations which may be grouped into a
+   * batch. Returns 0 if the JDBC driver does not support batch updates.
+   */
+  protected int maxBatchSize() {
+    if (this.adaptor == null || this.adaptor.maxBatchSize() < 2)
+      return 0;
+
+    if (this.supportsBatchUpdates == null) {
+      try {
+        this.supportsBatchUpdates =
+          this.connection.getMetaData().supportsBatchUpdates();
+      }
+      catch (final SQLException e) {
+        log.info("could not determine batch support of driver", e);
+        this.supportsBatchUpdates = Boolean.FALSE;
+      }
+    }
+    return this.supportsBatchUpdates ? this.adaptor.maxBatchSize() : 0;
+  }
+
+  /**
+   * Checks whether the second operation can be run in the same batch like
+   * the first one.
+   *
+   * @param _a - the first operation of a batch
+   * @param _b - the operation to be checked
+   * @return true if the two operations can be batched
+   */
+  protected boolean canBatchAdaptorOperations
+    (final EOAdaptorOperation _a, final EOAdaptorOperation _b)
+  {
+    if (_b == null || _a.entity() == null || _a.entity() != _b.entity())
+      return false;
+
+    final int op = _a.adaptorOperator();
+    if (op != _b.adaptorOperator())
+      return false;
+
+    switch (op) {
+      case EOAdaptorOperation.AdaptorInsertOperator:
+        return _a.changedValues() != null && _b.changedValues() != null &&
+          _a.changedValues().keySet().equals(_b.changedValues().keySet());
+
+      case EOAdaptorOperation.AdaptorUpdateOperator:
+        /* Note: the qualifier shape is checked when the SQL got generated */
+        return _a.changedValues() != null && _b.changedValues() != null &&
+          _a.changedValues().keySet().equals(_b.changedValues().keySet()) &&
+          _a.qualifier() != null && _b.qualifier() != null &&
+          _a.qualifier().getClass() == _b.qualifier().getClass();
+
+      case EOAdaptorOperation.AdaptorDeleteOperator: {
+        final EOKeyValueQualifier qa = singleKeyDeleteQualifier(_a);
+        final EOKeyValueQualifier qb = singleKeyDeleteQualifier(_b);
+        return qa != null && qb != null && qa.key().equals(qb.key());
+      }
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns the qualifier of a DELETE operation if it is a simple
+   * 'key = value' qualifier (eg a primary key qualifier for an entity with a
+   * single primary key column). Such deletes can be collapsed into an IN.
+   */
+  protected static EOKeyValueQualifier singleKeyDeleteQualifier
+    (final EOAdaptorOperation _op)
+  {
+    if (!(_op.qualifier() instanceof EOKeyValueQualifier))
+      return null;
+
+    final EOKeyValueQualifier kvq = (EOKeyValueQualifier)_op.qualifier();
+    if (kvq.operation() != EOQualifier.ComparisonOperation.EQUAL_TO)
+      return null;
+    if (kvq.key() == null || kvq.value() == null)
+      return null;
+    if (kvq.value() instanceof EOQualifierVariable)
+      return null;
+    return kvq;
+  }
+
+  /**
+   * Runs a set of INSERT or UPDATE operations as JDBC batches. The SQL of all
+   * operations is generated using bind variables for all values, so that
+   * operations with the same SQL can share a PreparedStatement.
+   * If the SQL differs (eg because of a different qualifier shape), a new
+   * batch is started.
+   *
+   * @param _ops   - the array of operations
+   * @param _start - index of the first operation to perform
+   * @param _end   - index after the last operation to perform
+   * @return the error of the first failed operation, or null
+   */
+  protected Exception performBatchedUpdateOperations
+    (final EOAdaptorOperation[] _ops, final int _start, final int _end)
+  {
+    this.lastException = null;
+
+    final EOSQLExpressionFactory factory = this.adaptor.expressionFactory();
+    final EOSQLExpression[] exprs = new EOSQLExpression[_end - _start];
+
+    for (int i = _start; i < _end; i++) {
+      final EOAdaptorOperation op = _ops[i];
+      final EOSQLExpression e = factory.createExpression(op.entity());
+      e.setUseBindVariables(true);
+
+      if (op.adaptorOperator() == EOAdaptorOperation.AdaptorInsertOperator)
+        e.prepareInsertExpressionWithRow(op.changedValues());
+      else
+        e.prepareUpdateExpressionWithRow(op.changedValues(), op.qualifier());
+
+      exprs[i - _start] = e;
+    }
+
+    int batchStart = 0;
+    while (batchStart < exprs.length) {
+      final String sql = exprs[batchStart].statement();
+      int batchEnd = batchStart + 1;
+      while (batchEnd < exprs.length && sql.equals(exprs[batchEnd].statement()))
+        batchEnd++;
+
+      final Exception error = this.executeBatch
+        (sql, exprs, batchStart, batchEnd, _ops, _start + batchStart);
+      if (error != null) return error;
+
+      batchStart = batchEnd;
+    }
+    return null;
+  }
+
+  /**
+   * Adds the binds of the given expressions to a PreparedStatement using
+   * addBatch() and runs executeBatch(). The update counts are reported back
+   * to the operations, each of which must affect exactly one row.
+   */
+  protected Exception executeBatch
+    (final String _sql, final EOSQLExpression[] _exprs,
+     final int _start, final int _end,
+     final EOAdaptorOperation[] _ops, final int _opStart)
+  {
+    if (sqllog.isInfoEnabled())
+      sqllog.info("batch[" + (_end - _start) + "]: " + _sql);
+
+    final PreparedStatement stmt = this._createPreparedStatement(_sql);
+    if (stmt == null) {
+      final Exception error = this.consumeLastException();
+      _ops[_opStart].setException(error);
+      return error != null
+        ? error : new NSException("could not prepare batch statement");
+    }
+
+    int[] counts;
+    Exception error = null;
+    try {
+      for (int i = _start; i < _end; i++) {
+        if (!this._applyBindsToStatement(stmt, _exprs[i].bindVariableDictionaries())) {
+          error = new NSException("could not apply binds of batch statement");
+          _ops[_opStart + (i - _start)].setException(error);
+          return error;
+        }
+        stmt.addBatch();
+      }
+
+      counts = stmt.executeBatch();
+    }
+    catch (final BatchUpdateException e) {
+      log.error("could not perform batch: " + _sql, e.getNextException() != null
+                ? e.getNextException() : e);
+      this.lastException = e;
+      error = e;
+      counts = e.getUpdateCounts();
+    }
+    catch (final SQLException e) {
+      log.error("could not perform batch: " + _sql, e);
+      this.lastException = e;
+      _ops[_opStart].setException(e);
+      return e;
+    }
+    finally {
+      this._releaseResources(stmt, null);
+    }
+
+    /* report results */
+
+    final int count = _end - _start;
+    for (int i = 0; i < count; i++) {
+      final EOAdaptorOperation op = _ops[_opStart + i];
+      final int c = (counts != null && i < counts.length)
+        ? counts[i] : Statement.EXECUTE_FAILED;
+
+      if (c == Statement.SUCCESS_NO_INFO) { /* driver did not report a count */
+        op.setAffectedRowCount(1);
+        continue;
+      }
+
+      op.setAffectedRowCount(c);
+      if (c == 1)
+        continue;
+
+      if (error == null)
+        error = new NSException("operation did affect more/less than one row");
+      op.setException(error);
+      return error;
+    }
+    return error;
+  }
+
+  /**
+   * Collapses a set of single key DELETE operations on the same entity into
+   * DELETE statements using an IN qualifier.
+   * <p>
+   * Since the database only reports a total count, the operations are
+   * reported as affecting one row each if the total matches. Otherwise an
+   * error is returned (like performAdaptorOperation() would).
+   *
+   * @param _ops   - the array of operations
+   * @param _start - index of the first operation to perform
+   * @param _end   - index after the last operation to perform
+   * @return the error, or null if all rows got deleted
+   */
+  protected Exception performBatchedDeleteOperations
+    (final EOAdaptorOperation[] _ops, final int _start, final int _end)
+  {
+    final EOAdaptorOperation firstOp = _ops[_start];
+    final String key = singleKeyDeleteQualifier(firstOp).key();
+
+    final Set<Object> values = new LinkedHashSet<>(_end - _start);
+    for (int i = _start; i < _end; i++)
+      values.add(singleKeyDeleteQualifier(_ops[i]).value());
+
+    final EOQualifier q = new EOKeyValueQualifier
+      (key, EOQualifier.ComparisonOperation.CONTAINS, new ArrayList<>(values));
+
+    final int affected = this.deleteRowsDescribedByQualifier(q, firstOp.entity());
+    if (affected == values.size()) {
+      for (int i = _start; i < _end; i++)
+        _ops[i].setAffectedRowCount(1);
+      return null;
+    }
+
+    Exception error = this.consumeLastException();
+    if (error == null) {
+      error = new NSException("batched delete did affect " + affected +
+                              " instead of " + values.size() + " rows");
+    }
+    firstOp.setException(error);
+    return error;
+  }
+
   /**
    * Same like performAdaptorOperations(EOAdaptorOperation[]).
    *
@@ -1243,6 +1598,126 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
     return rows;
   }
 
+  /**
+   * This is the streaming variant of selectAttributes(). Instead of loading
+   * all rows into a List, it returns an EOSQLResultIterator which keeps the
+   * JDBC ResultSet open and converts the rows as they are being retrieved.
+   * <p>
+   * Note: some drivers (eg PostgreSQL) only respect the fetch size if the
+   * connection is not in autocommit mode, that is, you need to begin() a
+   * transaction prior calling this method.
+   * The caller must close() the iterator if it does not consume all rows.
+   *
+   * @param _attrs     the attributes to be fetched, or null to use the entity
+   * @param _fs        the fetchspecification (qualifier/sorting/etc) to be used
+   * @param _lock      whether the SELECT should include a HOLD LOCK
+   * @param _e         the entity (usually the table) to be fetched
+   * @param _fetchSize the number of rows the driver should fetch per roundtrip
+   * @return an iterator over the records, or null on error
+   */
+  public EOSQLResultIterator iteratorForSelectAttributes
+    (EOAttribute[] _attrs, final EOFetchSpecification _fs,
+     final boolean _lock,  final EOEntity _e, final int _fetchSize)
+  {
+    if (this.adaptor == null) {
+      this.lastException = new Exception("missing adaptor!");
+      return null;
+    }
+
+    if (_attrs == null && _e != null) {
+      _attrs = (_fs != null && _fs.fetchAttributeNames() != null)
+        ? _e.attributesWithNames(_fs.fetchAttributeNames())
+        : _e.attributes();
+    }
+
+    final EOSQLExpression expr = this.adaptor.expressionFactory()
+      .selectExpressionForAttributes(_attrs, _lock, _fs, _e);
+
+    /* Note: no SQL name to EOEntity name mapping for rawrows */
+    final boolean isRawFetch = (_fs != null && _fs.fetchesRawRows());
+    return this.iteratorForQueryExpression
+      (expr, isRawFetch ? null : _attrs, _fetchSize);
+  }
+
+  /**
+   * Executes the given EOSQLExpression and returns an EOSQLResultIterator for
+   * the ResultSet (instead of fetching all results like
+   * evaluateQueryExpression() does).
+   * <p>
+   * If attributes are passed in, the records will use the attribute names as
+   * keys, otherwise the column names returned by the database.
+   *
+   * @param _sqlexpr   - the EOSQLExpression to execute
+   * @param _optAttrs  - the attributes matching the result columns, or null
+   * @param _fetchSize - the JDBC fetch size, 0 to use the driver default
+   * @return an iterator over the records, or null on error
+   */
+  public EOSQLResultIterator iteratorForQueryExpression
+    (final EOSQLExpression _sqlexpr, final EOAttribute[] _optAttrs,
+     final int _fetchSize)
+  {
+    this.lastException = null;
+
+    if (_sqlexpr == null) {
+      log.error("iteratorForQueryExpression() caller gave us no SQL ...");
+      return null;
+    }
+
+    final String sql = _sqlexpr.statement();
+    final List<Map<String, Object>> binds = _sqlexpr.bindVariableDictionaries();
+    final boolean hasBinds = binds != null && binds.size() > 0;
+
+    final Statement stmt = hasBinds
+      ? this._prepareStatementWithBinds(sql, binds)
+      : this._createStatement();
+    if (stmt == null) {
+      log.error("could not create statement for expr: " + _sqlexpr);
+      return null;
+    }
+
+    ResultSet rs = null;
+    try {
+      if (sqllog.isInfoEnabled()) sqllog.info(sql);
+
+      stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
+      if (_fetchSize > 0)
+        stmt.setFetchSize(_fetchSize);
+
+      rs = hasBinds
+        ? ((PreparedStatement)stmt).executeQuery()
+        : stmt.executeQuery(sql);
+
+      final SQLWarning warning = rs.getWarnings();
+      if (warning != null)
+        log.warn("detected SQL warning: " + warning);
+
+      final ResultSetMetaData meta = rs.getMetaData();
+      final int      columnCount = meta.getColumnCount();
+      final String[] colNames = new String[columnCount];
+      final int[]    colTypes = new int[columnCount];
+      for (int i = 1; i <= columnCount; i++) {
+        if (_optAttrs != null) {
+          /* we directly use the mapped name, rows are not patched later */
+          final String name = _optAttrs[i - 1].name();
+          colNames[i - 1] = name != null ? name : _optAttrs[i - 1].columnName();
+        }
+        else
+          colNames[i - 1] = meta.getColumnName(i);
+
+        colTypes[i - 1] = meta.getColumnType(i);
+      }
+
+      return new EOSQLResultIterator(this, stmt, rs, colNames, colTypes);
+    }
+    catch (final SQLException e) {
+      this.lastException = e;
+      log.warn("could not execute SQL expression " + e.getSQLState() +
+               ":\n  " + sql, e);
+      this._releaseResources(stmt, rs);
+      return null;
+    }
+  }
+
   /**
    * Locks the database row using the specified criterias. This performs a
    * select with a HOLD LOCK option.
@@ -1351,8 +1826,33 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
     if (this.connection == null || _sql == null || _sql.length() == 0)
       return null;
 
+    final boolean useCache = this.statementCacheSize > 0;
+    if (useCache) {
+      /* Note: in-use statements are removed from the cache, so a second
+       *       query with the same SQL (eg while a cursor is open) gets its own
+       *       statement.
+       */
+      final PreparedStatement stmt = this.statementCache != null
+        ? this.statementCache.remove(_sql) : null;
+      if (stmt != null) {
+        this.statementCacheHits++;
+        if (this.adaptor != null) this.adaptor.statementCacheHits.increment();
+        this.cachedStatementsInUse.put(stmt,
+          new CachedStatementInfo(_sql, this.cachedStatementFetchSize(stmt)));
+        return stmt;
+      }
+      this.statementCacheMisses++;
+      if (this.adaptor != null) this.adaptor.statementCacheMisses.increment();
+    }
+
     try {
       final PreparedStatement stmt = this.connection.prepareStatement(_sql);
+      if (useCache) {
+        if (this.cachedStatementsInUse == null)
+          this.cachedStatementsInUse = new IdentityHashMap<>(4);
+        this.cachedStatementsInUse.put(stmt,
+          new CachedStatementInfo(_sql, this.cachedStatementFetchSize(stmt)));
+      }
       return stmt;
     }
     catch (final SQLException e) {
@@ -1386,6 +1886,13 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
       }
     }
 
+    if (_s != null && this.cachedStatementsInUse != null) {
+      final CachedStatementInfo info = this.cachedStatementsInUse.remove(_s);
+      if (info != null && wasCleanRelease &&
+          this._checkinCachedStatement((PreparedStatement)_s, info))
+        return true; /* statement was put back into the cache */
+    }
+
     if (_s != null) {
       try {
         _s.close();
@@ -1399,6 +1906,102 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
     return wasCleanRelease;
   }
 
+  /**
+   * Resets the given statement and puts it back into the statement cache.
+   * Returns false if the statement could not be cached, the caller is then
+   * responsible for closing it.
+   *
+   * @param _stmt - the statement to cache
+   * @param _info - the SQL and the settings of the statement at checkout
+   * @return true if the statement got cached, false otherwise
+   */
+  protected boolean _checkinCachedStatement
+    (final PreparedStatement _stmt, final CachedStatementInfo _info)
+  {
+    if (this.statementCacheSize < 1 || this.connection == null)
+      return false;
+
+    try {
+      if (_stmt.isClosed())
+        return false;
+
+      _stmt.clearParameters();
+      _stmt.clearBatch();
+      if (_stmt.getFetchSize() != _info.fetchSize)
+        _stmt.setFetchSize(_info.fetchSize);
+    }
+    catch (final SQLException e) {
+      log.info("could not reset cached SQL statement: " + _info.sql, e);
+      return false;
+    }
+
+    if (this.statementCache == null) {
+      this.statementCache =
+        new LinkedHashMap<>(16, 0.75f, true /* access order */);
+    }
+    else if (this.statementCache.containsKey(_info.sql))
+      return false; /* the same SQL was prepared twice, keep the older one */
+
+    this.statementCache.put(_info.sql, _stmt);
+    while (this.statementCache.size() > this.statementCacheSize)
+      this._evictEldestCachedStatement();
+    return true;
+  }
+
+  protected void _evictEldestCachedStatement() {
+    final Iterator<PreparedStatement> it =
+      this.statementCache.values().iterator();
+    if (!it.hasNext())
+      return;
+
+    final PreparedStatement stmt = it.next();
+    it.remove();
+    try {
+      stmt.close();
+    }
+    catch (final SQLException e) {
+      log.warn("failed to close cached SQL statement", e);
+    }
+  }
+
+  /**
+   * Closes all PreparedStatements held in the statement cache of the channel.
+   * Statements which are in use are closed when they get released.
+   * This is called by close().
+   */
+  public void flushStatementCache() {
+    if (this.cachedStatementsInUse != null)
+      this.cachedStatementsInUse.clear();
+
+    if (this.statementCache == null)
+      return;
+
+    while (this.statementCache.size() > 0)
+      this._evictEldestCachedStatement();
+  }
+
+  private int cachedStatementFetchSize(final Statement _stmt) {
+    try {
+      return _stmt.getFetchSize();
+    }
+    catch (final SQLException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Information about a cached PreparedStatement which is in use.
+   */
+  protected static class CachedStatementInfo {
+    protected final String sql;
+    protected final int    fetchSize;
+
+    protected CachedStatementInfo(final String _sql, final int _fetchSize) {
+      this.sql       = _sql;
+      this.fetchSize = _fetchSize;
+    }
+  }
+
   /**
    * Internal method to convert column values. Can be subclassed by specific
    * adaptor to change the handling of certain values. For example this is used
@@ -1906,6 +2509,17 @@ public class EOAdaptorChannel extends NSObject implements NSDisposable {
     if (this.connection == null)
       _d.append(" no-connection");
 
+    if (this.statementCacheSize > 0) {
+      _d.append(" stmt-cache=");
+      _d.append(this.statementCache != null ? this.statementCache.size() : 0);
+      _d.append("/");
+      _d.append(this.statementCacheSize);
+      _d.append(" hits=");
+      _d.append(this.statementCacheHits);
+      _d.append(" misses=");
+      _d.append(this.statementCacheMisses);
+    }
+
     if (this.lastException != null)
       _d.append(" last-error=" + this.lastException);
   }
@@ -0,0 +1,75 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.eoaccess;
+
+import org.getobjects.foundation.NSDisposable;
+
+/**
+ * EOAdaptorChannelPool
+ * <p>
+ * A pluggable connection pool which can be attached to an EOAdaptor. If the
+ * adaptor has a pool, openChannelFromPool() and releaseChannel() are
+ * forwarded to it. If it has none, the adaptor uses its builtin (monitor
+ * based) pool.
+ * <p>
+ * The pool implementation is selected using the 'EOAdaptorPoolType'
+ * connection property, see EOAdaptor.
+ * <p>
+ * THREAD: implementations must be thread safe.
+ *
+ * @see EOAdaptor
+ * @see EOConcurrentAdaptorChannelPool
+ */
+public interface EOAdaptorChannelPool extends NSDisposable {
+
+  /**
+   * Checks out a channel from the pool, or opens a new one if the pool limit
+   * has not been reached yet. Otherwise waits (up to the configured wait time)
+   * for a channel to be released.
+   *
+   * @return a channel, or null if none could be acquired in time
+   */
+  public EOAdaptorChannel checkoutChannel();
+
+  /**
+   * Gives a channel back to the pool. If _keepConnect is false, or the channel
+   * is not considered usable anymore, the channel is closed.
+   *
+   * @param _channel     - the channel to release
+   * @param _keepConnect - whether the connection may be reused
+   */
+  public void releaseChannel(EOAdaptorChannel _channel, boolean _keepConnect);
+
+  /**
+   * Closes expired idle channels.
+   */
+  public void maintainPool();
+
+  /**
+   * Closes all idle channels.
+   */
+  public void closeAllPooledChannels();
+
+  /**
+   * Returns true if the pool has idle or checked out channels.
+   */
+  public boolean hasOpenChannels();
+}
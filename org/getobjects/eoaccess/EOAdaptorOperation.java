@@ -48,6 +48,7 @@ public class EOAdaptorOperation extends NSObject implements Comparable {
   protected EOQualifier         qualifier;
   protected Map<String, Object> changedValues;
   protected Throwable           exception;
+  protected int                 affectedRowCount = -1;
   
   public EOAdaptorOperation(final EOEntity _entity) {
     this.entity = _entity;
@@ -97,6 +98,20 @@ public class EOAdaptorOperation extends NSObject implements Comparable {
     return this.exception;
   }
   
+  /**
+   * The number of rows affected by the operation, set by the EOAdaptorChannel
+   * after the operation got performed (also if it was performed as part of a
+   * batch).
+   * 
+   * @param _count - the number of rows, or -1 if unknown
+   */
+  public void setAffectedRowCount(final int _count) {
+    this.affectedRowCount = _count;
+  }
+  public int affectedRowCount() {
+    return this.affectedRowCount;
+  }
+  
   /**
    * Note that this method does NOT copy the Map for efficiency reasons. So pass
    * in a new Map.
@@ -170,6 +185,9 @@ public class EOAdaptorOperation extends NSObject implements Comparable {
     if (this.qualifier != null)
       _d.append(" q=" + this.qualifier);
     
+    if (this.affectedRowCount >= 0)
+      _d.append(" #affected=" + this.affectedRowCount);
+    
     if (this.exception != null)
       _d.append(" ERROR=" + this.exception);
   }
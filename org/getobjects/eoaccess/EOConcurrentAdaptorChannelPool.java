@@ -0,0 +1,458 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.eoaccess;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * EOConcurrentAdaptorChannelPool
+ * <p>
+ * A connection pool which does not serialize checkouts on the adaptor
+ * monitor.
+ * <ul>
+ *   <li>idle channels are kept in a lock-free deque (LIFO, so that hot
+ *       connections are reused first)
+ *   <li>checkouts are limited by a fair Semaphore, that is, waiting threads
+ *       are served in FIFO order and wait up to a single deadline
+ *       (EOAdaptorMaxChannelWaitTime)
+ *   <li>each thread first attempts to reuse the channel it released last
+ *   <li>the pool tracks wait time, checkout duration and the high-water mark
+ *       of checked out channels
+ * </ul>
+ * The pool uses the limits configured in the EOAdaptor (EOAdaptorMaxPoolSize,
+ * EOAdaptorMaxChannelWaitTime, EOAdaptorMaxChannelAge and
+ * EOAdaptorMaintenanceInterval).
+ * <p>
+ * Enable it by setting the 'EOAdaptorPoolType' connection property to
+ * 'concurrent'.
+ * <p>
+ * THREAD: this class is thread safe.
+ */
+public class EOConcurrentAdaptorChannelPool extends NSObject
+  implements EOAdaptorChannelPool
+{
+  protected static final Log log = LogFactory.getLog("EOAdaptor");
+
+  protected static final int IDLE    = 0;
+  protected static final int IN_USE  = 1;
+  protected static final int REMOVED = 2;
+
+  protected EOAdaptor adaptor;
+  protected final int  maxConnections;
+  protected final long maxChannelWaitTimeInMS;
+  protected final long maxChannelAgeInSeconds;
+  protected final long maintenanceTimeOutInSeconds;
+
+  protected final Semaphore permits;
+  protected final ConcurrentLinkedDeque<PoolEntry> idleEntries;
+  protected final ConcurrentHashMap<EOAdaptorChannel, PoolEntry> entries;
+  protected final ThreadLocal<PoolEntry> lastEntry;
+
+  protected final Object maintenanceLock = new Object();
+  protected Timer        maintenanceTimer;
+
+  /* metrics */
+  protected final AtomicInteger checkedOutCount = new AtomicInteger(0);
+  protected final AtomicInteger highWaterMark   = new AtomicInteger(0);
+  protected final LongAdder     checkoutCount   = new LongAdder();
+  protected final LongAdder     affinityHits    = new LongAdder();
+  protected final LongAdder     timeoutCount    = new LongAdder();
+  protected final LongAdder     openedCount     = new LongAdder();
+  protected final LongAdder     closedCount     = new LongAdder();
+  protected final LongAdder     totalWaitTimeInNS     = new LongAdder();
+  protected final AtomicLong    maxWaitTimeInNS       = new AtomicLong(0);
+  protected final LongAdder     totalCheckoutTimeInNS = new LongAdder();
+  protected final AtomicLong    maxCheckoutTimeInNS   = new AtomicLong(0);
+
+  public EOConcurrentAdaptorChannelPool(final EOAdaptor _adaptor) {
+    this.adaptor                     = _adaptor;
+    this.maxConnections              = _adaptor.maxConnections;
+    this.maxChannelWaitTimeInMS      = _adaptor.maxChannelWaitTimeInMS;
+    this.maxChannelAgeInSeconds      = _adaptor.maxChannelAgeInSeconds;
+    this.maintenanceTimeOutInSeconds = _adaptor.maintenanceTimeOutInSeconds;
+
+    this.permits     = new Semaphore(this.maxConnections, true /* fair */);
+    this.idleEntries = new ConcurrentLinkedDeque<>();
+    this.entries     = new ConcurrentHashMap<>(this.maxConnections);
+    this.lastEntry   = new ThreadLocal<>();
+  }
+
+  /* checkout */
+
+  @Override
+  public EOAdaptorChannel checkoutChannel() {
+    final long startTime = System.nanoTime();
+    boolean gotPermit;
+
+    try {
+      /* Note: the timed tryAcquire honors the fairness setting, the untimed
+       *       one would barge.
+       */
+      gotPermit = this.permits.tryAcquire
+        (this.maxChannelWaitTimeInMS, TimeUnit.MILLISECONDS);
+    }
+    catch (final InterruptedException e) {
+      log.error("wait for a pooled channel got interrupted ...");
+      Thread.currentThread().interrupt();
+      return null;
+    }
+
+    final long waitTime = System.nanoTime() - startTime;
+    this.totalWaitTimeInNS.add(waitTime);
+    updateMax(this.maxWaitTimeInNS, waitTime);
+
+    if (!gotPermit) {
+      this.timeoutCount.increment();
+      log.error("failed to wait for a free channel, waited " +
+                TimeUnit.NANOSECONDS.toMillis(waitTime) + "ms: " + this);
+      return null;
+    }
+
+    /* we own a permit, grab an idle channel or open a new one */
+
+    PoolEntry entry = claimIdleEntry();
+    if (entry == null) {
+      final EOAdaptorChannel channel;
+      try {
+        channel = this.adaptor.openChannel();
+      }
+      catch (final RuntimeException e) {
+        this.permits.release(); /* do not leak the permit */
+        throw e;
+      }
+      if (channel == null) {
+        this.permits.release();
+        return null;
+      }
+      this.openedCount.increment();
+
+      entry = new PoolEntry(channel);
+      this.entries.put(channel, entry);
+      ensureMaintenanceTimer();
+    }
+
+    entry.checkoutTime = System.nanoTime();
+    this.checkoutCount.increment();
+    final int coCount = this.checkedOutCount.incrementAndGet();
+    int hwm;
+    while (coCount > (hwm = this.highWaterMark.get())) {
+      if (this.highWaterMark.compareAndSet(hwm, coCount))
+        break;
+    }
+    return entry.channel;
+  }
+
+  /**
+   * Returns a valid idle entry, with its state switched to IN_USE. First
+   * checks the channel the current thread used last, then pops entries from
+   * the idle deque.
+   * Entries which are not valid anymore are closed.
+   *
+   * @return an IN_USE entry, or null if no idle entry was available
+   */
+  protected PoolEntry claimIdleEntry() {
+    final PoolEntry last = this.lastEntry.get();
+    if (last != null && last.state.compareAndSet(IDLE, IN_USE)) {
+      /* Note: the entry stays in the deque, pollers will skip it */
+      if (isChannelUsable(last.channel)) {
+        this.affinityHits.increment();
+        return last;
+      }
+      removeEntry(last);
+    }
+
+    PoolEntry entry;
+    while ((entry = this.idleEntries.pollFirst()) != null) {
+      entry.queued.set(false);
+      if (!entry.state.compareAndSet(IDLE, IN_USE))
+        continue; /* stale: claimed by thread affinity or removed */
+
+      if (isChannelUsable(entry.channel))
+        return entry;
+
+      removeEntry(entry);
+    }
+    return null;
+  }
+
+  /* release */
+
+  @Override
+  public void releaseChannel(final EOAdaptorChannel _channel, boolean _keep) {
+    final PoolEntry entry = this.entries.get(_channel);
+    if (entry == null) {
+      log.warn("attempt to release a channel not checked out from pool: " +
+               _channel);
+      return;
+    }
+
+    /* Note: the state switch must be atomic, otherwise two (concurrent or
+     *       double) releases could both pass and release two permits.
+     */
+    final boolean keep = _keep && isChannelUsable(_channel);
+    if (!entry.state.compareAndSet(IN_USE, keep ? IDLE : REMOVED)) {
+      log.warn("attempt to release a channel not checked out from pool: " +
+               _channel);
+      return;
+    }
+
+    final long coTime = System.nanoTime() - entry.checkoutTime;
+    this.totalCheckoutTimeInNS.add(coTime);
+    updateMax(this.maxCheckoutTimeInNS, coTime);
+    this.checkedOutCount.decrementAndGet();
+
+    if (keep) {
+      this.lastEntry.set(entry);
+      if (entry.queued.compareAndSet(false, true))
+        this.idleEntries.offerFirst(entry);
+    }
+    else
+      removeEntry(entry);
+
+    this.permits.release();
+  }
+
+  /* maintenance */
+
+  protected boolean isChannelUsable(final EOAdaptorChannel _channel) {
+    if (_channel == null || _channel.connection == null)
+      return false;
+
+    try {
+      if (_channel.connection.isClosed())
+        return false;
+    }
+    catch (final SQLException e) {
+      log.debug("caught exception while checking close status", e);
+      return false;
+    }
+
+    return _channel.ageInSeconds() <= this.maxChannelAgeInSeconds;
+  }
+
+  protected void removeEntry(final PoolEntry _entry) {
+    _entry.state.set(REMOVED);
+    if (this.entries.remove(_entry.channel) != null) {
+      this.closedCount.increment();
+      _entry.channel.close();
+    }
+  }
+
+  @Override
+  public void maintainPool() {
+    if (log.isDebugEnabled()) log.debug("running maintenance ...");
+
+    for (final PoolEntry entry: this.idleEntries) {
+      if (isChannelUsable(entry.channel))
+        continue;
+      if (entry.state.compareAndSet(IDLE, REMOVED)) {
+        this.idleEntries.remove(entry);
+        removeEntry(entry);
+      }
+    }
+
+    /* stop timer if we don't need it anymore */
+    Timer timer = null;
+    synchronized (this.maintenanceLock) {
+      if (this.maintenanceTimer != null && this.entries.isEmpty()) {
+        timer = this.maintenanceTimer;
+        this.maintenanceTimer = null;
+      }
+    }
+    if (timer != null)
+      timer.cancel();
+  }
+
+  @Override
+  public void closeAllPooledChannels() {
+    PoolEntry entry;
+    final List<PoolEntry> toBeClosed = new ArrayList<>(4);
+
+    while ((entry = this.idleEntries.pollFirst()) != null) {
+      entry.queued.set(false);
+      if (entry.state.compareAndSet(IDLE, REMOVED))
+        toBeClosed.add(entry);
+    }
+
+    for (final PoolEntry e: toBeClosed)
+      removeEntry(e);
+  }
+
+  protected void ensureMaintenanceTimer() {
+    synchronized (this.maintenanceLock) {
+      if (this.maintenanceTimer != null)
+        return;
+
+      this.maintenanceTimer = new Timer("EOAdaptorPool", true /* daemon */);
+      this.maintenanceTimer.scheduleAtFixedRate
+        (new MaintenanceTimerTask(this),
+         this.maintenanceTimeOutInSeconds * 1000 /* delay in ms */,
+         this.maintenanceTimeOutInSeconds * 1000 /* period in ms */);
+    }
+  }
+
+  @Override
+  public boolean hasOpenChannels() {
+    return !this.entries.isEmpty();
+  }
+
+  /* metrics */
+
+  public int checkedOutCount() {
+    return this.checkedOutCount.get();
+  }
+  public int availableCount() {
+    return this.entries.size() - this.checkedOutCount.get();
+  }
+  public int highWaterMark() {
+    return this.highWaterMark.get();
+  }
+  public long checkoutCount() {
+    return this.checkoutCount.sum();
+  }
+  public long affinityHitCount() {
+    return this.affinityHits.sum();
+  }
+  public long timeoutCount() {
+    return this.timeoutCount.sum();
+  }
+  public long openedCount() {
+    return this.openedCount.sum();
+  }
+  public long closedCount() {
+    return this.closedCount.sum();
+  }
+  public int waitingThreadCount() {
+    return this.permits.getQueueLength();
+  }
+
+  public double averageWaitTimeInMS() {
+    final long count = this.checkoutCount.sum() + this.timeoutCount.sum();
+    return count > 0 ? (this.totalWaitTimeInNS.sum() / 1e6) / count : 0.0;
+  }
+  public double maxWaitTimeInMS() {
+    return this.maxWaitTimeInNS.get() / 1e6;
+  }
+  public double averageCheckoutTimeInMS() {
+    final long count = this.checkoutCount.sum() - this.checkedOutCount.get();
+    return count > 0 ? (this.totalCheckoutTimeInNS.sum() / 1e6) / count : 0.0;
+  }
+  public double maxCheckoutTimeInMS() {
+    return this.maxCheckoutTimeInNS.get() / 1e6;
+  }
+
+  protected static void updateMax(final AtomicLong _max, final long _value) {
+    long v;
+    while (_value > (v = _max.get())) {
+      if (_max.compareAndSet(v, _value))
+        break;
+    }
+  }
+
+  /* dispose */
+
+  @Override
+  public void dispose() {
+    /* Note: we also dispose channels which are checked out! */
+    final List<EOAdaptorChannel> channels = new ArrayList<>(this.entries.keySet());
+    this.entries.clear();
+    this.idleEntries.clear();
+
+    Timer timer;
+    synchronized (this.maintenanceLock) {
+      timer = this.maintenanceTimer;
+      this.maintenanceTimer = null;
+    }
+    if (timer != null)
+      timer.cancel();
+
+    for (final EOAdaptorChannel channel: channels)
+      channel.dispose();
+    this.adaptor = null;
+  }
+
+  /* pool entry */
+
+  protected static class PoolEntry {
+    protected final EOAdaptorChannel channel;
+    protected final AtomicInteger    state  = new AtomicInteger(IN_USE);
+    protected final AtomicBoolean    queued = new AtomicBoolean(false);
+    protected volatile long          checkoutTime;
+
+    protected PoolEntry(final EOAdaptorChannel _channel) {
+      this.channel = _channel;
+    }
+  }
+
+  /* maintenance timer */
+
+  private static class MaintenanceTimerTask extends TimerTask {
+    private final WeakReference<EOConcurrentAdaptorChannelPool> pool;
+
+    public MaintenanceTimerTask(final EOConcurrentAdaptorChannelPool _pool) {
+      this.pool = new WeakReference<>(_pool);
+    }
+
+    @Override
+    public void run() {
+      final EOConcurrentAdaptorChannelPool lPool = this.pool.get();
+      if (lPool != null)
+        lPool.maintainPool();
+      else
+        cancel();
+    }
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" #checked-out=" + checkedOutCount());
+    _d.append(" #available="   + availableCount());
+    _d.append(" #waiting="     + waitingThreadCount());
+    _d.append(" max="          + this.maxConnections);
+    _d.append(" hwm="          + highWaterMark());
+    _d.append(String.format(" wait={avg=%.2fms, max=%.2fms}",
+                            averageWaitTimeInMS(), maxWaitTimeInMS()));
+    _d.append(String.format(" checkout={avg=%.2fms, max=%.2fms}",
+                            averageCheckoutTimeInMS(), maxCheckoutTimeInMS()));
+    _d.append(" #timeouts="    + timeoutCount());
+  }
+}
@@ -62,10 +62,12 @@ public class EODatabase extends NSObject
 
   protected NSClassLookupContext classLookup;
   protected EOAdaptor adaptor;
+  protected EOSnapshotCache snapshotCache;
 
   public EODatabase(EOAdaptor _adaptor, NSClassLookupContext _clslookup) {
-    this.adaptor     = _adaptor;
-    this.classLookup = _clslookup != null ? _clslookup : this;
+    this.adaptor       = _adaptor;
+    this.classLookup   = _clslookup != null ? _clslookup : this;
+    this.snapshotCache = new EOSnapshotCache();
   }
 
   public EODatabase(String _url, EOModel _model, NSClassLookupContext _clslup) {
@@ -93,6 +95,25 @@ public class EODatabase extends NSObject
     return this.adaptor != null ? this.adaptor.model() : null;
   }
 
+  /**
+   * Sets the cache which is used to keep the rows of entities marked as
+   * 'cachesObjects' across editing contexts. Pass null to disable caching.
+   *
+   * @param _cache - the EOSnapshotCache to be used, or null
+   */
+  public void setSnapshotCache(final EOSnapshotCache _cache) {
+    this.snapshotCache = _cache;
+  }
+  /**
+   * Returns the shared EOSnapshotCache of this database. Only entities which
+   * are marked as 'cachesObjects' in the model are cached.
+   *
+   * @return the EOSnapshotCache, or null if caching is disabled
+   */
+  public EOSnapshotCache snapshotCache() {
+    return this.snapshotCache;
+  }
+
   /**
    * The class lookup context is responsible for resolving simple class names
    * to fully qualified ones. Eg if you specified 'Account' as the class name
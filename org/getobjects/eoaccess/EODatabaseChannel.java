@@ -21,11 +21,19 @@
 package org.getobjects.eoaccess;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,6 +41,7 @@ import org.getobjects.eocontrol.EOAndQualifier;
 import org.getobjects.eocontrol.EOFetchSpecification;
 import org.getobjects.eocontrol.EOGenericRecord;
 import org.getobjects.eocontrol.EOGlobalID;
+import org.getobjects.eocontrol.EOKeyGlobalID;
 import org.getobjects.eocontrol.EOKeyValueCoding;
 import org.getobjects.eocontrol.EOKeyValueQualifier;
 import org.getobjects.eocontrol.EOObjectTrackingContext;
@@ -43,6 +52,7 @@ import org.getobjects.foundation.NSJavaRuntime;
 import org.getobjects.foundation.NSKeyValueCoding;
 import org.getobjects.foundation.NSKeyValueCodingAdditions;
 import org.getobjects.foundation.NSObject;
+import org.getobjects.foundation.UObject;
 import org.getobjects.foundation.UString;
 
 /**
@@ -50,6 +60,13 @@ import org.getobjects.foundation.UString;
  * <p>
  * Important: dispose the object if you do not need it anymore.
  * <p>
+ * Streaming fetches: if the EOFetchSpecification has the
+ * 'EOStreamingFetchHintKey' hint set, the channel does not load all rows into
+ * memory. It keeps the JDBC ResultSet open (using the fetch size given in
+ * the 'EOFetchSizeHintKey' hint or the channel default) and builds the
+ * objects as fetchObject()/next() is called. The adaptor channel is held
+ * until the results are exhausted or cancelFetch() is called.
+ * <p>
  * THREAD: this object is NOT synchronized. Its considered a cheap object which
  *         can be created on demand.
  */
@@ -59,6 +76,9 @@ public class EODatabaseChannel extends NSObject
   protected static final Log log     = LogFactory.getLog("EODatabaseChannel");
   protected static final Log perflog = LogFactory.getLog("EOPerformance");
 
+  public static final String StreamingFetchHintKey = "EOStreamingFetchHintKey";
+  public static final String FetchSizeHintKey      = "EOFetchSizeHintKey";
+
   protected EODatabase       database;
   protected EOAdaptorChannel adChannel;
   protected EOEntity         currentEntity;
@@ -73,8 +93,30 @@ public class EODatabaseChannel extends NSObject
   protected Iterator<Map<String, Object>> records;
   protected Iterator<EOEnterpriseObject> objects;
 
+  /* streaming fetches */
+  protected int                 fetchSize = 500;
+  protected EOSQLResultIterator cursor;
+  protected boolean             cursorOwnsChannel;
+  protected boolean             cursorOwnsTransaction;
+  protected Exception           lastException; /* cursor errors */
+
+  /* relationship prefetches */
+  protected int prefetchChunkSize   = 1000;
+  protected int prefetchConcurrency = 1;
+
+  /* shared snapshot cache */
+  protected boolean     recordsSnapshots;
+  protected long        snapshotGeneration; /* of the entity, before fetch */
+  protected Set<String> modifiedCachedEntityNames;
+
   public EODatabaseChannel(final EODatabase _db) {
     this.database = _db;
+
+    final EOAdaptor adaptor = _db != null ? _db.adaptor() : null;
+    if (adaptor != null) {
+      this.prefetchChunkSize   = adaptor.prefetchChunkSize();
+      this.prefetchConcurrency = adaptor.prefetchConcurrency();
+    }
   }
 
   /* accessors */
@@ -96,6 +138,69 @@ public class EODatabaseChannel extends NSObject
     return this.recordCount;
   }
 
+  /**
+   * Sets the default JDBC fetch size used for streaming fetches. Can be
+   * overridden per fetch using the 'EOFetchSizeHintKey' hint.
+   *
+   * @param _size - number of rows to retrieve per database roundtrip
+   */
+  public void setFetchSize(final int _size) {
+    this.fetchSize = _size;
+  }
+  public int fetchSize() {
+    return this.fetchSize;
+  }
+
+  /**
+   * Sets the maximum number of values put into a single IN qualifier when
+   * relationships are prefetched. Larger value sets are fetched in chunks.
+   * The default is taken from the EOAdaptorPrefetchChunkSize property.
+   *
+   * @param _size - maximum number of values per prefetch query
+   */
+  public void setPrefetchChunkSize(final int _size) {
+    this.prefetchChunkSize = _size > 0 ? _size : 1000;
+  }
+  public int prefetchChunkSize() {
+    return this.prefetchChunkSize;
+  }
+
+  /**
+   * Sets the number of channels used to fetch the chunks of a relationship
+   * prefetch in parallel. 1 (the default of the EOAdaptorPrefetchConcurrency
+   * property) fetches all chunks sequentially using the channel of the
+   * receiver.
+   * <p>
+   * Concurrent prefetches are only done outside of transactions. If the
+   * channel is in a transaction, the chunks are always fetched sequentially
+   * on the transaction channel, so that they see the same data as the
+   * primary fetch. Note that selectObjectsWithFetchSpecification() does not
+   * open a transaction for prefetching fetches if the concurrency is larger
+   * than 1.
+   *
+   * @param _count - number of concurrent prefetch queries
+   */
+  public void setPrefetchConcurrency(final int _count) {
+    this.prefetchConcurrency = _count;
+  }
+  public int prefetchConcurrency() {
+    return this.prefetchConcurrency;
+  }
+
+  /**
+   * Checks whether the fetch specification requests a streaming fetch, that
+   * is, whether the 'EOStreamingFetchHintKey' hint is set.
+   *
+   * @param _fs - the EOFetchSpecification
+   * @return true if the results should be streamed
+   */
+  public boolean isStreamingFetch(final EOFetchSpecification _fs) {
+    final Map<String, Object> hints = _fs != null ? _fs.hints() : null;
+    if (hints == null)
+      return false;
+    return UObject.boolValue(hints.get(StreamingFetchHintKey));
+  }
+
   /* operations */
 
   /**
@@ -393,6 +498,35 @@ public class EODatabaseChannel extends NSObject
       this.currentClass = this.database.classForEntity(this.currentEntity);
     }
 
+    /* shared snapshot cache */
+
+    final EOSnapshotCache snapshotCache =
+      snapshotCacheForEntity(this.currentEntity);
+    if (snapshotCache != null &&
+        snapshotCache.isCacheableFetch(this.currentEntity, _fs))
+    {
+      /* Note: must be retrieved before the SELECT is done */
+      this.snapshotGeneration =
+        snapshotCache.generationOfEntity(this.currentEntity);
+
+      if (!this.refreshObjects) {
+        final EOGlobalID gid =
+          snapshotCache.globalIDForPrimaryKeyFetch(this.currentEntity, _fs);
+        final Map<String, Object> row = gid != null
+          ? snapshotCache.snapshotForGlobalID(this.currentEntity, gid) : null;
+        if (row != null) {
+          if (isDebugOn) log.debug("  found row in snapshot cache: " + gid);
+          this.recordCount = 1;
+          this.records     = Collections.singletonList(row).iterator();
+          return null;
+        }
+      }
+      this.recordsSnapshots = true;
+    }
+
+    if (isStreamingFetch(_fs))
+      return primaryOpenCursorWithFetchSpecification(_fs);
+
     /* setup */
 
     boolean didOpenChannel = false;
@@ -438,6 +572,103 @@ public class EODatabaseChannel extends NSObject
     return error;
   }
 
+  /**
+   * Called by primarySelectObjectsWithFetchSpecification() to start a
+   * streaming fetch. This acquires an adaptor channel (if none is open) and
+   * begins a transaction (if none is running, drivers like PostgreSQL require
+   * that for cursors).
+   * Both are kept until the cursor is exhausted or cancelFetch() is called.
+   * <p>
+   * If reading the cursor fails in the middle of the result, fetchRow() and
+   * fetchObject() throw an NSException (instead of returning null, which
+   * would look like the end of the result). The error is also available
+   * using lastException().
+   *
+   * @param _fs - the EOFetchSpecification
+   * @return null if everything went fine, the error otherwise
+   */
+  protected Exception primaryOpenCursorWithFetchSpecification
+    (final EOFetchSpecification _fs)
+  {
+    this.lastException = null;
+
+    int lFetchSize = this.fetchSize;
+    final Object v = _fs.hints().get(FetchSizeHintKey);
+    if (v != null)
+      lFetchSize = UObject.intValue(v);
+
+    if (this.adChannel == null) {
+      if ((this.adChannel = acquireChannel()) == null)
+        return new NSException("could not create adaptor channel");
+      this.cursorOwnsChannel = true;
+    }
+
+    if (!this.adChannel.isInTransaction()) {
+      final Exception error = this.adChannel.begin();
+      if (error != null) {
+        if (this.cursorOwnsChannel) {
+          this.cursorOwnsChannel = false;
+          releaseChannel();
+        }
+        return error;
+      }
+      this.cursorOwnsTransaction = true;
+    }
+
+    this.cursor = this.adChannel.iteratorForSelectAttributes
+      (null, _fs, this.isLocking, this.currentEntity, lFetchSize);
+    if (this.cursor == null) {
+      final Exception error = this.adChannel.consumeLastException();
+      log.error("could not perform adaptor query: ", error);
+      closeCursor();
+      return error != null ? error : new NSException("could not open cursor");
+    }
+
+    this.recordCount = 0; /* unknown */
+    this.records     = this.cursor;
+    return null;
+  }
+
+  /**
+   * Closes the cursor of a streaming fetch, and ends the transaction and
+   * releases the adaptor channel if they got opened for the cursor.
+   * <p>
+   * If the cursor failed to read a row, the error is stored in lastException
+   * and returned. A channel owned by the cursor is then closed instead of
+   * being returned to the pool.
+   *
+   * @return the error which stopped the cursor, or null
+   */
+  protected Exception closeCursor() {
+    Exception error = null;
+    if (this.cursor != null) {
+      error = this.cursor.lastException();
+      this.cursor.close();
+      this.cursor = null;
+
+      if (error != null) {
+        log.error("streaming fetch failed", error);
+        this.lastException = error;
+      }
+    }
+
+    if (this.cursorOwnsTransaction) {
+      this.cursorOwnsTransaction = false;
+      if (this.adChannel != null)
+        this.adChannel.rollback(); /* we just fetched stuff */
+    }
+    if (this.cursorOwnsChannel) {
+      this.cursorOwnsChannel = false;
+      if (error != null && this.adChannel != null && this.database != null) {
+        this.database.adaptor().releaseAfterError(this.adChannel, error);
+        this.adChannel = null;
+      }
+      else
+        releaseChannel();
+    }
+    return error;
+  }
+
   /**
    * This method prepares the channel for a fetch and initiates the fetch. Once
    * called, the channel has various instance variables configured and the
@@ -471,19 +702,25 @@ public class EODatabaseChannel extends NSObject
 
 
     /* Prefetches were specified, process them. We open a channel and a
-     * transaction.
+     * transaction. If concurrent prefetches are enabled, we do not open a
+     * transaction, it would force the prefetches to run sequentially (we just
+     * read, so there are no uncommitted changes the chunks would miss).
      */
 
     List<EOEnterpriseObject> baseObjects = null;
     Exception error = null;
     boolean didOpenChannel = false;
+    boolean didBegin       = false;
     try {
       if (this.adChannel == null) {
         this.adChannel = acquireChannel();
         didOpenChannel = true;
 
-        if ((error = begin()) != null)
-          return error;
+        if (this.adChannel != null && this.prefetchConcurrency <= 1) {
+          if ((error = begin()) != null)
+            return error;
+          didBegin = true;
+        }
       }
       if (this.adChannel == null) // TODO: improve error
         return new NSException("could not create adaptor channel");
@@ -520,7 +757,8 @@ public class EODatabaseChannel extends NSObject
          *       increase the likeliness that something fails. So: rollback in
          *       both ways.
          */
-        rollback(); // TBD: do we actually care about the result?
+        if (didBegin)
+          rollback(); // TBD: do we actually care about the result?
 
         releaseChannel();
       }
@@ -713,94 +951,379 @@ public class EODatabaseChannel extends NSObject
     //           join uses 'company' as a base. (properly modelled the
     //           two would be stored in different tables!)
     //        Update: Same issue with project_company_assignment
-    // TBD: we should only fetch INs which we do not already have cached
-    //      .. in a per transaction uniquer
-    //      TBD: well, this is the editing context. we have this now, but we
-    //           refetch objects which is stupid
-    //      TBD: do we really need to support arbitrary targets or can we
-    //           use EOKeyGlobalID?
+    // Note: objects which are already registered in the tracking context are
+    //       not refetched if the join targets the primary key (see
+    //       hookUpRegisteredObjects)
     final EOAttribute targetAttr = join.destinationAttribute();
     if (targetAttr == null) {
       log.error("did not find target-attr of relationship join: " + rel + ": " +
                 join);
       return null; // TBD: hm ... (eg if the model is b0rked)
     }
-    final String targetName = targetAttr.name();
+    final String   targetName = targetAttr.name();
+    final EOEntity destEntity = rel.destinationEntity();
+    final boolean  hasNestedPrefetches =
+      _prefetchPathes != null && _prefetchPathes.size() > 0;
+
+    /* Skip values whose target objects are already registered in the tracking
+     * context (or cached in the EOSnapshotCache). We can only do this if the
+     * join targets the (single) primary key of the destination, and if no
+     * nested prefetches need to be run on the targets.
+     */
+    List<Object> valuesToFetch = srcValues;
+    if (!this.refreshObjects && !hasNestedPrefetches) {
+      valuesToFetch = hookUpRegisteredObjects
+        (destEntity, targetName, srcValues, relName, valueToObjects, _ec);
+    }
+    if (valuesToFetch.size() == 0)
+      return null; /* all objects are already available */
+
+    /* Split the values into chunks, so that we do not hit the limits of the
+     * database with huge IN queries.
+     */
+    final List<List<Object>> chunks = new ArrayList<>(
+      valuesToFetch.size() / this.prefetchChunkSize + 1);
+    for (int i = 0; i < valuesToFetch.size(); i += this.prefetchChunkSize) {
+      chunks.add(valuesToFetch.subList(i,
+        Math.min(i + this.prefetchChunkSize, valuesToFetch.size())));
+    }
 
-    EOFetchSpecification fs = null;
-    if (true) {
+    final EOFetchSpecification[] fetchSpecs =
+      new EOFetchSpecification[chunks.size()];
+    for (int i = 0; i < fetchSpecs.length; i++) {
       final EOQualifier joinQualifier = new EOKeyValueQualifier
-        (targetName, EOQualifier.ComparisonOperation.CONTAINS, srcValues);
+        (targetName, EOQualifier.ComparisonOperation.CONTAINS, chunks.get(i));
 
-      // TBD: we should batch?
-      fs = new EOFetchSpecification
-        (rel.destinationEntity().name(), joinQualifier, null /* ordering */);
+      fetchSpecs[i] = new EOFetchSpecification
+        (destEntity.name(), joinQualifier, null /* ordering */);
+
+      if (hasNestedPrefetches) {
+        /* apply nested prefetches */
+        fetchSpecs[i].setPrefetchingRelationshipKeyPaths
+          (_prefetchPathes.toArray(new String[0]));
+      }
     }
-    else {
 
+    /* run nested queries */
+
+    /* Note: the concurrent chunks run on separate channels, they would not
+     *       see the uncommitted changes of our transaction (and might read
+     *       a different snapshot), hence we stay sequential in a TX.
+     */
+    if (this.prefetchConcurrency > 1 && fetchSpecs.length > 1 &&
+        !this.isInTransaction())
+    {
+      return fetchRelationshipChunksConcurrently
+        (destEntity, relName, targetName, fetchSpecs, _prefetchPathes,
+         valueToObjects, _ec);
     }
-    if (_prefetchPathes != null && _prefetchPathes.size() > 0) {
-      /* apply nested prefetches */
-      fs.setPrefetchingRelationshipKeyPaths
-        (_prefetchPathes.toArray(new String[0]));
+
+    final boolean isDebugOn = log.isDebugEnabled();
+    for (final EOFetchSpecification fs: fetchSpecs) {
+      final Exception error;
+      if ((error = selectObjectsWithFetchSpecification(fs, _ec)) != null) {
+        cancelFetch(); /* better be sure ;-) */
+        return error; // rollback must be handled in caller
+      }
+
+      if (isDebugOn) log.debug("process rel results ...");
+
+      Object relObject;
+      while ((relObject = fetchObject()) != null)
+        hookUpRelationshipTarget(relObject, relName, targetName, valueToObjects);
     }
 
-    /* run nested query */
+    return null; /* fetch done */
+  }
+
+  /**
+   * Checks which of the given join values refer to objects which are already
+   * registered in the tracking context, or whose rows are available in the
+   * shared EOSnapshotCache. Those objects are hooked up with the source
+   * objects right away.
+   *
+   * @return the values which still need to be fetched
+   */
+  protected List<Object> hookUpRegisteredObjects
+    (final EOEntity _destEntity, final String _targetName,
+     final List<Object> _values, final String _relName,
+     final Map<Object, List<EOEnterpriseObject>> _valueToObjects,
+     final EOObjectTrackingContext _ec)
+  {
+    final String[] pkeys = _destEntity != null
+      ? _destEntity.primaryKeyAttributeNames() : null;
+    if (pkeys == null || pkeys.length != 1 || !_targetName.equals(pkeys[0]))
+      return _values;
+
+    final EOSnapshotCache snapshotCache = snapshotCacheForEntity(_destEntity);
+    if (_ec == null && snapshotCache == null)
+      return _values;
+
+    final String destName = _destEntity.name();
+    boolean didSetupFetch = false;
+    List<Object> toFetch = null;
+    try {
+      for (int i = 0; i < _values.size(); i++) {
+        final Object v = _values.get(i);
+        final EOGlobalID gid =
+          EOKeyGlobalID.globalIDWithEntityName(destName, new Object[] { v });
+        Object eo = _ec != null ? _ec.objectForGlobalID(gid) : null;
+
+        if (eo == null && snapshotCache != null) {
+          final Map<String, Object> row =
+            snapshotCache.snapshotForGlobalID(_destEntity, gid);
+          if (row != null) {
+            if (!didSetupFetch) { /* build objects like in a regular fetch */
+              cancelFetch();
+              setCurrentEntity(_destEntity);
+              this.currentClass    = this.database.classForEntity(_destEntity);
+              this.makeNoSnapshots = _destEntity.isReadOnly();
+              this.ec              = _ec;
+              didSetupFetch = true;
+            }
+            eo = objectForRow(row);
+          }
+        }
+
+        if (eo == null) {
+          if (toFetch != null) toFetch.add(v);
+          continue;
+        }
 
-    final boolean isDebugOn = log.isDebugEnabled();
-    Exception error;
-    if ((error = selectObjectsWithFetchSpecification(fs, _ec)) != null) {
-      cancelFetch(); /* better be sure ;-) */
-      return error; // rollback must be handled in caller
+        if (toFetch == null) { /* first hit, copy the values we had so far */
+          toFetch = new ArrayList<>(_values.size());
+          toFetch.addAll(_values.subList(0, i));
+        }
+        hookUpRelationshipTarget(eo, _relName, _targetName, _valueToObjects);
+      }
+    }
+    finally {
+      if (didSetupFetch) cancelFetch();
     }
 
-    if (isDebugOn) log.debug("process rel results ...");
+    if (toFetch != null && log.isDebugEnabled()) {
+      log.debug("prefetch " + _relName + ": " +
+                (_values.size() - toFetch.size()) + " objects already known");
+    }
+    return toFetch != null ? toFetch : _values;
+  }
 
-    Object relObject;
-    while ((relObject = fetchObject()) != null) {
-      /* targetName is the target attribute in the join */
-      final Object v = ((NSKeyValueCoding)relObject).valueForKey(targetName);
+  /**
+   * Fetches the rows of the given chunks in parallel, using a separate pooled
+   * adaptor channel for each worker (the calling thread works on the chunks
+   * too, using the channel of this EODatabaseChannel).
+   * <p>
+   * The objects are then built and hooked up in the calling thread, because
+   * the EOObjectTrackingContext is not thread safe. Nested prefetches are
+   * performed afterwards on the combined result.
+   */
+  protected Exception fetchRelationshipChunksConcurrently
+    (final EOEntity _destEntity, final String _relName, final String _targetName,
+     final EOFetchSpecification[] _fetchSpecs, final List<String> _prefetchPathes,
+     final Map<Object, List<EOEnterpriseObject>> _valueToObjects,
+     final EOObjectTrackingContext _ec)
+  {
+    final EOAdaptor adaptor = this.database.adaptor();
+    final EOSnapshotCache snapshotCache = snapshotCacheForEntity(_destEntity);
+    final long snapshotGeneration = snapshotCache != null
+      ? snapshotCache.generationOfEntity(_destEntity) : 0;
+    final List<List<Map<String, Object>>> results =
+      new ArrayList<>(_fetchSpecs.length);
+    for (int i = 0; i < _fetchSpecs.length; i++)
+      results.add(null);
+
+    final AtomicInteger nextChunk = new AtomicInteger(0);
+    final AtomicReference<Exception> firstError = new AtomicReference<>();
+
+    final int workerCount =
+      Math.min(this.prefetchConcurrency, _fetchSpecs.length) - 1;
+    final List<Future<?>> workers = new ArrayList<>(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      workers.add(prefetchExecutor().submit(() -> {
+        final EOAdaptorChannel channel = adaptor.openChannelFromPool();
+        if (channel == null) /* the calling thread will do the work */
+          return;
+        Exception error = null;
+        try {
+          error = fetchRowChunks(channel, _destEntity, _fetchSpecs, results,
+                                 nextChunk, firstError);
+        }
+        finally {
+          if (error != null)
+            adaptor.releaseAfterError(channel, error);
+          else
+            adaptor.releaseChannel(channel);
+        }
+      }));
+    }
 
-      /* this is the list of join source objects which have that value
-       * in the source attribute of the join.
-       */
-      final List<EOEnterpriseObject> srcObjects = valueToObjects.get(v);
-      if (srcObjects == null) {
-        /* I think this can only happen when concurrent transactions
-         * delete items.
-         * Hm, which would be an error, because the source object would
-         * have a key, but wouldn't be hooked up?!
-         */
-        log.warn("found no objects to hook up for foreign key: " + v);
-        continue;
+    /* the calling thread participates using its own channel */
+    final boolean didOpenChannel = this.adChannel == null;
+    if (didOpenChannel && (this.adChannel = acquireChannel()) == null)
+      firstError.compareAndSet(null, new NSException("could not open channel"));
+    else {
+      try {
+        fetchRowChunks(this.adChannel, _destEntity, _fetchSpecs, results,
+                       nextChunk, firstError);
       }
-      if (isDebugOn) {
-        log.debug("    -> rel target: " + relObject);
-        log.debug("       join value: " + v);
-        log.debug("       sources:   #" + srcObjects.size() + ": " +
-                  srcObjects);
+      finally {
+        if (didOpenChannel) releaseChannel();
       }
+    }
 
-      /* Hook up the fetched relationship target objects with the objects which
-       * link to it.
-       */
-      final boolean isRelEO = relObject instanceof EORelationshipManipulation;
-      if (isRelEO) {
-        for (final EOEnterpriseObject srcObject: srcObjects) {
-          log.debug("         hook up two-way: " + relName);
-          srcObject.addObjectToBothSidesOfRelationshipWithKey
-            ((EORelationshipManipulation)relObject, relName);
-        }
+    for (final Future<?> worker: workers) {
+      try {
+        worker.get();
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        firstError.compareAndSet(null, e);
+      }
+      catch (final ExecutionException e) {
+        firstError.compareAndSet(null, e);
       }
-      else {
-        for (final EOEnterpriseObject srcObject: srcObjects) {
-          log.debug("         hook up one-way: " + relName);
-          srcObject.addObjectToPropertyWithKey(relObject, relName);
+    }
+    if (firstError.get() != null)
+      return firstError.get();
+
+    /* build objects and stitch them to the source objects */
+
+    cancelFetch();
+    setCurrentEntity(_destEntity);
+    this.currentClass    = this.database.classForEntity(_destEntity);
+    this.makeNoSnapshots  = _destEntity.isReadOnly();
+    this.ec               = _ec;
+    this.recordsSnapshots   = snapshotCache != null;
+    this.snapshotGeneration = snapshotGeneration;
+
+    final List<EOEnterpriseObject> relObjects = new ArrayList<>(256);
+    try {
+      for (final List<Map<String, Object>> rows: results) {
+        for (final Map<String, Object> row: rows) {
+          final Object relObject = objectForRow(row);
+          if (relObject == null) continue;
+
+          if (relObject instanceof EOEnterpriseObject)
+            relObjects.add((EOEnterpriseObject)relObject);
+          hookUpRelationshipTarget
+            (relObject, _relName, _targetName, _valueToObjects);
         }
       }
     }
+    finally {
+      cancelFetch();
+    }
 
-    return null; /* fetch done */
+    if (_prefetchPathes == null || _prefetchPathes.size() == 0)
+      return null;
+
+    return fetchRelationships(_destEntity.name(),
+      _prefetchPathes.toArray(new String[0]), relObjects, _ec);
+  }
+
+  /**
+   * Worker loop of fetchRelationshipChunksConcurrently(). Grabs the next
+   * unprocessed chunk and fetches its rows until all chunks are done or an
+   * error occurred.
+   */
+  protected static Exception fetchRowChunks
+    (final EOAdaptorChannel _channel, final EOEntity _entity,
+     final EOFetchSpecification[] _fetchSpecs,
+     final List<List<Map<String, Object>>> _results,
+     final AtomicInteger _nextChunk, final AtomicReference<Exception> _error)
+  {
+    int idx;
+    while (_error.get() == null &&
+           (idx = _nextChunk.getAndIncrement()) < _fetchSpecs.length)
+    {
+      final List<Map<String, Object>> rows = _channel.selectAttributes
+        (null, _fetchSpecs[idx], false /* lock */, _entity);
+      if (rows == null) {
+        Exception error = _channel.consumeLastException();
+        if (error == null)
+          error = new NSException("could not fetch relationship chunk");
+        _error.compareAndSet(null, error);
+        return error;
+      }
+      synchronized (_results) {
+        _results.set(idx, rows);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Hooks up a fetched relationship target object with the objects which link
+   * to it.
+   *
+   * @param _relObject      - the fetched target object
+   * @param _relName        - the name of the relationship in the source
+   * @param _targetName     - the name of the target attribute of the join
+   * @param _valueToObjects - maps join values to the source objects
+   */
+  protected void hookUpRelationshipTarget
+    (final Object _relObject, final String _relName, final String _targetName,
+     final Map<Object, List<EOEnterpriseObject>> _valueToObjects)
+  {
+    final boolean isDebugOn = log.isDebugEnabled();
+
+    /* targetName is the target attribute in the join */
+    final Object v = ((NSKeyValueCoding)_relObject).valueForKey(_targetName);
+
+    /* this is the list of join source objects which have that value
+     * in the source attribute of the join.
+     */
+    final List<EOEnterpriseObject> srcObjects = _valueToObjects.get(v);
+    if (srcObjects == null) {
+      /* I think this can only happen when concurrent transactions
+       * delete items.
+       * Hm, which would be an error, because the source object would
+       * have a key, but wouldn't be hooked up?!
+       */
+      log.warn("found no objects to hook up for foreign key: " + v);
+      return;
+    }
+    if (isDebugOn) {
+      log.debug("    -> rel target: " + _relObject);
+      log.debug("       join value: " + v);
+      log.debug("       sources:   #" + srcObjects.size() + ": " +
+                srcObjects);
+    }
+
+    /* Hook up the fetched relationship target objects with the objects which
+     * link to it.
+     */
+    final boolean isRelEO = _relObject instanceof EORelationshipManipulation;
+    if (isRelEO) {
+      for (final EOEnterpriseObject srcObject: srcObjects) {
+        log.debug("         hook up two-way: " + _relName);
+        srcObject.addObjectToBothSidesOfRelationshipWithKey
+          ((EORelationshipManipulation)_relObject, _relName);
+      }
+    }
+    else {
+      for (final EOEnterpriseObject srcObject: srcObjects) {
+        log.debug("         hook up one-way: " + _relName);
+        srcObject.addObjectToPropertyWithKey(_relObject, _relName);
+      }
+    }
+  }
+
+  /* prefetch worker threads */
+
+  private static ExecutorService prefetchExecutor;
+
+  protected static synchronized ExecutorService prefetchExecutor() {
+    if (prefetchExecutor == null) {
+      final AtomicInteger threadCount = new AtomicInteger(0);
+      prefetchExecutor = Executors.newCachedThreadPool(r -> {
+        final Thread t =
+          new Thread(r, "EOPrefetch-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return prefetchExecutor;
   }
 
 
@@ -810,7 +1333,10 @@ public class EODatabaseChannel extends NSObject
    * always be called if a fetch is stopped before all objects got retrieved.
    */
   public void cancelFetch() {
-    /* Note: do not release the adaptor channel in here! */
+    /* Note: do not release the adaptor channel in here! Unless it got opened
+     *       for a streaming fetch. */
+    closeCursor();
+
     this.ec             = null;
     this.objects        = null;
     this.records        = null;
@@ -819,6 +1345,8 @@ public class EODatabaseChannel extends NSObject
     this.isLocking      = false;
     this.fetchesRawRows = false;
     this.currentClass   = null;
+
+    this.recordsSnapshots = false;
   }
 
   /**
@@ -835,8 +1363,8 @@ public class EODatabaseChannel extends NSObject
   /* fetching */
 
   /**
-   * Fetches the next row from the database. Currently we fetch all rows once
-   * and then step through the resultset ...
+   * Fetches the next row from the database. Unless a streaming fetch is
+   * running, we fetch all rows once and then step through the resultset ...
    *
    * @return a Map containing the next record, or null if there are no more
    */
@@ -845,13 +1373,38 @@ public class EODatabaseChannel extends NSObject
       return null;
 
     if (!this.records.hasNext()) {
+      final Exception error = this.closeCursor();
       cancelFetch();
+      if (error != null) /* do not report a truncated result as complete */
+        throw cursorException(error);
       return null;
     }
 
     return this.records.next();
   }
 
+  /**
+   * Returns the error which stopped the last streaming fetch, or null if the
+   * cursor was read completely.
+   *
+   * @return the last cursor error, or null
+   */
+  public Exception lastException() {
+    return this.lastException;
+  }
+  public Exception consumeLastException() {
+    final Exception e = this.lastException;
+    this.lastException = null;
+    return e;
+  }
+
+  protected static NSException cursorException(final Exception _error) {
+    final NSException e =
+      new NSException("streaming fetch failed: " + _error.getMessage());
+    e.initCause(_error);
+    return e;
+  }
+
 
   /**
    * This is called when 'this.currentClass' is set to null. It to support
@@ -903,6 +1456,20 @@ public class EODatabaseChannel extends NSObject
       return row;
     }
 
+    return objectForRow(row);
+  }
+
+  /**
+   * Builds the object for the given row, using the entity and class of the
+   * current fetch. If an object with the same global-id is already registered
+   * in the tracking context, that object is returned instead.
+   *
+   * @param row - the database record, keys are attribute names
+   * @return the object representing the row
+   */
+  protected Object objectForRow(final Map<String, Object> row) {
+    final boolean isDebugOn = log.isDebugEnabled();
+
     final Class clazz = this.currentClass != null // TBD: other way around?
       ? this.currentClass
       : objectClassForRow(row);
@@ -917,6 +1484,10 @@ public class EODatabaseChannel extends NSObject
     final EOGlobalID gid = (this.currentEntity != null)
       ? this.currentEntity.globalIDForRow(row) : null;
 
+    if (this.recordsSnapshots && gid != null)
+      this.database.snapshotCache().recordSnapshot
+        (this.currentEntity, gid, row, this.snapshotGeneration);
+
     if (!this.refreshObjects && this.ec != null) {
       // TBD: we could ask some delegate whether we should refresh
       final Object oldEO = this.ec.objectForGlobalID(gid);
@@ -1045,11 +1616,71 @@ public class EODatabaseChannel extends NSObject
     }
     finally {
       if (didOpenChannel) releaseChannel();
+      invalidateSnapshotsOfOperations(aops);
     }
 
     return error;
   }
 
+  /* shared snapshot cache */
+
+  /**
+   * Returns the EOSnapshotCache of the database if the rows of the given
+   * entity are cached. If the entity got modified in the current transaction
+   * the cache is not used, the rows might contain uncommitted changes.
+   *
+   * @param _entity - the entity to be fetched
+   * @return the EOSnapshotCache, or null if the cache should not be used
+   */
+  protected EOSnapshotCache snapshotCacheForEntity(final EOEntity _entity) {
+    if (_entity == null || !_entity.cachesObjects() || this.database == null)
+      return null;
+    if (this.modifiedCachedEntityNames != null &&
+        this.modifiedCachedEntityNames.contains(_entity.name()))
+      return null;
+    return this.database.snapshotCache();
+  }
+
+  /**
+   * Drops the cached rows of the entities modified by the given operations.
+   * If a transaction is in progress, the entities are remembered and dropped
+   * again when the transaction is finished (other channels might have cached
+   * the old rows in the meantime).
+   */
+  protected void invalidateSnapshotsOfOperations
+    (final List<EOAdaptorOperation> _ops)
+  {
+    final EOSnapshotCache cache = this.database != null
+      ? this.database.snapshotCache() : null;
+    if (cache == null)
+      return;
+
+    cache.invalidateEntitiesOfOperations(_ops);
+
+    if (!isInTransaction())
+      return;
+    for (final EOAdaptorOperation op: _ops) {
+      final EOEntity entity = op.entity();
+      if (entity == null || !entity.cachesObjects())
+        continue;
+      if (this.modifiedCachedEntityNames == null)
+        this.modifiedCachedEntityNames = new HashSet<>(4);
+      this.modifiedCachedEntityNames.add(entity.name());
+    }
+  }
+
+  protected void invalidateModifiedCachedEntities() {
+    if (this.modifiedCachedEntityNames == null)
+      return;
+
+    final EOSnapshotCache cache = this.database.snapshotCache();
+    if (cache != null) {
+      for (final String entityName: this.modifiedCachedEntityNames)
+        cache.invalidateEntityNamed(entityName);
+    }
+    this.modifiedCachedEntityNames = null;
+  }
+
   /**
    * This method creates the necessary EOAdaptorOperation's for the given
    * EODatabaseOperation's and attaches them to the respective database-op
@@ -1227,8 +1858,16 @@ public class EODatabaseChannel extends NSObject
 
   @Override
   public boolean hasNext() {
-    if (this.records != null)
-      return this.records.hasNext();
+    if (this.records != null) {
+      if (this.records.hasNext())
+        return true;
+      if (this.cursor != null) { /* give back the channel early */
+        final Exception error = closeCursor();
+        if (error != null)
+          throw cursorException(error);
+      }
+      return false;
+    }
     if (this.objects != null)
       return this.objects.hasNext();
     return false;
@@ -1283,6 +1922,9 @@ public class EODatabaseChannel extends NSObject
         this.adChannel.dispose();
       this.adChannel = null;
     }
+
+    /* the transaction is gone, drop the rows cached by others meanwhile */
+    invalidateModifiedCachedEntities();
   }
 
 
@@ -1296,6 +1938,8 @@ public class EODatabaseChannel extends NSObject
       _d.append(" db=" + this.database);
     if (this.adChannel != null)
       _d.append(" channel=" + this.adChannel);
+    if (this.cursor != null)
+      _d.append(" cursor=" + this.cursor);
 
     if (this.objects != null) {
       _d.append(" objects");
@@ -113,6 +113,25 @@ public class EODatabaseOperation extends NSObject {
     return this.adaptorOperations;
   }
 
+  /**
+   * Returns the number of rows affected by the adaptor operations of this
+   * database operation, as reported by the EOAdaptorChannel.
+   *
+   * @return the number of affected rows, or -1 if the count is unknown
+   */
+  public int affectedRowCount() {
+    if (this.adaptorOperations == null || this.adaptorOperations.size() == 0)
+      return -1;
+
+    int count = 0;
+    for (final EOAdaptorOperation op: this.adaptorOperations) {
+      final int c = op.affectedRowCount();
+      if (c < 0) return -1;
+      count += c;
+    }
+    return count;
+  }
+
   /* description */
   
   @Override
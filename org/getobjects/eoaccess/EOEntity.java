@@ -21,8 +21,10 @@
 package org.getobjects.eoaccess;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -67,6 +69,9 @@ public class EOEntity extends NSObject
   protected String           className;
   protected String           dataSourceClassName;
   protected boolean          isReadOnly;
+  protected boolean          cachesObjects;
+  protected int              cacheTimeout; /* in seconds, 0 = no expiry */
+  protected int              cacheSize;
   protected EOAttribute[]    attributes;
   protected EORelationship[] relationships;
   protected String[]         primaryKeyAttributeNames;
@@ -80,6 +85,10 @@ public class EOEntity extends NSObject
 
   protected boolean isExternalNamePattern = false;
 
+  /* lookup indices, built on demand (see propertyIndex()) */
+
+  protected volatile PropertyIndex propertyIndex;
+
   /* constructor */
 
   public static EOEntity patternEntityForExternalNameLike
@@ -175,6 +184,35 @@ public class EOEntity extends NSObject
     return this.isReadOnly;
   }
 
+  /**
+   * Returns whether the rows of this entity are kept in the shared
+   * EOSnapshotCache of the EODatabase. This is useful for reference data
+   * which is rarely modified.
+   *
+   * @return true if the objects of the entity are cached
+   */
+  public boolean cachesObjects() {
+    return this.cachesObjects;
+  }
+  /**
+   * Returns the number of seconds a row is kept in the EOSnapshotCache,
+   * 0 means that rows do not expire (they are still dropped on writes).
+   *
+   * @return the cache timeout in seconds
+   */
+  public int cacheTimeout() {
+    return this.cacheTimeout;
+  }
+  /**
+   * Returns the maximum number of rows of this entity which are kept in the
+   * EOSnapshotCache, 0 selects the default.
+   *
+   * @return the maximum number of cached rows
+   */
+  public int cacheSize() {
+    return this.cacheSize;
+  }
+
 
   /* attributes */
 
@@ -193,18 +231,12 @@ public class EOEntity extends NSObject
   }
 
   public EOAttribute attributeNamed(final String _name) {
-    // TBD: optimize, used quite often. Eg we might want to take hashes. Also
-    //      optimize for misses
     if (_name == null) return null;
     if (this.attributes == null) return null;
 
     // TODO: we might want to check for keypathes?
 
-    for (int i = 0; i < this.attributes.length; i++) {
-      if (_name.equals(this.attributes[i].name()))
-        return this.attributes[i];
-    }
-    return null;
+    return this.propertyIndex().attributesByName.get(_name);
   }
   public EOAttribute firstAttributeWithColumnName(final String _colName) {
     if (_colName == null) return null;
@@ -212,11 +244,7 @@ public class EOEntity extends NSObject
 
     // TODO: we might want to check for keypathes?
 
-    for (int i = 0; i < this.attributes.length; i++) {
-      if (_colName.equals(this.attributes[i].columnName()))
-        return this.attributes[i];
-    }
-    return null;
+    return this.propertyIndex().attributesByColumnName.get(_colName);
   }
 
   /**
@@ -412,32 +440,44 @@ public class EOEntity extends NSObject
    * @return the matching EORelationship object or null
    */
   public EORelationship relationshipNamed(final String _name) {
-    // TBD: optimize, used quite often. Eg we might want to take hashes. Also
-    //      optimize for misses
     if (_name == null) return null;
     if (this.relationships == null) return null;
 
-    // TODO: we might want to check for keypathes? Yes, definitely!
+    final PropertyIndex index = this.propertyIndex();
+
     final int dotIdx = _name.indexOf('.');
-    if (dotIdx >= 0) {
-      /* OK, is a keypath, like "employments.person" */
-      if (dotIdx == 0)
-        return this.relationshipNamed(_name.substring(dotIdx + 1));
+    if (dotIdx < 0)
+      return index.relationshipsByName.get(_name);
 
-      final EORelationship rel = this.relationshipNamed(_name.substring(0, dotIdx));
-      if (rel == null) return null;
+    /* OK, is a keypath, like "employments.person" */
 
-      final EOEntity dest = rel.destinationEntity();
-      if (dest == null) return null;
+    final Object cached = index.relationshipPaths.get(_name);
+    if (cached != null)
+      return cached != PropertyIndex.noRelationship
+        ? (EORelationship)cached : null;
 
-      return dest.relationshipNamed(_name.substring(dotIdx + 1));
+    EORelationship rel;
+    boolean        canCache = true;
+    if (dotIdx == 0)
+      rel = this.relationshipNamed(_name.substring(dotIdx + 1));
+    else {
+      rel = index.relationshipsByName.get(_name.substring(0, dotIdx));
+      if (rel != null) {
+        final EOEntity dest = rel.destinationEntity();
+        if (dest == null) { /* not connected yet, do not cache the miss */
+          rel      = null;
+          canCache = false;
+        }
+        else
+          rel = dest.relationshipNamed(_name.substring(dotIdx + 1));
+      }
     }
 
-    for (int i = 0; i < this.relationships.length; i++) {
-      if (_name.equals(this.relationships[i].name()))
-        return this.relationships[i];
+    if (canCache && index.relationshipPaths.size() < PropertyIndex.maxPaths) {
+      index.relationshipPaths.put(_name,
+        rel != null ? rel : PropertyIndex.noRelationship);
     }
-    return null;
+    return rel;
   }
 
   public EORelationship[] relationships() {
@@ -450,6 +490,26 @@ public class EOEntity extends NSObject
 
     for (int i = 0; i < this.relationships.length; i++)
       this.relationships[i].connectRelationshipsInModel(_model, this);
+
+    /* the model is complete, build fresh indices (drops cached key paths) */
+    this.propertyIndex = new PropertyIndex(this.attributes, this.relationships);
+  }
+
+  /**
+   * Returns the hash indices used to lookup attributes and relationships by
+   * name. The indices are built on first use, or when the relationships of
+   * the model get connected.
+   *
+   * @return the PropertyIndex of the entity
+   */
+  protected PropertyIndex propertyIndex() {
+    PropertyIndex index = this.propertyIndex;
+    if (index == null) {
+      /* Note: if two threads race here, both build the same index */
+      index = new PropertyIndex(this.attributes, this.relationships);
+      this.propertyIndex = index;
+    }
+    return index;
   }
 
 
@@ -606,7 +666,10 @@ public class EOEntity extends NSObject
                    this.primaryKeyAttributeNames,
                    this.relationships,
                    this.fetchSpecifications, this.adaptorOperations);
-    newEntity.isReadOnly = this.isReadOnly;
+    newEntity.isReadOnly    = this.isReadOnly;
+    newEntity.cachesObjects = this.cachesObjects;
+    newEntity.cacheTimeout  = this.cacheTimeout;
+    newEntity.cacheSize     = this.cacheSize;
     return newEntity;
   }
 
@@ -715,6 +778,9 @@ public class EOEntity extends NSObject
     newEntity.restrictingQualifier     = this.restrictingQualifier;
     newEntity.classPropertyNames       = props;
     newEntity.isReadOnly               = this.isReadOnly;
+    newEntity.cachesObjects            = this.cachesObjects;
+    newEntity.cacheTimeout             = this.cacheTimeout;
+    newEntity.cacheSize                = this.cacheSize;
 
     if (newEntity.isPatternEntity()) {
       log.warn("entity is still a pattern after resolve: " + newEntity +
@@ -782,6 +848,8 @@ public class EOEntity extends NSObject
       for (int i = 0; i < this.relationships.length; i++)
         this.relationships[i].beautifyNames();
     }
+
+    this.propertyIndex = null; /* names changed */
   }
 
 
@@ -857,4 +925,50 @@ public class EOEntity extends NSObject
           (this.fetchSpecificationNames(), ","));
     }
   }
+
+
+  /* lookup indices */
+
+  /**
+   * Immutable name to attribute/relationship maps of an entity. If names are
+   * not unique, the first property wins (like the old linear scans).
+   * The index also memoizes the results of relationship key path lookups
+   * (eg 'employments.person'), including misses.
+   */
+  protected static class PropertyIndex {
+    protected static final Object noRelationship = new Object();
+    protected static final int    maxPaths       = 256;
+
+    protected final Map<String, EOAttribute>    attributesByName;
+    protected final Map<String, EOAttribute>    attributesByColumnName;
+    protected final Map<String, EORelationship> relationshipsByName;
+    protected final ConcurrentHashMap<String, Object> relationshipPaths;
+
+    protected PropertyIndex
+      (final EOAttribute[] _attrs, final EORelationship[] _rels)
+    {
+      final int attrCount = _attrs != null ? _attrs.length : 0;
+      final int relCount  = _rels  != null ? _rels.length  : 0;
+
+      final Map<String, EOAttribute> byName   = new HashMap<>(attrCount * 2);
+      final Map<String, EOAttribute> byColumn = new HashMap<>(attrCount * 2);
+      for (int i = 0; i < attrCount; i++) {
+        final EOAttribute attr = _attrs[i];
+        if (attr.name()       != null) byName.putIfAbsent(attr.name(), attr);
+        if (attr.columnName() != null)
+          byColumn.putIfAbsent(attr.columnName(), attr);
+      }
+
+      final Map<String, EORelationship> rels = new HashMap<>(relCount * 2);
+      for (int i = 0; i < relCount; i++) {
+        if (_rels[i].name() != null)
+          rels.putIfAbsent(_rels[i].name(), _rels[i]);
+      }
+
+      this.attributesByName       = byName;
+      this.attributesByColumnName = byColumn;
+      this.relationshipsByName    = rels;
+      this.relationshipPaths      = new ConcurrentHashMap<>(16);
+    }
+  }
 }
@@ -208,7 +208,10 @@ public class EOModelLoader extends NSObject {
    *   primarykey    - String - name of primary key attribute
    *   primarykeys   - String - comma separated names of pkey attributes
    *   readonly      - bool
-   *   flags         - String - 'readonly' flag
+   *   flags         - String - 'readonly' and 'cache' flags
+   *   cache         - bool   - keep rows in the EOSnapshotCache
+   *   cacheTimeout  - int    - seconds a cached row stays valid
+   *   cacheSize     - int    - max number of cached rows
    *   restrictingQualifier - String - an EOQualifier
    * </pre>
    *
@@ -301,6 +304,12 @@ public class EOModelLoader extends NSObject {
         readonly = flagSet.contains("readonly");
     }
 
+    Boolean cache = this.getBoolAttribute(_node, "cache");
+    if (cache == null && flagSet != null && flagSet.length() > 0)
+      cache = flagSet.contains("cache");
+    final Integer cacheTimeout = this.getIntAttribute(_node, "cacheTimeout");
+    final Integer cacheSize    = this.getIntAttribute(_node, "cacheSize");
+
     // TODO: process restricting qualifier
 
     /* load fetch specifications and adaptor ops */
@@ -319,6 +328,12 @@ public class EOModelLoader extends NSObject {
                    relships, fspecs, ops);
     if (readonly != null)
       entity.isReadOnly = readonly;
+    if (cache != null)
+      entity.cachesObjects = cache;
+    if (cacheTimeout != null)
+      entity.cacheTimeout = cacheTimeout;
+    if (cacheSize != null)
+      entity.cacheSize = cacheSize;
 
     if (eQualifier != null) {
       final EOQualifier q = EOQualifier
@@ -193,6 +193,17 @@ public class EOSQLExpression extends NSObject {
   public boolean useAliases() {
     return this.useAliases;
   }
+  /**
+   * If set, the expression uses bind variables ('?' patterns) for all values,
+   * even for ones which would usually be inlined (like INTs). This is used
+   * for JDBC batches, which require that all statements of a batch share the
+   * same SQL.
+   *
+   * @param _flag - whether all values should be bound
+   */
+  public void setUseBindVariables(final boolean _flag) {
+    this.useBindVariables = _flag;
+  }
   public boolean useBindVariables() {
     return this.useBindVariables;
   }
@@ -1420,6 +1431,8 @@ public class EOSQLExpression extends NSObject {
     }
     else if (attribute != null)
       useBind = this.shouldUseBindVariableForAttribute(attribute);
+    else if (this.useBindVariables)
+      useBind = true;
     else {
       /* no model to base our decision on */
       if (_value != null) { /* we don't need a bind for NULL */
@@ -1470,7 +1483,7 @@ public class EOSQLExpression extends NSObject {
    * @return whether or not binds ('?' patterns) should be used
    */
   public boolean shouldUseBindVariableForAttribute(final EOAttribute _attr) {
-    if (this.mustUseBindVariableForAttribute(_attr))
+    if (this.useBindVariables || this.mustUseBindVariableForAttribute(_attr))
       return true;
     if (_attr == null)
       return true; /* Hm */
@@ -0,0 +1,582 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.eoaccess;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eocontrol.EOAndQualifier;
+import org.getobjects.eocontrol.EOBooleanQualifier;
+import org.getobjects.eocontrol.EOCompoundQualifier;
+import org.getobjects.eocontrol.EOFetchSpecification;
+import org.getobjects.eocontrol.EOKeyComparisonQualifier;
+import org.getobjects.eocontrol.EOKeyValueQualifier;
+import org.getobjects.eocontrol.EONotQualifier;
+import org.getobjects.eocontrol.EOOrQualifier;
+import org.getobjects.eocontrol.EOQualifier;
+import org.getobjects.eocontrol.EOSortOrdering;
+import org.getobjects.foundation.NSObject;
+import org.getobjects.foundation.NSTimeRange;
+import org.getobjects.foundation.UList;
+
+/**
+ * EOSQLExpressionCache
+ * <p>
+ * Caches 'compiled' SQL templates for SELECT, UPDATE and DELETE expressions.
+ * A template is the generated SQL string plus the layout of its bind
+ * variables.
+ * <p>
+ * Templates are keyed by the shape of the request: the expression class, the
+ * entity, the attributes, the structure of the qualifier (keys, operations,
+ * number and kind of values, but not the values themselves), the sort
+ * orderings and the limit/offset. Expressions built from a template reuse
+ * the SQL and only get fresh values in their bind dictionaries.
+ * <p>
+ * To make that possible, expressions which are compiled for the cache bind
+ * ALL qualifier values (see EOSQLExpression.setUseBindVariables()).
+ * After compilation the bind dictionaries are checked against the values
+ * extracted from the qualifier. If they do not match one by one (eg because
+ * an adaptor inlines some value), the shape is remembered as not cacheable
+ * and such expressions are always generated from scratch.
+ * <p>
+ * The cache is owned by the EOAdaptor, its size is configured using the
+ * 'EOAdaptorSQLTemplateCacheSize' property.
+ * <p>
+ * THREAD: this object is thread safe.
+ *
+ * @see EOSQLExpressionFactory
+ */
+public class EOSQLExpressionCache extends NSObject {
+  protected static final Log log = LogFactory.getLog("EOSQLExpression");
+
+  /* marks shapes which cannot be cached */
+  protected static final Template notCacheable = new Template(null, null);
+
+  protected final int maxSize;
+  protected final LinkedHashMap<ShapeKey, Template> templates;
+
+  protected final LongAdder hits   = new LongAdder();
+  protected final LongAdder misses = new LongAdder();
+
+  public EOSQLExpressionCache(final int _maxSize) {
+    this.maxSize   = _maxSize;
+    this.templates =
+      new LinkedHashMap<ShapeKey, Template>(64, 0.75f, true /* LRU */)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<ShapeKey, Template> e)
+      {
+        return this.size() > EOSQLExpressionCache.this.maxSize;
+      }
+    };
+  }
+
+  /* accessors */
+
+  public int maxSize() {
+    return this.maxSize;
+  }
+  public int size() {
+    synchronized (this.templates) {
+      return this.templates.size();
+    }
+  }
+  public long hitCount() {
+    return this.hits.sum();
+  }
+  public long missCount() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Removes all templates, eg after the model got changed.
+   */
+  public void clear() {
+    synchronized (this.templates) {
+      this.templates.clear();
+    }
+  }
+
+  /* shapes */
+
+  /**
+   * Calculates the shape of a SELECT. The qualifier is combined with the
+   * restricting qualifier of the entity, the same way
+   * EOSQLExpression.prepareSelectExpressionWithAttributes() does it.
+   *
+   * @return the Shape, or null if the fetch cannot use a template
+   */
+  public Shape shapeForSelect
+    (final Class<?> _exprClass, final EOAttribute[] _attrs, final boolean _lock,
+     final EOFetchSpecification _fs, final EOEntity _entity)
+  {
+    if (_fs == null)
+      return null;
+
+    EOQualifier q = _fs.qualifier();
+    final EOQualifier rq =
+      _entity != null ? _entity.restrictingQualifier() : null;
+    if (rq != null)
+      q = q != null ? new EOAndQualifier(new EOQualifier[] { q, rq }) : rq;
+
+    final Shape shape = new Shape();
+    final StringBuilder sb = shape.sb;
+
+    sb.append("SELECT");
+    if (_fs.usesDistinct()) sb.append(" DISTINCT");
+    if (_lock)              sb.append(" LOCK");
+    sb.append(" OFFSET ");
+    sb.append(_fs.fetchOffset());
+    sb.append(" LIMIT ");
+    sb.append(_fs.fetchLimit());
+
+    if (_fs.hints() != null) {
+      final Object customSQL =
+        _fs.hints().get(EOSQLExpression.EOCustomQueryExpressionHintKey);
+      if (customSQL != null) {
+        sb.append(" SQL<");
+        sb.append(customSQL);
+        sb.append(">");
+      }
+    }
+
+    sb.append(" WHERE ");
+    if (!this.appendQualifierShape(q, shape))
+      return null;
+
+    final EOSortOrdering[] sos = _fs.sortOrderings();
+    if (sos != null) {
+      sb.append(" ORDER");
+      for (final EOSortOrdering so: sos) {
+        if (so == null) continue;
+        sb.append(' ');
+        sb.append(so.key());
+        sb.append(':');
+        sb.append(so.selector());
+      }
+    }
+
+    shape.key = new ShapeKey(_exprClass, _entity, _attrs, sb.toString());
+    return shape;
+  }
+
+  /**
+   * Calculates the shape of a DELETE.
+   *
+   * @return the Shape, or null if the delete cannot use a template
+   */
+  public Shape shapeForDelete
+    (final Class<?> _exprClass, final EOQualifier _q, final EOEntity _entity)
+  {
+    final Shape shape = new Shape();
+    shape.sb.append("DELETE WHERE ");
+    if (!this.appendQualifierShape(_q, shape))
+      return null;
+
+    shape.key = new ShapeKey(_exprClass, _entity, null, shape.sb.toString());
+    return shape;
+  }
+
+  /**
+   * Calculates the shape of an UPDATE. The keys of the row (in iteration
+   * order) become part of the shape, the values are bound.
+   *
+   * @return the Shape, or null if the update cannot use a template
+   */
+  public Shape shapeForUpdate
+    (final Class<?> _exprClass, final Map<String, Object> _row,
+     final EOQualifier _q, final EOEntity _entity)
+  {
+    if (_row == null || _row.size() == 0 || _entity == null)
+      return null;
+
+    final Shape shape = new Shape();
+    final StringBuilder sb = shape.sb;
+    sb.append("UPDATE SET");
+    for (final Map.Entry<String, Object> entry: _row.entrySet()) {
+      final String key = entry.getKey();
+      if (_entity.attributeNamed(key) == null)
+        continue; /* ignored by addUpdateListAttribute() */
+
+      final Object v = entry.getValue();
+      if (v != null && !isSimpleValue(v))
+        return null;
+
+      sb.append(' ');
+      sb.append(key);
+      sb.append('=');
+      sb.append(v == null ? "null" : "?");
+      shape.addValue(v, false);
+    }
+
+    sb.append(" WHERE ");
+    if (!this.appendQualifierShape(_q, shape))
+      return null;
+
+    shape.key = new ShapeKey(_exprClass, _entity, null, sb.toString());
+    return shape;
+  }
+
+  /**
+   * Adds the structure of the qualifier to the shape. Values are replaced by
+   * placeholders and collected in the shape.
+   *
+   * @return false if the qualifier cannot be used in a template
+   */
+  protected boolean appendQualifierShape(final EOQualifier _q, final Shape _s) {
+    final StringBuilder sb = _s.sb;
+
+    if (_q == null) {
+      sb.append("-");
+      return true;
+    }
+
+    /* Note: we check the exact class, subclasses might generate custom SQL */
+    final Class<?> qclazz = _q.getClass();
+
+    if (qclazz == EOKeyValueQualifier.class) {
+      final EOKeyValueQualifier kvq = (EOKeyValueQualifier)_q;
+      final EOQualifier.ComparisonOperation op = kvq.operation();
+      final boolean isLike =
+        op == EOQualifier.ComparisonOperation.LIKE ||
+        op == EOQualifier.ComparisonOperation.CASE_INSENSITIVE_LIKE;
+
+      sb.append('(');
+      sb.append(kvq.key());
+      sb.append(' ');
+      sb.append(op);
+      sb.append(' ');
+
+      Object v = kvq.value();
+      if (v == null)
+        sb.append("null");
+      else if (v instanceof NSTimeRange) {
+        final NSTimeRange range = (NSTimeRange)v;
+        final Date from = range.fromDate(), to = range.toDate();
+        sb.append("range");
+        if (range.isEmpty())
+          sb.append("-empty");
+        else {
+          if (from != null) { sb.append("<from"); _s.addValue(from, false); }
+          if (to   != null) { sb.append("<to");   _s.addValue(to,   false); }
+        }
+      }
+      else if (op == EOQualifier.ComparisonOperation.CONTAINS) {
+        if (v.getClass().isArray())
+          v = UList.asList(v);
+        if (!(v instanceof Collection))
+          return false;
+
+        final Collection<?> c = (Collection<?>)v;
+        sb.append('[');
+        sb.append(c.size());
+        sb.append(']');
+        for (final Object cv: c) {
+          if (cv != null && !isSimpleValue(cv))
+            return false;
+          _s.addValue(cv, false);
+        }
+      }
+      else if (isSimpleValue(v)) {
+        sb.append('?');
+        _s.addValue(v, isLike);
+      }
+      else
+        return false;
+
+      sb.append(')');
+      return true;
+    }
+
+    if (qclazz == EOAndQualifier.class || qclazz == EOOrQualifier.class) {
+      final EOQualifier[] qs = ((EOCompoundQualifier)_q).qualifiers();
+      sb.append(qclazz == EOAndQualifier.class ? "AND(" : "OR(");
+      if (qs != null) {
+        for (final EOQualifier sq: qs) {
+          if (!this.appendQualifierShape(sq, _s))
+            return false;
+          sb.append(',');
+        }
+      }
+      sb.append(')');
+      return true;
+    }
+
+    if (qclazz == EONotQualifier.class) {
+      sb.append("NOT(");
+      if (!this.appendQualifierShape(((EONotQualifier)_q).qualifier(), _s))
+        return false;
+      sb.append(')');
+      return true;
+    }
+
+    if (qclazz == EOKeyComparisonQualifier.class) {
+      final EOKeyComparisonQualifier kcq = (EOKeyComparisonQualifier)_q;
+      sb.append('(');
+      sb.append(kcq.leftKey());
+      sb.append(' ');
+      sb.append(kcq.operation());
+      sb.append(' ');
+      sb.append(kcq.rightKey());
+      sb.append(')');
+      return true;
+    }
+
+    if (qclazz == EOBooleanQualifier.class) {
+      sb.append(_q == EOBooleanQualifier.falseQualifier ? "FALSE" : "TRUE");
+      return true;
+    }
+
+    /* EOSQLQualifier, custom qualifiers, etc */
+    return false;
+  }
+
+  /**
+   * Values which can be bound as-is.
+   */
+  protected static boolean isSimpleValue(final Object _v) {
+    return _v instanceof String || _v instanceof Number ||
+           _v instanceof Boolean || _v instanceof Date;
+  }
+
+  /* templates */
+
+  /**
+   * Returns a new expression for the given shape if a template is cached.
+   *
+   * @param _factory - the factory used to create the expression object
+   * @param _entity  - the entity of the expression
+   * @param _shape   - the shape of the request
+   * @return a prepared expression, or null if there is no template
+   */
+  public EOSQLExpression expressionForShape
+    (final EOSQLExpressionFactory _factory, final EOEntity _entity,
+     final Shape _shape)
+  {
+    final Template template;
+    synchronized (this.templates) {
+      template = this.templates.get(_shape.key);
+    }
+    if (template == null) {
+      this.misses.increment();
+      return null;
+    }
+    if (template == notCacheable)
+      return null;
+
+    this.hits.increment();
+
+    final EOSQLExpression e = _factory.createExpression(_entity);
+    e.setUseBindVariables(true);
+    e.setStatement(template.sql);
+
+    if (template.binds != null) {
+      for (int i = 0; i < template.binds.length; i++) {
+        final Map<String, Object> bind = new HashMap<>(template.binds[i]);
+        Object v = _shape.values.get(i);
+        if (v != null && _shape.isPattern.get(i))
+          v = e.sqlPatternFromShellPattern(v.toString());
+
+        if (v != null)
+          bind.put(EOSQLExpression.BindVariableValueKey, v);
+        else
+          bind.remove(EOSQLExpression.BindVariableValueKey);
+        e.addBindVariableDictionary(bind);
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Checks whether the given freshly prepared expression can be reused for
+   * the shape and registers it as a template (or marks the shape as not
+   * cacheable).
+   *
+   * @param _shape - the shape the expression was prepared for
+   * @param _expr  - the expression, prepared with bind variables enabled
+   * @return true if a template got registered
+   */
+  public boolean registerExpression
+    (final Shape _shape, final EOSQLExpression _expr)
+  {
+    final Template template = templateForExpression(_shape, _expr);
+
+    if (template == notCacheable && log.isDebugEnabled())
+      log.debug("SQL shape cannot be cached: " + _shape.key.shape);
+
+    synchronized (this.templates) {
+      this.templates.put(_shape.key, template);
+    }
+    return template != notCacheable;
+  }
+
+  /**
+   * Checks that each bind of the expression carries the value collected at
+   * the same position of the shape.
+   */
+  @SuppressWarnings("unchecked")
+  protected Template templateForExpression
+    (final Shape _shape, final EOSQLExpression _expr)
+  {
+    final String sql = _expr != null ? _expr.statement() : null;
+    if (sql == null)
+      return notCacheable;
+
+    final List<Map<String, Object>> binds = _expr.bindVariableDictionaries();
+    final int bindCount = binds != null ? binds.size() : 0;
+    if (bindCount != _shape.values.size())
+      return notCacheable;
+
+    final Map<String, Object>[] bindTemplates =
+      (Map<String, Object>[])new Map<?, ?>[bindCount];
+    for (int i = 0; i < bindCount; i++) {
+      final Map<String, Object> bind = binds.get(i);
+      Object expected = _shape.values.get(i);
+      if (expected != null && _shape.isPattern.get(i))
+        expected = _expr.sqlPatternFromShellPattern(expected.toString());
+
+      final Object bound = bind.get(EOSQLExpression.BindVariableValueKey);
+      if (!Objects.equals(expected, bound))
+        return notCacheable;
+
+      final Map<String, Object> bindTemplate = new HashMap<>(bind);
+      bindTemplate.remove(EOSQLExpression.BindVariableValueKey);
+      bindTemplates[i] = bindTemplate;
+    }
+    return new Template(sql, bindTemplates);
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" size=");
+    _d.append(this.size());
+    _d.append("/");
+    _d.append(this.maxSize);
+    _d.append(" hits=");
+    _d.append(this.hits.sum());
+    _d.append(" misses=");
+    _d.append(this.misses.sum());
+  }
+
+
+  /* helper classes */
+
+  /**
+   * The shape of a single request: the cache key plus the values which get
+   * bound, in the order they are bound by EOSQLExpression.
+   */
+  public static class Shape {
+    protected final StringBuilder sb        = new StringBuilder(128);
+    protected final List<Object>  values    = new ArrayList<>(8);
+    protected final List<Boolean> isPattern = new ArrayList<>(8);
+    protected ShapeKey key;
+
+    protected void addValue(final Object _value, final boolean _isPattern) {
+      this.values.add(_value);
+      this.isPattern.add(_isPattern);
+    }
+  }
+
+  /**
+   * The key of a template. Entity and attributes are compared by identity,
+   * so templates of a reloaded model are not reused.
+   */
+  protected static class ShapeKey {
+    protected final Class<?>      exprClass;
+    protected final EOEntity      entity;
+    protected final EOAttribute[] attrs;
+    protected final String        shape;
+    protected final int           hashCode;
+
+    protected ShapeKey
+      (final Class<?> _exprClass, final EOEntity _entity,
+       final EOAttribute[] _attrs, final String _shape)
+    {
+      this.exprClass = _exprClass;
+      this.entity    = _entity;
+      this.attrs     = _attrs != null ? _attrs.clone() : null;
+      this.shape     = _shape;
+
+      int h = _shape.hashCode();
+      h = 31 * h + System.identityHashCode(_exprClass);
+      h = 31 * h + System.identityHashCode(_entity);
+      if (_attrs != null) {
+        for (final EOAttribute a: _attrs)
+          h = 31 * h + System.identityHashCode(a);
+      }
+      this.hashCode = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hashCode;
+    }
+
+    @Override
+    public boolean equals(final Object _other) {
+      if (_other == this) return true;
+      if (!(_other instanceof ShapeKey)) return false;
+
+      final ShapeKey o = (ShapeKey)_other;
+      if (o.hashCode != this.hashCode || o.exprClass != this.exprClass ||
+          o.entity != this.entity || !o.shape.equals(this.shape))
+        return false;
+
+      if (o.attrs == this.attrs) return true;
+      if (o.attrs == null || this.attrs == null) return false;
+      if (o.attrs.length != this.attrs.length) return false;
+      for (int i = 0; i < this.attrs.length; i++) {
+        if (o.attrs[i] != this.attrs[i])
+          return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A compiled SQL template, the SQL plus the bind dictionaries without
+   * values.
+   */
+  protected static class Template {
+    protected final String                sql;
+    protected final Map<String, Object>[] binds;
+
+    protected Template(final String _sql, final Map<String, Object>[] _binds) {
+      this.sql   = _sql;
+      this.binds = _binds;
+    }
+  }
+}
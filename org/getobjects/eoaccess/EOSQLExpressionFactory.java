@@ -65,6 +65,14 @@ public class EOSQLExpressionFactory extends NSObject {
     return this.adaptor;
   }
   
+  /**
+   * Returns the cache of compiled SQL templates of the adaptor, or null if
+   * template caching is disabled.
+   */
+  public EOSQLExpressionCache expressionCache() {
+    return this.adaptor != null ? this.adaptor.expressionCache() : null;
+  }
+  
   /* factory */
   
   public EOSQLExpression createExpression(final EOEntity _e) {
@@ -85,6 +93,21 @@ public class EOSQLExpressionFactory extends NSObject {
   public EOSQLExpression deleteStatementWithQualifier
     (final EOQualifier _qualifier, final EOEntity _entity)
   {
+    final EOSQLExpressionCache cache = this.expressionCache();
+    final EOSQLExpressionCache.Shape shape = cache != null
+      ? cache.shapeForDelete(this.expressionClass, _qualifier, _entity)
+      : null;
+    if (shape != null) {
+      EOSQLExpression e = cache.expressionForShape(this, _entity, shape);
+      if (e != null) return e;
+
+      e = this.createExpression(_entity);
+      e.setUseBindVariables(true);
+      e.prepareDeleteExpressionForQualifier(_qualifier);
+      cache.registerExpression(shape, e);
+      return e;
+    }
+
     final EOSQLExpression e = this.createExpression(_entity);
     e.prepareDeleteExpressionForQualifier(_qualifier);
     return e;
@@ -101,6 +124,21 @@ public class EOSQLExpressionFactory extends NSObject {
   public EOSQLExpression updateStatementForRow
     (Map<String, Object> _row, EOQualifier _qualifier, EOEntity _entity)
   {
+    final EOSQLExpressionCache cache = this.expressionCache();
+    final EOSQLExpressionCache.Shape shape = cache != null
+      ? cache.shapeForUpdate(this.expressionClass, _row, _qualifier, _entity)
+      : null;
+    if (shape != null) {
+      EOSQLExpression e = cache.expressionForShape(this, _entity, shape);
+      if (e != null) return e;
+
+      e = this.createExpression(_entity);
+      e.setUseBindVariables(true);
+      e.prepareUpdateExpressionWithRow(_row, _qualifier);
+      cache.registerExpression(shape, e);
+      return e;
+    }
+
     final EOSQLExpression e = this.createExpression(_entity);
     e.prepareUpdateExpressionWithRow(_row, _qualifier);
     return e;
@@ -114,6 +152,26 @@ public class EOSQLExpressionFactory extends NSObject {
      * hints are still in the fetch specification.
      */
     
+    /*
+     * Check whether we already compiled a template for a fetch of the same
+     * shape (same qualifier structure, orderings, etc). If so, we just need
+     * to fill in the new bind values.
+     */
+    final EOSQLExpressionCache cache = this.expressionCache();
+    final EOSQLExpressionCache.Shape shape = cache != null
+      ? cache.shapeForSelect(this.expressionClass, _attrs, _lock, _f, _e)
+      : null;
+    if (shape != null) {
+      EOSQLExpression e = cache.expressionForShape(this, _e, shape);
+      if (e != null) return e;
+
+      e = this.createExpression(_e);
+      e.setUseBindVariables(true); /* templates bind all values */
+      e.prepareSelectExpressionWithAttributes(_attrs, _lock, _f);
+      cache.registerExpression(shape, e);
+      return e;
+    }
+    
     /*
      * Let the adaptor construct a new, database specific expression object. 
      */
@@ -25,79 +25,185 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eocontrol.EORecordMap;
 import org.getobjects.foundation.NSObject;
 
 /**
  * EOSQLResultIterator
  * <p>
- * Used by EOSQLDataSource for fetch operations.
+ * Wraps an open JDBC ResultSet and converts the rows to records while the
+ * iterator is being advanced (instead of loading all rows into a List).
+ * This is used by EODatabaseChannel for streaming fetches, see
+ * EOAdaptorChannel.iteratorForSelectAttributes().
+ * <p>
+ * The iterator closes the ResultSet and the Statement once the last row got
+ * retrieved, or when close() is called. Be sure to call close() if you stop
+ * iterating early.
+ * <p>
+ * THREAD: this object is not synchronized.
  */
-public class EOSQLResultIterator extends NSObject implements Iterator {
-  
-  protected Statement statement     = null; /* we need to close this */
-  protected ResultSet resultSet     = null;
-  protected Class     recordClass   = null;
-  protected Exception lastException = null;
-  
-  public EOSQLResultIterator(Statement _stmt, ResultSet _rs, Class _recClass) {
-    this.statement   = _stmt;
-    this.resultSet   = _rs;
-    this.recordClass = _recClass;
+public class EOSQLResultIterator extends NSObject
+  implements Iterator<Map<String, Object>>
+{
+  protected static final Log log = LogFactory.getLog("EOAdaptorChannel");
+
+  protected EOAdaptorChannel channel;
+  protected Statement        statement; /* we need to close this */
+  protected ResultSet        resultSet;
+  protected String[]         colNames;
+  protected int[]            colHashes;
+  protected int[]            colTypes;
+  protected Exception        lastException;
+  protected int              rowCount;
+
+  /* lookahead, JDBC does not provide a reliable hasNext() */
+  protected Map<String, Object> nextRecord;
+
+  public EOSQLResultIterator
+    (final EOAdaptorChannel _channel, final Statement _stmt,
+     final ResultSet _rs, final String[] _colNames, final int[] _colTypes)
+  {
+    this.channel   = _channel;
+    this.statement = _stmt;
+    this.resultSet = _rs;
+    this.colNames  = _colNames;
+    this.colTypes  = _colTypes;
+
+    this.colHashes = new int[_colNames.length];
+    for (int i = 0; i < _colNames.length; i++)
+      this.colHashes[i] = _colNames[i].hashCode();
   }
-  
+
   /* accessors */
-  
+
   public Exception lastException() {
     return this.lastException;
   }
-  
+
+  /**
+   * Returns the number of records which got retrieved so far.
+   */
+  public int rowCount() {
+    return this.rowCount;
+  }
+
+  public boolean isClosed() {
+    return this.resultSet == null;
+  }
+
   /* operations */
-  
+
   public Exception close() {
     /* Note: does not affect lastException */
     Exception e = null;
 
-    try {
-      this.resultSet.close();
+    this.nextRecord = null;
+
+    if (this.resultSet != null) {
+      try {
+        this.resultSet.close();
+      }
+      catch (final SQLException ce) {
+        e = ce;
+        log.error("failed to close SQL result set", ce);
+      }
       this.resultSet = null;
     }
-    catch (SQLException ce) {
-      if (e == null) e = ce;
-      System.err.println("failed to close a SQL resultset");
-    }
 
-    try {
-      this.statement.close();
+    if (this.statement != null) {
+      if (this.channel != null) {
+        /* let the channel decide whether the statement can be cached */
+        if (!this.channel._releaseResources(this.statement, null) && e == null)
+          e = new SQLException("failed to release SQL statement");
+      }
+      else {
+        try {
+          this.statement.close();
+        }
+        catch (final SQLException ce) {
+          if (e == null) e = ce;
+          log.error("failed to close SQL statement", ce);
+        }
+      }
       this.statement = null;
     }
-    catch (SQLException ce) {
-      if (e == null) e = ce;
-      System.err.println("failed to close a SQL statement");
-    }
-    
+
+    this.channel = null;
     return e;
   }
 
-  public boolean hasNext() {
+  /**
+   * Advances the ResultSet and converts the current row into a record. Closes
+   * the iterator if there are no more rows, or if an error occurred.
+   *
+   * @return the next record, or null if there are no more
+   */
+  protected Map<String, Object> fetchNextRecord() {
+    if (this.resultSet == null)
+      return null;
+
     try {
-      if (this.resultSet.isLast())
-        return false;
-      if (this.resultSet.isAfterLast())
-        return false;
+      while (this.resultSet.next()) {
+        final EORecordMap record =
+          new EORecordMap(this.colNames, this.colHashes);
+
+        if (this.channel.fillRecordMapFromResultSet
+              (record, this.resultSet, this.colNames, this.colTypes))
+        {
+          this.rowCount++;
+          return record;
+        }
+      }
     }
-    catch (SQLException e) {
+    catch (final SQLException e) {
       this.lastException = e;
-      return false;
+      log.warn("could not fetch next row (state=" + e.getSQLState() + ")", e);
     }
-    return true;
+
+    close();
+    return null;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (this.nextRecord == null)
+      this.nextRecord = fetchNextRecord();
+    return this.nextRecord != null;
   }
 
-  public Object next() {
-    return null; // TBD
+  @Override
+  public Map<String, Object> next() {
+    if (!hasNext())
+      throw new NoSuchElementException("no more rows in SQL result");
+
+    final Map<String, Object> record = this.nextRecord;
+    this.nextRecord = null;
+    return record;
   }
 
+  @Override
   public void remove() {
-    /* not implemented? */
+    throw new UnsupportedOperationException
+      ("EOSQLResultIterator does not support remove");
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(this.resultSet != null ? " open" : " closed");
+    _d.append(" #rows=");
+    _d.append(this.rowCount);
+    if (this.lastException != null) {
+      _d.append(" error=");
+      _d.append(this.lastException);
+    }
   }
 }
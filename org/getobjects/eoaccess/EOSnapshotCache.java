@@ -0,0 +1,401 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.eoaccess;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eocontrol.EOAndQualifier;
+import org.getobjects.eocontrol.EOFetchSpecification;
+import org.getobjects.eocontrol.EOGlobalID;
+import org.getobjects.eocontrol.EOKeyGlobalID;
+import org.getobjects.eocontrol.EOKeyValueQualifier;
+import org.getobjects.eocontrol.EOQualifier;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * EOSnapshotCache
+ * <p>
+ * A process wide cache of database rows (snapshots), keyed by EOGlobalID.
+ * It is attached to an EODatabase and shared by all EODatabaseChannels (and
+ * hence all EOEditingContexts) of that database.
+ * <p>
+ * Only entities which are marked as 'cachesObjects' in the model are cached,
+ * this is intended for reference data like countries or categories. Eg:<pre>
+ *   &lt;entity name="Country" table="country" primarykey="id"
+ *           cache="true" cacheTimeout="600" cacheSize="500"&gt;</pre>
+ * The timeout is in seconds, the size is the maximum number of rows kept for
+ * the entity.
+ * <p>
+ * The EODatabaseChannel answers primary key fetches and primary key based
+ * relationship prefetches from the cache. Any write to an entity (done using
+ * performDatabaseOperations()) drops all cached rows of that entity.
+ * <p>
+ * Each invalidation bumps a per-entity generation. A fetch grabs the
+ * generation before it runs the SELECT and passes it to recordSnapshot(),
+ * which drops the row if the entity got invalidated in the meantime (the
+ * row might have been read before the write got committed).
+ * <p>
+ * THREAD: this object is thread safe.
+ *
+ * @see EODatabase
+ * @see EODatabaseChannel
+ */
+public class EOSnapshotCache extends NSObject {
+  protected static final Log log = LogFactory.getLog("EODatabase");
+
+  protected final ConcurrentHashMap<String, EntityCache> entityCaches;
+  protected final ConcurrentHashMap<String, AtomicLong>  generations;
+
+  protected final LongAdder hits          = new LongAdder();
+  protected final LongAdder misses        = new LongAdder();
+  protected final LongAdder invalidations = new LongAdder();
+
+  public EOSnapshotCache() {
+    this.entityCaches = new ConcurrentHashMap<>(16);
+    this.generations  = new ConcurrentHashMap<>(16);
+  }
+
+  /* accessors */
+
+  public long hitCount() {
+    return this.hits.sum();
+  }
+  public long missCount() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Returns the ratio of lookups which could be answered from the cache.
+   *
+   * @return the hit rate, a value between 0.0 and 1.0
+   */
+  public double hitRate() {
+    final long h = this.hits.sum();
+    final long total = h + this.misses.sum();
+    return total > 0 ? (double)h / (double)total : 0.0;
+  }
+
+  /* cache */
+
+  /**
+   * Returns a copy of the cached row for the given global-id, or null if the
+   * row is not cached (or if it expired).
+   *
+   * @param _entity - the entity of the object
+   * @param _gid    - the global-id of the object
+   * @return a copy of the row, or null
+   */
+  public Map<String, Object> snapshotForGlobalID
+    (final EOEntity _entity, final EOGlobalID _gid)
+  {
+    if (_entity == null || _gid == null || !_entity.cachesObjects())
+      return null;
+
+    final EntityCache cache = this.entityCaches.get(_entity.name());
+    final Map<String, Object> row =
+      cache != null ? cache.get(_gid, System.currentTimeMillis()) : null;
+
+    if (row == null) {
+      this.misses.increment();
+      return null;
+    }
+    this.hits.increment();
+    return new HashMap<>(row);
+  }
+
+  /**
+   * Returns the current invalidation generation of the given entity. Fetches
+   * must retrieve it before they run the query and pass it to
+   * recordSnapshot().
+   *
+   * @param _entity - the entity
+   * @return the generation counter of the entity
+   */
+  public long generationOfEntity(final EOEntity _entity) {
+    if (_entity == null)
+      return 0;
+    final AtomicLong generation = this.generations.get(_entity.name());
+    return generation != null ? generation.get() : 0;
+  }
+
+  /**
+   * Records the row of an object in the cache. This does nothing if the
+   * entity does not cache its objects, or if the entity got invalidated since
+   * the given generation was retrieved (the row might be stale).
+   *
+   * @param _entity     - the entity of the object
+   * @param _gid        - the global-id of the object
+   * @param _row        - the database row, a copy is stored
+   * @param _generation - the generationOfEntity() before the fetch was done
+   */
+  public void recordSnapshot
+    (final EOEntity _entity, final EOGlobalID _gid,
+     final Map<String, Object> _row, final long _generation)
+  {
+    if (_entity == null || _gid == null || _row == null)
+      return;
+    if (!_entity.cachesObjects())
+      return;
+    if (this.generationOfEntity(_entity) != _generation)
+      return; /* invalidated while we fetched */
+
+    EntityCache cache = this.entityCaches.get(_entity.name());
+    if (cache == null) {
+      cache = new EntityCache
+        (_entity.cacheSize(), _entity.cacheTimeout() * 1000L);
+      final EntityCache other =
+        this.entityCaches.putIfAbsent(_entity.name(), cache);
+      if (other != null) cache = other;
+    }
+
+    final Map<String, Object> row = new HashMap<>(_row);
+    cache.put(_gid, row, System.currentTimeMillis());
+
+    /* an invalidation might have run between the check and the put */
+    if (this.generationOfEntity(_entity) != _generation)
+      cache.remove(_gid, row);
+  }
+
+  /**
+   * Drops all cached rows of the entity with the given name. This is called
+   * after changes have been written to the database.
+   *
+   * @param _entityName - the name of the entity
+   */
+  public void invalidateEntityNamed(final String _entityName) {
+    if (_entityName == null)
+      return;
+
+    /* bump the generation first, so that running fetches drop their rows */
+    AtomicLong generation = this.generations.get(_entityName);
+    if (generation == null) {
+      final AtomicLong other =
+        this.generations.putIfAbsent(_entityName, generation = new AtomicLong());
+      if (other != null) generation = other;
+    }
+    generation.incrementAndGet();
+
+    if (this.entityCaches.remove(_entityName) != null) {
+      this.invalidations.increment();
+      if (log.isDebugEnabled())
+        log.debug("invalidated snapshot cache of entity: " + _entityName);
+    }
+  }
+
+  /**
+   * Drops the cached rows of all entities which are affected by the given
+   * adaptor operations.
+   *
+   * @param _ops - the EOAdaptorOperations which got performed
+   */
+  public void invalidateEntitiesOfOperations
+    (final Iterable<EOAdaptorOperation> _ops)
+  {
+    if (_ops == null)
+      return;
+
+    for (final EOAdaptorOperation op: _ops) {
+      final EOEntity entity = op != null ? op.entity() : null;
+      if (entity != null && entity.cachesObjects())
+        this.invalidateEntityNamed(entity.name());
+    }
+  }
+
+  /**
+   * Drops all cached rows.
+   */
+  public void clear() {
+    this.entityCaches.clear();
+  }
+
+  /* fetches */
+
+  /**
+   * Checks whether the rows returned by the given fetch specification can be
+   * recorded in (or served from) the cache. This is the case if the entity
+   * caches its objects and the fetch retrieves complete rows (no locking,
+   * no raw rows, no restricted attributes and no custom SQL).
+   *
+   * @param _entity - the entity of the fetch
+   * @param _fs     - the fetch specification
+   * @return true if the fetch results can be cached
+   */
+  public boolean isCacheableFetch
+    (final EOEntity _entity, final EOFetchSpecification _fs)
+  {
+    if (_entity == null || _fs == null || !_entity.cachesObjects())
+      return false;
+    if (_fs.locksObjects() || _fs.fetchesRawRows())
+      return false;
+    if (_fs.fetchAttributeNames() != null)
+      return false;
+
+    final Map<String, Object> hints = _fs.hints();
+    if (hints != null &&
+        hints.get(EOSQLExpression.EOCustomQueryExpressionHintKey) != null)
+      return false;
+    return true;
+  }
+
+  /**
+   * Checks whether the given fetch specification just fetches a single object
+   * by its primary key, and returns the global-id of that object if so.
+   *
+   * @param _entity - the entity of the fetch
+   * @param _fs     - the fetch specification
+   * @return the EOGlobalID of the object, or null if its not a pkey fetch
+   */
+  public EOGlobalID globalIDForPrimaryKeyFetch
+    (final EOEntity _entity, final EOFetchSpecification _fs)
+  {
+    if (!this.isCacheableFetch(_entity, _fs) || _fs.fetchOffset() > 0)
+      return null;
+
+    final String[] pkeys = _entity.primaryKeyAttributeNames();
+    if (pkeys == null || pkeys.length == 0)
+      return null;
+
+    final EOQualifier q = _fs.qualifier();
+    final EOQualifier[] qs;
+    if (q instanceof EOKeyValueQualifier)
+      qs = new EOQualifier[] { q };
+    else if (q != null && q.getClass() == EOAndQualifier.class)
+      qs = ((EOAndQualifier)q).qualifiers();
+    else
+      return null;
+
+    if (qs == null || qs.length != pkeys.length)
+      return null;
+
+    final Object[] values = new Object[pkeys.length];
+    for (final EOQualifier sq: qs) {
+      if (sq == null || sq.getClass() != EOKeyValueQualifier.class)
+        return null;
+
+      final EOKeyValueQualifier kvq = (EOKeyValueQualifier)sq;
+      if (kvq.operation() != EOQualifier.ComparisonOperation.EQUAL_TO)
+        return null;
+
+      final Object v = kvq.value();
+      if (v == null || v instanceof EORawSQLValue)
+        return null;
+
+      int idx = -1;
+      for (int i = 0; i < pkeys.length; i++) {
+        if (pkeys[i].equals(kvq.key())) {
+          idx = i;
+          break;
+        }
+      }
+      if (idx < 0 || values[idx] != null)
+        return null; /* not a pkey, or the same pkey twice */
+      values[idx] = v;
+    }
+
+    return EOKeyGlobalID.globalIDWithEntityName(_entity.name(), values);
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" entities=");
+    _d.append(this.entityCaches.keySet());
+    _d.append(" hits=");
+    _d.append(this.hits.sum());
+    _d.append(" misses=");
+    _d.append(this.misses.sum());
+    _d.append(" invalidations=");
+    _d.append(this.invalidations.sum());
+  }
+
+
+  /* per entity cache */
+
+  protected static class EntityCache {
+    protected final int  maxSize;
+    protected final long timeoutInMS;
+    protected final LinkedHashMap<EOGlobalID, Entry> entries;
+
+    protected EntityCache(final int _maxSize, final long _timeoutInMS) {
+      this.maxSize     = _maxSize > 0 ? _maxSize : 1000;
+      this.timeoutInMS = _timeoutInMS;
+      this.entries     =
+        new LinkedHashMap<EOGlobalID, Entry>(64, 0.75f, true /* LRU */)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<EOGlobalID,Entry> e)
+        {
+          return this.size() > EntityCache.this.maxSize;
+        }
+      };
+    }
+
+    protected synchronized Map<String, Object> get
+      (final EOGlobalID _gid, final long _now)
+    {
+      final Entry entry = this.entries.get(_gid);
+      if (entry == null)
+        return null;
+
+      if (this.timeoutInMS > 0 && _now - entry.timestamp > this.timeoutInMS) {
+        this.entries.remove(_gid);
+        return null;
+      }
+      return entry.row;
+    }
+
+    protected synchronized void put
+      (final EOGlobalID _gid, final Map<String, Object> _row, final long _now)
+    {
+      this.entries.put(_gid, new Entry(_row, _now));
+    }
+
+    protected synchronized void remove
+      (final EOGlobalID _gid, final Map<String, Object> _row)
+    {
+      final Entry entry = this.entries.get(_gid);
+      if (entry != null && entry.row == _row)
+        this.entries.remove(_gid);
+    }
+  }
+
+  protected static class Entry {
+    protected final Map<String, Object> row;
+    protected final long                timestamp;
+
+    protected Entry(final Map<String, Object> _row, final long _timestamp) {
+      this.row       = _row;
+      this.timestamp = _timestamp;
+    }
+  }
+}
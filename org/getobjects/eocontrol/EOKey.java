@@ -24,6 +24,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 
+import org.getobjects.foundation.NSKeyPath;
 import org.getobjects.foundation.NSKeyValueCodingAdditions;
 
 /**
@@ -36,10 +37,12 @@ import org.getobjects.foundation.NSKeyValueCodingAdditions;
  */
 public class EOKey<T> extends EOExpression implements EOExpressionEvaluation {
   
-  protected String keyPath;
+  protected String    keyPath;
+  protected NSKeyPath parsedKeyPath; /* shared, caches the accessors */
   
   public EOKey(final String _key) {
-    this.keyPath = _key;
+    this.keyPath       = _key;
+    this.parsedKeyPath = NSKeyPath.keyPathWithString(_key);
   }
   
   
@@ -49,6 +52,16 @@ public class EOKey<T> extends EOExpression implements EOExpressionEvaluation {
     return this.keyPath;
   }
   
+  /**
+   * Returns the parsed keypath, which can be evaluated against objects
+   * w/o parsing the String again.
+   * 
+   * @return the NSKeyPath for the key, or null if the key is null
+   */
+  public NSKeyPath parsedKeyPath() {
+    return this.parsedKeyPath;
+  }
+  
   
   /* qualifiers */
   
@@ -240,21 +253,18 @@ public class EOKey<T> extends EOExpression implements EOExpressionEvaluation {
   /* values */
   
   public Object rawValueInObject(final Object _o) {
-    if (_o == null)
+    if (_o == null || this.parsedKeyPath == null)
       return null;
     
-    if (_o instanceof NSKeyValueCodingAdditions)
-      return ((NSKeyValueCodingAdditions)_o).valueForKeyPath(this.keyPath);
-    
-    return NSKeyValueCodingAdditions.Utility.valueForKeyPath(_o, this.keyPath);
+    return this.parsedKeyPath.valueInObject(_o);
   }
   public Object rawValueInObject(final NSKeyValueCodingAdditions _o) {
     return _o != null ? _o.valueForKeyPath(this.keyPath) : null;
   }
   
   public void takeValueInObject(final Object _value, final Object _object) {
-    NSKeyValueCodingAdditions.Utility.takeValueForKeyPath(
-        _object, _value, this.keyPath);
+    if (this.parsedKeyPath != null)
+      this.parsedKeyPath.takeValueInObject(_value, _object);
   }
   public void takeValueInObject(Object _value, NSKeyValueCodingAdditions _obj) {
     if (_obj != null)
@@ -22,10 +22,11 @@ package org.getobjects.eocontrol;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import org.getobjects.foundation.NSKeyPath;
+
 /**
  * EOSortOrdering
  * <p>
@@ -46,8 +47,9 @@ public class EOSortOrdering extends EOExpression {
   public static final Object EOCompareCaseInsensitiveDescending = 
     "EOCompareCaseInsensitiveDescending"; 
   
-  protected String key      = null;
-  protected Object selector = null; /* maybe we want to use other objects */
+  protected String    key      = null;
+  protected Object    selector = null; /* maybe we want to use other objects */
+  protected NSKeyPath parsedKeyPath;
   
   public EOSortOrdering(final String _key, final Object _sel) {
     this.key      = _key;
@@ -133,6 +135,17 @@ public class EOSortOrdering extends EOExpression {
     return this.key;
   }
   
+  /**
+   * Returns the parsed key, used to retrieve the values in in-memory sorts.
+   * 
+   * @return the NSKeyPath for the key, or null if the key is null
+   */
+  public NSKeyPath parsedKeyPath() {
+    if (this.parsedKeyPath == null && this.key != null)
+      this.parsedKeyPath = NSKeyPath.keyPathWithString(this.key);
+    return this.parsedKeyPath;
+  }
+  
   /**
    * Returns the selector to use for the sort. There are four predefined
    * selectors:
@@ -154,18 +167,21 @@ public class EOSortOrdering extends EOExpression {
   /**
    * Sorts a list based on the given sort orderings. This performs an "inline"
    * sort, that is, it modifies the List which is passed in.
+   * <p>
+   * The values of the sort keys are retrieved once per object, not once per
+   * comparison (see EOSortOrderingComparator.sort()). Very large lists are
+   * sorted in parallel.
    * 
    * @param _list - the List of KVC objects to be sorted
    * @param _sos  - an array of EOSortOrdering's which specify the sort
    */
-  @SuppressWarnings("unchecked")
   public static void sort(final List _list, final EOSortOrdering[] _sos) {
     if (_list == null)
       return;
     if (_sos == null || _sos.length == 0) /* nothing to sort */
       return;
     
-    Collections.sort(_list, new EOSortOrderingComparator(_sos));
+    new EOSortOrderingComparator(_sos).sort(_list);
   }
   
   /**
@@ -21,9 +21,12 @@
 
 package org.getobjects.eocontrol;
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
 
-import org.getobjects.foundation.NSKeyValueCodingAdditions;
+import org.getobjects.foundation.NSKeyPath;
 import org.getobjects.foundation.NSObject;
 
 /*
@@ -31,70 +34,303 @@ import org.getobjects.foundation.NSObject;
  * 
  * Used by EOSortOrdering.sort to sort a list based on an array of sort
  * orderings.
+ * 
+ * The compare() method retrieves the values using KVC on each call. To sort
+ * larger lists, use sort(), which retrieves the values of each object just
+ * once (decorate-sort-undecorate). Numbers are stored as unboxed longs or
+ * doubles and strings of case insensitive orderings are lowercased upfront.
  */
 public class EOSortOrderingComparator extends NSObject
   implements Comparator
 {
+  /* lists below this size are sorted using compare() */
+  protected static final int minExtractSortSize  = 8;
+  /* lists above this size are sorted using Arrays.parallelSort() */
+  protected static final int minParallelSortSize = 65536;
+  
   protected EOSortOrdering[] sortOrderings = null;
   
   public EOSortOrderingComparator(EOSortOrdering[] _orderings) {
     this.sortOrderings = _orderings;
   }
-
-  @SuppressWarnings("unchecked")
+  
   public int compare(Object _obj1, Object _obj2) {
     // TODO: this needs a unit test
     for (int i = 0; i < this.sortOrderings.length; i++) {
-      String key = this.sortOrderings[i].key();
-      Object sel = this.sortOrderings[i].selector();
-      int    result;
+      NSKeyPath key = this.sortOrderings[i].parsedKeyPath();
+      Object    sel = this.sortOrderings[i].selector();
       
-      Object v1 = NSKeyValueCodingAdditions.Utility.valueForKeyPath(_obj1, key);
-      Object v2 = NSKeyValueCodingAdditions.Utility.valueForKeyPath(_obj2, key);
+      Object v1 = key != null ? key.valueInObject(_obj1) : null;
+      Object v2 = key != null ? key.valueInObject(_obj2) : null;
       
-      boolean isAsc = (sel == EOSortOrdering.EOCompareAscending || 
-                       sel == EOSortOrdering.EOCompareCaseInsensitiveAscending);
+      if (isCaseInsensitive(sel)) {
+        if (v1 instanceof String)
+          v1 = ((String)v1).toLowerCase();
+        if (v2 instanceof String)
+          v2 = ((String)v2).toLowerCase();
+      }
       
-      if (v1 == v2)
-        result = 0 /* same */;
-      else if (v1 == null)
-        result = isAsc ? -1 : 1;
-      else if (v2 == null)
-        result = isAsc ? 1 : -1;
-      else {
-        if (sel == EOSortOrdering.EOCompareCaseInsensitiveAscending ||
-            sel == EOSortOrdering.EOCompareCaseInsensitiveDescending) {
-          if (v1 instanceof String)
-            v1 = ((String)v1).toLowerCase();
-          if (v2 instanceof String)
-            v2 = ((String)v2).toLowerCase();
+      final int result = compareValues(v1, v2, isAscending(sel));
+      if (result != 0 /* same */)
+        return result;
+    }
+    return 0 /* same */;
+  }
+  
+  public static boolean isAscending(final Object _sel) {
+    return _sel == EOSortOrdering.EOCompareAscending || 
+           _sel == EOSortOrdering.EOCompareCaseInsensitiveAscending;
+  }
+  public static boolean isCaseInsensitive(final Object _sel) {
+    return _sel == EOSortOrdering.EOCompareCaseInsensitiveAscending ||
+           _sel == EOSortOrdering.EOCompareCaseInsensitiveDescending;
+  }
+  
+  /**
+   * Compares two values of a sort key. Case insensitive orderings must have
+   * lowercased the values already.
+   * 
+   * @param v1    - the first value
+   * @param v2    - the second value
+   * @param isAsc - whether the ordering is ascending
+   * @return the result of the comparison, considering the direction
+   */
+  @SuppressWarnings("unchecked")
+  public static int compareValues(Object v1, Object v2, final boolean isAsc) {
+    if (v1 == v2)
+      return 0 /* same */;
+    if (v1 == null)
+      return isAsc ? -1 : 1;
+    if (v2 == null)
+      return isAsc ? 1 : -1;
+    
+    boolean isV1Num = v1 instanceof Number;
+    boolean isV2Str = v2 instanceof String;
+    
+    /* special hacks to improve SOPE compatibility */
+    if (isV1Num && isV2Str) {
+      /* This is useful in combination with property lists where numbers
+       * are sometimes parsed as numbers or strings depending on the
+       * syntax. But not so in SOPE.
+       */
+      v1 = v1.toString();
+    }
+    else if (v1 instanceof String && (!isV2Str && v2 instanceof Number)) {
+      v2 = v2.toString();
+    }
+    else if (isV1Num && v2 instanceof Number && v1.getClass() != v2.getClass()){
+      /* eg Integer vs Long, which would fail in compareTo(). Compare them
+       * like the LongColumn/DoubleColumn of sort() does. */
+      final int result = isIntegral(v1) && isIntegral(v2)
+        ? Long.compare(((Number)v1).longValue(), ((Number)v2).longValue())
+        : Double.compare(((Number)v1).doubleValue(),
+                         ((Number)v2).doubleValue());
+      return isAsc ? result : -result;
+    }
+
+    /* do the compare */
+    Comparable c1 = (Comparable)v1;
+    int result = c1.compareTo(v2);
+    
+    return isAsc ? result : -result;
+  }
+  
+  
+  /* decorate-sort-undecorate */
+  
+  /**
+   * Sorts the given list inline. Small lists are sorted using compare(), for
+   * larger lists the values of the sort keys are extracted once per object
+   * and the sort is performed on those. The sort is stable, like
+   * Collections.sort().
+   * 
+   * @param _list - the list to sort
+   */
+  @SuppressWarnings("unchecked")
+  public void sort(final List<?> _list) {
+    if (_list == null)
+      return;
+    
+    final List<Object> list = (List<Object>)_list;
+    final int count = list.size();
+    if (count < 2)
+      return;
+    if (count < minExtractSortSize) {
+      list.sort(this);
+      return;
+    }
+    
+    /* decorate */
+    
+    final Object[] objects = list.toArray();
+    final SortColumn[] columns = new SortColumn[this.sortOrderings.length];
+    for (int i = 0; i < columns.length; i++)
+      columns[i] = SortColumn.columnForObjects(objects, this.sortOrderings[i]);
+    
+    /* sort */
+    
+    final Integer[] indices = new Integer[count];
+    for (int i = 0; i < count; i++)
+      indices[i] = i;
+    
+    final Comparator<Integer> cmp = (i1, i2) -> {
+      final int a = i1.intValue(), b = i2.intValue();
+      for (final SortColumn column: columns) {
+        final int result = column.compare(a, b);
+        if (result != 0 /* same */)
+          return result;
+      }
+      return 0 /* same */;
+    };
+    if (count >= minParallelSortSize)
+      Arrays.parallelSort(indices, cmp); /* stable, like Arrays.sort() */
+    else
+      Arrays.sort(indices, cmp);
+    
+    /* undecorate */
+    
+    final ListIterator<Object> it = list.listIterator();
+    for (int i = 0; i < count; i++) {
+      it.next();
+      it.set(objects[indices[i].intValue()]);
+    }
+  }
+  
+  static boolean isIntegral(final Object _v) {
+    return _v instanceof Long || _v instanceof Integer ||
+           _v instanceof Short || _v instanceof Byte;
+  }
+  
+  /**
+   * The values of one sort ordering, indexed like the objects being sorted.
+   */
+  static abstract class SortColumn {
+    final boolean   isAsc;
+    final boolean[] isNull;
+    
+    SortColumn(final boolean _isAsc, final boolean[] _isNull) {
+      this.isAsc  = _isAsc;
+      this.isNull = _isNull;
+    }
+    
+    abstract int compareValues(final int a, final int b);
+    
+    final int compare(final int a, final int b) {
+      if (this.isNull != null) {
+        final boolean n1 = this.isNull[a], n2 = this.isNull[b];
+        if (n1 || n2) {
+          if (n1 == n2) return 0 /* same */;
+          if (n1) return this.isAsc ? -1 : 1;
+          return this.isAsc ? 1 : -1;
         }
+      }
+      final int result = this.compareValues(a, b);
+      return this.isAsc ? result : -result;
+    }
+    
+    /**
+     * Retrieves the values of the ordering for all objects and stores them
+     * in a column suitable for the value types.
+     */
+    static SortColumn columnForObjects
+      (final Object[] _objects, final EOSortOrdering _so)
+    {
+      final NSKeyPath key   = _so.parsedKeyPath();
+      final Object    sel   = _so.selector();
+      final boolean   isAsc = isAscending(sel);
+      final int       count = _objects.length;
+      
+      final Object[] values = new Object[count];
+      boolean hasNulls = false, allIntegers = true, allFloats = true;
+      for (int i = 0; i < count; i++) {
+        final Object v = key != null ? key.valueInObject(_objects[i]) : null;
+        values[i] = v;
         
-        boolean isV1Num = v1 instanceof Number;
-        boolean isV2Str = v2 instanceof String;
-        
-        /* special hacks to improve SOPE compatibility */
-        if (isV1Num && isV2Str) {
-          /* This is useful in combination with property lists where numbers
-           * are sometimes parsed as numbers or strings depending on the
-           * syntax. But not so in SOPE.
-           */
-          v1 = v1.toString();
+        if (v == null)
+          hasNulls = true;
+        else if (isIntegral(v))
+          allFloats = false;
+        else if (v instanceof Double || v instanceof Float)
+          allIntegers = false;
+        else
+          allIntegers = allFloats = false;
+      }
+      
+      boolean[] isNull = null;
+      if (hasNulls) {
+        isNull = new boolean[count];
+        for (int i = 0; i < count; i++)
+          isNull[i] = values[i] == null;
+      }
+      
+      if (allIntegers) {
+        final long[] longs = new long[count];
+        for (int i = 0; i < count; i++) {
+          if (values[i] != null)
+            longs[i] = ((Number)values[i]).longValue();
         }
-        else if (v1 instanceof String && (!isV2Str && v2 instanceof Number)) {
-          v2 = v2.toString();
+        return new LongColumn(isAsc, isNull, longs);
+      }
+      if (allFloats) {
+        final double[] doubles = new double[count];
+        for (int i = 0; i < count; i++) {
+          if (values[i] != null)
+            doubles[i] = ((Number)values[i]).doubleValue();
         }
-
-        /* do the compare */
-        Comparable c1 = (Comparable)v1;
-        result = c1.compareTo(v2);
-        
-        if (!isAsc) result = -result;
+        return new DoubleColumn(isAsc, isNull, doubles);
       }
       
-      if (result != 0 /* same */)
-        return result;
+      if (isCaseInsensitive(sel)) {
+        for (int i = 0; i < count; i++) {
+          if (values[i] instanceof String)
+            values[i] = ((String)values[i]).toLowerCase();
+        }
+      }
+      return new ObjectColumn(isAsc, isNull, values);
+    }
+  }
+  
+  static final class LongColumn extends SortColumn {
+    final long[] values;
+    
+    LongColumn(final boolean _isAsc, final boolean[] _isNull, long[] _values) {
+      super(_isAsc, _isNull);
+      this.values = _values;
+    }
+    
+    @Override
+    int compareValues(final int a, final int b) {
+      return Long.compare(this.values[a], this.values[b]);
+    }
+  }
+  
+  static final class DoubleColumn extends SortColumn {
+    final double[] values;
+    
+    DoubleColumn(final boolean _isAsc, final boolean[] _isNull, double[] _vals){
+      super(_isAsc, _isNull);
+      this.values = _vals;
+    }
+    
+    @Override
+    int compareValues(final int a, final int b) {
+      return Double.compare(this.values[a], this.values[b]);
+    }
+  }
+  
+  static final class ObjectColumn extends SortColumn {
+    final Object[] values;
+    
+    ObjectColumn(final boolean _isAsc, final boolean[] _isNull, Object[] _vals){
+      super(_isAsc, _isNull);
+      this.values = _vals;
+    }
+    
+    @Override
+    int compareValues(final int a, final int b) {
+      /* nulls are handled by the column, the direction too */
+      return EOSortOrderingComparator.compareValues
+        (this.values[a], this.values[b], true /* asc */);
     }
-    return 0 /* same */;
   }
 }
@@ -0,0 +1,163 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.eocontrol.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.getobjects.eocontrol.EOSortOrdering;
+import org.getobjects.eocontrol.EOSortOrderingComparator;
+import org.junit.Test;
+
+/**
+ * Checks that EOSortOrdering.sort(), which extracts the sort keys of larger
+ * lists, returns the same order as a plain sort using the compare() method
+ * of EOSortOrderingComparator.
+ */
+public class EOSortOrderingTests {
+
+  /* sizes below and above the extract threshold (8) */
+  static final int[] sizes = { 2, 5, 7, 8, 9, 40, 333 };
+
+  static final EOSortOrdering[] byValueAsc =
+    { new EOSortOrdering("value", EOSortOrdering.EOCompareAscending) };
+  static final EOSortOrdering[] byValueDesc =
+    { new EOSortOrdering("value", EOSortOrdering.EOCompareDescending) };
+  static final EOSortOrdering[] byValueCaseInsensitive = {
+    new EOSortOrdering("value", EOSortOrdering.EOCompareCaseInsensitiveAscending)
+  };
+
+  @Test
+  public void testIntegers() {
+    this.checkAllSizes(byValueAsc,  3, 1, 4, 1, 5, 9, 2, 6, 5, 3);
+    this.checkAllSizes(byValueDesc, 3, 1, 4, 1, 5, 9, 2, 6, 5, 3);
+  }
+
+  @Test
+  public void testNulls() {
+    this.checkAllSizes(byValueAsc,  "b", null, "a", "c", null, "a");
+    this.checkAllSizes(byValueDesc, "b", null, "a", "c", null, "a");
+    this.checkAllSizes(byValueAsc,  7, null, 3, null, 12);
+    this.checkAllSizes(byValueDesc, 7, null, 3, null, 12);
+    this.checkAllSizes(byValueAsc,  2.5, null, -1.0, 7.25);
+
+    final List<Map<String, Object>> list = objects(20, 4, null, 2);
+    EOSortOrdering.sort(list, byValueAsc);
+    assertNull("nulls should sort first", list.get(0).get("value"));
+    EOSortOrdering.sort(list, byValueDesc);
+    assertNull("nulls should sort last", list.get(19).get("value"));
+  }
+
+  @Test
+  public void testStrings() {
+    this.checkAllSizes(byValueAsc,  "Mouse", "duck", "Duck", "mouse", "Goofy");
+    this.checkAllSizes(byValueDesc, "Mouse", "duck", "Duck", "mouse", "Goofy");
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    this.checkAllSizes(byValueCaseInsensitive,
+                       "Mouse", "duck", "Duck", "mouse", "Goofy", null);
+    this.checkAllSizes(new EOSortOrdering[] {
+      new EOSortOrdering("value",
+                         EOSortOrdering.EOCompareCaseInsensitiveDescending) },
+      "Mouse", "duck", "Duck", "mouse", "Goofy", null);
+  }
+
+  @Test
+  public void testMixedIntegerLong() {
+    this.checkAllSizes(byValueAsc,  3, 1L, 4, 1, 5L, 9, 2L, 6, null);
+    this.checkAllSizes(byValueDesc, 3, 1L, 4, 1, 5L, 9, 2L, 6, null);
+    this.checkAllSizes(byValueAsc,  3, 1.5, 4L, 2.5f, -1);
+  }
+
+  @Test
+  public void testNumberStringHack() {
+    /* numbers are compared as strings against strings, single digits keep
+     * that consistent */
+    this.checkAllSizes(byValueAsc,  3, "1", 4, "1", 5, "9", 2, "6", null);
+    this.checkAllSizes(byValueDesc, 3, "1", 4, "1", 5, "9", 2, "6", null);
+  }
+
+  @Test
+  public void testMultipleOrderings() {
+    final EOSortOrdering[] sos = {
+      new EOSortOrdering("value", EOSortOrdering.EOCompareAscending),
+      new EOSortOrdering("idx",   EOSortOrdering.EOCompareDescending)
+    };
+    for (final int size: sizes)
+      this.checkSort(sos, objects(size, "b", "a", null, "c"));
+  }
+
+  @Test
+  public void testLargeList() {
+    this.checkSort(byValueDesc, objects(70000, 3, 1, 4, 1, 5, 9, 2, 6, null));
+  }
+
+
+  /* support */
+
+  protected void checkAllSizes(final EOSortOrdering[] _sos, Object... _vals) {
+    for (final int size: sizes)
+      this.checkSort(_sos, objects(size, _vals));
+  }
+
+  @SuppressWarnings("unchecked")
+  protected void checkSort
+    (final EOSortOrdering[] _sos, final List<Map<String, Object>> _objects)
+  {
+    final List<Map<String, Object>> expected = new ArrayList<>(_objects);
+    expected.sort(new EOSortOrderingComparator(_sos));
+
+    final List<Map<String, Object>> sorted = new ArrayList<>(_objects);
+    EOSortOrdering.sort(sorted, _sos);
+
+    assertEquals("size changed", expected.size(), sorted.size());
+    for (int i = 0, count = expected.size(); i < count; i++) {
+      assertSame("sort differs at " + i + " of " + count,
+                 expected.get(i), sorted.get(i));
+    }
+  }
+
+  /**
+   * Returns _count objects with an 'idx' and a 'value', the values are taken
+   * from _vals in a round robin fashion.
+   */
+  protected static List<Map<String, Object>> objects
+    (final int _count, final Object... _vals)
+  {
+    final List<Map<String, Object>> objects = new ArrayList<>(_count);
+    for (int i = 0; i < _count; i++) {
+      final Map<String, Object> object = new HashMap<>(2);
+      object.put("idx",   Integer.valueOf(i));
+      object.put("value", _vals[(i * 7) % _vals.length]);
+      objects.add(object);
+    }
+    return objects;
+  }
+}
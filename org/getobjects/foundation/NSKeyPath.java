@@ -0,0 +1,378 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.foundation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.getobjects.foundation.kvc.IPropertyAccessor;
+import org.getobjects.foundation.kvc.KVCWrapper;
+
+/**
+ * NSKeyPath
+ * <p>
+ * A parsed KVC keypath, eg 'person.address.city'. Unlike
+ * NSKeyValueCodingAdditions.Utility.valueForKeyPath(), which splits the path
+ * on each call, an NSKeyPath is parsed once and can be evaluated against any
+ * number of objects.
+ * <p>
+ * In addition each key of the path carries a small inline cache. It maps the
+ * class of the object the key was evaluated on to the IPropertyAccessor
+ * returned by the KVCWrapper of that class. So the usual case (the same
+ * classes are traversed again and again) needs no KVCWrapper lookups.
+ * The cache holds a few classes per key, if more classes are seen the key
+ * falls back to the regular NSKeyValueCoding.Utility.valueForKey().
+ * <p>
+ * Objects which override valueForKey() (eg to implement dynamic keys) are
+ * always asked using valueForKey(), the cache is only used for the default
+ * implementation in NSObject and for non-KVC objects.
+ * <p>
+ * Example:<pre>
+ *   NSKeyPath path = NSKeyPath.keyPathWithString("person.name");
+ *   for (Object o: objects)
+ *     System.out.println(path.valueInObject(o));</pre>
+ * <p>
+ * THREAD: NSKeyPath objects are immutable (the caches are thread safe) and
+ *         can be shared.
+ */
+public class NSKeyPath extends NSObject {
+
+  /* limits for the interned keypathes and the per key class cache */
+  protected static final int maxCacheSize     = 4096;
+  protected static final int maxClassesPerKey = 4;
+
+  protected static final ConcurrentHashMap<String, NSKeyPath> keyPathCache =
+    new ConcurrentHashMap<>(256);
+
+  protected final String     keyPath;
+  protected final String[]   keys;
+  protected final KeyCache[] keyCaches;
+
+  public NSKeyPath(final String _keyPath) {
+    this.keyPath   = _keyPath;
+    this.keys      = _keyPath != null ? splitKeyPath(_keyPath) : new String[0];
+    this.keyCaches = new KeyCache[this.keys.length];
+    for (int i = 0; i < this.keys.length; i++)
+      this.keyCaches[i] = new KeyCache(this.keys[i]);
+  }
+
+  /**
+   * Returns a shared NSKeyPath object for the given String. Use this if you
+   * have keypathes as Strings, it avoids parsing the same path over and over
+   * again and shares the class caches.
+   *
+   * @param _keyPath - the keypath, eg 'person.name'
+   * @return the NSKeyPath, or null if the _keyPath was null
+   */
+  public static NSKeyPath keyPathWithString(final String _keyPath) {
+    if (_keyPath == null)
+      return null;
+
+    NSKeyPath kp = keyPathCache.get(_keyPath);
+    if (kp != null)
+      return kp;
+
+    kp = new NSKeyPath(_keyPath);
+    if (keyPathCache.size() >= maxCacheSize)
+      keyPathCache.clear(); /* simple, but only happens w/ generated pathes */
+    final NSKeyPath other = keyPathCache.putIfAbsent(_keyPath, kp);
+    return other != null ? other : kp;
+  }
+
+  /**
+   * Splits the given path into its components, eg hello.world is
+   * split into [ hello, world ]. This works like
+   * <code>_path.split("\\.")</code>, but does not use a regular expression.
+   *
+   * @param _path - the keypath, eg 'person.employments.company.name'
+   * @return the components of the keypath, eg [ 'person', 'employments' ]
+   */
+  public static String[] splitKeyPath(final String _path) {
+    if (_path == null)
+      return null;
+
+    int idx = _path.indexOf('.');
+    if (idx < 0)
+      return new String[] { _path };
+
+    final List<String> keys = new ArrayList<>(4);
+    int start = 0;
+    while (idx >= 0) {
+      keys.add(_path.substring(start, idx));
+      start = idx + 1;
+      idx   = _path.indexOf('.', start);
+    }
+    keys.add(_path.substring(start));
+
+    /* like String.split(), drop trailing empty strings */
+    int count = keys.size();
+    while (count > 0 && keys.get(count - 1).length() == 0)
+      count--;
+    return keys.subList(0, count).toArray(new String[count]);
+  }
+
+
+  /* accessors */
+
+  public String keyPath() {
+    return this.keyPath;
+  }
+
+  /**
+   * Returns the components of the keypath. Do not modify the array.
+   *
+   * @return the keys, eg [ 'person', 'name' ] for 'person.name'
+   */
+  public String[] keys() {
+    return this.keys;
+  }
+
+  public int count() {
+    return this.keys.length;
+  }
+
+
+  /* values */
+
+  /**
+   * Returns the value of the keypath in the given object. This is the same
+   * like NSKeyValueCodingAdditions.Utility.valueForKeyPath(), that is, if
+   * the object has its own valueForKeyPath() implementation, that is used.
+   *
+   * @param _o - the object to evaluate the keypath on
+   * @return the value, or null if some key in the path returned null
+   */
+  public Object valueInObject(final Object _o) {
+    if (_o == null)
+      return null;
+
+    if (_o instanceof NSKeyValueCodingAdditions &&
+        hasCustomKeyPathImplementation.get(_o.getClass()).booleanValue())
+      return ((NSKeyValueCodingAdditions)_o).valueForKeyPath(this.keyPath);
+
+    return this.valueForKeysInObject(_o);
+  }
+
+  /**
+   * Evaluates the keys of the path one after another, starting at the given
+   * object. Unlike valueInObject() this never calls valueForKeyPath() on the
+   * object.
+   *
+   * @param _o - the object to evaluate the keypath on
+   * @return the value, or null if some key in the path returned null
+   */
+  public Object valueForKeysInObject(final Object _o) {
+    Object current = _o;
+    for (int i = 0; i < this.keyCaches.length && current != null; i++)
+      current = this.keyCaches[i].valueInObject(current);
+    return current;
+  }
+
+  /**
+   * Sets the value of the keypath in the given object. This is the same
+   * like NSKeyValueCodingAdditions.Utility.takeValueForKeyPath().
+   *
+   * @param _value - the value to set
+   * @param _o     - the object to evaluate the keypath on
+   */
+  public void takeValueInObject(final Object _value, final Object _o) {
+    if (_o == null)
+      return;
+
+    if (_o instanceof NSKeyValueCodingAdditions &&
+        hasCustomKeyPathImplementation.get(_o.getClass()).booleanValue())
+    {
+      ((NSKeyValueCodingAdditions)_o).takeValueForKeyPath(_value, this.keyPath);
+      return;
+    }
+
+    this.takeValueForKeysInObject(_value, _o);
+  }
+
+  /**
+   * Evaluates all but the last key of the path, and then sets the value for
+   * the last key using takeValueForKey(). Unlike takeValueInObject() this
+   * never calls takeValueForKeyPath() on the object.
+   *
+   * @param _value - the value to set
+   * @param _o     - the object to evaluate the keypath on
+   */
+  public void takeValueForKeysInObject(final Object _value, final Object _o) {
+    final int len = this.keyCaches.length;
+    if (len == 0)
+      return;
+
+    Object current = _o;
+    for (int i = 0; i < (len - 1) && current != null; i++)
+      current = this.keyCaches[i].valueInObject(current);
+    if (current == null)
+      return;
+
+    /* takeValueForKey() does value conversions, no caching here */
+    NSKeyValueCoding.Utility.takeValueForKey(current, _value, this.keys[len-1]);
+  }
+
+
+  /* class caches */
+
+  /**
+   * Classes which return true have a valueForKeyPath() or
+   * takeValueForKeyPath() implementation which does more than walking the
+   * keys (eg WODisplayGroup).
+   */
+  protected static final ClassValue<Boolean> hasCustomKeyPathImplementation =
+    new ClassValue<Boolean>() {
+      @Override
+      protected Boolean computeValue(final Class<?> _class) {
+        return !(isDefaultImplementation(_class, "valueForKeyPath",
+                                         String.class) &&
+                 isDefaultImplementation(_class, "takeValueForKeyPath",
+                                         Object.class, String.class));
+      }
+    };
+
+  /**
+   * Classes which return true use the valueForKey() implementation of
+   * NSObject, or do not implement NSKeyValueCoding at all. Their accessors
+   * can be cached.
+   */
+  protected static final ClassValue<Boolean> usesDefaultValueForKey =
+    new ClassValue<Boolean>() {
+      @Override
+      protected Boolean computeValue(final Class<?> _class) {
+        if (!NSKeyValueCoding.class.isAssignableFrom(_class))
+          return Boolean.TRUE;
+        return isDefaultImplementation(_class, "valueForKey", String.class);
+      }
+    };
+
+  protected static boolean isDefaultImplementation
+    (final Class<?> _class, final String _name, final Class<?>... _types)
+  {
+    try {
+      final Class<?> owner = _class.getMethod(_name, _types).getDeclaringClass();
+      return owner == NSObject.class || owner == NSException.class;
+    }
+    catch (final NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The inline cache of a single key. The entries array is replaced (not
+   * modified) when a class is added, so readers need no locking.
+   */
+  protected static final class KeyCache {
+
+    private static final ClassEntry[] emptyEntries = new ClassEntry[0];
+
+    protected final String key;
+    protected volatile ClassEntry[] entries = emptyEntries;
+
+    protected KeyCache(final String _key) {
+      this.key = _key;
+    }
+
+    protected Object valueInObject(final Object _o) {
+      final Class<?> clazz = _o.getClass();
+      final ClassEntry[] e = this.entries;
+      for (int i = 0; i < e.length; i++) {
+        if (e[i].clazz == clazz) {
+          final IPropertyAccessor accessor = e[i].accessor;
+          return accessor != null
+            ? accessor.get(_o, this.key)
+            : NSKeyValueCoding.Utility.valueForKey(_o, this.key);
+        }
+      }
+
+      if (e.length >= maxClassesPerKey) /* megamorphic, do not cache */
+        return NSKeyValueCoding.Utility.valueForKey(_o, this.key);
+
+      final ClassEntry entry = this.entryForObject(_o, clazz);
+      synchronized (this) {
+        final ClassEntry[] current = this.entries;
+        if (current.length < maxClassesPerKey) {
+          final ClassEntry[] newEntries = new ClassEntry[current.length + 1];
+          System.arraycopy(current, 0, newEntries, 0, current.length);
+          newEntries[current.length] = entry;
+          this.entries = newEntries;
+        }
+      }
+
+      return entry.accessor != null
+        ? entry.accessor.get(_o, this.key)
+        : NSKeyValueCoding.Utility.valueForKey(_o, this.key);
+    }
+
+    protected ClassEntry entryForObject(final Object _o, final Class<?> _c) {
+      IPropertyAccessor accessor = null;
+
+      if (usesDefaultValueForKey.get(_c).booleanValue()) {
+        /* Note: the accessors only depend on the class and the key, the
+         *       object is just passed along */
+        accessor = KVCWrapper.forClass(_c).getAccessor(_o, this.key);
+        if (accessor != null && !accessor.canReadKey(this.key))
+          accessor = null; /* let valueForKey() deal with unbound keys */
+      }
+      return new ClassEntry(_c, accessor);
+    }
+  }
+
+  protected static final class ClassEntry {
+    /* a null accessor means: call valueForKey() */
+    protected final Class<?>          clazz;
+    protected final IPropertyAccessor accessor;
+
+    protected ClassEntry(final Class<?> _c, final IPropertyAccessor _acc) {
+      this.clazz    = _c;
+      this.accessor = _acc;
+    }
+  }
+
+
+  /* equality */
+
+  @Override
+  public int hashCode() {
+    return this.keyPath != null ? this.keyPath.hashCode() : 0;
+  }
+
+  @Override
+  public boolean equals(final Object _other) {
+    if (_other == this) return true;
+    if (!(_other instanceof NSKeyPath)) return false;
+    final String otherPath = ((NSKeyPath)_other).keyPath;
+    return this.keyPath != null
+      ? this.keyPath.equals(otherPath) : otherPath == null;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" path=");
+    _d.append(this.keyPath);
+  }
+}
@@ -89,10 +89,7 @@ public interface NSKeyValueCodingAdditions extends NSKeyValueCoding {
      * @return the components of the keypath, eg [ 'person', 'employments' ]
      */
     public static String[] splitKeyPath(String _path) {
-      if (_path == null)
-        return null;
-      
-      return _path.split(KeyPathSeparatorRegEx);
+      return NSKeyPath.splitKeyPath(_path);
     }
   }
   
@@ -105,42 +102,16 @@ public interface NSKeyValueCodingAdditions extends NSKeyValueCoding {
       if (_o == null)
         return;
       
-      String[] path    = _keyPath.split(KeyPathSeparatorRegEx);
-      int      len     = path.length;
-      Object   current = _o;
-
-      if (len > 1) {
-        for (int i = 0; i < (len - 1) && current != null; i++) {
-          if (current instanceof NSKeyValueCoding)
-            current = ((NSKeyValueCoding)current).valueForKey(path[i]);
-          else
-            current = NSKeyValueCoding.Utility.valueForKey(current, path[i]);
-        }
-      }
-      if (current == null)
-        return;
-      
-      if (current instanceof NSKeyValueCoding)
-        ((NSKeyValueCoding)current).takeValueForKey(_value, path[len - 1]);
-      else
-        NSKeyValueCoding.Utility.takeValueForKey(current, _value, path[len-1]);
+      /* NSKeyPath caches the parsed path and the accessors */
+      NSKeyPath.keyPathWithString(_keyPath).takeValueForKeysInObject(_value, _o);
     }
     
     public static Object valueForKeyPath(Object _o, String _keyPath) {
       if (_o == null)
         return null;
-            
-      String[] path    = _keyPath.split(KeyPathSeparatorRegEx);
-      int      len     = path.length;
-      Object   current = _o;
-
-      for (int i = 0; i < len && current != null; i++) {
-        if (current instanceof NSKeyValueCoding)
-          current = ((NSKeyValueCoding)current).valueForKey(path[i]);
-        else
-          current = NSKeyValueCoding.Utility.valueForKey(current, path[i]);
-      }
-      return current;
+      
+      /* NSKeyPath caches the parsed path and the accessors */
+      return NSKeyPath.keyPathWithString(_keyPath).valueForKeysInObject(_o);
     }
 
     public static void takeValuesFromDictionary
@@ -289,16 +289,13 @@ public class UList extends NSObject {
     final int len = _objects.size();
     if (len == 0) return emptyList;
 
+    final NSKeyPath    path   = NSKeyPath.keyPathWithString(_path);
     final List<Object> values = new ArrayList<>(len);
     for (int i = 0; i < len; i++) {
       Object o = _objects.get(i);
 
-      if (o == null)
-        ;
-      else if (o instanceof NSKeyValueCodingAdditions)
-        o = ((NSKeyValueCodingAdditions)o).valueForKeyPath(_path);
-      else
-        o = NSKeyValueCodingAdditions.Utility.valueForKeyPath(o, _path);
+      if (o != null)
+        o = path.valueInObject(o);
 
       values.add(o);
     }
@@ -368,16 +365,13 @@ public class UList extends NSObject {
     final int len = _objects.length;
     if (len == 0) return emptyArray;
 
-    final Object[] values = new Object[len];
+    final NSKeyPath path   = NSKeyPath.keyPathWithString(_path);
+    final Object[]  values = new Object[len];
     for (int i = 0; i < len; i++) {
       Object o = _objects[i];
 
-      if (o == null)
-        ;
-      else if (o instanceof NSKeyValueCodingAdditions)
-        o = ((NSKeyValueCodingAdditions)o).valueForKeyPath(_path);
-      else
-        o = NSKeyValueCodingAdditions.Utility.valueForKeyPath(o, _path);
+      if (o != null)
+        o = path.valueInObject(o);
 
       values[i] = o;
     }
@@ -406,12 +400,10 @@ public class UList extends NSObject {
 
     final Map<Object, List<Object>> resultMap =
       new HashMap<>(16);
+    final NSKeyPath path = NSKeyPath.keyPathWithString(_keyPath);
 
     for (final Object object: _objects) {
-      /* we do the instanceof because the first case is the usual one */
-      final Object group = (object instanceof NSKeyValueCodingAdditions)
-        ? ((NSKeyValueCodingAdditions)object).valueForKeyPath(_keyPath)
-        : NSKeyValueCodingAdditions.Utility.valueForKeyPath(object, _keyPath);
+      final Object group = path.valueInObject(object);
 
       List<Object> groupValues = resultMap.get(group);
       if (groupValues == null) {
@@ -448,8 +440,7 @@ public class UList extends NSObject {
   public static Map<Object, List<Object>> groupByKey
     (final Collection _objects, final String _key)
   {
-    // TBD: we could optimize that with a specific implementation
-    return groupByKeyPath(_objects, _key);
+    return groupByKeyPath(_objects, _key); /* NSKeyPath caches single keys */
   }
 
   /**
@@ -483,6 +474,9 @@ public class UList extends NSObject {
       return UList.groupByKeyPath(_objects, _keyPathes[0]);
 
     final Map<Object, Object> resultMap = new HashMap<>(16);
+    final NSKeyPath[] pathes = new NSKeyPath[keyPathCount];
+    for (int i = 0; i < keyPathCount; i++)
+      pathes[i] = NSKeyPath.keyPathWithString(_keyPathes[i]);
 
     for (final Object object: _objects) {
       Map    groupCursor = resultMap;
@@ -491,9 +485,7 @@ public class UList extends NSObject {
       /* iterate until the last group, which contains a list, not a map */
 
       for (int i = 1; i < keyPathCount; i++) {
-        /* we do the instanceof because the first case is the usual one */
-        group = NSKeyValueCodingAdditions.Utility
-          .valueForKeyPath(object, _keyPathes[i - 1]);
+        group = pathes[i - 1].valueInObject(object);
 
         Map groupContent = (Map)groupCursor.get(group);
         if (groupContent == null) {
@@ -506,8 +498,7 @@ public class UList extends NSObject {
 
       /* process the last group */
 
-      group = NSKeyValueCodingAdditions.Utility
-        .valueForKeyPath(object, _keyPathes[keyPathCount - 1]);
+      group = pathes[keyPathCount - 1].valueInObject(object);
 
       List<Object> groupValues = (List<Object>)groupCursor.get(group);
       if (groupValues == null) {
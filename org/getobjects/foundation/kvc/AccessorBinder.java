@@ -0,0 +1,273 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.foundation.kvc;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Binds getter and setter Methods (and public Fields) to MethodHandles or to
+ * LambdaMetafactory generated Function/BiConsumer objects. Used by
+ * PropertyAccessor and FieldAccessor if the KVCAccessorMode is not
+ * REFLECTION.
+ * <p>
+ * The result of a bind operation is a Binding, which has a null function if
+ * the member could not be bound (eg because the declaring class is not
+ * public). In this case the accessor continues to use reflection.
+ * Static members are never bound, their handles do not take a target
+ * object.
+ * <p>
+ * The bound functions use the generic Object signature of the KVC API, that
+ * is, primitive values are boxed by the handle (getters) or unboxed from the
+ * value passed in (setters). Since valueForKey() returns and
+ * takeValueForKey() receives boxed values anyway, there are no separate
+ * int/long/boolean/double functions (they would just move the boxing).
+ */
+final class AccessorBinder {
+
+  private AccessorBinder() { } /* do not allow construction */
+
+  private static final MethodType getterType =
+    MethodType.methodType(Object.class, Object.class);
+  private static final MethodType setterType =
+    MethodType.methodType(void.class, Object.class, Object.class);
+
+  /**
+   * The bound function, along with the mode it was bound for (the mode can
+   * be changed at runtime).
+   */
+  static final class Binding<F> {
+    final KVCAccessorMode mode;
+    final F               function;
+    final Class<?>        targetClass; /* the declaring class */
+    final Class<?>        valueClass;  /* setters: the boxed parameter type */
+    final boolean         acceptsNull;
+
+    Binding(final KVCAccessorMode _mode, final F _f,
+            final Class<?> _targetClass, final Class<?> _type)
+    {
+      this.mode        = _mode;
+      this.function    = _f;
+      this.targetClass = _targetClass;
+      this.valueClass  = _type != null ? boxedType(_type) : null;
+      this.acceptsNull = _type == null || !_type.isPrimitive();
+    }
+
+    /**
+     * Checks whether the bound function can be called with the given target.
+     * The function would throw a ClassCastException for other objects (and a
+     * NullPointerException for null), those are passed to the reflective
+     * path which reports them as before (IllegalArgumentException).
+     */
+    boolean acceptsTarget(final Object _target) {
+      return this.targetClass.isInstance(_target);
+    }
+
+    /**
+     * Checks whether the value can be passed to the bound setter w/o any
+     * conversion. Reflection also performs widening conversions (eg Integer
+     * to a long parameter), such values are passed to the reflective path.
+     */
+    boolean acceptsValue(final Object _value) {
+      return _value == null
+        ? this.acceptsNull
+        : this.valueClass.isInstance(_value);
+    }
+  }
+
+  /* getters */
+
+  static Binding<Function<Object, Object>> bindGetter
+    (final Method _m, final KVCAccessorMode _mode)
+  {
+    Function<Object, Object> f = null;
+    if (!Modifier.isStatic(_m.getModifiers())) {
+      try {
+        final MethodHandle mh = MethodHandles.publicLookup().unreflect(_m);
+        if (_mode == KVCAccessorMode.LAMBDA)
+          f = lambdaGetter(_m, mh);
+        if (f == null)
+          f = handleGetter(mh);
+      }
+      catch (final IllegalAccessException | RuntimeException e) {
+        /* eg a public method declared in a non-public class, or a
+         * WrongMethodTypeException. We still return the (unbound) Binding so
+         * that the bind is not retried on every call. */
+        f = null;
+      }
+    }
+    return new Binding<>(_mode, f, _m.getDeclaringClass(), null);
+  }
+
+  static Binding<Function<Object, Object>> bindFieldGetter
+    (final Field _field, final KVCAccessorMode _mode)
+  {
+    Function<Object, Object> f = null;
+    if (!Modifier.isStatic(_field.getModifiers())) {
+      try {
+        f = handleGetter(MethodHandles.publicLookup().unreflectGetter(_field));
+      }
+      catch (final IllegalAccessException | RuntimeException e) {
+        f = null;
+      }
+    }
+    return new Binding<>(_mode, f, _field.getDeclaringClass(), null);
+  }
+
+  private static Function<Object, Object> handleGetter(MethodHandle _mh) {
+    final MethodHandle mh = _mh.asType(getterType); /* boxes primitives */
+    return target -> {
+      try {
+        return (Object)mh.invokeExact(target);
+      }
+      catch (final Throwable e) {
+        throw AccessorBinder.<RuntimeException>sneakyThrow(e);
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Function<Object, Object> lambdaGetter
+    (final Method _m, final MethodHandle _mh)
+  {
+    final Class<?> clazz = _m.getDeclaringClass();
+    try {
+      final MethodHandles.Lookup lookup =
+        MethodHandles.privateLookupIn(clazz, MethodHandles.lookup());
+      final CallSite site = LambdaMetafactory.metafactory(lookup,
+        "apply", MethodType.methodType(Function.class),
+        getterType, _mh,
+        MethodType.methodType(boxedType(_m.getReturnType()), clazz));
+      return (Function<Object, Object>)site.getTarget().invokeExact();
+    }
+    catch (final Throwable e) {
+      /* class not accessible from here (eg JDK or other class loader) */
+      return null;
+    }
+  }
+
+  /* setters */
+
+  static Binding<BiConsumer<Object, Object>> bindSetter
+    (final Method _m, final KVCAccessorMode _mode)
+  {
+    BiConsumer<Object, Object> f = null;
+    if (!Modifier.isStatic(_m.getModifiers())) {
+      try {
+        final MethodHandle mh = MethodHandles.publicLookup().unreflect(_m);
+        if (_mode == KVCAccessorMode.LAMBDA)
+          f = lambdaSetter(_m, mh);
+        if (f == null)
+          f = handleSetter(mh);
+      }
+      catch (final IllegalAccessException | RuntimeException e) {
+        f = null;
+      }
+    }
+    return new Binding<>(_mode, f, _m.getDeclaringClass(),
+                         _m.getParameterTypes()[0]);
+  }
+
+  static Binding<BiConsumer<Object, Object>> bindFieldSetter
+    (final Field _field, final KVCAccessorMode _mode)
+  {
+    BiConsumer<Object, Object> f = null;
+    final int mods = _field.getModifiers();
+    if (!Modifier.isFinal(mods) && !Modifier.isStatic(mods)) {
+      try {
+        f = handleSetter(MethodHandles.publicLookup().unreflectSetter(_field));
+      }
+      catch (final IllegalAccessException | RuntimeException e) {
+        f = null;
+      }
+    }
+    return new Binding<>(_mode, f, _field.getDeclaringClass(),
+                         _field.getType());
+  }
+
+  private static BiConsumer<Object, Object> handleSetter(MethodHandle _mh) {
+    final MethodHandle mh = _mh.asType(setterType);
+    return (target, value) -> {
+      try {
+        mh.invokeExact(target, value);
+      }
+      catch (final Throwable e) {
+        throw AccessorBinder.<RuntimeException>sneakyThrow(e);
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static BiConsumer<Object, Object> lambdaSetter
+    (final Method _m, final MethodHandle _mh)
+  {
+    final Class<?> clazz = _m.getDeclaringClass();
+    try {
+      final MethodHandles.Lookup lookup =
+        MethodHandles.privateLookupIn(clazz, MethodHandles.lookup());
+      final CallSite site = LambdaMetafactory.metafactory(lookup,
+        "accept", MethodType.methodType(BiConsumer.class),
+        setterType, _mh,
+        MethodType.methodType(void.class, clazz,
+                              boxedType(_m.getParameterTypes()[0])));
+      return (BiConsumer<Object, Object>)site.getTarget().invokeExact();
+    }
+    catch (final Throwable e) {
+      return null;
+    }
+  }
+
+  /* helpers */
+
+  static Class<?> boxedType(final Class<?> _type) {
+    if (!_type.isPrimitive())   return _type;
+    if (_type == int.class)     return Integer.class;
+    if (_type == boolean.class) return Boolean.class;
+    if (_type == long.class)    return Long.class;
+    if (_type == double.class)  return Double.class;
+    if (_type == float.class)   return Float.class;
+    if (_type == short.class)   return Short.class;
+    if (_type == byte.class)    return Byte.class;
+    if (_type == char.class)    return Character.class;
+    return Void.class;
+  }
+
+  /**
+   * Rethrows a checked exception thrown by the invoked method w/o wrapping
+   * it, the accessors wrap it in a DynamicInvocationException (like they do
+   * for the target exception of an InvocationTargetException).
+   */
+  @SuppressWarnings("unchecked")
+  static <E extends Throwable> RuntimeException sneakyThrow(final Throwable _e)
+    throws E
+  {
+    throw (E)_e;
+  }
+}
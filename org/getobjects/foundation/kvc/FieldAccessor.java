@@ -34,10 +34,18 @@
 package org.getobjects.foundation.kvc;
 
 import java.lang.reflect.Field;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 class FieldAccessor implements IPropertyAccessor {
   private final Field field;
 
+  /* bound on first use, see KVCAccessorMode */
+  private volatile AccessorBinder.Binding<Function<Object, Object>>
+    boundGetter;
+  private volatile AccessorBinder.Binding<BiConsumer<Object, Object>>
+    boundSetter;
+
   FieldAccessor(final Field _field) {
     this.field = _field;
   }
@@ -53,6 +61,16 @@ class FieldAccessor implements IPropertyAccessor {
 
   @Override
   public Object get(final Object instance, final String key) {
+    final KVCAccessorMode mode = KVCWrapper.accessorMode;
+    if (mode != KVCAccessorMode.REFLECTION) {
+      AccessorBinder.Binding<Function<Object, Object>> b = this.boundGetter;
+      if (b == null || b.mode != mode)
+        this.boundGetter = b = AccessorBinder.bindFieldGetter(this.field, mode);
+
+      if (b.function != null && b.acceptsTarget(instance))
+        return b.function.apply(instance); /* field reads do not throw */
+    }
+
     try {
       return this.field.get(instance);
     }
@@ -72,6 +90,20 @@ class FieldAccessor implements IPropertyAccessor {
 
   @Override
   public void set(final Object instance, final String key, final Object value) {
+    final KVCAccessorMode mode = KVCWrapper.accessorMode;
+    if (mode != KVCAccessorMode.REFLECTION) {
+      AccessorBinder.Binding<BiConsumer<Object, Object>> b = this.boundSetter;
+      if (b == null || b.mode != mode)
+        this.boundSetter = b = AccessorBinder.bindFieldSetter(this.field, mode);
+
+      if (b.function != null && b.acceptsTarget(instance) &&
+          b.acceptsValue(value))
+      {
+        b.function.accept(instance, value);
+        return;
+      }
+    }
+
     try {
       this.field.set(instance, value);
     }
@@ -0,0 +1,48 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.foundation.kvc;
+
+/**
+ * Selects how PropertyAccessor and FieldAccessor objects invoke the getters
+ * and setters (or read and write the fields) of a class.
+ *
+ * @see KVCWrapper#setAccessorMode(KVCAccessorMode)
+ */
+public enum KVCAccessorMode {
+
+  /**
+   * Use java.lang.reflect (Method.invoke(), Field.get()).
+   */
+  REFLECTION,
+
+  /**
+   * Bind the accessors to MethodHandle objects on first use.
+   */
+  METHOD_HANDLE,
+
+  /**
+   * Generate Function/BiConsumer implementations using the
+   * LambdaMetafactory. Falls back to METHOD_HANDLE if the class of the object
+   * is not accessible (eg JDK classes or other class loaders).
+   */
+  LAMBDA
+}
@@ -98,6 +98,39 @@ public class KVCWrapper extends Object {
 
   protected static final Log logger = LogFactory.getLog(KVCWrapper.class);
 
+  /**
+   * How accessors invoke getters and setters, can be changed at runtime. The
+   * initial value is taken from the 'org.getobjects.kvc.AccessorMode' system
+   * property (REFLECTION, METHOD_HANDLE or LAMBDA), default is METHOD_HANDLE.
+   */
+  static volatile KVCAccessorMode accessorMode = initialAccessorMode();
+
+  private static KVCAccessorMode initialAccessorMode() {
+    final String s = System.getProperty("org.getobjects.kvc.AccessorMode");
+    if (s == null || s.length() == 0)
+      return KVCAccessorMode.METHOD_HANDLE;
+    try {
+      return KVCAccessorMode.valueOf(s.trim().toUpperCase());
+    }
+    catch (final IllegalArgumentException e) {
+      logger.warn("unknown KVC accessor mode: " + s);
+      return KVCAccessorMode.METHOD_HANDLE;
+    }
+  }
+
+  /**
+   * Sets the way accessors invoke getters and setters. Accessors rebind on
+   * their next use, so this can be called at any time.
+   *
+   * @param _mode - the KVCAccessorMode, null resets to METHOD_HANDLE
+   */
+  public static void setAccessorMode(final KVCAccessorMode _mode) {
+    accessorMode = _mode != null ? _mode : KVCAccessorMode.METHOD_HANDLE;
+  }
+  public static KVCAccessorMode accessorMode() {
+    return accessorMode;
+  }
+
   private static ConcurrentHashMap<Class,Method[]> declaredMethodCache =
     new ConcurrentHashMap<>(16);
 
@@ -35,6 +35,8 @@ package org.getobjects.foundation.kvc;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -47,6 +49,10 @@ import org.apache.commons.logging.LogFactory;
  * <p>
  * In order to speed up the access (speed is crucial) there are several
  * private classes which deal with all the scenarios possible.
+ * <p>
+ * Unless the KVCAccessorMode is REFLECTION, the getter and setter are bound
+ * to a MethodHandle (or a LambdaMetafactory function) on first use. This
+ * avoids the argument array and the access checks of Method.invoke().
  */
 public class PropertyAccessor implements IPropertyAccessor {
   private static final Log logger = LogFactory.getLog(PropertyAccessor.class);
@@ -74,6 +80,12 @@ public class PropertyAccessor implements IPropertyAccessor {
   protected Method getter;
   protected Method setter;
 
+  /* bound on first use, see KVCAccessorMode */
+  protected volatile AccessorBinder.Binding<Function<Object, Object>>
+    boundGetter;
+  protected volatile AccessorBinder.Binding<BiConsumer<Object, Object>>
+    boundSetter;
+
   PropertyAccessor(final String _name, final Class _type) {
     this.name   = _name;
     this.type   = _type;
@@ -101,6 +113,25 @@ public class PropertyAccessor implements IPropertyAccessor {
     if (this.getter == null)
       return null;
 
+    final KVCAccessorMode mode = KVCWrapper.accessorMode;
+    if (mode != KVCAccessorMode.REFLECTION) {
+      AccessorBinder.Binding<Function<Object, Object>> b = this.boundGetter;
+      if (b == null || b.mode != mode)
+        this.boundGetter = b = AccessorBinder.bindGetter(this.getter, mode);
+
+      if (b.function != null && b.acceptsTarget(_target)) {
+        try {
+          return b.function.apply(_target);
+        }
+        catch (final RuntimeException e) { /* just reraise runtime exceptions */
+          throw e;
+        }
+        catch (final Throwable e) {
+          throw new DynamicInvocationException(this.getter, _target, e);
+        }
+      }
+    }
+
     final Object result;
     try {
       result = this.getter.invoke(_target, (Object[])null);
@@ -152,6 +183,26 @@ public class PropertyAccessor implements IPropertyAccessor {
     if (this.setter == null)
       return;
 
+    final KVCAccessorMode mode = KVCWrapper.accessorMode;
+    if (mode != KVCAccessorMode.REFLECTION) {
+      AccessorBinder.Binding<BiConsumer<Object, Object>> b = this.boundSetter;
+      if (b == null || b.mode != mode)
+        this.boundSetter = b = AccessorBinder.bindSetter(this.setter, mode);
+
+      /* values which need a conversion are passed to Method.invoke() */
+      if (b.function != null && b.acceptsTarget(_target) &&
+          b.acceptsValue(_value))
+      {
+        try {
+          b.function.accept(_target, _value);
+          return;
+        }
+        catch (final Throwable e) {
+          throw new DynamicInvocationException(this.setter, _target, e);
+        }
+      }
+    }
+
     final Object[] args = new Object[1];
     args[0] = _value;
 
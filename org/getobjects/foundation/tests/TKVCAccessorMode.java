@@ -0,0 +1,239 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.foundation.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.getobjects.foundation.NSKeyValueCoding;
+import org.getobjects.foundation.kvc.DynamicInvocationException;
+import org.getobjects.foundation.kvc.IPropertyAccessor;
+import org.getobjects.foundation.kvc.KVCAccessorMode;
+import org.getobjects.foundation.kvc.KVCWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the same KVC operations in all KVCAccessorMode's.
+ */
+public class TKVCAccessorMode {
+
+  public static class ValueObject {
+    public String field = "f";
+
+    static String staticName = "sn";
+    String        name       = "n";
+    int           count      = 5;
+    long          total      = 7;
+    boolean       isActive   = false;
+
+    public static String staticName() {
+      return staticName;
+    }
+    public static void setStaticName(final String _name) {
+      staticName = _name;
+    }
+
+    public String name() {
+      return this.name;
+    }
+    public void setName(final String _name) {
+      this.name = _name;
+    }
+
+    public int count() {
+      return this.count;
+    }
+    public void setCount(final int _count) {
+      this.count = _count;
+    }
+
+    public long total() {
+      return this.total;
+    }
+    public void setTotal(final long _total) {
+      this.total = _total;
+    }
+
+    public boolean isActive() {
+      return this.isActive;
+    }
+    public void setIsActive(final boolean _flag) {
+      this.isActive = _flag;
+    }
+  }
+
+  static final KVCAccessorMode[] modes = KVCAccessorMode.values();
+
+  protected KVCAccessorMode oldMode;
+
+  @Before
+  public void setUp() {
+    this.oldMode = KVCWrapper.accessorMode();
+  }
+
+  @After
+  public void tearDown() {
+    KVCWrapper.setAccessorMode(this.oldMode);
+    ValueObject.staticName = "sn";
+  }
+
+  @Test
+  public void testInstanceAccessors() {
+    for (final KVCAccessorMode mode: modes) {
+      KVCWrapper.setAccessorMode(mode);
+      final ValueObject o = new ValueObject();
+
+      /* twice, the second call uses the stored binding */
+      for (int i = 0; i < 2; i++) {
+        assertEquals(mode + ": get", "n", valueForKey(o, "name"));
+        takeValueForKey(o, "n" + (i + 1), "name");
+        assertEquals(mode + ": set", "n" + (i + 1), o.name);
+        o.name = "n";
+      }
+    }
+  }
+
+  @Test
+  public void testStaticAccessors() {
+    for (final KVCAccessorMode mode: modes) {
+      KVCWrapper.setAccessorMode(mode);
+      final ValueObject o = new ValueObject();
+
+      for (int i = 0; i < 2; i++) {
+        assertEquals(mode + ": get", "sn", valueForKey(o, "staticName"));
+        takeValueForKey(o, "sn2", "staticName");
+        assertEquals(mode + ": set", "sn2", ValueObject.staticName);
+        ValueObject.staticName = "sn";
+      }
+    }
+  }
+
+  @Test
+  public void testPrimitiveAccessors() {
+    for (final KVCAccessorMode mode: modes) {
+      KVCWrapper.setAccessorMode(mode);
+      final ValueObject o = new ValueObject();
+
+      for (int i = 0; i < 2; i++) {
+        assertEquals(mode + ": int", Integer.valueOf(5), valueForKey(o, "count"));
+        takeValueForKey(o, Integer.valueOf(10 + i), "count");
+        assertEquals(mode + ": set int", 10 + i, o.count);
+        o.count = 5;
+
+        assertEquals(mode + ": bool", Boolean.FALSE, valueForKey(o, "isActive"));
+        takeValueForKey(o, Boolean.TRUE, "isActive");
+        assertEquals(mode + ": set bool", Boolean.TRUE, o.isActive);
+        o.isActive = false;
+
+        /* Integer to long is a widening conversion done by reflection */
+        assertEquals(mode + ": long", Long.valueOf(7), valueForKey(o, "total"));
+        takeValueForKey(o, Integer.valueOf(42), "total");
+        assertEquals(mode + ": set long", 42L, o.total);
+        o.total = 7;
+      }
+    }
+  }
+
+  @Test
+  public void testFields() {
+    for (final KVCAccessorMode mode: modes) {
+      KVCWrapper.setAccessorMode(mode);
+      final ValueObject o = new ValueObject();
+
+      for (int i = 0; i < 2; i++) {
+        assertEquals(mode + ": get", "f", valueForKey(o, "field"));
+        takeValueForKey(o, "f2", "field");
+        assertEquals(mode + ": set", "f2", o.field);
+        o.field = "f";
+      }
+    }
+  }
+
+  @Test
+  public void testErrorsMatchReflection() {
+    /* the accessors of ValueObject used with an object of another class */
+    final KVCWrapper      wrapper = KVCWrapper.forClass(ValueObject.class);
+    final IPropertyAccessor name  = wrapper.getAccessor(new ValueObject(), "name");
+    final IPropertyAccessor field = wrapper.getAccessor(new ValueObject(), "field");
+    final Runnable[] calls = {
+      () -> name.get("other", "name"),
+      () -> name.set("other", "name", "x"),
+      () -> field.get("other", "field"),
+      () -> field.set("other", "field", "x")
+    };
+
+    KVCWrapper.setAccessorMode(KVCAccessorMode.REFLECTION);
+    final String[] expected = new String[calls.length];
+    for (int i = 0; i < calls.length; i++) {
+      expected[i] = errorOf(calls[i]);
+      assertTrue("call " + i + " did not fail", expected[i] != null);
+      assertTrue("call " + i + " did not raise an IllegalArgumentException",
+                 expected[i].contains(IllegalArgumentException.class.getName()));
+    }
+
+    for (final KVCAccessorMode mode: modes) {
+      KVCWrapper.setAccessorMode(mode);
+      for (int j = 0; j < 2; j++) {
+        for (int i = 0; i < calls.length; i++)
+          assertEquals(mode + ": call " + i, expected[i], errorOf(calls[i]));
+      }
+    }
+  }
+
+
+  /* support */
+
+  /**
+   * Returns the classes of the exception raised by the Runnable and of its
+   * causes, eg "DynamicInvocationException/IllegalArgumentException".
+   */
+  protected static String errorOf(final Runnable _r) {
+    try {
+      _r.run();
+    }
+    catch (final RuntimeException e) {
+      final StringBuilder sb = new StringBuilder(128);
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (sb.length() > 0) sb.append('/');
+        sb.append(t.getClass().getName());
+        if (t instanceof DynamicInvocationException) {
+          final Throwable root = ((DynamicInvocationException)t).getRootCause();
+          if (root != null && root != t.getCause())
+            sb.append('/').append(root.getClass().getName());
+        }
+      }
+      return sb.toString();
+    }
+    return null;
+  }
+
+  protected static Object valueForKey(final Object _o, final String _key) {
+    return NSKeyValueCoding.Utility.valueForKey(_o, _key);
+  }
+  protected static void takeValueForKey
+    (final Object _o, final Object _value, final String _key)
+  {
+    NSKeyValueCoding.Utility.takeValueForKey(_o, _value, _key);
+  }
+}
@@ -45,6 +45,7 @@ import org.getobjects.foundation.UObject;
 import org.getobjects.foundation.UString;
 import org.getobjects.ofs.fs.IOFSFileInfo;
 import org.getobjects.ofs.fs.IOFSFileManager;
+import org.getobjects.ofs.fs.OFSFileManager;
 import org.getobjects.ofs.fs.OFSHostFileManager;
 
 /**
@@ -63,6 +64,8 @@ public class OFSApplication extends WOApplication
   
   protected OFSRestorationFactory defaultRestorationFactory;
   protected ConcurrentHashMap<String, IOFSFileManager> pathToFileManager;
+  protected boolean watchFileSystem;
+  protected long    fileRevalidationInterval;
   
   /* setup */
 
@@ -73,6 +76,12 @@ public class OFSApplication extends WOApplication
     this.pathToFileManager= new ConcurrentHashMap<String, IOFSFileManager>(4);
     
     this.defaultRestorationFactory = new OFSRestorationFactory();
+    
+    /* file stat caching, see OFSHostFileManager.enableWatchService() */
+    this.watchFileSystem = UObject.boolValue
+      (this.properties.getProperty("OFSWatchFileSystem"));
+    this.fileRevalidationInterval = UObject.longValue
+      (this.properties.getProperty("OFSFileRevalidationInterval", "60000"));
 
     /* load OFS product */
     this.goProductManager.loadProduct
@@ -284,13 +293,16 @@ public class OFSApplication extends WOApplication
     
     IOFSFileManager fm = this.pathToFileManager.get(rootPath);
     if (fm == null) {
-      if ((fm = new OFSHostFileManager(new File(rootPath))) == null) {
-        log().error("could not create filemanager for file: " + rootPath);
-        return null;
-      }
+      final OFSHostFileManager hfm = new OFSHostFileManager(new File(rootPath));
       
       /* cache filemanager */
-      this.pathToFileManager.put(rootPath, fm);
+      fm = this.pathToFileManager.putIfAbsent(rootPath, hfm);
+      if (fm == null) {
+        fm = hfm;
+        this.setupCacheLimits(hfm);
+        if (this.watchFileSystem)
+          hfm.enableWatchService(this.fileRevalidationInterval);
+      }
     }
     
     /* lookup fileinfo in filemanager */
@@ -308,6 +320,47 @@ public class OFSApplication extends WOApplication
   }
   
   
+  /**
+   * Applies the cache limits configured in the properties to the section
+   * caches of the given filemanager:
+   * <ul>
+   *   <li>OFSCacheMaxEntries - max entries per section (default: 10000)
+   *   <li>OFSCacheMaxBytes   - max estimated bytes per section (default: 0,
+   *       unlimited)
+   *   <li>OFSCacheMaxEntries.Section / OFSCacheMaxBytes.Section - the limits
+   *       of a specific section, eg OFSCacheMaxEntries.OFSFolderChildInfo
+   * </ul>
+   * 
+   * @param _fm - the filemanager to configure
+   */
+  protected void setupCacheLimits(final OFSFileManager _fm) {
+    final String entriesPrefix = "OFSCacheMaxEntries.";
+    final String bytesPrefix   = "OFSCacheMaxBytes.";
+    
+    final int  maxEntries = UObject.intValue
+      (this.properties.getProperty("OFSCacheMaxEntries", "10000"));
+    final long maxBytes   = UObject.longValue
+      (this.properties.getProperty("OFSCacheMaxBytes", "0"));
+    _fm.setDefaultCacheLimits(maxEntries, maxBytes);
+    
+    for (final String key: this.properties.stringPropertyNames()) {
+      final String section;
+      if (key.startsWith(entriesPrefix))
+        section = key.substring(entriesPrefix.length());
+      else if (key.startsWith(bytesPrefix))
+        section = key.substring(bytesPrefix.length());
+      else
+        continue;
+      
+      _fm.setCacheLimitsForSection(section,
+        UObject.intValue(this.properties.getProperty(
+          entriesPrefix + section, String.valueOf(maxEntries))),
+        UObject.longValue(this.properties.getProperty(
+          bytesPrefix + section, String.valueOf(maxBytes))));
+    }
+  }
+  
+  
   /* authentication */
   
   public IGoAuthenticator authenticatorInContext(final IGoContext _ctx) {
@@ -20,7 +20,6 @@ package org.getobjects.ofs;
 
 import java.net.URL;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.getobjects.appserver.core.IWOComponentDefinition;
 import org.getobjects.appserver.core.WOComponent;
@@ -38,6 +37,7 @@ import org.getobjects.appserver.templates.WOTemplateBuilder;
 import org.getobjects.appserver.templates.WOWrapperTemplateBuilder;
 import org.getobjects.foundation.NSJavaRuntime;
 import org.getobjects.ofs.fs.IOFSFileInfo;
+import org.getobjects.ofs.fs.OFSObjectCache;
 
 /**
  * OFSComponentFile
@@ -160,7 +160,7 @@ public class OFSComponentFile extends OFSJavaObject
      *       info contents of the wrapper are not relevant for the validity of
      *       a cache entry.
      */
-    final ConcurrentHashMap<IOFSFileInfo, Object> fileInfoToTemplateEntry =
+    final OFSObjectCache fileInfoToTemplateEntry =
       this.fileManager.cacheForSection("OFSComponentFile");
 
     // TBD: we might want to include languages in the name/lookup
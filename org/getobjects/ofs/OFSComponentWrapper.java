@@ -20,7 +20,6 @@ package org.getobjects.ofs;
 
 import java.net.URL;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.getobjects.appserver.core.IWOComponentDefinition;
 import org.getobjects.appserver.core.WOComponent;
@@ -40,6 +39,7 @@ import org.getobjects.eocontrol.EODataSource;
 import org.getobjects.foundation.NSJavaRuntime;
 import org.getobjects.ofs.fs.IOFSFileInfo;
 import org.getobjects.ofs.fs.IOFSFileManager;
+import org.getobjects.ofs.fs.OFSObjectCache;
 
 
 /**
@@ -218,7 +218,7 @@ public class OFSComponentWrapper extends OFSFolder
      *       info contents of the wrapper are not relevant for the validity of
      *       a cache entry.
      */
-    final ConcurrentHashMap<IOFSFileInfo, Object> fileInfoToTemplateEntry =
+    final OFSObjectCache fileInfoToTemplateEntry =
       this.fileManager.cacheForSection("OFSWOComponent");
     
     // TBD: we might want to include languages in the name/lookup
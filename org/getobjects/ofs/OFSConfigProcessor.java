@@ -0,0 +1,335 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.ofs;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.getobjects.foundation.NSObject;
+import org.getobjects.ofs.config.GoConfigContext;
+import org.getobjects.ofs.config.GoConfigProcessor;
+import org.getobjects.ofs.config.IGoConfigurationProvider;
+import org.getobjects.ofs.fs.IOFSFileInfo;
+import org.getobjects.ofs.fs.IOFSFileManager;
+import org.getobjects.ofs.fs.OFSObjectCache;
+import org.getobjects.ofs.htaccess.HtConfigBuilder;
+
+/**
+ * OFSConfigProcessor
+ * <p>
+ * A GoConfigProcessor which caches the configurations it builds for OFS
+ * objects. The OFSFolder objects are recreated for each request, hence
+ * caching the configuration in the folder itself only helps within a request.
+ * <p>
+ * The cache is maintained per level of the containment path and stored in
+ * the 'GoConfig' cache section of the file manager, using the file info of
+ * the folder as the key. A level records:
+ * <ul>
+ *   <li>the modification date of the folder (to detect added/removed config
+ *       files),
+ *   <li>the file info and modification date of the config file (eg the
+ *       config.htaccess),
+ *   <li>the keys of the config context the config file depends on (eg
+ *       'dirpath' or 'filename', see IGoConfigurationProvider).
+ * </ul>
+ * The merged configurations of a level are cached by the values of those
+ * keys (plus the keys of the parent levels) in the config context. Each level
+ * builds on the cached configuration of its parent, so if a new object is
+ * configured, only the levels which depend on a changed context value get
+ * evaluated again.
+ * <p>
+ * If an object in the path is not an OFS object, or the config file does
+ * not declare its dependencies, the rest of the path is processed w/o
+ * caching.
+ * <p>
+ * THREAD: the processor is thread safe.
+ */
+public class OFSConfigProcessor extends GoConfigProcessor {
+
+  protected static final String cacheSection = "GoConfig";
+
+  /* limits of the cache, the caches are just cleared if they are reached */
+  protected static final int maxLevelsPerFolder  = 64;
+  protected static final int maxConfigsPerLevel  = 256;
+
+  protected static final AtomicLong configIdSequence = new AtomicLong(0);
+
+  public static final OFSConfigProcessor sharedProcessor =
+    new OFSConfigProcessor();
+
+  protected final CachedConfig rootConfig;
+
+  public OFSConfigProcessor() {
+    this.rootConfig =
+      new CachedConfig(this.defaultConfiguration(), new String[0]);
+  }
+
+
+  /* build configuration */
+
+  @Override
+  public Map<String, ?> buildConfiguration
+    (final Object _cursor, final GoConfigContext _lookupCtx)
+  {
+    final boolean isDebugOn = log.isDebugEnabled();
+
+    if (isDebugOn) log.debug("build-cfg (cached) on: " + _cursor);
+
+    final List<Object> objects = this.containmentPath(_cursor);
+
+    CachedConfig   cached = this.rootConfig;
+    Map<String, ?> config = cached.config;
+    for (int i = objects.size() - 1; i >= 0; i--) {
+      final Object o = objects.get(i);
+
+      if (cached != null) {
+        if (o instanceof OFSBaseObject) {
+          cached = this.cachedConfigOfObject((OFSBaseObject)o, cached, _lookupCtx);
+          if (cached != null) {
+            config = cached.config;
+            continue;
+          }
+        }
+        else {
+          /* not an OFS object, we can't cache its config object, but if it
+           * has none, it doesn't affect the configuration */
+          final IGoConfigurationProvider provider =
+            this.configurationProviderOfObject(o, config, _lookupCtx);
+          if (provider == null)
+            continue;
+
+          cached = null;
+          config = this.applyConfigurationProvider
+            (provider, o, config, _lookupCtx);
+          continue;
+        }
+
+        if (isDebugOn) log.debug("  cannot cache config of: " + o);
+      }
+
+      config = this.applyConfigurationOfObject(o, config, _lookupCtx);
+    }
+
+    if (isDebugOn) log.debug("  done: " + config);
+    return config;
+  }
+
+  /**
+   * Returns the cached configuration of the given level of the containment
+   * path. If there is none, or its sources changed, it gets built.
+   *
+   * @param _object    - the object in the containment path
+   * @param _parent    - the cached configuration of the container
+   * @param _lookupCtx - the context for the cfgbuilder, contains path/loc/etc
+   * @return the configuration, or null if it cannot be cached
+   */
+  protected CachedConfig cachedConfigOfObject
+    (final OFSBaseObject _object, final CachedConfig _parent,
+     final GoConfigContext _lookupCtx)
+  {
+    final IOFSFileManager fm = _object.fileManager();
+    final IOFSFileInfo info  = _object.fileInfo();
+    if (fm == null || info == null)
+      return null;
+
+    /* lookup the level info of the folder */
+
+    final OFSObjectCache section =
+      fm.cacheForSection(cacheSection);
+    if (section == null)
+      return null;
+
+    Object o = section.get(info);
+    if (!(o instanceof FolderLevels)) {
+      final Object other = section.putIfAbsent(info, o = new FolderLevels());
+      if (other != null) o = other;
+    }
+    final ConcurrentHashMap<Long, ConfigLevel> levels = ((FolderLevels)o).levels;
+
+    final Long parentId = Long.valueOf(_parent.id);
+    ConfigLevel level = levels.get(parentId);
+    if (level == null || level.isModified(info)) {
+      if ((level = this.buildConfigLevel(_object, info, _parent, _lookupCtx)) == null)
+        return null;
+
+      if (levels.size() >= maxLevelsPerFolder)
+        levels.clear();
+      levels.put(parentId, level);
+    }
+
+    /* lookup the configuration for the context */
+
+    final String ctxKey = this.contextKey(level.keys, _lookupCtx);
+    CachedConfig cached = level.configs.get(ctxKey);
+    if (cached != null)
+      return cached;
+
+    Map<String, ?> config = _parent.config;
+    if (level.providerInfo != null) {
+      final IGoConfigurationProvider provider =
+        this.configurationProviderOfObject(_object, config, _lookupCtx);
+      if (provider == null)
+        return null; /* got deleted in between */
+
+      config = this.applyConfigurationProvider
+        (provider, _object, config, _lookupCtx);
+    }
+
+    cached = new CachedConfig(config, level.keys);
+    if (level.configs.size() >= maxConfigsPerLevel)
+      level.configs.clear();
+    level.configs.put(ctxKey, cached);
+    return cached;
+  }
+
+  /**
+   * Looks up the config object of the given level and records its
+   * dependencies.
+   *
+   * @return the level info, or null if the level cannot be cached
+   */
+  protected ConfigLevel buildConfigLevel
+    (final OFSBaseObject _object, final IOFSFileInfo _info,
+     final CachedConfig _parent, final GoConfigContext _lookupCtx)
+  {
+    /* Note: grab the timestamp before doing the lookup */
+    final long folderLastModified = _info.lastModified();
+
+    final IGoConfigurationProvider provider =
+      this.configurationProviderOfObject(_object, _parent.config, _lookupCtx);
+    if (provider == null) {
+      return new ConfigLevel(folderLastModified, null, 0, _parent.keys);
+    }
+
+    if (!(provider instanceof OFSBaseObject))
+      return null;
+    final IOFSFileInfo providerInfo = ((OFSBaseObject)provider).fileInfo();
+    if (providerInfo == null)
+      return null;
+    final long providerLastModified = providerInfo.lastModified();
+
+    final Collection<String> providerKeys = provider.lookupContextKeys();
+    if (providerKeys == null)
+      return null;
+
+    final TreeSet<String> keys = new TreeSet<String>(providerKeys);
+    keys.addAll(Arrays.asList(_parent.keys));
+
+    return new ConfigLevel(folderLastModified,
+        providerInfo, providerLastModified, keys.toArray(new String[0]));
+  }
+
+  /**
+   * Returns a String which contains the values of the given keys in the
+   * config context.
+   */
+  protected String contextKey(final String[] _keys, final GoConfigContext _ctx) {
+    if (_keys.length == 0)
+      return "";
+
+    final StringBuilder sb = new StringBuilder(128);
+    for (final String key: _keys) {
+      final String v =
+        HtConfigBuilder.sharedBuilder.lookupKeyValueFromLookupCtx(key, _ctx);
+      if (v != null)
+        sb.append(v);
+      sb.append('\0');
+    }
+    return sb.toString();
+  }
+
+
+  /* cache objects */
+
+  /**
+   * The cache object stored in the file manager for a folder. It maps the
+   * id of the parent configuration to the level.
+   */
+  protected static class FolderLevels {
+    protected final ConcurrentHashMap<Long, ConfigLevel> levels =
+      new ConcurrentHashMap<Long, ConfigLevel>(4);
+  }
+
+  /**
+   * The config file of a level in the containment path, plus the merged
+   * configurations for the context values.
+   */
+  protected static class ConfigLevel extends NSObject {
+
+    protected final long         folderLastModified;
+    protected final IOFSFileInfo providerInfo;
+    protected final long         providerLastModified;
+    protected final String[]     keys;
+    protected final ConcurrentHashMap<String, CachedConfig> configs;
+
+    public ConfigLevel
+      (final long _folderLastModified, final IOFSFileInfo _providerInfo,
+       final long _providerLastModified, final String[] _keys)
+    {
+      this.folderLastModified   = _folderLastModified;
+      this.providerInfo         = _providerInfo;
+      this.providerLastModified = _providerLastModified;
+      this.keys                 = _keys;
+      this.configs              = new ConcurrentHashMap<String, CachedConfig>(4);
+    }
+
+    public boolean isModified(final IOFSFileInfo _folderInfo) {
+      if (_folderInfo.lastModified() != this.folderLastModified)
+        return true;
+      if (this.providerInfo != null &&
+          this.providerInfo.lastModified() != this.providerLastModified)
+        return true;
+      return false;
+    }
+
+    @Override
+    public void appendAttributesToDescription(final StringBuilder _d) {
+      super.appendAttributesToDescription(_d);
+
+      if (this.providerInfo != null)
+        _d.append(" provider=" + this.providerInfo);
+      _d.append(" keys=" + Arrays.toString(this.keys));
+      _d.append(" #configs=" + this.configs.size());
+    }
+  }
+
+  /**
+   * A merged configuration, including all levels up to the one it is cached
+   * in.
+   */
+  protected static class CachedConfig {
+
+    protected final long           id;
+    protected final Map<String, ?> config;
+    protected final String[]       keys; /* context keys of all levels */
+
+    public CachedConfig(final Map<String, ?> _config, final String[] _keys) {
+      this.id     = configIdSequence.incrementAndGet();
+      this.config = _config;
+      this.keys   = _keys;
+    }
+  }
+}
@@ -30,6 +30,7 @@ import org.getobjects.foundation.NSObject;
 import org.getobjects.foundation.UString;
 import org.getobjects.ofs.fs.IOFSFileInfo;
 import org.getobjects.ofs.fs.IOFSFileManager;
+import org.getobjects.ofs.fs.OFSObjectCache;
 
 /**
  * OFSFileContainerChildInfo
@@ -42,7 +43,9 @@ import org.getobjects.ofs.fs.IOFSFileManager;
  * <p>
  * THREAD: this is not supposed to be thread safe.
  */
-public class OFSFileContainerChildInfo extends NSObject {
+public class OFSFileContainerChildInfo extends NSObject
+  implements OFSObjectCache.ISizeEstimate
+{
   // TODO: we could probably cache this based on the folder lastModified date?
   // TODO: we should probably drop this class, move ID processing to the
   //       OFSFolder and caching to a caching filemanager.
@@ -253,6 +256,28 @@ public class OFSFileContainerChildInfo extends NSObject {
     return log;
   }
 
+  /* cache support */
+
+  /**
+   * Returns the approximate memory used by the name arrays, used by the
+   * OFSObjectCache to limit the memory of the "OFSFolderChildInfo" section.
+   */
+  @Override
+  public long estimatedSize() {
+    final String[] names = this.fileNames;
+    if (names == null)
+      return 128;
+
+    /* four arrays, each name is roughly stored twice (name and id) */
+    long size = 128 + 4 * 16;
+    for (final String name: names) {
+      size += 4 * 4;
+      if (name != null) size += 2 * (40 + name.length());
+    }
+    return size;
+  }
+
+
   /* description */
 
   @Override
@@ -26,7 +26,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import javax.security.auth.login.Configuration;
 
@@ -54,6 +53,7 @@ import org.getobjects.ofs.config.GoConfigProcessor;
 import org.getobjects.ofs.config.GoConfigKeys.KeyMatchEntry;
 import org.getobjects.ofs.fs.IOFSFileInfo;
 import org.getobjects.ofs.fs.IOFSFileManager;
+import org.getobjects.ofs.fs.OFSObjectCache;
 
 /**
  * OFSFolder
@@ -132,7 +132,7 @@ public class OFSFolder extends OFSBaseObject
 
     if (this.childInfo == null) {
 
-      final ConcurrentHashMap<IOFSFileInfo, Object> pathToChildInfo =
+      final OFSObjectCache pathToChildInfo =
         this.fileManager.cacheForSection("OFSFolderChildInfo");
 
       /* check cache */
@@ -721,7 +721,7 @@ public class OFSFolder extends OFSBaseObject
 
     /* apply config */
 
-    final GoConfigProcessor cpu = new GoConfigProcessor();
+    final GoConfigProcessor cpu = OFSConfigProcessor.sharedProcessor;
     final Object cfg = cpu.buildConfiguration(this, configContext);
 
     this.ownConfig = cfg != null ? cfg : CACHE_MISS;
@@ -768,7 +768,7 @@ public class OFSFolder extends OFSBaseObject
 
     /* apply config */
 
-    final GoConfigProcessor cpu = new GoConfigProcessor();
+    final GoConfigProcessor cpu = OFSConfigProcessor.sharedProcessor;
     cfg = cpu.buildConfiguration(this, configContext);
 
     /* cache */
@@ -20,6 +20,8 @@
 */
 package org.getobjects.ofs;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
@@ -31,6 +33,7 @@ import org.getobjects.ofs.fs.IOFSFileInfo;
 import org.getobjects.ofs.htaccess.HtConfigBuilder;
 import org.getobjects.ofs.htaccess.HtConfigFile;
 import org.getobjects.ofs.htaccess.HtConfigParser;
+import org.getobjects.ofs.htaccess.HtConfigPlan;
 import org.getobjects.ofs.htaccess.HtConfigSection;
 import org.getobjects.ofs.htaccess.IHtConfigContainer;
 
@@ -51,6 +54,8 @@ public class OFSHtAccessFile extends OFSJavaObject
   // protected IHtConfigContainer configContainer; /* 'da cache */
   // private static final String cacheKey = "OFSHtAccessFile";
   
+  protected HtConfigPlan configPlan;
+  
   
   /* config file */
 
@@ -58,6 +63,37 @@ public class OFSHtAccessFile extends OFSJavaObject
     return (IHtConfigContainer)this.object();
   }
   
+  /**
+   * Returns the precompiled evaluation plan of the config file. The plan is
+   * cached in the filemanager alongside the parsed file, so it is only
+   * compiled once per file revision.
+   * 
+   * @return the HtConfigPlan, or null if the file could not be parsed
+   */
+  public HtConfigPlan configPlan() {
+    if (this.configPlan != null)
+      return this.configPlan;
+    
+    final IHtConfigContainer lCfgFile = this.configFile();
+    if (lCfgFile == null)
+      return null; /* parsing error */
+    
+    final String       lCacheKey = this.cacheKey() + ".plan";
+    final IOFSFileInfo info      = this.fileInfo();
+    
+    HtConfigPlan plan = this.fileManager != null
+      ? (HtConfigPlan)this.fileManager.getCachedObject(lCacheKey, info)
+      : null;
+    if (plan == null) {
+      plan = HtConfigBuilder.sharedBuilder.compileConfiguration(lCfgFile);
+      if (plan != null && this.fileManager != null)
+        this.fileManager.cacheObject(lCacheKey, info, plan);
+    }
+    
+    this.configPlan = plan;
+    return plan;
+  }
+  
   /**
    * This method parses the HtConfigFile object represented by this
    * OFS node.
@@ -130,14 +166,29 @@ public class OFSHtAccessFile extends OFSJavaObject
   public Map<String, ?> buildConfiguration
     (Object _cursor, GoConfigContext _lookupCtx)
   {
-    IHtConfigContainer lCfgFile = this.configFile();
-    if (lCfgFile == null) {
+    final HtConfigPlan plan = this.configPlan();
+    if (plan == null) {
       log.debug("got no parsed representation of config: " + this);
       return null;
     }
     
-    return HtConfigBuilder.sharedBuilder
-      .buildConfiguration(_lookupCtx, lCfgFile);
+    return HtConfigBuilder.sharedBuilder.buildConfiguration(_lookupCtx, plan);
+  }
+  
+  /**
+   * Returns the lookup context keys the sections of the config file depend
+   * on, eg 'dirpath' for the Directory section which wraps the directives of
+   * a non-root config file.
+   * 
+   * @return the keys, or null if the file contains unknown sections
+   */
+  @Override
+  public Collection<String> lookupContextKeys() {
+    final HtConfigPlan plan = this.configPlan();
+    if (plan == null) /* parsing error, results in no configuration */
+      return Collections.emptySet();
+    
+    return plan.lookupKeys();
   }
 
   
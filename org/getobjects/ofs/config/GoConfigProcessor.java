@@ -89,6 +89,26 @@ public class GoConfigProcessor extends NSObject {
     
     /* first collect the containment path */
     
+    final List<Object> objects = this.containmentPath(_cursor);
+    
+    /* then walk along the path forwards and merge the configurations */
+    
+    Map<String, ?> config = this.defaultConfiguration();
+    for (int i = objects.size() - 1; i >= 0; i--)
+      config = this.applyConfigurationOfObject(objects.get(i), config, _lookupCtx);
+    
+    if (isDebugOn) log.debug("  done: " + config);
+    return config;
+  }
+  
+  /**
+   * Returns the containment path of the given object, starting with the
+   * object itself, followed by its container, etc.
+   * 
+   * @param _cursor - the object to start at
+   * @return the List of objects, the root is the last object
+   */
+  public List<Object> containmentPath(final Object _cursor) {
     final List<Object> objects = new ArrayList<Object>(16);
     for (Object o = _cursor; o != null;
          o = IGoLocation.Utility.containerForObject(o))
@@ -96,94 +116,138 @@ public class GoConfigProcessor extends NSObject {
       objects.add(o);
     }
     // TBD: add application object? (for httpd.conf global config?)
+    return objects;
+  }
+  
+  /**
+   * Looks up the config object of the given object in the containment path and
+   * merges its configuration into the given one.
+   * 
+   * @param _object    - the object in the containment path
+   * @param _config    - the configuration of the container of the object
+   * @param _lookupCtx - the context for the cfgbuilder, contains path/loc/etc
+   * @return the combined configuration
+   */
+  public Map<String, ?> applyConfigurationOfObject
+    (final Object _object, final Map<String, ?> _config,
+     final GoConfigContext _lookupCtx)
+  {
+    if (log.isDebugEnabled()) log.debug("  build-cfg on: " + _object);
     
-    /* then walk along the path forwards and merge the configurations */
+    final IGoConfigurationProvider provider =
+      this.configurationProviderOfObject(_object, _config, _lookupCtx);
+    if (provider == null) {
+      if (log.isDebugEnabled()) log.debug("    found no config.");
+      return _config;
+    }
     
-    Map<String, ?> config = this.defaultConfiguration();
-    for (int i = objects.size() - 1; i >= 0; i--) {
-      final Object o = objects.get(i);
-      
-      if (isDebugOn) log.debug("  build-cfg on: " + o);
-      
-      /* determine AccessFileName (in Go its an object id) */
-      String[] accessFileNames =
-        config != null && config.containsKey(GoConfigKeys.AccessFileName)
-        ? (String[])config.get(GoConfigKeys.AccessFileName)
-        : new String[] { "config" };
+    return this.applyConfigurationProvider
+      (provider, _object, _config, _lookupCtx);
+  }
+  
+  /**
+   * Looks up the config object (eg the config.htaccess) of the given object.
+   * The name of the config object is determined by the AccessFileName of the
+   * configuration of the container.
+   * 
+   * @param _object    - the object in the containment path
+   * @param _config    - the configuration of the container of the object
+   * @param _lookupCtx - the context for the cfgbuilder, contains path/loc/etc
+   * @return the config object, or null if the object has none
+   */
+  public IGoConfigurationProvider configurationProviderOfObject
+    (final Object _object, final Map<String, ?> _config,
+     final GoConfigContext _lookupCtx)
+  {
+    final boolean isDebugOn = log.isDebugEnabled();
+    
+    /* determine AccessFileName (in Go its an object id) */
+    String[] accessFileNames =
+      _config != null && _config.containsKey(GoConfigKeys.AccessFileName)
+      ? (String[])_config.get(GoConfigKeys.AccessFileName)
+      : new String[] { "config" };
+    
+    for (int j = 0; j < accessFileNames.length; j++) {
+      final String accessFileName = accessFileNames[j];
       
-      Object cfg = null; 
-      for (int j = 0; j < accessFileNames.length && cfg == null; j++) {
-        final String accessFileName = accessFileNames[j];
-        
-        if (isDebugOn) log.debug("    AccessFileName: " + accessFileName);
+      if (isDebugOn) log.debug("    AccessFileName: " + accessFileName);
 
-        /* Note: we directly invoke lookupName, w/o security checks. This runs
-         * in some kind of root context since our configuration contains
-         * security checks ...
-         */
-        cfg = IGoObject.Utility.lookupName
-          (o, accessFileName, _lookupCtx, false /* do not aquire */);
-        if (cfg == null) {
-          if (isDebugOn) log.debug("    did not find config: "+accessFileName);
-          continue; /* this path did not contain a configuration file */
-        }
-
-        if (cfg instanceof Exception) {
-          if (log.isInfoEnabled()) {
-            log.info("exception during config file lookup: " + accessFileName,
-                (Exception)o);
-          }
-          cfg = null;
-          continue;
-        }
+      /* Note: we directly invoke lookupName, w/o security checks. This runs
+       * in some kind of root context since our configuration contains
+       * security checks ...
+       */
+      final Object cfg = IGoObject.Utility.lookupName
+        (_object, accessFileName, _lookupCtx, false /* do not aquire */);
+      if (cfg == null) {
+        if (isDebugOn) log.debug("    did not find config: "+accessFileName);
+        continue; /* this path did not contain a configuration file */
+      }
 
-        if (!(cfg instanceof IGoConfigurationProvider)) {
-          if (log.isInfoEnabled())
-            log.info("config file is not an access provider: " + cfg);
-          cfg = null;
-          continue;
+      if (cfg instanceof Exception) {
+        if (log.isInfoEnabled()) {
+          log.info("exception during config file lookup: " + accessFileName,
+              (Exception)cfg);
         }
+        continue;
       }
-      if (cfg == null) {
-        if (isDebugOn) log.debug("    found no config.");
+
+      if (!(cfg instanceof IGoConfigurationProvider)) {
+        if (log.isInfoEnabled())
+          log.info("config file is not an access provider: " + cfg);
         continue;
       }
       
-      /* OK, found a provider */
-      
-      final IGoConfigurationProvider provider = (IGoConfigurationProvider)cfg;
-      if (isDebugOn) log.debug("    provider: " + provider);
-      
-      /* This loads the HtAccessFile and invokes the directives. Note that the
-       * directives do NOT see the parent config scope (hence can't depend
-       * themselves on parent configs).
-       */
-      final Map<String, ?> newCfg = provider.buildConfiguration(o, _lookupCtx);
-      
-      if (newCfg != null) {
-        if (isDebugOn) {
-          if (config != null) {
-            log.debug("    old keys: " +
-                UString.componentsJoinedByString(config.keySet(), ","));
-          }
-          else
-            log.debug("    no keys yet.");
-          log.debug("    new keys: " +
-              UString.componentsJoinedByString(newCfg.keySet(), ","));
-        }
-        
-        config = this.mergeConfiguration(config, newCfg);
-        
-        if (isDebugOn) {
-          log.debug("    merged keys: " +
-              UString.componentsJoinedByString(config.keySet(), ","));
-        }
+      return (IGoConfigurationProvider)cfg;
+    }
+    return null;
+  }
+  
+  /**
+   * Builds the configuration of the given config object and merges it into
+   * the given configuration.
+   * 
+   * @param _provider  - the config object, eg an OFSHtAccessFile
+   * @param _object    - the object in the containment path
+   * @param _config    - the configuration of the container of the object
+   * @param _lookupCtx - the context for the cfgbuilder, contains path/loc/etc
+   * @return the combined configuration
+   */
+  public Map<String, ?> applyConfigurationProvider
+    (final IGoConfigurationProvider _provider, final Object _object,
+     final Map<String, ?> _config, final GoConfigContext _lookupCtx)
+  {
+    final boolean isDebugOn = log.isDebugEnabled();
+    
+    if (isDebugOn) log.debug("    provider: " + _provider);
+    
+    /* This loads the HtAccessFile and invokes the directives. Note that the
+     * directives do NOT see the parent config scope (hence can't depend
+     * themselves on parent configs).
+     */
+    final Map<String, ?> newCfg =
+      _provider.buildConfiguration(_object, _lookupCtx);
+    if (newCfg == null) {
+      if (isDebugOn) log.debug("    provider built no new config.");
+      return _config;
+    }
+    
+    if (isDebugOn) {
+      if (_config != null) {
+        log.debug("    old keys: " +
+            UString.componentsJoinedByString(_config.keySet(), ","));
       }
-      else if (isDebugOn)
-        if (isDebugOn) log.debug("    provider built no new config.");
+      else
+        log.debug("    no keys yet.");
+      log.debug("    new keys: " +
+          UString.componentsJoinedByString(newCfg.keySet(), ","));
     }
     
-    if (isDebugOn) log.debug("  done: " + config);
+    final Map<String, ?> config = this.mergeConfiguration(_config, newCfg);
+    
+    if (isDebugOn) {
+      log.debug("    merged keys: " +
+          UString.componentsJoinedByString(config.keySet(), ","));
+    }
     return config;
   }
 
@@ -20,6 +20,7 @@
 */
 package org.getobjects.ofs.config;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -38,4 +39,19 @@ public interface IGoConfigurationProvider {
    */
   public Map<String, ?> buildConfiguration
     (Object _cursor, GoConfigContext _lookupCtx);
+  
+  /**
+   * Returns the keys of the config context (eg 'dirpath' or 'filename') the
+   * result of buildConfiguration() depends on. This is used to cache the
+   * configurations, if two contexts have the same values for those keys, they
+   * get the same configuration.
+   * <p>
+   * The default implementation returns null, which means that the result can
+   * not be cached.
+   * 
+   * @return the keys, or null if the dependencies are unknown
+   */
+  public default Collection<String> lookupContextKeys() {
+    return null;
+  }
 }
@@ -22,7 +22,6 @@ package org.getobjects.ofs.fs;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * IOFSFileManager
@@ -69,14 +68,14 @@ public interface IOFSFileManager {
   /* filemanager local object caches */
 
   /**
-   * Returns a ConcurrentHashMap which can be used for caching items in the
-   * requested section. If no map exists yet, a new one gets created.
+   * Returns an OFSObjectCache which can be used for caching items in the
+   * requested section. If no cache exists yet, a new one gets created.
+   * The cache may evict entries if it exceeds its limits.
    * 
    * @param _section - the section we want to have a cache for
    * @return the cache for the section
    */
-  public ConcurrentHashMap<IOFSFileInfo, Object> cacheForSection
-    (final String _section);
+  public OFSObjectCache cacheForSection(final String _section);
   
   public Object getCachedObject(final String _section, IOFSFileInfo _info);
   public void cacheObject(String _section, IOFSFileInfo _info, Object _object);
@@ -20,6 +20,7 @@
 */
 package org.getobjects.ofs.fs;
 
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
@@ -45,33 +46,87 @@ public abstract class OFSFileManager extends NSObject
    * of the object cache, eg "OFSChildInfo", the second level is the actual
    * IOFSFileInfo => Object mapping.
    */
-  final protected
-    ConcurrentHashMap<String, ConcurrentHashMap<IOFSFileInfo, Object>>
-    objectCache = new
-    ConcurrentHashMap<>(16);
+  final protected ConcurrentHashMap<String, OFSObjectCache> objectCache =
+    new ConcurrentHashMap<>(16);
+
+  /**
+   * The limits of specific section caches, maps the section name to
+   * { max entries, max bytes }. Other sections use the default limits.
+   */
+  final protected ConcurrentHashMap<String, long[]> sectionLimits =
+    new ConcurrentHashMap<>(16);
+  protected volatile int  defaultMaxCacheEntries = 10000;
+  protected volatile long defaultMaxCacheBytes   = 0; /* unlimited */
 
   /* object caching */
 
   /**
-   * Returns a ConcurrentHashMap which can be used for caching items in the
-   * requested section. If no map exists yet, a new one gets created.
+   * Sets the limits used for section caches which have no specific limits
+   * set. Applies to existing caches as well.
+   *
+   * @param _maxEntries - the maximum number of entries, 0 for unlimited
+   * @param _maxBytes   - the maximum estimated bytes, 0 for unlimited
+   */
+  public void setDefaultCacheLimits(final int _maxEntries, final long _maxBytes) {
+    this.defaultMaxCacheEntries = _maxEntries;
+    this.defaultMaxCacheBytes   = _maxBytes;
+
+    for (final OFSObjectCache cache: this.objectCache.values()) {
+      if (!this.sectionLimits.containsKey(cache.section()))
+        cache.setLimits(_maxEntries, _maxBytes);
+    }
+  }
+
+  /**
+   * Sets the limits of a specific section cache, eg "OFSFolderChildInfo".
+   *
+   * @param _section    - the name of the section
+   * @param _maxEntries - the maximum number of entries, 0 for unlimited
+   * @param _maxBytes   - the maximum estimated bytes, 0 for unlimited
+   */
+  public void setCacheLimitsForSection
+    (final String _section, final int _maxEntries, final long _maxBytes)
+  {
+    if (_section == null)
+      return;
+
+    this.sectionLimits.put(_section, new long[] { _maxEntries, _maxBytes });
+
+    final OFSObjectCache cache = this.objectCache.get(_section);
+    if (cache != null)
+      cache.setLimits(_maxEntries, _maxBytes);
+  }
+
+  /**
+   * Returns the section caches, eg to report their metrics.
+   *
+   * @return a Map of section names to OFSObjectCache objects
+   */
+  public Map<String, OFSObjectCache> cacheSections() {
+    return this.objectCache;
+  }
+
+  /**
+   * Returns an OFSObjectCache which can be used for caching items in the
+   * requested section. If no cache exists yet, a new one gets created.
    *
    * @param _section - the section we want to have a cache for
    * @return the cache for the section
    */
   @Override
-  public ConcurrentHashMap<IOFSFileInfo, Object> cacheForSection
-    (final String _section)
-  {
+  public OFSObjectCache cacheForSection(final String _section) {
     if (_section == null)
       return null;
 
     // TBD: maybe its better to use a thread-local variable for the cache?
-    ConcurrentHashMap<IOFSFileInfo, Object> sectionCache =
-      this.objectCache.get(_section);
+    OFSObjectCache sectionCache = this.objectCache.get(_section);
 
     if (sectionCache == null) {
-      sectionCache = new ConcurrentHashMap<>(128);
+      final long[] limits = this.sectionLimits.get(_section);
+      sectionCache = limits != null
+        ? new OFSObjectCache(_section, (int)limits[0], limits[1])
+        : new OFSObjectCache(_section,
+            this.defaultMaxCacheEntries, this.defaultMaxCacheBytes);
       this.objectCache.putIfAbsent(_section, sectionCache);
       sectionCache = this.objectCache.get(_section); // put returns old value
     }
@@ -83,8 +138,7 @@ public abstract class OFSFileManager extends NSObject
     if (_section == null || _info == null)
       return null;
 
-    final ConcurrentHashMap<IOFSFileInfo, Object> sectionCache =
-      this.objectCache.get(_section);
+    final OFSObjectCache sectionCache = this.objectCache.get(_section);
     if (sectionCache == null)
       return null;
 
@@ -115,8 +169,7 @@ public abstract class OFSFileManager extends NSObject
     if (_section == null || _info == null)
       return;
 
-    final ConcurrentHashMap<IOFSFileInfo, Object> sectionCache =
-      cacheForSection(_section);
+    final OFSObjectCache sectionCache = cacheForSection(_section);
 
     final CacheNode entry = new CacheNode(etagFromFileInfo(_info), _object);
     sectionCache.put(_info, entry);
@@ -220,7 +273,7 @@ public abstract class OFSFileManager extends NSObject
 
   /* caching helper */
 
-  static class CacheNode {
+  static class CacheNode implements OFSObjectCache.ISizeEstimate {
     final public Object etag;
     final public Object object;
 
@@ -228,5 +281,10 @@ public abstract class OFSFileManager extends NSObject
       this.etag   = _etag;
       this.object = _object;
     }
+
+    @Override
+    public long estimatedSize() {
+      return 32 + OFSObjectCache.estimatedSizeOfObject(this.object);
+    }
   }
 }
@@ -37,15 +37,31 @@ public class OFSHostFileInfo extends NSObject implements IOFSFileInfo {
   protected String   pathAsString;
   protected String[] path;
   protected File     file;
+  protected OFSHostFileManager fileManager; /* set if stats are cached */
 
   public OFSHostFileInfo(final String[] _path, final File _file) {
-    this.path = _path;
-    this.file = _file.getAbsoluteFile();
+    this(_path, _file, null);
+  }
+  /**
+   * If a filemanager is passed in, the stat information is retrieved from its
+   * cache (see OFSHostFileManager.enableWatchService()).
+   */
+  public OFSHostFileInfo
+    (final String[] _path, final File _file, final OFSHostFileManager _fm)
+  {
+    this.path        = _path;
+    this.file        = _file.getAbsoluteFile();
+    this.fileManager = _fm;
   }
 
 
   /* accessors */
 
+  protected OFSHostFileManager.FileStat stat() {
+    return this.fileManager != null
+      ? this.fileManager.statOfFile(this.file) : null;
+  }
+
   public File getFile() {
     return this.file;
   }
@@ -68,27 +84,32 @@ public class OFSHostFileInfo extends NSObject implements IOFSFileInfo {
 
   @Override
   public boolean isDirectory() {
-    return this.file.isDirectory();
+    final OFSHostFileManager.FileStat stat = this.stat();
+    return stat != null ? stat.isDirectory : this.file.isDirectory();
   }
 
   @Override
   public boolean isFile() {
-    return this.file.isFile();
+    final OFSHostFileManager.FileStat stat = this.stat();
+    return stat != null ? stat.isFile : this.file.isFile();
   }
 
   @Override
   public long lastModified() {
-    return this.file.lastModified();
+    final OFSHostFileManager.FileStat stat = this.stat();
+    return stat != null ? stat.lastModified : this.file.lastModified();
   }
 
   @Override
   public long length() {
-    return this.file.length();
+    final OFSHostFileManager.FileStat stat = this.stat();
+    return stat != null ? stat.length : this.file.length();
   }
 
   @Override
   public boolean exists() {
-    return this.file.exists();
+    final OFSHostFileManager.FileStat stat = this.stat();
+    return stat != null ? stat.exists : this.file.exists();
   }
   @Override
   public boolean canRead() {
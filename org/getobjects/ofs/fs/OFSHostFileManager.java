@@ -24,8 +24,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.getobjects.foundation.UData;
 import org.getobjects.foundation.UString;
@@ -35,16 +46,302 @@ import org.getobjects.foundation.UString;
  * <p>
  * An OFSFileManager which exposes a java.io.File object hierarchy as an OFS
  * store.
+ * <p>
+ * Per default each cache validation (eg of a folder listing or a parsed
+ * file) performs a stat() on the file. If enableWatchService() is called,
+ * the manager caches the stat results and evicts them (and the objects
+ * cached for the file) when the java.nio WatchService reports a change.
+ * As a safety net the stat cache is flushed after the revalidation interval.
  */
 public class OFSHostFileManager extends OFSFileManager {
 
   protected File      rootFile;
   protected Exception lastException;
   
+  /* watch mode */
+  protected WatchService watchService;
+  protected Thread       watchThread;
+  protected long         revalidationInterval;
+  protected volatile long lastRevalidation;
+  protected volatile ConcurrentHashMap<File, FileStat> statCache;
+  protected ConcurrentHashMap<File, WatchKey> watchedDirectories;
+  protected final AtomicLong invalidationCount = new AtomicLong(0);
+  
   public OFSHostFileManager(final File _root) {
     this.rootFile = _root;
   }
   
+  
+  /* watch service */
+  
+  /**
+   * Enables the WatchService based invalidation mode. In this mode the stat
+   * information of files is cached and only refreshed when the filesystem
+   * reports a change, or when the revalidation interval expired.
+   * <p>
+   * Directories get registered with the WatchService lazily, when a file
+   * inside them is accessed the first time.
+   * 
+   * @param _revalidationInterval - ms after which all stats are flushed, or 0
+   * @return true if the watch service could be started, false otherwise
+   */
+  public synchronized boolean enableWatchService
+    (final long _revalidationInterval)
+  {
+    if (this.watchService != null) {
+      this.revalidationInterval = _revalidationInterval;
+      return true;
+    }
+    
+    this.rootFile = this.rootFile.getAbsoluteFile();
+    try {
+      this.watchService =
+        this.rootFile.toPath().getFileSystem().newWatchService();
+    }
+    catch (IOException | UnsupportedOperationException e) {
+      log().warn("could not create watch service for: " + this.rootFile, e);
+      return false;
+    }
+    
+    this.revalidationInterval = _revalidationInterval;
+    this.lastRevalidation     = System.currentTimeMillis();
+    this.watchedDirectories   = new ConcurrentHashMap<>(128);
+    this.statCache            = new ConcurrentHashMap<>(1024);
+    
+    final WatchService ws = this.watchService;
+    this.watchThread = new Thread(new Runnable() {
+      public void run() {
+        OFSHostFileManager.this.processWatchEvents(ws);
+      }
+    }, "OFSWatcher-" + this.rootFile.getName());
+    this.watchThread.setDaemon(true);
+    this.watchThread.start();
+    return true;
+  }
+  
+  /**
+   * Stops the WatchService. Subsequent accesses will stat() the files again.
+   */
+  public synchronized void disableWatchService() {
+    if (this.watchService == null)
+      return;
+    
+    this.statCache = null;
+    try {
+      this.watchService.close(); /* terminates the watch thread */
+    }
+    catch (IOException e) {
+      log().warn("could not close watch service: " + this.rootFile, e);
+    }
+    this.watchService       = null;
+    this.watchThread        = null;
+    this.watchedDirectories = null;
+  }
+  
+  public boolean isWatching() {
+    return this.statCache != null;
+  }
+  
+  /**
+   * Returns the cached stat information for the given (absolute) file, or
+   * null if the watch service is not enabled.
+   * 
+   * @param _file - the absolute file
+   * @return the FileStat or null if the filemanager is not in watch mode
+   */
+  public FileStat statOfFile(final File _file) {
+    final ConcurrentHashMap<File, FileStat> cache = this.statCache;
+    if (cache == null || _file == null)
+      return null;
+    
+    if (this.revalidationInterval > 0) {
+      final long now = System.currentTimeMillis();
+      if (now - this.lastRevalidation > this.revalidationInterval) {
+        this.lastRevalidation = now;
+        this.invalidationCount.incrementAndGet();
+        cache.clear(); /* cached objects get revalidated using the etag */
+      }
+    }
+    
+    FileStat stat = cache.get(_file);
+    if (stat != null)
+      return stat; /* cache hit, no stat() necessary */
+    
+    /* Note: the watches must be in place before we stat the file, otherwise
+     *       we could miss a change which happens in between.
+     */
+    final long generation = this.invalidationCount.get();
+    boolean isWatched = true;
+    if (!_file.equals(this.rootFile)) {
+      final File parent = _file.getParentFile();
+      this.watchDirectory(parent);
+      
+      /* eg the parent does not exist, we wouldn't see the file appear */
+      final ConcurrentHashMap<File, WatchKey> watched = this.watchedDirectories;
+      isWatched = watched != null && watched.containsKey(parent);
+    }
+    
+    stat = FileStat.statFile(_file);
+    if (stat.isDirectory && this.watchDirectory(_file))
+      stat = FileStat.statFile(_file); /* contents might have changed */
+    
+    /* only cache the result if no event arrived while we did the stat */
+    if (isWatched && generation == this.invalidationCount.get()) {
+      cache.put(_file, stat);
+      if (generation != this.invalidationCount.get())
+        cache.remove(_file, stat);
+    }
+    return stat;
+  }
+  
+  /**
+   * Registers the given directory with the WatchService.
+   * 
+   * @return true if the directory got registered, false if it was already
+   */
+  protected boolean watchDirectory(final File _dir) {
+    final ConcurrentHashMap<File, WatchKey> watched = this.watchedDirectories;
+    final WatchService ws = this.watchService;
+    if (_dir == null || watched == null || ws == null)
+      return false;
+    if (watched.containsKey(_dir))
+      return false;
+    
+    try {
+      final WatchKey key = _dir.toPath().register(ws,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+      return watched.putIfAbsent(_dir, key) == null;
+    }
+    catch (IOException | ClosedWatchServiceException e) {
+      /* eg the directory does not exist (yet), the parent is watched */
+      if (log().isDebugEnabled())
+        log().debug("could not watch directory: " + _dir, e);
+      return false;
+    }
+  }
+  
+  /**
+   * The loop of the watch thread. Runs until the WatchService is closed.
+   */
+  protected void processWatchEvents(final WatchService _ws) {
+    while (true) {
+      final WatchKey key;
+      try {
+        key = _ws.take();
+      }
+      catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      
+      final File dir = ((Path)key.watchable()).toFile();
+      boolean dirChanged = false;
+      
+      for (final WatchEvent<?> event: key.pollEvents()) {
+        final WatchEvent.Kind<?> kind = event.kind();
+        
+        if (kind == StandardWatchEventKinds.OVERFLOW) {
+          this.invalidateAllFiles();
+          continue;
+        }
+        
+        final File file = new File(dir, event.context().toString());
+        if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+          this.invalidateFile(file);
+          continue;
+        }
+        
+        /* a create or delete also changes the timestamp of the directory */
+        dirChanged = true;
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+          this.invalidateDirectory(file);
+        else
+          this.invalidateFile(file);
+      }
+      
+      if (dirChanged)
+        this.invalidateFile(dir);
+      
+      if (!key.reset()) /* the directory is gone */
+        this.invalidateDirectory(dir);
+    }
+  }
+  
+  /**
+   * Evicts the stat and all objects cached for the given file.
+   */
+  protected void invalidateFile(final File _file) {
+    this.invalidationCount.incrementAndGet();
+    
+    final ConcurrentHashMap<File, FileStat> cache = this.statCache;
+    if (cache != null)
+      cache.remove(_file);
+    
+    final String[] path = this.pathForFile(_file);
+    if (path == null)
+      return;
+    
+    final IOFSFileInfo info = new OFSHostFileInfo(path, _file);
+    for (final OFSObjectCache sectionCache: this.objectCache.values())
+      sectionCache.remove(info);
+  }
+  
+  /**
+   * Evicts the given file, and if it was a watched directory, the stats of
+   * all files below it. Called if a file got deleted or moved away.
+   */
+  protected void invalidateDirectory(final File _dir) {
+    this.invalidateFile(_dir);
+    
+    final ConcurrentHashMap<File, WatchKey> watched = this.watchedDirectories;
+    final WatchKey key = watched != null ? watched.remove(_dir) : null;
+    if (key == null)
+      return; /* not a watched directory */
+    key.cancel();
+    
+    final Path dirPath = _dir.toPath();
+    final ConcurrentHashMap<File, FileStat> cache = this.statCache;
+    if (cache != null)
+      cache.keySet().removeIf(f -> f.toPath().startsWith(dirPath));
+    watched.keySet().removeIf(f -> {
+      if (!f.toPath().startsWith(dirPath)) return false;
+      final WatchKey subkey = watched.get(f);
+      if (subkey != null) subkey.cancel();
+      return true;
+    });
+  }
+  
+  /**
+   * Flushes all cached stats, eg if the WatchService reported an overflow.
+   * The cached objects get revalidated using their etag.
+   */
+  protected void invalidateAllFiles() {
+    this.invalidationCount.incrementAndGet();
+    final ConcurrentHashMap<File, FileStat> cache = this.statCache;
+    if (cache != null)
+      cache.clear();
+  }
+  
+  /**
+   * Returns the OFS path of the given absolute file, or null if the file is
+   * not located below the root.
+   */
+  public String[] pathForFile(final File _file) {
+    final Path root = this.rootFile.toPath();
+    final Path path = _file.toPath();
+    if (!path.startsWith(root))
+      return null;
+    if (path.equals(root))
+      return emptyStringArray;
+    
+    final Path relative = root.relativize(path);
+    final String[] names = new String[relative.getNameCount()];
+    for (int i = 0; i < names.length; i++)
+      names[i] = relative.getName(i).toString();
+    return names;
+  }
+  
   /* hierarchy */
 
   /**
@@ -56,7 +353,10 @@ public class OFSHostFileManager extends OFSFileManager {
   public String[] childNamesAtPath(final String[] _path) {
     final File file = this.fileForPath(_path);
     if (file == null) return null;
-    if (!file.isDirectory()) return null; // TBD: too expensive?
+    
+    final FileStat stat = this.statOfFile(file);
+    if (stat != null ? !stat.isDirectory : !file.isDirectory())
+      return null; // TBD: too expensive?
     
     final String[] names = file.list();
     
@@ -119,15 +419,16 @@ public class OFSHostFileManager extends OFSFileManager {
     final File file = this.fileForPath(_path);
     if (file == null) return null;
     
-    return new OFSHostFileInfo(_path, file);
+    return new OFSHostFileInfo(_path, file, this.isWatching() ? this : null);
   }
   public IOFSFileInfo[] fileInfosForPath(final String[] _path) {
     File[] files = this.filesForPath(_path);
     if (files == null) return null;
     
+    final OFSHostFileManager watchingFM = this.isWatching() ? this : null;
     IOFSFileInfo[] infos = new IOFSFileInfo[files.length];
     for (int i = 0; i < files.length; i++)
-      infos[i] = new OFSHostFileInfo(_path, files[i]);
+      infos[i] = new OFSHostFileInfo(_path, files[i], watchingFM);
     return infos;
   }
   
@@ -162,11 +463,21 @@ public class OFSHostFileManager extends OFSFileManager {
       return null;
     }
     
+    if (this.isWatching()) /* do not wait for the watch event */
+      this.invalidateFile(file.getAbsoluteFile());
+    
     return out;
   }
   
   public Exception writeToFile(final byte[] _buffer, final String[] _path) {
-    return UData.writeToFile(_buffer, this.fileForPath(_path), true);
+    final File file = this.fileForPath(_path);
+    final Exception error = UData.writeToFile(_buffer, file, true);
+    
+    if (this.isWatching() && file != null) { /* do not wait for the event */
+      this.invalidateFile(file.getAbsoluteFile());
+      this.invalidateFile(file.getAbsoluteFile().getParentFile());
+    }
+    return error;
   }
   
   
@@ -179,5 +490,51 @@ public class OFSHostFileManager extends OFSFileManager {
     _d.append(" root=" + this.rootFile);
     if (this.lastException != null)
       _d.append(" error=" + this.lastException);
+    
+    final ConcurrentHashMap<File, FileStat> cache = this.statCache;
+    if (cache != null) {
+      _d.append(" watching=");
+      _d.append(this.watchedDirectories.size());
+      _d.append(" stats=");
+      _d.append(cache.size());
+    }
+  }
+  
+  
+  /* stat cache */
+  
+  /**
+   * The cached result of a stat() on a file.
+   */
+  static final class FileStat {
+    final public boolean exists;
+    final public boolean isDirectory;
+    final public boolean isFile;
+    final public long    lastModified;
+    final public long    length;
+    
+    FileStat(final boolean _exists, final boolean _isDir, final boolean _isFile,
+             final long _lastModified, final long _length)
+    {
+      this.exists       = _exists;
+      this.isDirectory  = _isDir;
+      this.isFile       = _isFile;
+      this.lastModified = _lastModified;
+      this.length       = _length;
+    }
+    
+    static final FileStat missing = new FileStat(false, false, false, 0, 0);
+    
+    public static FileStat statFile(final File _file) {
+      final BasicFileAttributes attrs;
+      try {
+        attrs = Files.readAttributes(_file.toPath(), BasicFileAttributes.class);
+      }
+      catch (IOException e) {
+        return missing; /* like java.io.File, which returns 0/false */
+      }
+      return new FileStat(true, attrs.isDirectory(), attrs.isRegularFile(),
+          attrs.lastModifiedTime().toMillis(), attrs.size());
+    }
   }
 }
@@ -0,0 +1,371 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.ofs.fs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OFSObjectCache
+ * <p>
+ * A section cache of an OFSFileManager, maps an IOFSFileInfo to some object
+ * derived from the file, eg a parsed template or the listing of a directory.
+ * <p>
+ * The cache can be bounded by a maximum number of entries and/or by a
+ * maximum of estimated bytes. If a limit is exceeded, the least recently
+ * used entries are evicted until the cache is at 90% of the limit again.
+ * Objects can implement ISizeEstimate to report their approximate size,
+ * otherwise a fixed default size is assumed.
+ * <p>
+ * Reads do not lock, they just record an access tick on the entry. The
+ * eviction sorts a snapshot of the entries and is done by one thread at a
+ * time.
+ * <p>
+ * THREAD: this object is thread safe.
+ */
+public class OFSObjectCache extends NSObject {
+  
+  /**
+   * Implemented by cached objects which know their approximate memory
+   * footprint.
+   */
+  public static interface ISizeEstimate {
+    public long estimatedSize();
+  }
+  
+  public static final long defaultObjectSize = 512;
+  
+  protected final String section;
+  protected volatile int  maxEntries; /* 0 = unlimited */
+  protected volatile long maxBytes;   /* 0 = unlimited */
+  
+  protected final ConcurrentHashMap<IOFSFileInfo, Entry> entries;
+  protected final AtomicLong    estimatedBytes = new AtomicLong(0);
+  protected final AtomicLong    accessTick     = new AtomicLong(0);
+  protected final AtomicBoolean isEvicting     = new AtomicBoolean(false);
+  
+  protected final LongAdder hits      = new LongAdder();
+  protected final LongAdder misses    = new LongAdder();
+  protected final LongAdder evictions = new LongAdder();
+
+  public OFSObjectCache
+    (final String _section, final int _maxEntries, final long _maxBytes)
+  {
+    this.section    = _section;
+    this.maxEntries = _maxEntries;
+    this.maxBytes   = _maxBytes;
+    this.entries    = new ConcurrentHashMap<>(128);
+  }
+  
+  
+  /* accessors */
+  
+  public String section() {
+    return this.section;
+  }
+  
+  /**
+   * Changes the limits of the cache. If the cache is over the new limits,
+   * entries get evicted right away.
+   * 
+   * @param _maxEntries - the maximum number of entries, 0 for unlimited
+   * @param _maxBytes   - the maximum estimated bytes, 0 for unlimited
+   */
+  public void setLimits(final int _maxEntries, final long _maxBytes) {
+    this.maxEntries = _maxEntries;
+    this.maxBytes   = _maxBytes;
+    if (this.isOverLimit())
+      this.evict();
+  }
+  public int maxEntries() {
+    return this.maxEntries;
+  }
+  public long maxBytes() {
+    return this.maxBytes;
+  }
+  
+  
+  /* metrics */
+  
+  public int size() {
+    return this.entries.size();
+  }
+  public long estimatedBytes() {
+    return this.estimatedBytes.get();
+  }
+  public long hitCount() {
+    return this.hits.sum();
+  }
+  public long missCount() {
+    return this.misses.sum();
+  }
+  public long evictionCount() {
+    return this.evictions.sum();
+  }
+  
+  
+  /* map operations */
+  
+  public Object get(final IOFSFileInfo _info) {
+    if (_info == null)
+      return null;
+    
+    final Entry entry = this.entries.get(_info);
+    if (entry == null) {
+      this.misses.increment();
+      return null;
+    }
+    
+    this.hits.increment();
+    entry.lastAccess = this.accessTick.incrementAndGet();
+    return entry.object;
+  }
+  
+  public Object put(final IOFSFileInfo _info, final Object _object) {
+    if (_info == null)
+      return null;
+    if (_object == null)
+      return this.remove(_info);
+    
+    final Entry entry = new Entry(_object, this.accessTick.incrementAndGet());
+    final Entry old   = this.entries.put(_info, entry);
+    
+    this.estimatedBytes.addAndGet(
+        entry.size - (old != null ? old.size : 0));
+    if (this.isOverLimit())
+      this.evict();
+    
+    return old != null ? old.object : null;
+  }
+  
+  /**
+   * Adds the object if no object is cached for the file yet.
+   * 
+   * @return the object which was cached before, or null if _object got added
+   */
+  public Object putIfAbsent(final IOFSFileInfo _info, final Object _object) {
+    if (_info == null || _object == null)
+      return null;
+    
+    final Entry entry = new Entry(_object, this.accessTick.incrementAndGet());
+    final Entry old   = this.entries.putIfAbsent(_info, entry);
+    if (old != null) {
+      old.lastAccess = entry.lastAccess;
+      return old.object;
+    }
+    
+    this.estimatedBytes.addAndGet(entry.size);
+    if (this.isOverLimit())
+      this.evict();
+    return null;
+  }
+  
+  public Object remove(final IOFSFileInfo _info) {
+    if (_info == null)
+      return null;
+    
+    final Entry old = this.entries.remove(_info);
+    if (old == null)
+      return null;
+    
+    this.estimatedBytes.addAndGet(-old.size);
+    return old.object;
+  }
+  
+  /**
+   * Removes the entry for the file, but only if it still maps to the given
+   * object (identity comparison).
+   * 
+   * @return true if the entry got removed
+   */
+  public boolean remove(final IOFSFileInfo _info, final Object _object) {
+    if (_info == null)
+      return false;
+    
+    final Entry entry = this.entries.get(_info);
+    if (entry == null || entry.object != _object)
+      return false;
+    if (!this.entries.remove(_info, entry))
+      return false;
+    
+    this.estimatedBytes.addAndGet(-entry.size);
+    return true;
+  }
+  
+  public void clear() {
+    for (final IOFSFileInfo info: this.entries.keySet())
+      this.remove(info);
+  }
+  
+  /**
+   * Returns a snapshot of the cached objects.
+   */
+  public Collection<Object> values() {
+    final List<Object> values = new ArrayList<>(this.entries.size());
+    for (final Entry entry: this.entries.values())
+      values.add(entry.object);
+    return values;
+  }
+  
+  
+  /* eviction */
+  
+  protected boolean isOverLimit() {
+    final int  lMaxEntries = this.maxEntries;
+    final long lMaxBytes   = this.maxBytes;
+    
+    if (lMaxEntries > 0 && this.entries.size() > lMaxEntries)
+      return true;
+    if (lMaxBytes > 0 && this.estimatedBytes.get() > lMaxBytes)
+      return true;
+    return false;
+  }
+  
+  /**
+   * Removes the least recently used entries until the cache is at 90% of its
+   * limits. If another thread is already evicting, this returns immediately.
+   */
+  protected void evict() {
+    if (!this.isEvicting.compareAndSet(false, true))
+      return;
+    
+    try {
+      final int  lMaxEntries   = this.maxEntries;
+      final long lMaxBytes     = this.maxBytes;
+      final int  targetEntries = lMaxEntries > 0 ? (lMaxEntries * 9) / 10 : 0;
+      final long targetBytes   = lMaxBytes   > 0 ? (lMaxBytes   * 9) / 10 : 0;
+      
+      /* Copy the access times, concurrent get() calls keep updating them and
+       * sorting on the live values could violate the comparator contract. */
+      final List<LRUCandidate> lru = new ArrayList<>(this.entries.size());
+      for (final Map.Entry<IOFSFileInfo, Entry> e: this.entries.entrySet())
+        lru.add(new LRUCandidate(e.getKey(), e.getValue()));
+      lru.sort(lruComparator);
+      
+      for (final LRUCandidate c: lru) {
+        if ((lMaxEntries <= 0 || this.entries.size()        <= targetEntries) &&
+            (lMaxBytes   <= 0 || this.estimatedBytes.get() <= targetBytes))
+          break;
+        
+        if (this.entries.remove(c.key, c.entry)) {
+          this.estimatedBytes.addAndGet(-c.entry.size);
+          this.evictions.increment();
+        }
+      }
+    }
+    finally {
+      this.isEvicting.set(false);
+    }
+  }
+  
+  protected static final Comparator<LRUCandidate> lruComparator =
+    (a, b) -> Long.compare(a.lastAccess, b.lastAccess);
+  
+  /**
+   * An entry considered for eviction, with a snapshot of its access time.
+   */
+  static final class LRUCandidate {
+    final IOFSFileInfo key;
+    final Entry        entry;
+    final long         lastAccess;
+    
+    LRUCandidate(final IOFSFileInfo _key, final Entry _entry) {
+      this.key        = _key;
+      this.entry      = _entry;
+      this.lastAccess = _entry.lastAccess;
+    }
+  }
+  
+  
+  /* size estimates */
+  
+  /**
+   * Returns the approximate memory footprint of the given object. Objects
+   * can report their size by implementing ISizeEstimate.
+   * 
+   * @param _object - the object to estimate
+   * @return the estimated size in bytes
+   */
+  public static long estimatedSizeOfObject(final Object _object) {
+    if (_object == null)
+      return 0;
+    if (_object instanceof ISizeEstimate)
+      return ((ISizeEstimate)_object).estimatedSize();
+    if (_object instanceof String)
+      return 40 + ((String)_object).length();
+    if (_object instanceof byte[])
+      return 16 + ((byte[])_object).length;
+    return defaultObjectSize;
+  }
+  
+  
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+    
+    _d.append(" section=");
+    _d.append(this.section);
+    _d.append(" #entries=");
+    _d.append(this.entries.size());
+    if (this.maxEntries > 0) {
+      _d.append("/");
+      _d.append(this.maxEntries);
+    }
+    _d.append(" bytes=");
+    _d.append(this.estimatedBytes.get());
+    if (this.maxBytes > 0) {
+      _d.append("/");
+      _d.append(this.maxBytes);
+    }
+    _d.append(" hits=");
+    _d.append(this.hitCount());
+    _d.append(" misses=");
+    _d.append(this.missCount());
+    _d.append(" evictions=");
+    _d.append(this.evictionCount());
+  }
+  
+  
+  /* entry */
+  
+  static final class Entry {
+    final Object object;
+    final long   size;
+    volatile long lastAccess;
+    
+    Entry(final Object _object, final long _tick) {
+      this.object     = _object;
+      this.size       = estimatedSizeOfObject(_object);
+      this.lastAccess = _tick;
+    }
+  }
+}
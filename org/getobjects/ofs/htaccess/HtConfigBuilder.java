@@ -20,14 +20,24 @@
 */
 package org.getobjects.ofs.htaccess;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.getobjects.eocontrol.EOBooleanQualifier;
+import org.getobjects.eocontrol.EOQualifierEvaluation;
 import org.getobjects.foundation.NSKeyValueCoding;
+import org.getobjects.foundation.NSKeyValueCodingAdditions;
 import org.getobjects.foundation.NSObject;
+import org.getobjects.foundation.UObject;
 import org.getobjects.foundation.UString;
 import org.getobjects.ofs.htaccess.eval.AccessFileName;
 import org.getobjects.ofs.htaccess.eval.AddBinding;
@@ -109,6 +119,18 @@ public class HtConfigBuilder extends NSObject {
     defDirectiveToEval.put("eoqualifier",       new SetEOQualifier());
     defDirectiveToEval.put("seteosortordering", new SetEOSortOrdering());
   }
+  
+  /* the keys of the lookup context the default sections evaluate */
+  protected static final Map<String, String> defSectionToLookupKey;
+  static {
+    defSectionToLookupKey = new HashMap<String, String>(8);
+    defSectionToLookupKey.put("<filesmatch",     "filename");
+    defSectionToLookupKey.put("<directorymatch", "dirpath");
+    defSectionToLookupKey.put("<directory",      "dirpath");
+    defSectionToLookupKey.put("<locationmatch",  "location");
+    defSectionToLookupKey.put("<limit",          "method");
+    defSectionToLookupKey.put("<limitexcept",    "method");
+  }
   public static final HtConfigBuilder sharedBuilder = new HtConfigBuilder();
 
   protected final Map<String, IHtConfigEvaluation> directiveToEval;
@@ -147,6 +169,199 @@ public class HtConfigBuilder extends NSObject {
   }
 
   
+  /**
+   * Evaluates a compiled configuration and creates a Map containing the
+   * configured values.
+   * 
+   * @param _lookupCtx - the context the lookup is relative to
+   * @param _plan      - the plan returned by compileConfiguration()
+   * @return a configuration, or null if no values were added
+   */
+  public Map<String, ?> buildConfiguration
+    (final Object _lookupCtx, final HtConfigPlan _plan)
+  {
+    if (_plan == null) {
+      log.debug("got no compiled representation of config: " + this);
+      return null;
+    }
+    
+    final Map<String, Object> cfg = new HashMap<String, Object>(16);
+    _plan.evaluate(this, cfg, _lookupCtx);
+    return cfg.size() > 0 ? cfg : null;
+  }
+  
+  
+  /* compilation */
+  
+  /**
+   * Compiles the parsed configuration into a HtConfigPlan. The plan contains
+   * the directives in a flat table, with the sections converted into
+   * conditions and the arguments preprocessed by the evaluation objects (eg
+   * regular expressions are compiled once).
+   * <p>
+   * Evaluating the plan using buildConfiguration() yields the same result
+   * like evaluating the parsed configuration directly.
+   * 
+   * @param _cfgfile - the parsed configuration
+   * @return the compiled plan, or null if no configuration was passed in
+   */
+  public HtConfigPlan compileConfiguration(final IHtConfigContainer _cfgfile) {
+    if (_cfgfile == null)
+      return null;
+    
+    final List<EOQualifierEvaluation> conditions =
+      new ArrayList<EOQualifierEvaluation>(4);
+    final List<HtConfigPlan.Step> steps = new ArrayList<HtConfigPlan.Step>(16);
+    
+    if (_cfgfile instanceof HtConfigDirective) {
+      this.compileNode
+        (steps, conditions, emptyConditions, (HtConfigDirective)_cfgfile);
+    }
+    else
+      this.compileChildren(steps, conditions, emptyConditions, _cfgfile);
+    
+    return new HtConfigPlan(
+        conditions.toArray(new EOQualifierEvaluation[conditions.size()]),
+        steps.toArray(new HtConfigPlan.Step[steps.size()]),
+        this.lookupKeysOfConfiguration(_cfgfile));
+  }
+  private static final int[] emptyConditions = new int[0];
+  
+  protected void compileChildren
+    (final List<HtConfigPlan.Step> _steps,
+     final List<EOQualifierEvaluation> _conditions, final int[] _active,
+     final IHtConfigContainer _container)
+  {
+    for (IHtConfigNode node: _container.nodes())
+      this.compileNode(_steps, _conditions, _active, node);
+  }
+  
+  protected void compileNode
+    (final List<HtConfigPlan.Step> _steps,
+     final List<EOQualifierEvaluation> _conditions, final int[] _active,
+     final IHtConfigNode _node)
+  {
+    if (_node instanceof HtConfigFile) {
+      this.compileChildren(_steps, _conditions, _active, (HtConfigFile)_node);
+      return;
+    }
+    if (!(_node instanceof HtConfigDirective)) {
+      log.warn("ignoring config child: " + _node);
+      return;
+    }
+    
+    final HtConfigDirective   directive = (HtConfigDirective)_node;
+    final String              dirname   = directive.name().toLowerCase();
+    final IHtConfigEvaluation evaluator = this.directiveToEval.get(dirname);
+    if (evaluator == null) {
+      log.warn("ignoring directive: " + dirname);
+      return;
+    }
+    
+    /* flatten sections */
+    
+    if (directive instanceof HtConfigSection &&
+        evaluator instanceof IHtConfigSectionEvaluation)
+    {
+      EOQualifierEvaluation q;
+      try {
+        q = ((IHtConfigSectionEvaluation)evaluator)
+          .conditionForSection(this, directive);
+      }
+      catch (PatternSyntaxException e) {
+        /* a custom section evaluation which does not check its patterns */
+        log.error("section has an invalid pattern, disabling it: " +
+                  directive, e);
+        q = EOBooleanQualifier.falseQualifier;
+      }
+      
+      final int[] active = Arrays.copyOf(_active, _active.length + 1);
+      active[_active.length] = _conditions.size();
+      _conditions.add(q);
+      
+      this.compileChildren
+        (_steps, _conditions, active, (HtConfigSection)directive);
+      return;
+    }
+    
+    /* regular directive */
+    
+    final Object args = (evaluator instanceof IHtConfigCompilableEvaluation)
+      ? ((IHtConfigCompilableEvaluation)evaluator)
+          .compileArguments(this, directive)
+      : null;
+    
+    _steps.add(new HtConfigPlan.Step(_active, evaluator, directive, args));
+  }
+  
+  /**
+   * Returns the keys of the lookup context which are evaluated when the
+   * directives of the given config file are processed (eg 'filename' if the
+   * file contains a FilesMatch section).
+   * <p>
+   * This only works if the builder uses the default directives, for others
+   * the dependencies are unknown.
+   * 
+   * @param _cfgfile - the parsed configuration
+   * @return the keys, or null if they could not be determined
+   */
+  public Set<String> lookupKeysOfConfiguration(final IHtConfigContainer _cfgfile) {
+    if (this.directiveToEval != defDirectiveToEval)
+      return null;
+    
+    final Set<String> keys = new HashSet<String>(4);
+    if (_cfgfile instanceof HtConfigDirective) {
+      if (!this.addLookupKeysOfNode(keys, (HtConfigDirective)_cfgfile))
+        return null;
+    }
+    else if (_cfgfile != null) {
+      for (IHtConfigNode node: _cfgfile.nodes()) {
+        if (!this.addLookupKeysOfNode(keys, node))
+          return null;
+      }
+    }
+    return keys;
+  }
+  
+  protected boolean addLookupKeysOfNode(final Set<String> _keys, final IHtConfigNode _node) {
+    if (_node instanceof HtConfigSection) {
+      final String key =
+        defSectionToLookupKey.get(((HtConfigSection)_node).name().toLowerCase());
+      if (key == null)
+        return false; /* unknown section */
+      _keys.add(key);
+    }
+    
+    if (_node instanceof IHtConfigContainer) {
+      for (IHtConfigNode node: ((IHtConfigContainer)_node).nodes()) {
+        if (!this.addLookupKeysOfNode(_keys, node))
+          return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Returns the value of a lookup context key as used by the default
+   * directives. This is used to compare lookup contexts.
+   * 
+   * @param _name      - the key, eg 'dirpath' or 'method'
+   * @param _lookupCtx - the lookup context
+   * @return a String representing the value
+   */
+  public String lookupKeyValueFromLookupCtx(final String _name, final Object _lookupCtx) {
+    if (!"method".equals(_name))
+      return this.arrayValueFromLookupCtx(_name, _lookupCtx);
+    
+    /* same like the Limit directive */
+    Object method = NSKeyValueCoding.Utility.valueForKey(_lookupCtx, "method");
+    if (UObject.isEmpty(method)) {
+      method = NSKeyValueCodingAdditions.Utility
+        .valueForKeyPath(_lookupCtx, "context.request.method");
+    }
+    return method != null ? method.toString() : null;
+  }
+  
   /* HtAccess */
 
   public void processChildren
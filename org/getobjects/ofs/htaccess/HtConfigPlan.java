@@ -0,0 +1,168 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.ofs.htaccess;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eocontrol.EOQualifierEvaluation;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * HtConfigPlan
+ * <p>
+ * The compiled form of a HtConfigFile, as returned by
+ * HtConfigBuilder.compileConfiguration(). Instead of walking the parsed
+ * directives and looking up the evaluation object of each, the plan contains
+ * a flat table of steps:
+ * <ul>
+ *   <li>sections are flattened, each step refers to the conditions of the
+ *       sections it is contained in (eg the Pattern of a FilesMatch)
+ *   <li>each step has its evaluation object and the arguments it compiled
+ *       (eg the EOQualifier of a SetEOQualifier)
+ * </ul>
+ * The conditions are evaluated at most once per evaluation of the plan.
+ * <p>
+ * THREAD: the plan is immutable and can be shared.
+ */
+public class HtConfigPlan extends NSObject {
+  protected static final Log log = LogFactory.getLog("GoConfig");
+
+  protected final EOQualifierEvaluation[] conditions;
+  protected final Step[]                  steps;
+  protected final Set<String>             lookupKeys;
+
+  public HtConfigPlan
+    (final EOQualifierEvaluation[] _conditions, final Step[] _steps,
+     final Set<String> _lookupKeys)
+  {
+    this.conditions = _conditions;
+    this.steps      = _steps;
+    this.lookupKeys = _lookupKeys;
+  }
+
+  /* accessors */
+
+  public int stepCount() {
+    return this.steps.length;
+  }
+
+  /**
+   * Returns the keys of the lookup context the conditions of the plan
+   * evaluate (eg 'filename' for a FilesMatch section).
+   * 
+   * @return the keys, or null if the plan contains unknown sections
+   */
+  public Set<String> lookupKeys() {
+    return this.lookupKeys;
+  }
+
+  /* evaluation */
+
+  /**
+   * Evaluates the steps of the plan whose conditions match the lookup context.
+   * 
+   * @param _builder   - the HtConfigBuilder which is active
+   * @param _cfg       - the configuration object to be filled
+   * @param _lookupCtx - the configuration lookup context (eg path/location)
+   */
+  public void evaluate
+    (final HtConfigBuilder _builder, final Map<String, Object> _cfg,
+     final Object _lookupCtx)
+  {
+    /* 0 = not evaluated yet, 1 = matches, 2 = does not match */
+    final byte[] results = this.conditions.length > 0
+      ? new byte[this.conditions.length] : null;
+
+    for (final Step step: this.steps) {
+      if (!this.matchesConditions(step.conditions, results, _lookupCtx))
+        continue;
+
+      final Exception error = step.evaluate(_builder, _cfg, _lookupCtx);
+      if (error != null && log.isDebugEnabled())
+        log.debug("directive failed: " + step.directive, error);
+    }
+  }
+
+  protected boolean matchesConditions
+    (final int[] _conditions, final byte[] _results, final Object _lookupCtx)
+  {
+    for (final int idx: _conditions) {
+      if (_results[idx] == 0) {
+        final boolean doesMatch =
+          this.conditions[idx].evaluateWithObject(_lookupCtx);
+        _results[idx] = (byte)(doesMatch ? 1 : 2);
+      }
+      if (_results[idx] != 1)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * A directive of the plan, along with the indices of the conditions of
+   * the sections containing the directive (outermost first).
+   */
+  public static class Step {
+
+    protected final int[]               conditions;
+    protected final IHtConfigEvaluation evaluation;
+    protected final HtConfigDirective   directive;
+    protected final Object              arguments;
+
+    public Step
+      (final int[] _conditions, final IHtConfigEvaluation _evaluation,
+       final HtConfigDirective _directive, final Object _arguments)
+    {
+      this.conditions = _conditions;
+      this.evaluation = _evaluation;
+      this.directive  = _directive;
+      this.arguments  = _arguments;
+    }
+
+    public Exception evaluate
+      (final HtConfigBuilder _builder, final Map<String, Object> _cfg,
+       final Object _lookupCtx)
+    {
+      if (this.evaluation instanceof IHtConfigCompilableEvaluation) {
+        return ((IHtConfigCompilableEvaluation)this.evaluation)
+          .evaluateCompiledDirective
+            (_builder, this.directive, this.arguments, _cfg, _lookupCtx);
+      }
+      return this.evaluation.evaluateDirective
+        (_builder, this.directive, _cfg, _lookupCtx);
+    }
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" #steps=");
+    _d.append(this.steps.length);
+    _d.append(" #conditions=");
+    _d.append(this.conditions.length);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.ofs.htaccess;
+
+import java.util.Map;
+
+/**
+ * Implemented by evaluation objects which can preprocess the arguments of a
+ * directive, eg compile a regular expression or parse a qualifier. This is
+ * done once when the HtConfigPlan is built, the result is then passed to
+ * each evaluation of the directive.
+ */
+public interface IHtConfigCompilableEvaluation extends IHtConfigEvaluation {
+
+  /**
+   * Preprocesses the arguments of the directive.
+   * 
+   * @param _builder   - the HtConfigBuilder which is active
+   * @param _directive - the HtConfigDirective to be compiled
+   * @return the compiled arguments, can be null
+   */
+  public Object compileArguments
+    (HtConfigBuilder _builder, HtConfigDirective _directive);
+
+  /**
+   * Execute the given <code>_directive</code> using the arguments returned by
+   * compileArguments().
+   * 
+   * @param _builder   - the HtConfigBuilder which is active
+   * @param _directive - the HtConfigDirective to be executed
+   * @param _args      - the result of compileArguments()
+   * @param _cfg       - the configuration object to be filled/modified/...
+   * @param _lookupCtx - the configuration lookup context (eg path/location)
+   * @return null if everything went fine, an Exception otherwise
+   */
+  public Exception evaluateCompiledDirective
+    (HtConfigBuilder _builder, HtConfigDirective _directive, Object _args,
+     Map<String, Object> _cfg, Object _lookupCtx);
+
+}
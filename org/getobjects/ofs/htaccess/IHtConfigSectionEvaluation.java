@@ -0,0 +1,44 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.ofs.htaccess;
+
+import org.getobjects.eocontrol.EOQualifierEvaluation;
+
+/**
+ * Implemented by evaluation objects of section directives, eg
+ * <code>FilesMatch</code>. The section is compiled into a condition which
+ * is checked against the lookup context, the contained directives are
+ * then compiled into the HtConfigPlan.
+ */
+public interface IHtConfigSectionEvaluation extends IHtConfigEvaluation {
+
+  /**
+   * Returns the condition which decides whether the contents of the section
+   * apply to a lookup context.
+   * 
+   * @param _builder - the HtConfigBuilder which is active
+   * @param _section - the section directive, eg &lt;FilesMatch ...&gt;
+   * @return a condition which gets evaluated with the lookup context
+   */
+  public EOQualifierEvaluation conditionForSection
+    (HtConfigBuilder _builder, HtConfigDirective _section);
+
+}
@@ -33,7 +33,7 @@ import org.getobjects.ofs.config.GoConfigKeys;
 import org.getobjects.ofs.config.GoConfigKeys.KeyMatchEntry;
 import org.getobjects.ofs.htaccess.HtConfigBuilder;
 import org.getobjects.ofs.htaccess.HtConfigDirective;
-import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
+import org.getobjects.ofs.htaccess.IHtConfigCompilableEvaluation;
 
 /**
  * AliasMatchName
@@ -55,14 +55,47 @@ import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
  * The method is different to the Apache AliasMatch, which only works in the
  * server/vhost configuration.
  */
-public class AliasMatchName extends NSObject implements IHtConfigEvaluation {
+public class AliasMatchName extends NSObject
+  implements IHtConfigCompilableEvaluation
+{
   // DISCLAIMER: I'm not perfectly happy with this stuff, might change
   protected static final Log log = LogFactory.getLog("JoConfig");
   
-  @SuppressWarnings("unchecked")
   public Exception evaluateDirective
     (final HtConfigBuilder _builder, HtConfigDirective _directive,
      final Map<String, Object> _cfg, final Object _lookupCtx)
+  {
+    return this.evaluateCompiledDirective(_builder, _directive,
+        this.compileArguments(_builder, _directive), _cfg, _lookupCtx);
+  }
+  
+  /**
+   * Compiles the pattern given in the first argument.
+   * 
+   * @return the Pattern, a PatternSyntaxException, or null if the arguments
+   *   are invalid or 'None'
+   */
+  public Object compileArguments
+    (final HtConfigBuilder _builder, final HtConfigDirective _directive)
+  {
+    final String[] args = _directive.arguments();
+    if (args == null || args.length < 2)
+      return null;
+    
+    try {
+      return Pattern.compile(args[0], 0 /* flags */);
+    }
+    catch (PatternSyntaxException e) {
+      log.error("AliasMatchName is not a valid pattern: " + args[0], e);
+      return e;
+    }
+  }
+  
+  @SuppressWarnings("unchecked")
+  public Exception evaluateCompiledDirective
+    (final HtConfigBuilder _builder, final HtConfigDirective _directive,
+     final Object _args,
+     final Map<String, Object> _cfg, final Object _lookupCtx)
   {
     // TBD: error checking
     String[] args = _directive.arguments();
@@ -81,14 +114,9 @@ public class AliasMatchName extends NSObject implements IHtConfigEvaluation {
       return null;
     }
     
-    Pattern p;
-    try {
-      p = Pattern.compile(args[0], 0 /* flags */);
-    }
-    catch (PatternSyntaxException e) {
-      log.error("AliasMatchName is not a valid pattern: " + args[0], e);
-      return e;
-    }
+    if (_args instanceof Exception)
+      return (Exception)_args; /* the pattern could not be compiled */
+    final Pattern p = (Pattern)_args;
     
     /* get/prepare match array */
     
@@ -20,12 +20,10 @@
 */
 package org.getobjects.ofs.htaccess.eval;
 
-import java.util.Map;
-
+import org.getobjects.eocontrol.EOBooleanQualifier;
 import org.getobjects.eocontrol.EOQualifierEvaluation;
 import org.getobjects.ofs.htaccess.HtConfigBuilder;
 import org.getobjects.ofs.htaccess.HtConfigDirective;
-import org.getobjects.ofs.htaccess.IHtConfigContainer;
 
 /**
  * Directory Directive
@@ -39,70 +37,73 @@ import org.getobjects.ofs.htaccess.IHtConfigContainer;
  */
 public class Directory extends KeyMatchEvaluation {
 
+  /**
+   * Returns the condition of the section. If the first argument is a '~', the
+   * other arguments are regular expressions matched against the 'dirpath'.
+   * Otherwise the argument is a path which must be a prefix of the 'dirpath'.
+   */
   @Override
-  public Exception evaluateDirective
-    (final HtConfigBuilder _builder, HtConfigDirective _directive,
-     final Map<String, Object> _cfg, final Object _lookupCtx)
+  public EOQualifierEvaluation conditionForSection
+    (final HtConfigBuilder _builder, final HtConfigDirective _section)
   {
     // TBD: better error checking
-    String[] args = _directive.arguments();
+    final String[] args = _section.arguments();
     if (args == null || args.length == 0) {
-      log.warn("directive got no arguments: " + _directive);
-      return null;
+      log.warn("directive got no arguments: " + _section);
+      return EOBooleanQualifier.falseQualifier;
     }
     
-    boolean doesMatch = false;
-    if (args[0] == "~") {
-      /* regex */
-      EOQualifierEvaluation q = this.qualifierForArguments(_builder, args, 1);
-
-      doesMatch = q.evaluateWithObject(_lookupCtx);
+    if ("~".equals(args[0])) /* regex */
+      return this.regexConditionForSection(_builder, _section, args, 1);
+    
+    return new DirPathPrefixQualifier(_builder, args[0].split("/")); // TBD: escapes
+  }
+  
+  /**
+   * Checks whether the 'dirpath' of the lookup context starts with the given
+   * path. A '*' in the path matches any directory name.
+   */
+  public static class DirPathPrefixQualifier implements EOQualifierEvaluation {
+    
+    protected final HtConfigBuilder builder;
+    protected final String[]        matchpath;
+    
+    public DirPathPrefixQualifier
+      (final HtConfigBuilder _builder, final String[] _matchpath)
+    {
+      this.builder   = _builder;
+      this.matchpath = _matchpath;
+      
+      for (final String part: _matchpath) {
+        if (!part.equals("*") &&
+            (part.indexOf('*') >= 0 || part.indexOf('?') >= 0))
+        {
+          log.warn("directive match path contains pattern which we " +
+              "cannot process (yet): " + part);
+        }
+      }
     }
-    else {
+    
+    public boolean evaluateWithObject(final Object _lookupCtx) {
       String[] dirpath =
-        _builder.valueAsArrayFromLookupCtx("dirpath", _lookupCtx);
+        this.builder.valueAsArrayFromLookupCtx("dirpath", _lookupCtx);
       if (dirpath == null) {
         log.warn("got no 'dirpath' from lookup context: " + _lookupCtx);
         dirpath = new String[0];
       }
       
-      final String[] matchpath = args[0].split("/"); // TBD: escapes
+      if (dirpath.length < this.matchpath.length)
+        return false; // matchpath longer than dirpath
       
-      if (dirpath.length < matchpath.length)
-        doesMatch = false; // matchpath longer than dirpath
-      else {
-        doesMatch = true;
-        for (int i = 0; i < matchpath.length; i++) {
-          if (!dirpath[i].equals(matchpath[i])) {
-            if (matchpath[i].equals("*")) // full part match
-              continue;
-            
-            if (matchpath[i].indexOf('*') >= 0 ||
-                matchpath[i].indexOf('?') >= 0) {
-              log.warn("directive match path contains pattern which we " +
-                  "cannot process (yet): " + matchpath[i]);
-            }
-            
-            doesMatch = false;
-            break;
-          }
+      for (int i = 0; i < this.matchpath.length; i++) {
+        if (!dirpath[i].equals(this.matchpath[i])) {
+          if (this.matchpath[i].equals("*")) // full part match
+            continue;
+          return false;
         }
       }
+      return true;
     }
-    
-    if (doesMatch) {
-      if (log.isDebugEnabled()) {
-        log.debug(_directive.name() + " matched (" + args[0] + "): " 
-            + _directive + "\n  ctx: " + _lookupCtx);
-      }
-
-      _builder.processChildren
-        (_cfg, (IHtConfigContainer)_directive, _lookupCtx);
-    }
-    else if (log.isDebugEnabled())
-      log.debug(_directive.name() + " did NOT match ("+args[0]+")");
-    
-    return null; /* everything is fine */
   }
 
   @Override
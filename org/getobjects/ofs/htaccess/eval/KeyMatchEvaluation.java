@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,7 +38,7 @@ import org.getobjects.foundation.NSObject;
 import org.getobjects.ofs.htaccess.HtConfigBuilder;
 import org.getobjects.ofs.htaccess.HtConfigDirective;
 import org.getobjects.ofs.htaccess.IHtConfigContainer;
-import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
+import org.getobjects.ofs.htaccess.IHtConfigSectionEvaluation;
 
 /**
  * KeyMatchEvaluation
@@ -59,7 +60,7 @@ import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
  * (<code>!</code>) the directive will negate the result of the match.
  */
 public abstract class KeyMatchEvaluation extends NSObject
-  implements IHtConfigEvaluation
+  implements IHtConfigSectionEvaluation
 {
   protected static final Log log = LogFactory.getLog("GoConfig");
 
@@ -70,28 +71,68 @@ public abstract class KeyMatchEvaluation extends NSObject
     (final HtConfigBuilder _builder, HtConfigDirective _directive,
      final Map<String, Object> _cfg, final Object _lookupCtx)
   {
-    // TBD: error checking
-    String[] args = _directive.arguments();
-    if (args == null || args.length == 0) {
-      log.warn("directive got no arguments: " + _directive);
-      return null;
-    }
-
-    EOQualifierEvaluation q = this.qualifierForArguments(_builder, args, 0);
+    final EOQualifierEvaluation q =
+      this.conditionForSection(_builder, _directive);
 
     if (q.evaluateWithObject(_lookupCtx)) {
       if (log.isDebugEnabled())
-        log.debug(_directive.name() + " matched (" + args[0] + ")");
+        log.debug(_directive.name() + " matched");
 
       _builder.processChildren
         (_cfg, (IHtConfigContainer)_directive, _lookupCtx);
     }
     else if (log.isDebugEnabled())
-      log.debug(_directive.name() + " did NOT match ("+args[0]+")");
+      log.debug(_directive.name() + " did NOT match");
 
     return null; /* everything is fine */
   }
   
+  /**
+   * Returns the qualifier which matches the regular expressions given in the
+   * arguments of the section against the key of the lookup context.
+   * 
+   * @param _builder - the HtConfigBuilder
+   * @param _section - the section, eg &lt;FilesMatch ...&gt;
+   * @return the condition of the section
+   */
+  public EOQualifierEvaluation conditionForSection
+    (final HtConfigBuilder _builder, final HtConfigDirective _section)
+  {
+    // TBD: error checking
+    final String[] args = _section.arguments();
+    if (args == null || args.length == 0) {
+      log.warn("directive got no arguments: " + _section);
+      return EOBooleanQualifier.falseQualifier;
+    }
+
+    return this.regexConditionForSection(_builder, _section, args, 0);
+  }
+  
+  /**
+   * Returns the qualifier for the regular expressions starting at _idx. If
+   * one of the expressions is invalid, the error is logged and the section
+   * never matches (the other sections of the config file still work).
+   * 
+   * @param _builder - the HtConfigBuilder
+   * @param _section - the section, eg &lt;FilesMatch ...&gt;
+   * @param _args    - the arguments of the section
+   * @param _idx     - the index of the first regular expression in _args
+   * @return the condition of the section
+   */
+  protected EOQualifierEvaluation regexConditionForSection
+    (final HtConfigBuilder _builder, final HtConfigDirective _section,
+     final String[] _args, final int _idx)
+  {
+    try {
+      return this.qualifierForArguments(_builder, _args, _idx);
+    }
+    catch (PatternSyntaxException e) {
+      log.error(_section.name() + " section has an invalid pattern, " +
+                "disabling it: " + e.getPattern(), e);
+      return EOBooleanQualifier.falseQualifier;
+    }
+  }
+  
   /**
    * Returns an EOQualifier which can be used to check whether the section
    * should be run in the given context. The EOQualifier will be run against
@@ -126,6 +167,15 @@ public abstract class KeyMatchEvaluation extends NSObject
     return q;
   }
   
+  /**
+   * Returns the qualifier matching the given regular expression against the
+   * key of the lookup context.
+   * 
+   * @param _builder - the HtConfigBuilder
+   * @param _arg     - the regular expression, optionally prefixed with '!'
+   * @return the qualifier
+   * @throws PatternSyntaxException if the regular expression is invalid
+   */
   public EOQualifier qualifierForArgument
     (final HtConfigBuilder _builder, String _arg)
   {
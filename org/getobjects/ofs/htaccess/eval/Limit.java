@@ -24,14 +24,13 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.getobjects.foundation.NSKeyValueCoding;
-import org.getobjects.foundation.NSKeyValueCodingAdditions;
+import org.getobjects.eocontrol.EOQualifierEvaluation;
 import org.getobjects.foundation.NSObject;
 import org.getobjects.foundation.UObject;
 import org.getobjects.ofs.htaccess.HtConfigBuilder;
 import org.getobjects.ofs.htaccess.HtConfigDirective;
 import org.getobjects.ofs.htaccess.IHtConfigContainer;
-import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
+import org.getobjects.ofs.htaccess.IHtConfigSectionEvaluation;
 
 /**
  * &lt;Limit method [method] ... &gt; ... &lt;/Limit&gt;
@@ -48,36 +47,66 @@ import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
  * <br>
  * Note: the operation is case sensitive!
  */
-public class Limit extends NSObject implements IHtConfigEvaluation {
+public class Limit extends NSObject implements IHtConfigSectionEvaluation {
   protected static final Log log = LogFactory.getLog("GoConfig");
   
   public Exception evaluateDirective
     (final HtConfigBuilder _builder, HtConfigDirective _directive,
      final Map<String, Object> _cfg, final Object _lookupCtx)
   {
-    String method = (String)
-      NSKeyValueCoding.Utility.valueForKey(_lookupCtx, "method");
-    if (UObject.isEmpty(method)) {
-      method = (String)NSKeyValueCodingAdditions.Utility
-        .valueForKeyPath(_lookupCtx, "context.request.method");
+    if (this.conditionForSection(_builder, _directive)
+          .evaluateWithObject(_lookupCtx))
+    {
+      _builder.processChildren(_cfg,
+          (IHtConfigContainer)_directive, _lookupCtx);
     }
+    return null;
+  }
+  
+  public EOQualifierEvaluation conditionForSection
+    (final HtConfigBuilder _builder, final HtConfigDirective _section)
+  {
+    return new MethodQualifier(_builder, _section.arguments(), false /* except */);
+  }
+  
+  /**
+   * Checks whether the HTTP method of the lookup context is one of the given
+   * methods (or is not, for LimitExcept).
+   */
+  public static class MethodQualifier implements EOQualifierEvaluation {
     
-    if (UObject.isEmpty(method)) {
-      log.warn("lookup context contains no HTTP method: " + _lookupCtx);
-      return null; /* nothing to be done, contents can't match */
-    }
+    protected final HtConfigBuilder builder;
+    protected final String[]        methods;
+    protected final boolean         except;
     
-    String[] args = _directive.arguments();
-    if (args == null || args.length == 0)
-      return null; /* nothing to be done, nothing to match */
+    public MethodQualifier
+      (final HtConfigBuilder _builder, final String[] _methods,
+       final boolean _except)
+    {
+      this.builder = _builder;
+      this.methods = _methods;
+      this.except  = _except;
+    }
     
-    for (String arg: args) {
-      if (method.equals(arg)) {
-        _builder.processChildren(_cfg,
-            (IHtConfigContainer)_directive, _lookupCtx);
-        return null; /* method matched */
+    public boolean evaluateWithObject(final Object _lookupCtx) {
+      final String method =
+        this.builder.lookupKeyValueFromLookupCtx("method", _lookupCtx);
+      
+      if (UObject.isEmpty(method) ||
+          this.methods == null || this.methods.length == 0)
+      {
+        if (UObject.isEmpty(method))
+          log.warn("lookup context contains no HTTP method: " + _lookupCtx);
+        
+        /* nothing to match, Limit does not apply, LimitExcept does */
+        return this.except;
+      }
+      
+      for (final String arg: this.methods) {
+        if (method.equals(arg))
+          return !this.except; /* method matched */
       }
+      return this.except; /* nothing matched */
     }
-    return null; /* nothing matched */
   }
 }
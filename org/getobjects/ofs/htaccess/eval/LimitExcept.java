@@ -24,14 +24,12 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.getobjects.foundation.NSKeyValueCoding;
-import org.getobjects.foundation.NSKeyValueCodingAdditions;
+import org.getobjects.eocontrol.EOQualifierEvaluation;
 import org.getobjects.foundation.NSObject;
-import org.getobjects.foundation.UObject;
 import org.getobjects.ofs.htaccess.HtConfigBuilder;
 import org.getobjects.ofs.htaccess.HtConfigDirective;
 import org.getobjects.ofs.htaccess.IHtConfigContainer;
-import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
+import org.getobjects.ofs.htaccess.IHtConfigSectionEvaluation;
 
 /**
  * &lt;LimitExcept method [method] ... &gt; ... &lt;/Limit&gt;
@@ -49,35 +47,25 @@ import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
  * <br>
  * Note: the operation is case sensitive!
  */
-public class LimitExcept extends NSObject implements IHtConfigEvaluation {
+public class LimitExcept extends NSObject implements IHtConfigSectionEvaluation {
   protected static final Log log = LogFactory.getLog("GoConfig");
   
   public Exception evaluateDirective
     (final HtConfigBuilder _builder, HtConfigDirective _directive,
      final Map<String, Object> _cfg, final Object _lookupCtx)
   {
-    String method = (String)
-      NSKeyValueCoding.Utility.valueForKey(_lookupCtx, "method");
-    if (UObject.isEmpty(method)) {
-      method = (String)NSKeyValueCodingAdditions.Utility
-        .valueForKeyPath(_lookupCtx, "context.request.method");
-    }
-    
-    String[] args = _directive.arguments();
-    if (UObject.isEmpty(method) || args == null || args.length == 0) {
-      log.warn("lookup context contains no HTTP method: " + _lookupCtx);
+    if (this.conditionForSection(_builder, _directive)
+          .evaluateWithObject(_lookupCtx))
+    {
       _builder.processChildren(_cfg,
           (IHtConfigContainer)_directive, _lookupCtx);
-      return null;
-    }
-    
-    for (String arg: args) {
-      if (method.equals(arg))
-        return null; /* method matched, do NOT limit */
     }
-    
-    _builder.processChildren(_cfg,
-        (IHtConfigContainer)_directive, _lookupCtx);
-    return null; /* nothing matched */
+    return null;
+  }
+  
+  public EOQualifierEvaluation conditionForSection
+    (final HtConfigBuilder _builder, final HtConfigDirective _section)
+  {
+    return new Limit.MethodQualifier(_builder, _section.arguments(), true /* except */);
   }
 }
@@ -20,8 +20,6 @@
 */
 package org.getobjects.ofs.htaccess.eval;
 
-import java.util.Map;
-
 import org.getobjects.eocontrol.EOQualifier;
 import org.getobjects.ofs.htaccess.HtConfigBuilder;
 import org.getobjects.ofs.htaccess.HtConfigDirective;
@@ -38,27 +36,23 @@ public class SetEOQualifier extends SimpleKeyValueDirective {
     this(null /* derive from lowercase directive name */);
   }
 
-  public Exception evaluateDirective
-    (final HtConfigBuilder _builder, HtConfigDirective _directive,
-     final Map<String, Object> _cfg, final Object _lookupCtx)
+  /**
+   * Parses the qualifier given in the first argument. The arguments starting
+   * at the third one are used as the qualifier arguments.
+   */
+  @Override
+  public Object compileArguments
+    (final HtConfigBuilder _builder, final HtConfigDirective _directive)
   {
     final String[] args  = _directive.arguments();
     final String   value = args != null && args.length > 0 ? args[0] : null;
-    String lkey = this.key != null ? this.key : _directive.name().toLowerCase();
     
     Object[] qargs = null;
-    if (args.length > 2) {
+    if (args != null && args.length > 2) {
       qargs = new Object[args.length - 2];
       System.arraycopy(args, 2, qargs, 0, args.length - 2);
     }
 
-    final EOQualifier cfgValue = EOQualifier.parseV(value, qargs);
-    
-    if (cfgValue != null)
-      _cfg.put(lkey, cfgValue);
-    else
-      _cfg.remove(lkey);
-
-    return null; /* everything is fine */
+    return EOQualifier.parseV(value, qargs);
   }
 }
@@ -25,13 +25,13 @@ import java.util.Map;
 import org.getobjects.foundation.NSObject;
 import org.getobjects.ofs.htaccess.HtConfigBuilder;
 import org.getobjects.ofs.htaccess.HtConfigDirective;
-import org.getobjects.ofs.htaccess.IHtConfigEvaluation;
+import org.getobjects.ofs.htaccess.IHtConfigCompilableEvaluation;
 
 /**
  * SimpleKeyValueDirective
  */
 public class SimpleKeyValueDirective extends NSObject
-  implements IHtConfigEvaluation
+  implements IHtConfigCompilableEvaluation
 {
   protected String key;
   
@@ -46,14 +46,31 @@ public class SimpleKeyValueDirective extends NSObject
   public Exception evaluateDirective
     (final HtConfigBuilder _builder, HtConfigDirective _directive,
      final Map<String, Object> _cfg, final Object _lookupCtx)
+  {
+    return this.evaluateCompiledDirective(_builder, _directive,
+        this.compileArguments(_builder, _directive), _cfg, _lookupCtx);
+  }
+  
+  /**
+   * Returns the value for the directive, as returned by valueForArgument().
+   */
+  public Object compileArguments
+    (final HtConfigBuilder _builder, final HtConfigDirective _directive)
   {
     final String[] args  = _directive.arguments();
     final String   value = args != null && args.length > 0 ? args[0] : null;
+    return this.valueForArgument(value);
+  }
+  
+  public Exception evaluateCompiledDirective
+    (final HtConfigBuilder _builder, final HtConfigDirective _directive,
+     final Object _args,
+     final Map<String, Object> _cfg, final Object _lookupCtx)
+  {
     String lkey = this.key != null ? this.key : _directive.name().toLowerCase();
     
-    final Object cfgValue = this.valueForArgument(value);
-    if (cfgValue != null)
-      _cfg.put(lkey, cfgValue);
+    if (_args != null)
+      _cfg.put(lkey, _args);
     else
       _cfg.remove(lkey);
     
@@ -0,0 +1,185 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.ofs.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.getobjects.appserver.core.WOContext;
+import org.getobjects.appserver.core.WORequest;
+import org.getobjects.ofs.OFSApplication;
+import org.getobjects.ofs.OFSFolder;
+import org.getobjects.ofs.fs.OFSHostFileManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the configurations cached by OFSConfigProcessor are reused
+ * across requests and invalidated if a config.htaccess changes.
+ */
+public class TOFSConfigProcessor {
+
+  protected File               root;
+  protected OFSHostFileManager fm;
+  protected OFSApplication     app;
+
+  @Before
+  public void setUp() throws IOException {
+    this.root = Files.createTempDirectory("ofstest").toFile().getAbsoluteFile();
+    this.fm   = new OFSHostFileManager(this.root);
+    this.app  = new OFSApplication();
+    this.app.init();
+
+    assertTrue(new File(this.root, "a").mkdir());
+    assertTrue(new File(this.root, "b").mkdir());
+    this.writeConfig("a", "SetEnv X 1\n" +
+                          "<FilesMatch \"f.*\">\n" +
+                          "  SetEnv T yes\n" +
+                          "</FilesMatch>\n");
+  }
+
+  @After
+  public void tearDown() {
+    deleteRecursively(this.root);
+  }
+
+  @Test
+  public void testConfigIsShared() {
+    final Map<String, ?> cfg = this.configForName("a", "f.txt");
+    assertEquals("1",   this.envValue(cfg, "X"));
+    assertEquals("yes", this.envValue(cfg, "T"));
+
+    /* a new request (new folder objects), same context values */
+    assertSame("config not cached", cfg, this.configForName("a", "f.txt"));
+
+    /* the section depends on the filename (the object id, eg 'g') */
+    final Map<String, ?> other = this.configForName("a", "g.txt");
+    assertEquals("1", this.envValue(other, "X"));
+    assertNull(this.envValue(other, "T"));
+    assertSame(other, this.configForName("a", "g.txt"));
+    assertSame(cfg, this.configForName("a", "f.gif"));
+  }
+
+  @Test
+  public void testConfigFileChange() throws IOException {
+    final Map<String, ?> cfg = this.configForName("a", "f.txt");
+    assertEquals("1", this.envValue(cfg, "X"));
+
+    this.writeConfig("a", "SetEnv X 2\n");
+
+    final Map<String, ?> cfg2 = this.configForName("a", "f.txt");
+    assertNotSame("config not invalidated", cfg, cfg2);
+    assertEquals("2", this.envValue(cfg2, "X"));
+    assertNull(this.envValue(cfg2, "T"));
+    assertSame(cfg2, this.configForName("a", "f.txt"));
+  }
+
+  @Test
+  public void testConfigFileAddedAndRemoved() throws IOException {
+    final Map<String, ?> cfg = this.configForName("b", "f.txt");
+    assertNull(this.envValue(cfg, "Y"));
+
+    /* adding a config file changes the folder timestamp */
+    this.writeConfig("b", "SetEnv Y 1\n");
+    assertEquals("1", this.envValue(this.configForName("b", "f.txt"), "Y"));
+
+    final File cfgFile = new File(new File(this.root, "b"), "config.htaccess");
+    assertTrue(cfgFile.delete());
+    this.touch(cfgFile.getParentFile());
+    assertNull(this.envValue(this.configForName("b", "f.txt"), "Y"));
+  }
+
+
+  /* support */
+
+  /**
+   * Returns the configuration of the named object in the given folder. The
+   * OFS objects are created for each call, like they are for each request.
+   */
+  protected Map<String, ?> configForName(final String _folder, final String _name) {
+    final WOContext ctx =
+      new WOContext(this.app, new WORequest("GET", "/", "HTTP/1.1", null, null, null));
+
+    final OFSFolder rootFolder = new OFSFolder();
+    rootFolder.setStorageLocation(this.fm, new String[0]);
+    rootFolder.setLocation(null, null);
+
+    final Object folder = rootFolder.lookupName(_folder, ctx, false);
+    assertTrue("could not lookup folder: " + folder, folder instanceof OFSFolder);
+
+    return ((OFSFolder)folder).configurationForNameInContext(_name, ctx);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected String envValue(final Map<String, ?> _cfg, final String _key) {
+    final Map<String, Object> env =
+      _cfg != null ? (Map<String, Object>)_cfg.get("env") : null;
+    final Object v = env != null ? env.get(_key) : null;
+    return v != null ? v.toString() : null;
+  }
+
+  protected void writeConfig(final String _folder, final String _content)
+    throws IOException
+  {
+    final File dir  = new File(this.root, _folder);
+    final File file = new File(dir, "config.htaccess");
+    final boolean isNew = !file.exists();
+
+    final FileOutputStream os = new FileOutputStream(file);
+    try {
+      os.write(_content.getBytes("utf-8"));
+    }
+    finally {
+      os.close();
+    }
+
+    /* the timestamps have a coarse granularity on some filesystems */
+    this.touch(file);
+    if (isNew)
+      this.touch(dir);
+  }
+
+  protected void touch(final File _file) {
+    final long now = System.currentTimeMillis();
+    final long old = _file.lastModified();
+    assertTrue(_file.setLastModified(Math.max(now, old + 2000)));
+  }
+
+  protected static void deleteRecursively(final File _file) {
+    final File[] children = _file.listFiles();
+    if (children != null) {
+      for (final File child: children)
+        deleteRecursively(child);
+    }
+    _file.delete();
+  }
+}
@@ -0,0 +1,242 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.ofs.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.getobjects.ofs.fs.IOFSFileInfo;
+import org.getobjects.ofs.fs.OFSHostFileManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the stat cache of OFSHostFileManager in watch mode.
+ */
+public class TOFSHostFileManager {
+
+  /**
+   * Exposes the caches and allows a test to run code while statOfFile() is
+   * between reading the invalidation generation and caching the stat.
+   */
+  static class TestFileManager extends OFSHostFileManager {
+    Runnable duringStat;
+
+    TestFileManager(final File _root) {
+      super(_root);
+    }
+
+    @Override
+    protected boolean watchDirectory(final File _dir) {
+      final boolean didRegister = super.watchDirectory(_dir);
+      final Runnable r = this.duringStat;
+      if (r != null) {
+        this.duringStat = null;
+        r.run();
+      }
+      return didRegister;
+    }
+
+    boolean isStatCached(final File _file) {
+      return this.statCache != null && this.statCache.containsKey(_file);
+    }
+    boolean isWatchedDirectory(final File _dir) {
+      return this.watchedDirectories != null &&
+             this.watchedDirectories.containsKey(_dir);
+    }
+
+    /* the watch thread calls these on events */
+    void fileChanged(final File _file) {
+      this.invalidateFile(_file);
+    }
+    void directoryDeleted(final File _dir) {
+      this.invalidateDirectory(_dir);
+    }
+  }
+
+  protected File            root;
+  protected TestFileManager fm;
+
+  @Before
+  public void setUp() throws IOException {
+    this.root = Files.createTempDirectory("ofstest").toFile().getAbsoluteFile();
+    this.fm   = new TestFileManager(this.root);
+    assertTrue("could not enable watch service",
+               this.fm.enableWatchService(0 /* no revalidation */));
+  }
+
+  @After
+  public void tearDown() {
+    this.fm.disableWatchService();
+    deleteRecursively(this.root);
+  }
+
+  @Test
+  public void testStatIsCached() throws IOException {
+    final File file = this.writeFile("a.txt", "hello");
+
+    final Object stat = this.fm.statOfFile(file);
+    assertNotNull(stat);
+    assertTrue(this.fm.isStatCached(file));
+    assertTrue(this.fm.isWatchedDirectory(this.root));
+    assertSame("stat not cached", stat, this.fm.statOfFile(file));
+
+    this.fm.fileChanged(file);
+    assertFalse(this.fm.isStatCached(file));
+    assertNotSame("stat not invalidated", stat, this.fm.statOfFile(file));
+  }
+
+  @Test
+  public void testEventDuringStatIsNotLost() throws IOException {
+    final File file = this.writeFile("a.txt", "hello");
+
+    /* an event arrives after statOfFile() read the generation, the stat it
+     * got might be the one from before the change */
+    this.fm.duringStat = new Runnable() {
+      public void run() {
+        TOFSHostFileManager.this.fm.fileChanged(file);
+      }
+    };
+    final Object stat = this.fm.statOfFile(file);
+    assertNotNull(stat);
+    assertNull("callback not run", this.fm.duringStat);
+    assertFalse("stale stat got cached", this.fm.isStatCached(file));
+
+    /* w/o a concurrent event the stat is cached */
+    final Object stat2 = this.fm.statOfFile(file);
+    assertTrue(this.fm.isStatCached(file));
+    assertSame(stat2, this.fm.statOfFile(file));
+  }
+
+  @Test
+  public void testDirectoryDeleteDropsSubtree() throws IOException {
+    final File dirA = this.mkdir("a");
+    final File dirB = this.mkdir("a/b");
+    final File file = this.writeFile("a/b/c.txt", "hello");
+    final File dirX = this.mkdir("x");
+    final File fileX = this.writeFile("x/y.txt", "other");
+
+    for (final File f: new File[] { dirA, dirB, file, dirX, fileX })
+      assertNotNull(this.fm.statOfFile(f));
+    assertTrue(this.fm.isWatchedDirectory(dirA));
+    assertTrue(this.fm.isWatchedDirectory(dirB));
+    assertTrue(this.fm.isStatCached(file));
+
+    this.fm.directoryDeleted(dirA);
+
+    assertFalse(this.fm.isStatCached(dirA));
+    assertFalse(this.fm.isStatCached(dirB));
+    assertFalse(this.fm.isStatCached(file));
+    assertFalse(this.fm.isWatchedDirectory(dirA));
+    assertFalse(this.fm.isWatchedDirectory(dirB));
+
+    /* siblings are kept */
+    assertTrue(this.fm.isStatCached(dirX));
+    assertTrue(this.fm.isStatCached(fileX));
+    assertTrue(this.fm.isWatchedDirectory(dirX));
+
+    /* files below the dropped directory get watched again on access */
+    assertNotNull(this.fm.statOfFile(file));
+    assertTrue(this.fm.isWatchedDirectory(dirB));
+    assertTrue(this.fm.isStatCached(file));
+  }
+
+  @Test
+  public void testWatchEvents() throws Exception {
+    final File dirA = this.mkdir("a");
+    final File file = this.writeFile("a/b.txt", "hello");
+
+    final IOFSFileInfo info = this.fm.fileInfoForPath(new String[] { "a", "b.txt" });
+    assertTrue(info.exists());
+    assertEquals(5, info.length());
+    assertTrue(this.fm.isStatCached(file));
+
+    /* modification, picked up by the watch thread */
+    this.writeFile("a/b.txt", "hello world");
+    assertTrue("change not reported", this.waitForInvalidation(file));
+    assertEquals(11, info.length());
+
+    /* deleting the directory drops the stats below it */
+    assertNotNull(this.fm.statOfFile(dirA));
+    deleteRecursively(dirA);
+    assertTrue("delete not reported", this.waitForInvalidation(dirA));
+    assertTrue("delete not reported", this.waitForInvalidation(file));
+    assertFalse(info.exists());
+  }
+
+
+  /* support */
+
+  protected File mkdir(final String _path) {
+    final File dir = new File(this.root, _path);
+    assertTrue("could not create: " + dir, dir.mkdirs());
+    return dir;
+  }
+
+  protected File writeFile(final String _path, final String _content)
+    throws IOException
+  {
+    final File file = new File(this.root, _path);
+    final FileOutputStream os = new FileOutputStream(file);
+    try {
+      os.write(_content.getBytes("utf-8"));
+    }
+    finally {
+      os.close();
+    }
+    return file;
+  }
+
+  /**
+   * Waits until the watch thread dropped the stat of the given file.
+   */
+  protected boolean waitForInvalidation(final File _file)
+    throws InterruptedException
+  {
+    for (int i = 0; i < 200; i++) {
+      if (!this.fm.isStatCached(_file))
+        return true;
+      Thread.sleep(50);
+    }
+    return false;
+  }
+
+  protected static void deleteRecursively(final File _file) {
+    final File[] children = _file.listFiles();
+    if (children != null) {
+      for (final File child: children)
+        deleteRecursively(child);
+    }
+    _file.delete();
+  }
+}
@@ -0,0 +1,218 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+
+package org.getobjects.ofs.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.getobjects.ofs.fs.IOFSFileInfo;
+import org.getobjects.ofs.fs.OFSHostFileInfo;
+import org.getobjects.ofs.fs.OFSObjectCache;
+import org.junit.Test;
+
+/**
+ * Checks the LRU eviction and the byte accounting of OFSObjectCache.
+ */
+public class TOFSObjectCache {
+
+  static class SizedObject implements OFSObjectCache.ISizeEstimate {
+    final long size;
+
+    SizedObject(final long _size) {
+      this.size = _size;
+    }
+
+    public long estimatedSize() {
+      return this.size;
+    }
+  }
+
+  @Test
+  public void testEntryLimit() {
+    final OFSObjectCache cache = new OFSObjectCache("test", 10, 0);
+
+    for (int i = 0; i < 10; i++)
+      cache.put(info(i), "v" + i);
+    assertEquals("cache should be full", 10, cache.size());
+    assertEquals(0, cache.evictionCount());
+
+    /* the eleventh entry evicts down to 90% */
+    cache.put(info(10), "v10");
+    assertEquals("should evict down to 90%", 9, cache.size());
+    assertEquals(2, cache.evictionCount());
+    assertNull("oldest entry should be evicted", cache.get(info(0)));
+    assertNull("second oldest entry should be evicted", cache.get(info(1)));
+    assertEquals("v10", cache.get(info(10)));
+  }
+
+  @Test
+  public void testLRUOrder() {
+    final OFSObjectCache cache = new OFSObjectCache("test", 10, 0);
+
+    for (int i = 0; i < 10; i++)
+      cache.put(info(i), "v" + i);
+
+    /* touch the two oldest entries, 2 and 3 are now the least recent */
+    assertEquals("v0", cache.get(info(0)));
+    assertEquals("v1", cache.get(info(1)));
+
+    cache.put(info(10), "v10");
+    assertEquals(9, cache.size());
+    assertNotNull("recently used entry got evicted", cache.get(info(0)));
+    assertNotNull("recently used entry got evicted", cache.get(info(1)));
+    assertNull(cache.get(info(2)));
+    assertNull(cache.get(info(3)));
+
+    /* putIfAbsent of an existing entry also counts as an access */
+    assertEquals("v4", cache.putIfAbsent(info(4), "other"));
+    cache.put(info(11), "v11");
+    cache.put(info(12), "v12");
+    assertEquals("v4", cache.get(info(4)));
+  }
+
+  @Test
+  public void testByteLimit() {
+    final OFSObjectCache cache = new OFSObjectCache("test", 0, 1000);
+
+    for (int i = 0; i < 10; i++)
+      cache.put(info(i), new SizedObject(100));
+    assertEquals(1000, cache.estimatedBytes());
+    assertEquals(10, cache.size());
+
+    /* 1100 bytes, evicts down to 900 */
+    cache.put(info(10), new SizedObject(100));
+    assertEquals(900, cache.estimatedBytes());
+    assertEquals(9, cache.size());
+    assertNull(cache.get(info(0)));
+    assertNull(cache.get(info(1)));
+
+    /* one large object evicts many small ones */
+    cache.put(info(11), new SizedObject(700));
+    assertTrue("over the limit: " + cache.estimatedBytes(),
+               cache.estimatedBytes() <= 900);
+    assertNotNull("new entry got evicted", cache.get(info(11)));
+    assertEquals(bytesOfValues(cache), cache.estimatedBytes());
+  }
+
+  @Test
+  public void testByteAccounting() {
+    final OFSObjectCache cache = new OFSObjectCache("test", 0, 0);
+
+    cache.put(info(1), new SizedObject(100));
+    cache.put(info(2), new SizedObject(200));
+    assertEquals(300, cache.estimatedBytes());
+
+    /* replacing an entry accounts for the old size */
+    cache.put(info(1), new SizedObject(50));
+    assertEquals(250, cache.estimatedBytes());
+
+    /* putIfAbsent does not replace */
+    assertNotNull(cache.putIfAbsent(info(2), new SizedObject(1000)));
+    assertEquals(250, cache.estimatedBytes());
+
+    /* conditional remove only removes the given object */
+    final Object o2 = cache.get(info(2));
+    assertTrue(!cache.remove(info(2), new SizedObject(200)));
+    assertEquals(250, cache.estimatedBytes());
+    assertTrue(cache.remove(info(2), o2));
+    assertEquals(50, cache.estimatedBytes());
+
+    /* putting null removes */
+    cache.put(info(1), null);
+    assertEquals(0, cache.estimatedBytes());
+    assertEquals(0, cache.size());
+
+    /* default estimates */
+    cache.put(info(3), "abc");
+    cache.put(info(4), new byte[100]);
+    cache.put(info(5), Integer.valueOf(5));
+    assertEquals(OFSObjectCache.estimatedSizeOfObject("abc") + 116 +
+                 OFSObjectCache.defaultObjectSize, cache.estimatedBytes());
+
+    cache.clear();
+    assertEquals(0, cache.estimatedBytes());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testSetLimits() {
+    final OFSObjectCache cache = new OFSObjectCache("test", 0, 0);
+    for (int i = 0; i < 100; i++)
+      cache.put(info(i), new SizedObject(10));
+    assertEquals(100, cache.size());
+
+    /* lowering the limits evicts right away */
+    cache.setLimits(20, 0);
+    assertEquals(18, cache.size());
+    assertEquals(180, cache.estimatedBytes());
+
+    cache.setLimits(0, 100);
+    assertEquals(9, cache.size());
+    assertEquals(90, cache.estimatedBytes());
+    assertNotNull("most recent entry got evicted", cache.get(info(99)));
+  }
+
+  @Test
+  public void testConcurrentAccess() throws InterruptedException {
+    final OFSObjectCache cache = new OFSObjectCache("test", 50, 0);
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int base = t * 1000;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < 1000; i++) {
+            cache.put(info(base + i), new SizedObject(10));
+            cache.get(info(base + i / 2));
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread t: threads)
+      t.join();
+
+    /* a put which raced with an eviction in another thread can leave the
+     * cache over its limit, the next put evicts */
+    cache.put(info(-1), new SizedObject(10));
+    assertTrue("over the limit: " + cache.size(), cache.size() <= 50);
+    assertEquals(bytesOfValues(cache), cache.estimatedBytes());
+  }
+
+
+  /* support */
+
+  protected static IOFSFileInfo info(final int _idx) {
+    final String name = "file" + _idx + ".txt";
+    return new OFSHostFileInfo(new String[] { name }, new File("/tmp/", name));
+  }
+
+  protected static long bytesOfValues(final OFSObjectCache _cache) {
+    long bytes = 0;
+    for (final Object o: _cache.values())
+      bytes += OFSObjectCache.estimatedSizeOfObject(o);
+    return bytes;
+  }
+}
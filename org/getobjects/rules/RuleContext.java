@@ -70,7 +70,8 @@ import org.getobjects.foundation.NSObject;
  * 
  * 
  * <p>
- * Thread Safety: this object is not threadsafe.<br>
+ * Thread Safety: this object is not threadsafe. The RuleModel can be shared
+ * by multiple contexts (and threads).<br>
  * TBD: why not? As long as we don't modify stored values and the model it
  * should be OK? We could make the model immutable?
  * 
@@ -153,13 +154,31 @@ public class RuleContext extends NSObject
     final boolean isDebugOn = log.isDebugEnabled();
     if (isDebugOn) log.debug("infer value for key: " + _key);
     
-    /* the model returns a presorted set of candidates */
-    Rule[] rules = this.model.candidateRulesForKey(_key);
-    if (rules == null) {
+    final RuleKeyIndex index = this.model.indexForKey(_key);
+    if (index == null) {
       if (isDebugOn) log.debug("=> no candidates for key: " + _key);
       return null;
     }
     
+    /* check whether we already know the matching rule for the values */
+    List<Object> memoKey = null;
+    if (this.model.memoizesMatches()) {
+      memoKey = index.memoKeyInContext(this);
+      
+      final Object match = index.memoizedMatch(memoKey);
+      if (match == RuleKeyIndex.noMatch) {
+        if (isDebugOn) log.debug("=> memoized, no rule matched: " + _key);
+        return null;
+      }
+      if (match != null) {
+        if (isDebugOn) log.debug("=> memoized match: " + match);
+        return this.fireRule((Rule)match);
+      }
+    }
+    
+    /* the index returns a presorted set of candidates */
+    final Rule[] rules = index.candidatesInContext(this);
+    
     /* check qualifiers */
     for (int i = 0; i < rules.length; i++) {
       EOQualifier q = rules[i].qualifier();
@@ -173,17 +192,23 @@ public class RuleContext extends NSObject
         /* found it! */
         if (isDebugOn) log.debug("=> qualifier matched: " + rules[i]);
         
-        RuleAction action = (RuleAction)rules[i].action();
-        if (isDebugOn) log.debug("=> fire: " + action);
-        return action.fireInContext(this);
+        index.memoizeMatch(memoKey, rules[i]);
+        return this.fireRule(rules[i]);
       }
     }
     
     /* no rule matched */
     if (isDebugOn) log.debug("=> no rule qualifier matched: " + _key);
+    index.memoizeMatch(memoKey, null);
     return null;
   }
   
+  protected Object fireRule(final Rule _rule) {
+    RuleAction action = (RuleAction)_rule.action();
+    if (log.isDebugEnabled()) log.debug("=> fire: " + action);
+    return action.fireInContext(this);
+  }
+  
   public List<Object> allPossibleValuesForKey(final String _key) {
     if (_key == null) {
       log.warn("got no key in allPossibleValuesForKey.");
@@ -200,7 +225,7 @@ public class RuleContext extends NSObject
     List<Object> values = new ArrayList<Object>(16);
     
     /* the model returns a presorted set of candidates */
-    Rule[] rules = this.model.candidateRulesForKey(_key);
+    Rule[] rules = this.model.candidateRulesForKeyInContext(_key, this);
     if (rules == null) {
       if (isDebugOn) log.debug("=> no candidates for key: " + _key);
       return null;
@@ -0,0 +1,375 @@
+/*
+  Copyright (C) 2006-2014 Helge Hess
+
+  This file is part of Go.
+
+  Go is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  Go is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+  License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with Go; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.getobjects.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.getobjects.eocontrol.EOAndQualifier;
+import org.getobjects.eocontrol.EOBooleanQualifier;
+import org.getobjects.eocontrol.EOCompoundQualifier;
+import org.getobjects.eocontrol.EOKeyComparisonQualifier;
+import org.getobjects.eocontrol.EOKeyValueQualifier;
+import org.getobjects.eocontrol.EONotQualifier;
+import org.getobjects.eocontrol.EOOrQualifier;
+import org.getobjects.eocontrol.EOQualifier;
+import org.getobjects.foundation.NSKeyPath;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * RuleKeyIndex
+ * <p>
+ * Created by a RuleModel for each key which is queried. It contains the
+ * sorted candidate rules for the key, plus two optional lookup structures:
+ * <ul>
+ *   <li>a discrimination index: if many candidates check the same context
+ *       key for equality (eg <code>pageName = 'Main'</code>), the candidates
+ *       are grouped by the value checked. A lookup then only returns the
+ *       rules which check for the current value, plus the rules which do
+ *       not check the key at all.
+ *   <li>a match memo: maps the values of the context keys referenced by the
+ *       candidate qualifiers to the rule which matched for those values.
+ * </ul>
+ * Both only consider context keys which are stored values in the
+ * RuleContext (or keypathes starting at a stored value, eg 'entity.name').
+ * Keys which need to be inferred are never evaluated by the index, in this
+ * case the full candidate list is returned.
+ * <p>
+ * THREAD: the index is immutable except for the memo, which is a concurrent
+ *         map. It can be shared by all contexts using the model.
+ */
+class RuleKeyIndex extends NSObject {
+
+  /* returned by storedValueForKeyPath if a key would need inference */
+  protected static final Object noStoredValue = new Object();
+  /* memo value if no rule matched */
+  protected static final Object noMatch       = new Object();
+
+  protected static final int minRulesForDiscrimination = 8;
+  protected static final int maxMemoSize               = 1024;
+
+  protected final String key;
+  protected final Rule[] candidates;
+
+  /* discrimination index */
+  protected String              discriminatorKey;
+  protected StoredKeyPath       discriminatorPath;
+  protected Map<String, Rule[]> rulesByValue;
+  protected Rule[]              rulesForOtherValues;
+
+  /* memo */
+  protected StoredKeyPath[] memoKeyPathes; /* null if not memoizable */
+  protected final ConcurrentHashMap<List<Object>, Object> memo;
+
+  protected RuleKeyIndex(final String _key, final Rule[] _sortedCandidates) {
+    this.key        = _key;
+    this.candidates = _sortedCandidates;
+    this.memo       = new ConcurrentHashMap<>(16);
+
+    this.buildDiscriminationIndex();
+    this.buildMemoKeys();
+  }
+
+  /* accessors */
+
+  public String key() {
+    return this.key;
+  }
+
+  /**
+   * Returns all candidate rules for the key, sorted by priority. Do not modify
+   * the array.
+   */
+  public Rule[] candidates() {
+    return this.candidates;
+  }
+
+  /* lookup */
+
+  /**
+   * Returns the candidate rules which can match in the given context, sorted
+   * by priority. Rules which can't match because they check a discriminator
+   * key for a different value are left out.
+   *
+   * @param _ctx - the RuleContext
+   * @return the candidate rules
+   */
+  public Rule[] candidatesInContext(final RuleContext _ctx) {
+    if (this.rulesByValue == null || _ctx == null)
+      return this.candidates;
+
+    final Object v = this.discriminatorPath.valueInContext(_ctx);
+    if (v == null)
+      return this.rulesForOtherValues; /* null never equals a String */
+    if (!(v instanceof String))
+      return this.candidates; /* not stored, or not indexed */
+
+    final Rule[] rules = this.rulesByValue.get(v);
+    return rules != null ? rules : this.rulesForOtherValues;
+  }
+
+  /**
+   * Returns the key of the memo for the given context, that is, the values of
+   * all context keys referenced by the candidates.
+   *
+   * @param _ctx - the RuleContext
+   * @return the memo key, or null if the context can't be memoized
+   */
+  public List<Object> memoKeyInContext(final RuleContext _ctx) {
+    if (this.memoKeyPathes == null || _ctx == null)
+      return null;
+
+    final Object[] values = new Object[this.memoKeyPathes.length];
+    for (int i = 0; i < values.length; i++) {
+      final Object v = this.memoKeyPathes[i].valueInContext(_ctx);
+      if (!isMemoizableValue(v))
+        return null;
+      values[i] = v;
+    }
+    return Arrays.asList(values);
+  }
+
+  /**
+   * Returns the memoized match for the given memo key.
+   *
+   * @param _memoKey - the memo key, as returned by memoKeyInContext()
+   * @return the Rule, noMatch if no rule matched, or null if not memoized
+   */
+  public Object memoizedMatch(final List<Object> _memoKey) {
+    return _memoKey != null ? this.memo.get(_memoKey) : null;
+  }
+
+  public void memoizeMatch(final List<Object> _memoKey, final Rule _rule) {
+    if (_memoKey == null)
+      return;
+    if (this.memo.size() >= maxMemoSize)
+      this.memo.clear(); /* simple, the values usually are a small set */
+    this.memo.put(_memoKey, _rule != null ? _rule : noMatch);
+  }
+
+  protected static boolean isMemoizableValue(final Object _v) {
+    /* values must be immutable and have proper equals/hashCode */
+    return _v == null || _v instanceof String || _v instanceof Number ||
+      _v instanceof Boolean || _v instanceof Character || _v instanceof Enum;
+  }
+
+  /* building the index */
+
+  protected void buildDiscriminationIndex() {
+    if (this.candidates == null ||
+        this.candidates.length < minRulesForDiscrimination)
+      return;
+
+    /* find the context key which is checked by most candidates */
+
+    final List<Map<String, String>> constraints =
+      new ArrayList<>(this.candidates.length);
+    final Map<String, Integer> counts = new HashMap<>(8);
+    for (final Rule rule: this.candidates) {
+      final Map<String, String> c = new HashMap<>(4);
+      addEqualityConstraints(rule.qualifier(), c);
+      constraints.add(c);
+
+      for (final String k: c.keySet()) {
+        final Integer count = counts.get(k);
+        counts.put(k, count != null ? count + 1 : 1);
+      }
+    }
+
+    String bestKey   = null;
+    int    bestCount = 1;
+    for (final Map.Entry<String, Integer> e: counts.entrySet()) {
+      if (e.getValue() > bestCount) {
+        bestKey   = e.getKey();
+        bestCount = e.getValue();
+      }
+    }
+    if (bestKey == null)
+      return;
+
+    /* group the rules, keeping the sort order */
+
+    final Set<String> values = new HashSet<>(16);
+    for (final Map<String, String> c: constraints) {
+      final String v = c.get(bestKey);
+      if (v != null) values.add(v);
+    }
+
+    final Map<String, Rule[]> byValue = new HashMap<>(values.size() * 2);
+    for (final String value: values) {
+      final List<Rule> rules = new ArrayList<>(this.candidates.length);
+      for (int i = 0; i < this.candidates.length; i++) {
+        final String v = constraints.get(i).get(bestKey);
+        if (v == null || v.equals(value))
+          rules.add(this.candidates[i]);
+      }
+      byValue.put(value, rules.toArray(new Rule[rules.size()]));
+    }
+
+    final List<Rule> others = new ArrayList<>(this.candidates.length);
+    for (int i = 0; i < this.candidates.length; i++) {
+      if (constraints.get(i).get(bestKey) == null)
+        others.add(this.candidates[i]);
+    }
+
+    this.discriminatorKey    = bestKey;
+    this.discriminatorPath   = new StoredKeyPath(bestKey);
+    this.rulesByValue        = byValue;
+    this.rulesForOtherValues = others.toArray(new Rule[others.size()]);
+  }
+
+  /**
+   * Collects the <code>key = 'String'</code> conditions which must be true
+   * for the qualifier to match.
+   */
+  protected static void addEqualityConstraints
+    (final EOQualifier _q, final Map<String, String> _constraints)
+  {
+    if (_q == null)
+      return;
+
+    if (_q.getClass() == EOKeyValueQualifier.class) {
+      final EOKeyValueQualifier kvq = (EOKeyValueQualifier)_q;
+      if (kvq.operation() == EOQualifier.ComparisonOperation.EQUAL_TO &&
+          kvq.extendedOperation() == null && kvq.key() != null &&
+          kvq.value() instanceof String &&
+          !_constraints.containsKey(kvq.key()))
+      {
+        _constraints.put(kvq.key(), (String)kvq.value());
+      }
+    }
+    else if (_q.getClass() == EOAndQualifier.class) {
+      final EOQualifier[] qs = ((EOAndQualifier)_q).qualifiers();
+      if (qs != null) {
+        for (final EOQualifier q: qs)
+          addEqualityConstraints(q, _constraints);
+      }
+    }
+  }
+
+  protected void buildMemoKeys() {
+    if (this.candidates == null)
+      return;
+
+    final Set<String> keys = new HashSet<>(8);
+    for (final Rule rule: this.candidates) {
+      final EOQualifier q = rule.qualifier();
+      if (q == null)
+        continue; /* skipped by the RuleContext */
+      if (!isMemoizableQualifier(q))
+        return;
+      q.addReferencedKeysToSet(keys);
+    }
+
+    final String[] sortedKeys = keys.toArray(new String[keys.size()]);
+    Arrays.sort(sortedKeys);
+    this.memoKeyPathes = new StoredKeyPath[sortedKeys.length];
+    for (int i = 0; i < sortedKeys.length; i++)
+      this.memoKeyPathes[i] = new StoredKeyPath(sortedKeys[i]);
+  }
+
+  /**
+   * Checks whether the qualifier only depends on the keys it reports in
+   * addReferencedKeysToSet().
+   */
+  protected static boolean isMemoizableQualifier(final EOQualifier _q) {
+    if (_q == null)
+      return true;
+    if (_q.hasUnresolvedBindings())
+      return false;
+
+    final Class<?> clazz = _q.getClass();
+    if (clazz == EOKeyValueQualifier.class ||
+        clazz == EOKeyComparisonQualifier.class ||
+        clazz == EOBooleanQualifier.class)
+      return true;
+
+    if (clazz == EOAndQualifier.class || clazz == EOOrQualifier.class) {
+      final EOQualifier[] qs = ((EOCompoundQualifier)_q).qualifiers();
+      if (qs != null) {
+        for (final EOQualifier q: qs) {
+          if (!isMemoizableQualifier(q))
+            return false;
+        }
+      }
+      return true;
+    }
+
+    if (clazz == EONotQualifier.class)
+      return isMemoizableQualifier(((EONotQualifier)_q).qualifier());
+
+    return false;
+  }
+
+  /**
+   * A keypath which is only evaluated if its first key is a stored value in
+   * the RuleContext, eg 'entity.name'. This never triggers inference.
+   */
+  protected static final class StoredKeyPath {
+
+    protected final String    firstKey;
+    protected final NSKeyPath rest;
+
+    protected StoredKeyPath(final String _keyPath) {
+      final int idx = _keyPath.indexOf('.');
+      this.firstKey = idx < 0 ? _keyPath : _keyPath.substring(0, idx);
+      this.rest     = idx < 0
+        ? null : NSKeyPath.keyPathWithString(_keyPath.substring(idx + 1));
+    }
+
+    /**
+     * Returns the value of the keypath, or noStoredValue if the first key is
+     * not a stored value.
+     */
+    protected Object valueInContext(final RuleContext _ctx) {
+      final Object base = _ctx.storedValueForKey(this.firstKey);
+      if (base == null)
+        return noStoredValue;
+
+      /* same traversal like the qualifier does, see EOKey */
+      return this.rest != null ? this.rest.valueForKeysInObject(base) : base;
+    }
+  }
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" key=");
+    _d.append(this.key);
+    _d.append(" #candidates=");
+    _d.append(this.candidates != null ? this.candidates.length : 0);
+    if (this.discriminatorKey != null) {
+      _d.append(" discriminator=");
+      _d.append(this.discriminatorKey);
+    }
+    if (this.memoKeyPathes == null)
+      _d.append(" not-memoizable");
+  }
+}
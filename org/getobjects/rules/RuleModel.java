@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,6 +40,14 @@ import org.getobjects.foundation.NSObject;
  * A rule model is a container for a set of rule objects (Rule). The model
  * will select candidate rules for a given key. Candidates rules are sorted
  * by various parameters.
+ * <p>
+ * The candidates are determined once per key and cached in a RuleKeyIndex,
+ * which also groups them by commonly checked context keys (eg pageName).
+ * Optionally the index can also memoize which rule matched for a given set
+ * of context values, see setMemoizesMatches().
+ * <p>
+ * THREAD: the caches are thread safe, the rules must not be modified while
+ *         the model is in use (call flushCaches() after modifying a Rule).
  * 
  * @see Rule 
  */
@@ -46,6 +55,9 @@ public class RuleModel extends NSObject implements Comparator {
   protected static Log log = LogFactory.getLog("GoRules");
   
   protected Rule[] rules;
+  protected boolean memoizesMatches;
+  protected final ConcurrentHashMap<String, RuleKeyIndex> keyIndexes =
+    new ConcurrentHashMap<String, RuleKeyIndex>(64);
 
   public RuleModel(Rule[] _rules) {
     this.rules = _rules;
@@ -55,6 +67,7 @@ public class RuleModel extends NSObject implements Comparator {
   
   public void setRules(Rule[] _rules) {
     this.rules = _rules;
+    this.flushCaches();
   }
   public Rule[] rules() {
     return this.rules;
@@ -72,6 +85,7 @@ public class RuleModel extends NSObject implements Comparator {
       System.arraycopy(oldRules, 0, this.rules, 0, oldRules.length);
       this.rules[oldRules.length] = _rule;
     }
+    this.flushCaches();
   }
   
   public void addRules(Rule[] _rules) {
@@ -85,19 +99,103 @@ public class RuleModel extends NSObject implements Comparator {
       
     System.arraycopy(oldRules, 0, this.rules, 0, oldRules.length);
     System.arraycopy(_rules,   0, this.rules, oldRules.length, _rules.length);
+    this.flushCaches();
+  }
+  
+  /**
+   * Enables the memoization of rule matches. If enabled, the RuleContext
+   * records which rule matched for the values of the context keys the
+   * candidate qualifiers reference, and reuses that match for other contexts
+   * with the same values (w/o evaluating the qualifiers again).
+   * <p>
+   * This requires that the qualifiers only depend on those values, which is
+   * true for the standard EOQualifier classes. Memoization is only done if all
+   * referenced context keys are stored values (or keypathes starting at one).
+   * 
+   * @param _flag - whether matches should be memoized
+   */
+  public void setMemoizesMatches(boolean _flag) {
+    this.memoizesMatches = _flag;
+  }
+  public boolean memoizesMatches() {
+    return this.memoizesMatches;
+  }
+  
+  /**
+   * Drops the cached candidates and memoized matches. This is called
+   * automatically if rules are added, but must be called manually if a Rule
+   * object is modified.
+   */
+  public void flushCaches() {
+    this.keyIndexes.clear();
   }
   
   /* operations */
   
-  @SuppressWarnings("unchecked")
+  /**
+   * Returns the RuleKeyIndex for the given key. The index is created on the
+   * first request and then cached.
+   * 
+   * @param _key - the key to be inferred, eg 'color'
+   * @return the RuleKeyIndex, or null if the model has no rules
+   */
+  RuleKeyIndex indexForKey(final String _key) {
+    if (_key == null || this.rules == null)
+      return null;
+    
+    RuleKeyIndex index = this.keyIndexes.get(_key);
+    if (index == null) {
+      index = new RuleKeyIndex(_key, this.findCandidateRulesForKey(_key));
+      final RuleKeyIndex other = this.keyIndexes.putIfAbsent(_key, index);
+      if (other != null) index = other;
+    }
+    return index;
+  }
+  
+  /**
+   * Returns the candidate rules for the given key, sorted by priority. The
+   * returned array is cached and must not be modified.
+   * 
+   * @param _key - the key to be inferred, eg 'color'
+   * @return the sorted candidate rules
+   */
   public Rule[] candidateRulesForKey(String _key) {
     if (this.rules == null)
       return null;
+    if (_key == null) /* all rules are candidates, not cached */
+      return this.findCandidateRulesForKey(_key);
+    
+    return this.indexForKey(_key).candidates();
+  }
+  
+  /**
+   * Returns the candidate rules for the given key which can match in the
+   * given context. Rules which check a context value which is already known
+   * to be different are left out (eg 'pageName = "Main"' rules if the stored
+   * pageName is 'Edit').
+   * 
+   * @param _key - the key to be inferred, eg 'color'
+   * @param _ctx - the context the rules are going to be evaluated in
+   * @return the sorted candidate rules
+   */
+  public Rule[] candidateRulesForKeyInContext(String _key, RuleContext _ctx) {
+    final RuleKeyIndex index = this.indexForKey(_key);
+    if (index == null)
+      return this.candidateRulesForKey(_key);
+    
+    return index.candidatesInContext(_ctx);
+  }
+  
+  @SuppressWarnings("unchecked")
+  protected Rule[] findCandidateRulesForKey(String _key) {
+    final Rule[] allRules = this.rules;
+    if (allRules == null)
+      return null;
     
     List<Rule> candidatesList = new ArrayList<Rule>(4);
-    for (int i = 0; i < this.rules.length; i++) {
-      if (this.rules[i].isCandidateForKey(_key))
-        candidatesList.add(this.rules[i]);
+    for (int i = 0; i < allRules.length; i++) {
+      if (allRules[i].isCandidateForKey(_key))
+        candidatesList.add(allRules[i]);
     }
     
     /* sort convertes to array anyway ... */
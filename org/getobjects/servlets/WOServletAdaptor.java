@@ -44,6 +44,7 @@ import org.getobjects.appserver.core.WOCookie;
 import org.getobjects.appserver.core.WOMessage;
 import org.getobjects.appserver.core.WORequest;
 import org.getobjects.appserver.core.WOResponse;
+import org.getobjects.appserver.core.WOResponseCompressor;
 import org.getobjects.foundation.UString;
 
 /**
@@ -271,13 +272,13 @@ public class WOServletAdaptor extends HttpServlet {
 
     /* deliver content */
 
-    final byte[] content = _woResponse.content();
-    if (!didSetLength && content != null)
-      _servletResponse.setContentLength(content.length);
+    final int contentLength = _woResponse.contentLength();
+    if (!didSetLength && contentLength >= 0)
+      _servletResponse.setContentLength(contentLength);
 
+    /* write the buffer segments, avoids a copy of the whole content */
     final OutputStream os = _servletResponse.getOutputStream();
-    if (content != null)
-      os.write(content);
+    _woResponse.writeContentTo(os);
     os.flush();
   }
 
@@ -306,19 +307,42 @@ public class WOServletAdaptor extends HttpServlet {
       e.printStackTrace();
     }
 
-    final WORequest  rq = new WOServletRequest(_rq, _r);
+    final WORequest  rq = new WOServletRequest
+      (_rq, _r, this.WOApp.requestContentPolicy());
     final WOResponse r;
 
+    if (rq.isContentTooLarge()) {
+      this.sendContentTooLarge(_r);
+      rq.dispose();
+      return;
+    }
+
     try {
       log.debug("  dispatch ...");
       r = this.WOApp.dispatchRequest(rq);
 
-      if (r != null) {
+      if (rq.isContentTooLarge() && !_r.isCommitted()) {
+        /* the limit was hit while the handler read deferred content, the
+         * response of the handler (usually an error) is dropped */
+        this.sendContentTooLarge(_r);
+        if (r != null && !r.isStreaming())
+          r.releaseContentBuffer();
+      }
+      else if (r != null) {
         log.debug("  flush ...");
         r.flush();
 
-        if (!r.isStreaming())
+        if (!r.isStreaming()) {
+          final WOResponseCompressor compressor =
+            this.WOApp.responseCompressor();
+          if (compressor != null)
+            compressor.compressResponse(r, rq);
+
           sendWOResponseToServletResponse(r, _r);
+          r.releaseContentBuffer(); /* returns the segments to the pool */
+        }
+        else
+          r.finishStreaming(); /* eg writes the trailer of compressed data */
       }
       else
         log.debug("  got no response.");
@@ -335,6 +359,15 @@ public class WOServletAdaptor extends HttpServlet {
   }
 
 
+  protected void sendContentTooLarge(final HttpServletResponse _r) {
+    try {
+      _r.sendError(413 /* Request Entity Too Large */);
+    }
+    catch (final IOException e) {
+      log.info("could not send 413 response", e);
+    }
+  }
+
   protected String valueFromServletConfig
     (final ServletConfig _cfg, final String _key)
   {
@@ -20,7 +20,11 @@
 */
 package org.getobjects.servlets;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -35,6 +39,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
@@ -42,6 +47,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.getobjects.appserver.core.WOCookie;
 import org.getobjects.appserver.core.WORequest;
+import org.getobjects.appserver.core.WORequestContentPolicy;
 import org.getobjects.appserver.core.WOResponse;
 import org.getobjects.foundation.NSException;
 import org.getobjects.foundation.UObject;
@@ -57,21 +63,43 @@ import org.getobjects.foundation.UObject;
  * We need to track the servlet response because the Servlet API service()
  * method already has the pointer to the response. Which in turn is needed
  * for content streaming.
+ *
+ * <p>
+ * Request bodies are loaded according to the WORequestContentPolicy of the
+ * application. Small bodies are loaded into memory upfront. Larger ones stay
+ * in the servlet InputStream until the handler asks for them, using
+ * contentStream() (no buffering) or content() (loaded into memory). If the
+ * content needs to be read multiple times, bufferContent() copies it to a
+ * temporary file.
  */
 public class WOServletRequest extends WORequest {
   private static final Log servLog = LogFactory.getLog("WOServletAdaptor");
 
   HttpServletRequest  sRequest;
   HttpServletResponse sResponse;
-  protected static int maxRequestSize = 64 * 1024 * 1024; /* 64MB  */
-  protected static int maxRAMFileSize = 256 * 1024;       /* 256KB */
   protected static File tmpFileLocation =
     new File(System.getProperty("java.io.tmpdir"));
+  protected static final WORequestContentPolicy defaultContentPolicy =
+    new WORequestContentPolicy(null);
+
+  protected WORequestContentPolicy contentPolicy;
+  protected long    maxContentSize;       /* negative: unlimited */
+  protected boolean isContentTooLarge;
+  protected boolean isContentDeferred;    /* still in the servlet stream */
+  protected File    contentFile;          /* buffered (large) content */
+  protected boolean isMultipartStreaming; /* parts not parsed */
 
   public WOServletRequest
     (final HttpServletRequest _rq, final HttpServletResponse _r)
+  {
+    this(_rq, _r, null);
+  }
+  public WOServletRequest
+    (final HttpServletRequest _rq, final HttpServletResponse _r,
+     final WORequestContentPolicy _policy)
   {
     super();
+    this.contentPolicy = _policy != null ? _policy : defaultContentPolicy;
     this.init(_rq, _r);
   }
 
@@ -102,16 +130,41 @@ public class WOServletRequest extends WORequest {
     this.loadHeadersFromServletRequest(_rq);
     this.loadCookies();
 
+    if (this.contentPolicy == null) /* init called by a subclass */
+      this.contentPolicy = defaultContentPolicy;
+    this.maxContentSize =
+      this.contentPolicy.maxContentSizeForPath(_rq.getRequestURI());
+
+    final long contentLength = contentLengthOfRequest(_rq);
+    if (this.maxContentSize >= 0 && contentLength > this.maxContentSize) {
+      /* the adaptor responds with a 413, we do not touch the content */
+      servLog.warn("request content too large (" + contentLength + " vs " +
+                   this.maxContentSize + "): " + _rq.getRequestURI());
+      this.isContentTooLarge = true;
+      return;
+    }
+
     // Note: ServletFileUpload.isMultipartContent() is deprecated
     String contentType = this.headerForKey("content-type");
     if (contentType != null) contentType = contentType.toLowerCase();
 
-    if (contentType != null && contentType.startsWith("multipart/form-data")) {
+    if (contentType != null && contentType.startsWith("multipart/form-data") &&
+        this.contentPolicy.isStreamingPath(_rq.getRequestURI()))
+    {
+      /* the handler processes the parts using contentParts() */
+      this.isMultipartStreaming = true;
+      this.isContentDeferred    = true;
+      this.loadFormValuesFromRequest(_rq);
+    }
+    else if (contentType != null &&
+             contentType.startsWith("multipart/form-data"))
+    {
       final FileItemFactory factory = // Apache stuff
-        new DiskFileItemFactory(maxRAMFileSize, tmpFileLocation);
+        new DiskFileItemFactory(this.contentPolicy.memoryThreshold(),
+                                tmpFileLocation);
 
       final ServletFileUpload upload = new ServletFileUpload(factory);
-      upload.setSizeMax(maxRequestSize);
+      upload.setSizeMax(this.maxContentSize);
 
       List<FileItem> items = null;
       try {
@@ -146,8 +199,14 @@ public class WOServletRequest extends WORequest {
        */
       this.loadFormValuesFromRequest(_rq);
 
-      // TODO: make this smarter, eg transfer large PUTs to disk
-      this.loadContentFromRequest(_rq);
+      if (contentLength > this.contentPolicy.memoryThreshold() ||
+          (contentLength < 0 && this.headerForKey("transfer-encoding") != null))
+      {
+        /* large or chunked, leave it in the stream until it is requested */
+        this.isContentDeferred = true;
+      }
+      else
+        this.loadContentFromRequest(_rq);
     }
   }
 
@@ -159,6 +218,12 @@ public class WOServletRequest extends WORequest {
       }
     }
 
+    if (this.contentFile != null) {
+      if (!this.contentFile.delete())
+        servLog.warn("could not delete content file: " + this.contentFile);
+      this.contentFile = null;
+    }
+
     super.dispose();
   }
 
@@ -210,10 +275,6 @@ public class WOServletRequest extends WORequest {
   protected IOException loadContentFromStream
     (final int len, final InputStream _in)
   {
-    // TODO: directly load into contents buffer w/o copying
-    // TODO: deal with requests which have no content-length?
-    // TODO: add support for streamed input?
-
     if (len < 1)
       return null; /* no content, no error */
 
@@ -224,15 +285,14 @@ public class WOServletRequest extends WORequest {
 
     int pos = 0;
     try {
-      byte[] buffer = new byte[4096];
       int gotlen;
 
+      /* read directly into the contents array */
       this.contents = new byte[len];
 
-      while ((gotlen = _in.read(buffer)) != -1) {
-        System.arraycopy(buffer, 0, this.contents, pos, gotlen);
+      while (pos < len &&
+             (gotlen = _in.read(this.contents, pos, len - pos)) != -1)
         pos += gotlen;
-      }
     }
     catch (IOException ioe) {
       // TODO: what to do with failed requests?
@@ -545,6 +605,259 @@ public class WOServletRequest extends WORequest {
       this.loadContentFromStream(_rq.getIntHeader("content-length"), is);
   }
 
+  /**
+   * Returns the content-length of the request as a long (getContentLength()
+   * is limited to 2GB).
+   *
+   * @param _rq - the Servlet request
+   * @return the content-length, or -1 if it is unknown
+   */
+  protected static long contentLengthOfRequest(final HttpServletRequest _rq) {
+    final String s = _rq.getHeader("content-length");
+    if (s == null)
+      return -1;
+    try {
+      return Long.parseLong(s.trim());
+    }
+    catch (final NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /* streamed content */
+
+  /**
+   * Returns true if the content of the request is larger than allowed by the
+   * WORequestContentPolicy. The WOServletAdaptor responds with a 413 in this
+   * case. This is also set if the limit is hit while deferred content is
+   * being read (eg chunked content w/o a content-length).
+   */
+  @Override
+  public boolean isContentTooLarge() {
+    return this.isContentTooLarge;
+  }
+
+  /**
+   * Returns true if the content was not loaded when the request was created
+   * and can still be consumed using contentStream().
+   */
+  public boolean isContentDeferred() {
+    return this.isContentDeferred;
+  }
+
+  /**
+   * Returns the content of the request as a stream. If the content was
+   * deferred, this returns the stream of the Servlet request (limited to the
+   * maximum size allowed for the path). That stream can only be consumed
+   * once, call bufferContent() first if the content is needed again.
+   */
+  @Override
+  public InputStream contentStream() throws IOException {
+    if (this.contentFile != null)
+      return new FileInputStream(this.contentFile);
+
+    if (this.isContentDeferred && !this.isMultipartStreaming) {
+      this.isContentDeferred = false; /* consumed by the caller */
+      return new LimitedInputStream
+        (this.sRequest.getInputStream(), this.maxContentSize, this);
+    }
+
+    return super.contentStream();
+  }
+
+  /**
+   * Copies deferred content into memory (if it is small) or into a temporary
+   * file, so that it can be retrieved multiple times. The file is deleted
+   * when the request is disposed.
+   */
+  @Override
+  public void bufferContent() throws IOException {
+    if (!this.isContentDeferred || this.isMultipartStreaming)
+      return;
+
+    final int threshold = this.contentPolicy.memoryThreshold();
+    final InputStream in = this.contentStream();
+    final ByteArrayOutputStream mem = new ByteArrayOutputStream(8192);
+    final byte[] buffer = new byte[8192];
+    OutputStream out = mem;
+    File file = null;
+    try {
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        if (file == null && mem.size() + len > threshold) {
+          /* spill to disk */
+          file = File.createTempFile("wocontent", ".tmp", tmpFileLocation);
+          out  = new FileOutputStream(file);
+          mem.writeTo(out);
+        }
+        out.write(buffer, 0, len);
+      }
+    }
+    catch (final IOException e) {
+      if (file != null) {
+        out.close();
+        file.delete();
+      }
+      throw e;
+    }
+    finally {
+      in.close();
+    }
+
+    if (file != null) {
+      out.close();
+      this.contentFile = file;
+    }
+    else if (mem.size() > 0)
+      this.contents = mem.toByteArray();
+  }
+
+  /**
+   * Returns the content as a byte[] array. Deferred content is loaded into
+   * memory on the first call. Prefer contentStream() for large content.
+   * <p>
+   * If the content exceeds the limit of the WORequestContentPolicy, an
+   * NSException is thrown (to stop the handler) and the adaptor responds
+   * with a 413.
+   */
+  @Override
+  public byte[] content() {
+    if (this.contents == null &&
+        ((this.isContentDeferred && !this.isMultipartStreaming) ||
+         this.contentFile != null))
+    {
+      try {
+        final InputStream in = this.contentStream();
+        try {
+          final ByteArrayOutputStream mem = new ByteArrayOutputStream(8192);
+          final byte[] buffer = new byte[8192];
+          int len;
+          while ((len = in.read(buffer)) != -1)
+            mem.write(buffer, 0, len);
+          if (mem.size() > 0)
+            this.contents = mem.toByteArray();
+        }
+        finally {
+          in.close();
+        }
+      }
+      catch (final IOException e) {
+        this.lastException = e;
+        if (this.isContentTooLarge) {
+          servLog.warn("request content too large (limit " +
+                       this.maxContentSize + "): " + this.uri());
+          throw new NSException("request content too large");
+        }
+        log.warn("could not read request content", e);
+        return null;
+      }
+    }
+    return super.content();
+  }
+
+  @Override
+  public int contentLength() {
+    if (this.contents == null &&
+        (this.isContentDeferred || this.contentFile != null))
+    {
+      if (this.contentFile != null)
+        return (int)Math.min(Integer.MAX_VALUE, this.contentFile.length());
+      return (int)Math.min(Integer.MAX_VALUE,
+                           contentLengthOfRequest(this.sRequest));
+    }
+    return super.contentLength();
+  }
+
+  /**
+   * Returns the parts of a multipart request as streams. This is only
+   * available for pathes configured in WOStreamingRequestPaths, the parts
+   * of other multipart requests are parsed into form values (FileItem
+   * objects) when the request is created.
+   * <p>
+   * Like contentStream() the parts can only be iterated once.
+   *
+   * @return the FileItemIterator, or null if the parts were already parsed
+   * @throws IOException if the content could not be parsed
+   */
+  public FileItemIterator contentParts() throws IOException {
+    if (!this.isMultipartStreaming || !this.isContentDeferred)
+      return null;
+
+    this.isContentDeferred = false;
+    final ServletFileUpload upload = new ServletFileUpload();
+    upload.setSizeMax(this.maxContentSize);
+    try {
+      return upload.getItemIterator(this.sRequest);
+    }
+    catch (final FileUploadException e) {
+      throw new IOException("could not parse multipart content", e);
+    }
+  }
+
+  /**
+   * Enforces the maximum content size on deferred content, which might be
+   * sent w/o a content-length (chunked).
+   */
+  protected static class LimitedInputStream extends FilterInputStream {
+    protected final long limit;
+    protected final WOServletRequest request;
+    protected long count;
+
+    protected LimitedInputStream
+      (final InputStream _in, final long _limit, final WOServletRequest _rq)
+    {
+      super(_in);
+      this.limit   = _limit;
+      this.request = _rq;
+    }
+
+    protected void checkLimit() throws IOException {
+      if (this.limit >= 0 && this.count > this.limit) {
+        if (this.request != null) /* the adaptor responds with a 413 */
+          this.request.isContentTooLarge = true;
+        throw new IOException
+          ("request content exceeds the limit of " + this.limit + " bytes");
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b != -1) {
+        this.count++;
+        this.checkLimit();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] _buf, final int _off, final int _len)
+      throws IOException
+    {
+      final int len = super.read(_buf, _off, _len);
+      if (len > 0) {
+        this.count += len;
+        this.checkLimit();
+      }
+      return len;
+    }
+
+    @Override
+    public long skip(final long _n) throws IOException {
+      final long len = super.skip(_n);
+      if (len > 0) {
+        this.count += len;
+        this.checkLimit();
+      }
+      return len;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
   /* accessors */
 
   /**